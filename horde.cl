@@ -23,6 +23,54 @@
 #define VECTOR float4
 #endif
 
+/*
+*	Storage of the weights. By default theta, w and the trace are stored as float.
+*	Defining WEIGHT_HALF or WEIGHT_BFLOAT16 stores w and the trace on 16 bits, THETA_HALF or
+*	THETA_BFLOAT16 does the same for theta. All the arithmetic is still done with floats, only the
+*	loads and the stores go through these macros. The vectorized kernels only support floats.
+*/
+float bfloat16ToFloat(ushort x){
+	return as_float(((uint) x) << 16);
+}
+
+ushort floatToBfloat16(float x){
+	// round to nearest even, keeping NaN a quiet NaN
+	if(isnan(x)){
+		return (ushort) 0x7fc0;
+	}
+	uint u= as_uint(x);
+	u += 0x7fff + ((u >> 16) & 1);
+	return (ushort) (u >> 16);
+}
+
+#if defined(WEIGHT_HALF)
+#define WEIGHT_T half
+#define LOAD_WEIGHT(p, i) vload_half((i), (p))
+#define STORE_WEIGHT(p, i, v) vstore_half_rte((v), (i), (p))
+#elif defined(WEIGHT_BFLOAT16)
+#define WEIGHT_T ushort
+#define LOAD_WEIGHT(p, i) bfloat16ToFloat((p)[i])
+#define STORE_WEIGHT(p, i, v) ((p)[i]= floatToBfloat16(v))
+#else
+#define WEIGHT_T float
+#define LOAD_WEIGHT(p, i) ((p)[i])
+#define STORE_WEIGHT(p, i, v) ((p)[i]= (v))
+#endif
+
+#if defined(THETA_HALF)
+#define THETA_T half
+#define LOAD_THETA(p, i) vload_half((i), (p))
+#define STORE_THETA(p, i, v) vstore_half_rte((v), (i), (p))
+#elif defined(THETA_BFLOAT16)
+#define THETA_T ushort
+#define LOAD_THETA(p, i) bfloat16ToFloat((p)[i])
+#define STORE_THETA(p, i, v) ((p)[i]= floatToBfloat16(v))
+#else
+#define THETA_T float
+#define LOAD_THETA(p, i) ((p)[i])
+#define STORE_THETA(p, i, v) ((p)[i]= (v))
+#endif
+
 /*
 * 	Returns the index of the next bit set to one starting at a
 * specific index (including that index)
@@ -72,7 +120,7 @@ int nextLeadingOne(uint index, uint x){
 *	delta:	The computed delta
 *
 */ 
-float2 computeDeltaGTD( __global float* theta, 
+float2 computeDeltaGTD( __global THETA_T* theta, 
 			__global const float* features1,
 			__global const float* features2, 
 			float gamma, 
@@ -86,8 +134,8 @@ float2 computeDeltaGTD( __global float* theta,
 	float Q1=0.0f, Q2=0.0f;
 	float2 delta;
 	for(i=index; i<dim*numDemons; i+= numDemons){
-		Q1 += theta[i]*features1[j];
-		Q2 += theta[i]*features2[j];
+		Q1 += LOAD_THETA(theta, i)*features1[j];
+		Q2 += LOAD_THETA(theta, i)*features2[j];
 		j++;
 	}
 	delta.x= reward + gamma*Q2 - Q1;
@@ -122,9 +170,9 @@ float2 computeDeltaGTD( __global float* theta,
 *	numDemons :	The total number of demons (might be better to query it)	
 *
 */
-void updateThetaGTD(	__global float* theta,
-			__global float* w,
-			__global float* trace,
+void updateThetaGTD(	__global THETA_T* theta,
+			__global WEIGHT_T* w,
+			__global WEIGHT_T* trace,
 			__global const float* features1,
 			float alpha,
 			float gamma,
@@ -139,12 +187,12 @@ void updateThetaGTD(	__global float* theta,
 	float one_minus_lambda= 1.0f-lambda;
 	float Qw=0.0f;
 	for(i=index; i<dim*numDemons; i+= numDemons){
-		Qw += trace[i]*w[i];
+		Qw += LOAD_WEIGHT(trace, i)*LOAD_WEIGHT(w, i);
 	}
 
 	for(i=index; i<dim*numDemons; i+= numDemons){
-		theta[i] = theta[i] + alpha*(delta*trace[i] 
-				- gamma*(one_minus_lambda)*Qw*features1[j]);
+		STORE_THETA(theta, i, LOAD_THETA(theta, i) + alpha*(delta*LOAD_WEIGHT(trace, i) 
+				- gamma*(one_minus_lambda)*Qw*features1[j]));
 		j++;
 	}
 }
@@ -170,8 +218,8 @@ void updateThetaGTD(	__global float* theta,
 *	numDemons :	The total number of demons (might be better to query it)	
 *
 */
-void updateWGTD(__global float* w,
-		__global float* trace,
+void updateWGTD(__global WEIGHT_T* w,
+		__global WEIGHT_T* trace,
 		__global const float* features1,
 		float alpha,
 		float delta,
@@ -183,12 +231,12 @@ void updateWGTD(__global float* w,
 	int j=0;
 	float Qw=0.0;
 	for(i=index; i<dim*numDemons; i+= numDemons){
-		Qw += features1[j]*w[i];
+		Qw += features1[j]*LOAD_WEIGHT(w, i);
 		j++;
 	}
 	j=0;
 	for(i=index; i<dim*numDemons; i+= numDemons){
-		w[i] = w[i] + alpha*(delta*trace[i] - Qw*features1[j]);
+		STORE_WEIGHT(w, i, LOAD_WEIGHT(w, i) + alpha*(delta*LOAD_WEIGHT(trace, i) - Qw*features1[j]));
 		j++;
 	}
 }
@@ -214,7 +262,7 @@ void updateWGTD(__global float* w,
 *	numDemons :	The total number of demons (might be better to query it)
 *
 */
-void updateTraceGTD(	__global float* trace,
+void updateTraceGTD(	__global WEIGHT_T* trace,
 			__global const float* features1,
 			float rho,
 			float gamma,
@@ -226,27 +274,35 @@ void updateTraceGTD(	__global float* trace,
 	int i;
 	int j=0;
 	for(i=index; i<dim*numDemons; i+= numDemons){
-		trace[i]= rho*(features1[j] + gamma*lambda*trace[i]);
+		STORE_WEIGHT(trace, i, rho*(features1[j] + gamma*lambda*LOAD_WEIGHT(trace, i)));
 		j++;
 	}
 }
 
 
 __kernel void
- updateGTDLambda(__global float* theta, 
-		__global float* w,
-		__global float* trace, 
+ updateGTDLambda(__global THETA_T* theta, 
+		__global WEIGHT_T* w,
+		__global WEIGHT_T* trace, 
 		__global const float* features1,
 		__global const float* features2, 
 		__global const float* rhoArray, 
 		__global const float* rewardArray,
 		__global const float* gammaArray,
 		__global float* prediction,
-		const int dim)
+		__global float* error,
+		const int dim,
+		__global const float* activeArray)
 {
 
 	int i= get_global_id(0);
 	int size= get_global_size(0);
+	if(activeArray[i] == 0.0f){
+		// quarantined demon, its weights are zero and stay zero
+		prediction[i]= 0.0f;
+		error[i]= 0.0f;
+		return;
+	}
 
 	float rho= rhoArray[i];
 	float reward= rewardArray[i];
@@ -255,8 +311,9 @@ __kernel void
 	//Compute the TD error
 	float2 delta= computeDeltaGTD(theta, features1, features2, gamma, reward, i, dim, size);
 
-	//update the prediction
+	//update the prediction and the TD error
 	prediction[i]= delta.y;
+	error[i]= delta.x;
 
 	//Update the elligibility trace
 	updateTraceGTD(trace, features1, rho, gamma, LAMBDA, i, dim, size);
@@ -269,6 +326,364 @@ __kernel void
 
 }
 
+/*
+*	Update the eligibility traces shared by the demons of a GTD(lambda) GPUHorde.
+*	The trace of a demon only depends on its policies, its gamma function, lambda and the features: the demons
+*	sharing all of them form a class with a single trace. Trace c is at c + j*traceStride, the global size is traceStride.
+*
+* Param
+*	trace :		The traces of the classes
+*
+*	features1 :	The feature vector representing s_t
+*
+*	rhoArray :	The importance sampling ratios of the demons
+*
+*	gammaArray :	The discount factors of the demons
+*
+*	representatives :	A demon of every class, -1 for the padding
+*
+*	dim :		The dimension of the feature vector
+*
+*/
+__kernel void
+ updateSharedTraces(__global WEIGHT_T* trace,
+		__global const float* features1,
+		__global const float* rhoArray,
+		__global const float* gammaArray,
+		__global const int* representatives,
+		const int dim)
+{
+	int c= get_global_id(0);
+	int traceStride= get_global_size(0);
+	int demon= representatives[c];
+	if(demon < 0){
+		return;
+	}
+	updateTraceGTD(trace, features1, rhoArray[demon], gammaArray[demon], LAMBDA, c, dim, traceStride);
+}
+
+/*
+*	The same update as updateGTDLambda for demons using the shared traces updated by updateSharedTraces.
+*	The trace of demon i is the trace of its class traceClass[i], which is only read.
+*
+* Param
+*	traceClass :	The class of every demon
+*
+*	traceStride :	The number of classes (padded)
+*
+*/
+__kernel void
+ updateGTDLambdaShared(__global THETA_T* theta, 
+		__global WEIGHT_T* w,
+		__global const WEIGHT_T* trace, 
+		__global const float* features1,
+		__global const float* features2, 
+		__global const float* rewardArray,
+		__global const float* gammaArray,
+		__global float* prediction,
+		__global float* error,
+		const int dim,
+		__global const float* activeArray,
+		__global const int* traceClass,
+		const int traceStride)
+{
+
+	int i= get_global_id(0);
+	int size= get_global_size(0);
+	if(activeArray[i] == 0.0f){
+		// quarantined demon, its weights are zero and stay zero
+		prediction[i]= 0.0f;
+		error[i]= 0.0f;
+		return;
+	}
+
+	float gamma= gammaArray[i];
+	float2 delta= computeDeltaGTD(theta, features1, features2, gamma, rewardArray[i], i, dim, size);
+	prediction[i]= delta.y;
+	error[i]= delta.x;
+
+	int c= traceClass[i];
+	int j;
+	float Qw=0.0f, Xw= 0.0f;
+	for(j=0; j<dim; j++){
+		float wj= LOAD_WEIGHT(w, i + j*size);
+		Qw += LOAD_WEIGHT(trace, c + j*traceStride)*wj;
+		Xw += features1[j]*wj;
+	}
+	for(j=0; j<dim; j++){
+		float e= LOAD_WEIGHT(trace, c + j*traceStride);
+		int k= i + j*size;
+		STORE_THETA(theta, k, LOAD_THETA(theta, k) + ALPHA*(delta.x*e - gamma*(1.0f-LAMBDA)*Qw*features2[j]));
+		STORE_WEIGHT(w, k, LOAD_WEIGHT(w, k) + ALPHA*ETA*(delta.x*e - Xw*features1[j]));
+	}
+}
+
+/*
+*	Update the demons according to on-policy TD(lambda) with accumulating traces.
+*	There are no w weights and no importance sampling.
+*
+* Param
+*	theta :		The weights that approximate V(s)
+*
+*	trace :		The eligibility trace
+*
+* 	features1 :	The feature vector representing s_t
+*
+* 	features2 :	The feature vector representing s_(t+1)
+*
+*	rewardArray :	The rewards
+*
+*	gammaArray :	The discount factors
+*
+*	prediction :	The predictions for s_t
+*
+*	error :		The TD errors
+*
+*	dim :		The dimension of the feature vector
+*
+*	activeArray :	1 for the demons being updated, 0 for the quarantined demons
+*
+*/
+__kernel void
+ updateTDLambda(__global THETA_T* theta, 
+		__global WEIGHT_T* trace, 
+		__global const float* features1,
+		__global const float* features2, 
+		__global const float* rewardArray,
+		__global const float* gammaArray,
+		__global float* prediction,
+		__global float* error,
+		const int dim,
+		__global const float* activeArray)
+{
+	int index= get_global_id(0);
+	int numDemons= get_global_size(0);
+	int i;
+	int j=0;
+	if(activeArray[index] == 0.0f){
+		// quarantined demon, its weights are zero and stay zero
+		prediction[index]= 0.0f;
+		error[index]= 0.0f;
+		return;
+	}
+
+	float gamma= gammaArray[index];
+
+	//Compute the TD error
+	float2 delta= computeDeltaGTD(theta, features1, features2, gamma, rewardArray[index], index, dim, numDemons);
+
+	//update the prediction and the TD error
+	prediction[index]= delta.y;
+	error[index]= delta.x;
+
+	//Update the elligibility trace and theta
+	for(i=index; i<dim*numDemons; i+= numDemons){
+		STORE_WEIGHT(trace, i, features1[j] + gamma*LAMBDA*LOAD_WEIGHT(trace, i));
+		STORE_THETA(theta, i, LOAD_THETA(theta, i) + ALPHA*delta.x*LOAD_WEIGHT(trace, i));
+		j++;
+	}
+}
+
+/*
+*	Update the demons according to on-policy true online TD(lambda) (van Seijen and Sutton, 2014).
+*	There are no w weights and no importance sampling.
+*
+* Param
+*	theta :		The weights that approximate V(s)
+*
+*	trace :		The dutch eligibility trace
+*
+*	vOld :		The prediction for s_t computed at the previous step
+*
+* 	features1 :	The feature vector representing s_t
+*
+* 	features2 :	The feature vector representing s_(t+1)
+*
+*	rewardArray :	The rewards
+*
+*	gammaArray :	The discount factors
+*
+*	prediction :	The predictions for s_t
+*
+*	error :		The TD errors
+*
+*	dim :		The dimension of the feature vector
+*
+*	activeArray :	1 for the demons being updated, 0 for the quarantined demons
+*
+*/
+__kernel void
+ updateTrueOnlineTD(__global THETA_T* theta, 
+		__global WEIGHT_T* trace, 
+		__global float* vOld,
+		__global const float* features1,
+		__global const float* features2, 
+		__global const float* rewardArray,
+		__global const float* gammaArray,
+		__global float* prediction,
+		__global float* error,
+		const int dim,
+		__global const float* activeArray)
+{
+	int index= get_global_id(0);
+	int numDemons= get_global_size(0);
+	int i;
+	int j=0;
+	if(activeArray[index] == 0.0f){
+		// quarantined demon, its weights are zero and stay zero
+		prediction[index]= 0.0f;
+		error[index]= 0.0f;
+		return;
+	}
+
+	float gamma= gammaArray[index];
+
+	//Compute V(s_t), V(s_t+1) and e.x_t
+	float V=0.0f, Vnext=0.0f, ex=0.0f;
+	for(i=index; i<dim*numDemons; i+= numDemons){
+		V += LOAD_THETA(theta, i)*features1[j];
+		Vnext += LOAD_THETA(theta, i)*features2[j];
+		ex += LOAD_WEIGHT(trace, i)*features1[j];
+		j++;
+	}
+	float delta= rewardArray[index] + gamma*Vnext - V;
+
+	//update the prediction and the TD error
+	prediction[index]= V;
+	error[index]= delta;
+
+	//Update the dutch trace and theta
+	float gammaLambda= gamma*LAMBDA;
+	float scale= 1.0f - ALPHA*gammaLambda*ex;
+	float dV= V - vOld[index];
+	j=0;
+	for(i=index; i<dim*numDemons; i+= numDemons){
+		STORE_WEIGHT(trace, i, gammaLambda*LOAD_WEIGHT(trace, i) + scale*features1[j]);
+		STORE_THETA(theta, i, LOAD_THETA(theta, i) + ALPHA*(delta + dV)*LOAD_WEIGHT(trace, i) - ALPHA*dV*features1[j]);
+		j++;
+	}
+	vOld[index]= Vnext;
+}
+
+/*
+*	Update the demons according to GQ(lambda) with action conditioned features.
+*	The feature vector of (s, a) is the state feature vector placed in the block of action a, so theta, w
+*	and the trace hold dim*nbActions weights per demon.
+*
+* Param
+*	theta :		The weights that approximate Q(s,a)
+*
+*	w :		The w weights in the GQ(lambda) algorithm
+*
+*	trace :		The eligibility trace
+*
+* 	features1 :	The feature vector representing s_t
+*
+* 	features2 :	The feature vector representing s_(t+1)
+*
+*	rhoArray :	The importance sampling ratios
+*
+*	rewardArray :	The rewards
+*
+*	gammaArray :	The discount factors
+*
+*	piArray :	The target policy at s_(t+1), the probability of action a for demon i is piArray[i + a*numDemons]
+*
+*	prediction :	The predictions for (s_t, a_t)
+*
+*	error :		The TD errors
+*
+*	action :	The index of a_t
+*
+*	dim :		The dimension of the state feature vector
+*
+*	nbActions :	The number of actions
+*
+*	activeArray :	1 for the demons being updated, 0 for the quarantined demons
+*
+*/
+__kernel void
+ updateGQLambda(__global THETA_T* theta, 
+		__global WEIGHT_T* w,
+		__global WEIGHT_T* trace, 
+		__global const float* features1,
+		__global const float* features2, 
+		__global const float* rhoArray, 
+		__global const float* rewardArray,
+		__global const float* gammaArray,
+		__global const float* piArray,
+		__global float* prediction,
+		__global float* error,
+		const int action,
+		const int dim,
+		const int nbActions,
+		__global const float* activeArray)
+{
+	int index= get_global_id(0);
+	int numDemons= get_global_size(0);
+	int size= dim*numDemons;
+	int i, j, a;
+	if(activeArray[index] == 0.0f){
+		// quarantined demon, its weights are zero and stay zero
+		prediction[index]= 0.0f;
+		error[index]= 0.0f;
+		return;
+	}
+
+	float gamma= gammaArray[index];
+
+	//Compute Q(s_t, a_t), w.phi(s_t, a_t) and the expected Q(s_t+1, .) under the target policy
+	float Q1=0.0f, Q2=0.0f, wx=0.0f;
+	j=0;
+	for(i=action*size + index; i<(action+1)*size; i+= numDemons){
+		Q1 += LOAD_THETA(theta, i)*features1[j];
+		wx += LOAD_WEIGHT(w, i)*features1[j];
+		j++;
+	}
+	for(a=0; a<nbActions; a++){
+		float pi= piArray[a*numDemons + index];
+		if(pi != 0.0f){
+			float Q=0.0f;
+			j=0;
+			for(i=a*size + index; i<(a+1)*size; i+= numDemons){
+				Q += LOAD_THETA(theta, i)*features2[j];
+				j++;
+			}
+			Q2 += pi*Q;
+		}
+	}
+	float delta= rewardArray[index] + gamma*Q2 - Q1;
+
+	//update the prediction and the TD error
+	prediction[index]= Q1;
+	error[index]= delta;
+
+	//Update the elligibility trace
+	float decay= rhoArray[index]*gamma*LAMBDA;
+	float Qw=0.0f;
+	for(a=0; a<nbActions; a++){
+		j=0;
+		for(i=a*size + index; i<(a+1)*size; i+= numDemons){
+			STORE_WEIGHT(trace, i, decay*LOAD_WEIGHT(trace, i) + (a == action ? features1[j] : 0.0f));
+			Qw += LOAD_WEIGHT(trace, i)*LOAD_WEIGHT(w, i);
+			j++;
+		}
+	}
+
+	//Update theta and w
+	float correction= gamma*(1.0f-LAMBDA)*Qw;
+	for(a=0; a<nbActions; a++){
+		float pi= piArray[a*numDemons + index];
+		j=0;
+		for(i=a*size + index; i<(a+1)*size; i+= numDemons){
+			float x1= a == action ? features1[j] : 0.0f;
+			STORE_THETA(theta, i, LOAD_THETA(theta, i) + ALPHA*(delta*LOAD_WEIGHT(trace, i) - correction*pi*features2[j]));
+			STORE_WEIGHT(w, i, LOAD_WEIGHT(w, i) + ALPHA*ETA*(delta*LOAD_WEIGHT(trace, i) - wx*x1));
+			j++;
+		}
+	}
+}
+
 /* The same function as updateGTDLambda vectorized to make use of the hardware vector operations.
 * This should improve significantly performance over the non-vecotrized version.
 */
@@ -282,7 +697,9 @@ __kernel void
 		__global const VECTOR* rewardArray,
 		__global const VECTOR* gammaArray,
 		__global VECTOR* prediction,
-		const int dim)
+		__global VECTOR* error,
+		const int dim,
+		__global const VECTOR* activeArray)
 {
 
 	int index= get_global_id(0);
@@ -292,6 +709,9 @@ __kernel void
 	int j;
 
 	VECTOR gamma= gammaArray[index];
+	// the weights of a quarantined demon are zero, with rho and the error set to zero they stay zero
+	VECTOR active= activeArray[index];
+	VECTOR rho= active*rhoArray[index];
 
 	//Compute the TD error
 	j=0;
@@ -305,13 +725,14 @@ __kernel void
 	delta= rewardArray[index] + gamma*Q2 - Q1;
 
 
-	//update the prediction
-	prediction[i]= Q1;
+	//update the prediction and the TD error
+	prediction[index]= Q1;
+	error[index]= active*delta;
 
 	//Update the elligibility trace
 	j=0;
 	for(i=index; i<dim*numDemons; i+= numDemons){
-		trace[i]= rhoArray[index]*((VECTOR)(features1[j]) + gamma*LAMBDA*trace[i]);
+		trace[i]= rho*((VECTOR)(features1[j]) + gamma*LAMBDA*trace[i]);
 		j++;
 	}
 
@@ -344,6 +765,303 @@ __kernel void
 }
 
 
+/*
+*	Add to the reward of every demon a linear combination of the predictions of other demons (GVF networks).
+*	The predictions are computed for x_(t+1) with the weights of the previous step, before any demon is
+*	updated, so every layer of the network sees its sources in the same state.
+*
+* Param
+*	theta :		The weights of all demons
+*
+*	features2 :	The feature vector representing s_(t+1)
+*
+*	rewardArray :	The rewards, the cumulants are added in place
+*
+*	offsets :	The sources of demon i are at offsets[i] to offsets[i+1] (excluded)
+*
+*	sources :	The index of each source demon
+*
+*	coefficients :	The coefficient of each source demon
+*
+*	dim :		The dimension of the feature vector
+*
+*	stride :	The number of demons (padded)
+*
+*/
+__kernel void computeCumulants(__global const THETA_T* theta,
+		__global const float* features2,
+		__global float* rewardArray,
+		__global const int* offsets,
+		__global const int* sources,
+		__global const float* coefficients,
+		const int dim,
+		const int stride)
+{
+	int index= get_global_id(0);
+	int k, i, j;
+	float cumulant= 0.0f;
+	for(k=offsets[index]; k<offsets[index+1]; k++){
+		float Q= 0.0f;
+		j=0;
+		for(i=sources[k]; i<dim*stride; i+= stride){
+			Q += LOAD_THETA(theta, i)*features2[j];
+			j++;
+		}
+		cumulant += coefficients[k]*Q;
+	}
+	if(offsets[index+1] > offsets[index]){
+		rewardArray[index] += cumulant;
+	}
+}
+
+/*
+*	Statistics of the learning progress, the statistic s of demon i is at stats[i + s*stride]
+*/
+#define STAT_MEAN_ERROR 0
+#define STAT_MEAN_SQUARED_ERROR 1
+#define STAT_SURPRISE 2
+#define STAT_PROGRESS 3
+#define STAT_DIVERGED 4
+#define STAT_NORMALIZER 5
+
+/*
+*	Update the learning statistics of every demon with its last TD error.
+*	The averages are exponential moving averages, STAT_NORMALIZER is the average of 1 and removes
+*	their bias towards zero at the start. The surprise is the distance of the last error to the mean
+*	error in standard deviations, as rlpark's Surprise. The progress is |E[delta]|/sqrt(E[delta^2]):
+*	close to one while the demon still makes a systematic error, close to zero once only noise is left.
+*	A TD error that is not finite marks the demon as diverged and is not averaged.
+*
+* Param
+*	error :		The TD errors of the last update
+*
+*	stats :		The statistics of every demon
+*
+*	rate :		The rate of the moving averages
+*
+*	nbDemons :	The number of demons, the padding is ignored
+*
+*/
+__kernel void updateStats(__global const float* error,
+		__global float* stats,
+		float rate,
+		int nbDemons)
+{
+	int index= get_global_id(0);
+	int stride= get_global_size(0);
+	if(index >= nbDemons){
+		return;
+	}
+	float delta= error[index];
+	if(!isfinite(delta)){
+		stats[index + STAT_DIVERGED*stride]= 1.0f;
+		return;
+	}
+	float normalizer= (1.0f-rate)*stats[index + STAT_NORMALIZER*stride] + rate;
+	float mean= (1.0f-rate)*stats[index + STAT_MEAN_ERROR*stride] + rate*delta;
+	float squared= (1.0f-rate)*stats[index + STAT_MEAN_SQUARED_ERROR*stride] + rate*delta*delta;
+	stats[index + STAT_NORMALIZER*stride]= normalizer;
+	stats[index + STAT_MEAN_ERROR*stride]= mean;
+	stats[index + STAT_MEAN_SQUARED_ERROR*stride]= squared;
+
+	mean /= normalizer;
+	squared /= normalizer;
+	float variance= squared - mean*mean;
+	stats[index + STAT_SURPRISE*stride]= variance > 0.0f ? fabs(delta - mean)/sqrt(variance) : 0.0f;
+	stats[index + STAT_PROGRESS*stride]= squared > 0.0f ? fabs(mean)/sqrt(squared) : 0.0f;
+}
+
+/*
+*	Reduce the learning statistics of every work group to 4 values at 4*get_group_id(0): the sum
+*	of the mean squared errors, the sum of the absolute mean errors, the largest surprise and the
+*	number of diverged demons. The diverged demons are left out of the sums and of the largest surprise.
+*	The work group size must be a power of two.
+*
+* Param
+*	stats :		The statistics of every demon
+*
+*	partial :	Where to store the values of every work group
+*
+*	scratch :	Local memory for 4 floats per work item
+*
+*	nbDemons :	The number of demons, the padding is ignored
+*
+*/
+__kernel void reduceStats(__global const float* stats,
+		__global float* partial,
+		__local float* scratch,
+		int nbDemons)
+{
+	int index= get_global_id(0);
+	int stride= get_global_size(0);
+	int local_index= get_local_id(0);
+	int local_size= get_local_size(0);
+	int step;
+	float squared= 0.0f, mean= 0.0f, surprise= 0.0f, diverged= 0.0f;
+	if(index < nbDemons){
+		if(stats[index + STAT_DIVERGED*stride] > 0.0f){
+			diverged= 1.0f;
+		}else if(stats[index + STAT_NORMALIZER*stride] > 0.0f){
+			float normalizer= stats[index + STAT_NORMALIZER*stride];
+			squared= stats[index + STAT_MEAN_SQUARED_ERROR*stride]/normalizer;
+			mean= fabs(stats[index + STAT_MEAN_ERROR*stride])/normalizer;
+			surprise= stats[index + STAT_SURPRISE*stride];
+		}
+	}
+	scratch[local_index]= squared;
+	scratch[local_index + local_size]= mean;
+	scratch[local_index + 2*local_size]= surprise;
+	scratch[local_index + 3*local_size]= diverged;
+	barrier(CLK_LOCAL_MEM_FENCE);
+
+	for(step=local_size>>1; step>0; step>>=1){
+		if(local_index < step){
+			scratch[local_index] += scratch[local_index + step];
+			scratch[local_index + local_size] += scratch[local_index + local_size + step];
+			scratch[local_index + 2*local_size]= fmax(scratch[local_index + 2*local_size], scratch[local_index + 2*local_size + step]);
+			scratch[local_index + 3*local_size] += scratch[local_index + 3*local_size + step];
+		}
+		barrier(CLK_LOCAL_MEM_FENCE);
+	}
+
+	if(local_index == 0){
+		partial[4*get_group_id(0)]= scratch[0];
+		partial[4*get_group_id(0) + 1]= scratch[local_size];
+		partial[4*get_group_id(0) + 2]= scratch[2*local_size];
+		partial[4*get_group_id(0) + 3]= scratch[3*local_size];
+	}
+}
+
+/*
+*	Flag the demons that diverged during the last update: their prediction or their TD error is not
+*	finite or is larger than a bound. The flagged demons are appended in no particular order.
+*
+* Param
+*	prediction :	The predictions of the last update
+*
+*	error :		The TD errors of the last update
+*
+*	activeArray :	1 for the demons being updated, the quarantined demons are never flagged
+*
+*	count :		The number of flagged demons, must be zero before the call
+*
+*	flagged :	Where to store the indexes of the flagged demons
+*
+*	bound :		The largest magnitude allowed
+*
+*	nbDemons :	The number of demons, the padding is ignored
+*
+*/
+__kernel void checkDivergence(__global const float* prediction,
+		__global const float* error,
+		__global const float* activeArray,
+		__global int* count,
+		__global int* flagged,
+		float bound,
+		int nbDemons)
+{
+	int index= get_global_id(0);
+	if(index >= nbDemons || activeArray[index] == 0.0f){
+		return;
+	}
+	float p= prediction[index];
+	float delta= error[index];
+	if(!isfinite(p) || !isfinite(delta) || fabs(p) > bound || fabs(delta) > bound){
+		flagged[atomic_inc(count)]= index;
+	}
+}
+
+/*
+*	Set all the weights of one demon to zero
+*
+* Param
+*	theta :		The weights that approximate Q(s,a)
+*
+*	w :		The w weights, ignored if hasW is 0
+*
+*	trace :		The eligibility trace
+*
+*	demon :		The index of the demon
+*
+*	dim :		The number of weights of a demon
+*
+*	stride :	The number of demons (padded)
+*
+*	hasW :		1 if the algorithm has w weights
+*
+*	hasTrace :	0 if the demon uses a shared trace, which is left as it is
+*
+*/
+__kernel void resetDemon(__global THETA_T* theta,
+		__global WEIGHT_T* w,
+		__global WEIGHT_T* trace,
+		int demon,
+		int dim,
+		int stride,
+		int hasW,
+		int hasTrace)
+{
+	int j= get_global_id(0);
+	if(j >= dim){
+		return;
+	}
+	int i= demon + j*stride;
+	STORE_THETA(theta, i, 0.0f);
+	if(hasTrace){
+		STORE_WEIGHT(trace, i, 0.0f);
+	}
+	if(hasW){
+		STORE_WEIGHT(w, i, 0.0f);
+	}
+}
+
+/*
+*	Set all the weights of one demon, used when a demon is added to a free slot
+*
+* Param
+*	theta :		The weights that approximate Q(s,a)
+*
+*	w :		The w weights, ignored if hasW is 0
+*
+*	trace :		The eligibility trace
+*
+*	values :	The theta weights of the demon, then its w weights and its trace, dim values each
+*
+*	demon :		The index of the demon
+*
+*	dim :		The number of weights of a demon
+*
+*	stride :	The number of demons (padded)
+*
+*	hasW :		1 if the algorithm has w weights
+*
+*	hasTrace :	0 if the demon uses a shared trace, which is left as it is
+*
+*/
+__kernel void setDemon(__global THETA_T* theta,
+		__global WEIGHT_T* w,
+		__global WEIGHT_T* trace,
+		__global const float* values,
+		int demon,
+		int dim,
+		int stride,
+		int hasW,
+		int hasTrace)
+{
+	int j= get_global_id(0);
+	if(j >= dim){
+		return;
+	}
+	int i= demon + j*stride;
+	STORE_THETA(theta, i, values[j]);
+	if(hasW){
+		STORE_WEIGHT(w, i, values[dim + j]);
+	}
+	if(hasTrace){
+		STORE_WEIGHT(trace, i, values[2*dim + j]);
+	}
+}
+
 /* Set all trace to zero
 *
 * Param
@@ -367,6 +1085,67 @@ __kernel void traceReset( __global float* trace,
 
 
 
+/* Set a buffer of 16 bit values to zero (the zero of half and bfloat16)
+*
+* Param
+*
+*	buffer :	The buffer
+*
+*	dim :		The number of values per demon
+*/
+__kernel void clearShorts( __global ushort* buffer, 
+			int dim)
+{
+
+	int i;
+	int numDemons= get_global_size(0);
+	for(i=get_global_id(0); i<dim*numDemons; i+= numDemons){
+		buffer[i]=0;
+	}
+
+}
+
+/* Copy a buffer holding dim values per demon to a buffer with another stride, the new demons get zeros.
+*	The global size is the new stride, the demons past it are dropped.
+*
+* Param
+*
+*	source :	The buffer with the old stride
+*
+*	buffer :	The buffer with the new stride
+*
+*	oldStride :	The number of demons (padded) of source
+*
+*	dim :		The number of values per demon
+*/
+__kernel void relayout( __global const float* source,
+			__global float* buffer,
+			int oldStride,
+			int dim)
+{
+	int i= get_global_id(0);
+	int stride= get_global_size(0);
+	int j;
+	for(j=0; j<dim; j++){
+		buffer[i + j*stride]= i < oldStride ? source[i + j*oldStride] : 0.0f;
+	}
+}
+
+/* Copy a buffer of 16 bit values to a buffer with another stride, see relayout
+*/
+__kernel void relayoutShorts( __global const ushort* source,
+			__global ushort* buffer,
+			int oldStride,
+			int dim)
+{
+	int i= get_global_id(0);
+	int stride= get_global_size(0);
+	int j;
+	for(j=0; j<dim; j++){
+		buffer[i + j*stride]= i < oldStride ? source[i + j*oldStride] : 0;
+	}
+}
+
 /*
 *	Simple initialization method that sets all weights and trace to zero
 *
@@ -406,7 +1185,7 @@ __kernel void initialise(__global float* theta,
 *
 *
 */
-__kernel void predict(__global float* theta,
+__kernel void predict(__global THETA_T* theta,
 		__global const float* features,
 		__global float* predictions,
 		int dim)
@@ -417,12 +1196,339 @@ __kernel void predict(__global float* theta,
 	int j=0;
 	float Q=0.0f;
 	for(i=index; i<dim*numDemons; i+= numDemons){
-		Q += theta[i]*features[j];
+		Q += LOAD_THETA(theta, i)*features[j];
 		j++;
 	}
 	predictions[index]=Q;
 }
 
+/*
+*	Fetch the predictions of all GQ(lambda) demons given a feature vector.
+*	The prediction is the expected Q value under the target policy of each demon.
+*
+* Param
+*	theta :		The weights that approximate Q(s,a)
+*
+*	features :	The feature vector on which the predictions are based
+*
+*	piArray :	The target policy at that feature vector
+*
+*	predictions :	The buffer where the predictions are stored
+*
+*	dim :		The dimension of the state feature vector
+*
+*	nbActions :	The number of actions
+*
+*/
+__kernel void predictGQ(__global THETA_T* theta,
+		__global const float* features,
+		__global const float* piArray,
+		__global float* predictions,
+		int dim,
+		int nbActions)
+{
+	int index= get_global_id(0);
+	int numDemons= get_global_size(0);
+	int size= dim*numDemons;
+	int i, j, a;
+	float V=0.0f;
+	for(a=0; a<nbActions; a++){
+		float Q=0.0f;
+		j=0;
+		for(i=a*size + index; i<(a+1)*size; i+= numDemons){
+			Q += LOAD_THETA(theta, i)*features[j];
+			j++;
+		}
+		V += piArray[a*numDemons + index]*Q;
+	}
+	predictions[index]=V;
+}
+
+#ifndef QUERY_TILE
+#define QUERY_TILE 16
+#endif
+
+#ifndef FEATURE_TILE
+#define FEATURE_TILE 16
+#endif
+
+/*
+*	Fetch the predictions of all demons for a batch of feature vectors.
+*	This is a tiled matrix product: every work item computes the predictions of one demon for
+*	QUERY_TILE feature vectors, so each weight of theta is read once per tile instead of once per
+*	feature vector. The work group loads FEATURE_TILE features of these vectors in local memory.
+*	The second dimension of the task selects the tile of feature vectors.
+*
+* Param
+*	theta :		The weights that approximate Q(s,a)
+*
+*	features :	The feature vectors, vector q starts at q*dim
+*
+*	predictions :	The buffer where the predictions are stored, the prediction of demon i
+*					for vector q is at q*numDemons + i
+*
+*	dim :		The dimension of the feature vectors
+*
+*	nbQueries :	The number of feature vectors
+*
+*/
+__kernel void predictBatch(__global const THETA_T* theta,
+		__global const float* features,
+		__global float* predictions,
+		int dim,
+		int nbQueries)
+{
+	__local float tile[QUERY_TILE*FEATURE_TILE];
+	int index= get_global_id(0);
+	int numDemons= get_global_size(0);
+	int first= get_global_id(1)*QUERY_TILE;
+	int local_index= get_local_id(0);
+	int local_size= get_local_size(0);
+	float Q[QUERY_TILE];
+	int i, j, k, q;
+	for(q=0; q<QUERY_TILE; q++){
+		Q[q]=0.0f;
+	}
+	for(j=0; j<dim; j+= FEATURE_TILE){
+		// the work group loads the features j to j+FEATURE_TILE of the vectors of the tile
+		barrier(CLK_LOCAL_MEM_FENCE);
+		for(k=local_index; k<QUERY_TILE*FEATURE_TILE; k+= local_size){
+			q= k/FEATURE_TILE;
+			i= j + k%FEATURE_TILE;
+			tile[k]= first+q < nbQueries && i < dim ? features[(first+q)*dim + i] : 0.0f;
+		}
+		barrier(CLK_LOCAL_MEM_FENCE);
+
+		for(k=0; k<FEATURE_TILE && j+k<dim; k++){
+			float weight= LOAD_THETA(theta, index + (j+k)*numDemons);
+			for(q=0; q<QUERY_TILE; q++){
+				Q[q] += weight*tile[q*FEATURE_TILE + k];
+			}
+		}
+	}
+	for(q=0; q<QUERY_TILE && first+q<nbQueries; q++){
+		predictions[(first+q)*numDemons + index]=Q[q];
+	}
+}
+
+/*
+*	Keep only the predictions above a threshold. The selected demons are appended in no
+*	particular order.
+*
+* Param
+*	predictions :	The predictions of all demons
+*
+*	threshold :	The selected predictions are strictly greater than the threshold
+*
+*	count :		The number of selected demons, must be zero before the call
+*
+*	indexes :	Where to store the indexes of the selected demons
+*
+*	values :	Where to store the predictions of the selected demons
+*
+*	nbDemons :	The number of demons, the padding is never selected
+*
+*/
+__kernel void selectAbove(__global const float* predictions,
+		float threshold,
+		__global int* count,
+		__global int* indexes,
+		__global float* values,
+		int nbDemons)
+{
+	int index= get_global_id(0);
+	if(index < nbDemons && predictions[index] > threshold){
+		int slot= atomic_inc(count);
+		indexes[slot]= index;
+		values[slot]= predictions[index];
+	}
+}
+
+/*
+*	Find the k largest predictions of every work group. The work group sorts its predictions
+*	in local memory (bitonic sort, the work group size must be a power of two) and writes the
+*	first k of them, in decreasing order, at k*get_group_id(0).
+*
+* Param
+*	predictions :	The predictions of all demons
+*
+*	indexes :	Where to store the indexes of the k largest predictions of each work group
+*
+*	values :	Where to store the k largest predictions of each work group
+*
+*	localIndexes :	Local memory for one int per work item
+*
+*	localValues :	Local memory for one float per work item
+*
+*	nbDemons :	The number of demons, the padding is sorted last
+*
+*	k :		The number of predictions kept by every work group, at most the work group size
+*
+*/
+__kernel void topKGroups(__global const float* predictions,
+		__global int* indexes,
+		__global float* values,
+		__local int* localIndexes,
+		__local float* localValues,
+		int nbDemons,
+		int k)
+{
+	int index= get_global_id(0);
+	int local_index= get_local_id(0);
+	int local_size= get_local_size(0);
+	int block, step;
+	localIndexes[local_index]= index;
+	localValues[local_index]= index < nbDemons ? predictions[index] : -INFINITY;
+	barrier(CLK_LOCAL_MEM_FENCE);
+
+	for(block=2; block<=local_size; block<<=1){
+		for(step=block>>1; step>0; step>>=1){
+			int partner= local_index ^ step;
+			if(partner > local_index){
+				// the last merge is decreasing for the whole work group
+				bool decreasing= (local_index & block) == 0;
+				float a= localValues[local_index];
+				float b= localValues[partner];
+				if((a < b) == decreasing){
+					int i= localIndexes[local_index];
+					localValues[local_index]= b;
+					localValues[partner]= a;
+					localIndexes[local_index]= localIndexes[partner];
+					localIndexes[partner]= i;
+				}
+			}
+			barrier(CLK_LOCAL_MEM_FENCE);
+		}
+	}
+
+	if(local_index < k){
+		indexes[get_group_id(0)*k + local_index]= localIndexes[local_index];
+		values[get_group_id(0)*k + local_index]= localValues[local_index];
+	}
+}
+
+/*
+*	Fetch the predictions of a subset of the demons
+*
+* Param
+*	predictions :	The predictions of all demons
+*
+*	indexes :	The indexes of the demons of the subset
+*
+*	values :	Where to store the predictions of the subset
+*
+*	count :		The number of demons in the subset
+*
+*/
+__kernel void gatherPredictions(__global const float* predictions,
+		__global const int* indexes,
+		__global float* values,
+		int count)
+{
+	int index= get_global_id(0);
+	if(index < count){
+		values[index]= predictions[indexes[index]];
+	}
+}
+
+/*
+*	Set both feature vectors to zero before they are tile coded
+*
+* Param
+*	features1 :	The feature vector x_t
+*
+*	features2 :	The feature vector x_tp1
+*
+*	dim :		The number of features
+*
+*/
+__kernel void clearFeatures(__global float* features1,
+		__global float* features2,
+		int dim)
+{
+	int index= get_global_id(0);
+	if(index < dim){
+		features1[index]= 0.0f;
+		features2[index]= 0.0f;
+	}
+}
+
+/*
+*	Tile code the observations of the last step and of this step: every work item activates the tile of one tiling,
+*	in x_t for the first row of the range and in x_tp1 for the second one. See TileCoding.
+*
+* Param
+*	inputs :	The observation of the last step followed by the one of this step
+*
+*	mins :		The lower bound of every input
+*
+*	scales :	The inverse of the width of the range of every input
+*
+*	tilings :	Per tiling: the first of its inputs in tilingInputs, their number, the resolution, the index of the tiling
+*				in its group, the number of tilings of its group and the first feature of the tiling
+*
+*	tilingInputs :	The inputs of every tiling
+*
+*	features1 :	The feature vector x_t, set to zero beforehand
+*
+*	features2 :	The feature vector x_tp1, set to zero beforehand
+*
+*	nbInputs :	The number of inputs of an observation
+*
+*	nbTilings :	The number of tilings
+*
+*	memorySize :	The number of hashed features, 0 if the tiles are not hashed
+*
+*	first :		The first feature kept, the tiles of the other streams are dropped (see FeatureStreams)
+*
+*	dim :		The number of features kept
+*
+*/
+__kernel void tileCode(__global const float* inputs,
+		__global const float* mins,
+		__global const float* scales,
+		__global const int* tilings,
+		__global const int* tilingInputs,
+		__global float* features1,
+		__global float* features2,
+		int nbInputs,
+		int nbTilings,
+		int memorySize,
+		int first,
+		int dim)
+{
+	int tiling= get_global_id(0);
+	int step= get_global_id(1);
+	if(tiling >= nbTilings){
+		return;
+	}
+	__global const int* t= tilings + 6*tiling;
+	__global const float* observation= inputs + step*nbInputs;
+	int resolution= t[2];
+	uint index= 0, size= 1;
+	// FNV-1a over the coordinates of the tile
+	uint hash= 2166136261u ^ (uint) tiling;
+	for(int d=0; d<t[1]; d++){
+		int input= tilingInputs[t[0] + d];
+		// the tilings of a group are displaced asymmetrically, by (2d+1)/n of a tile
+		float offset= (float) ((t[3]*(2*d+1)) % t[4])/t[4];
+		int c= clamp((int) floor((observation[input] - mins[input])*scales[input]*resolution + offset), 0, resolution);
+		index += c*size;
+		size *= resolution+1;
+		hash= (hash ^ (uint) c)*16777619u;
+	}
+	// a tiling without inputs is the bias feature, never hashed
+	int feature= (memorySize > 0 && t[1] > 0 ? t[5] + (int) (hash % (uint) memorySize) : t[5] + (int) index) - first;
+	if(feature < 0 || feature >= dim){
+		return;
+	}
+	if(step == 0){
+		features1[feature]= 1.0f;
+	}else{
+		features2[feature]= 1.0f;
+	}
+}
+
 /*
 *	Fetch the predictions of all demons given a feature vector (Vectorized version)
 *
@@ -436,7 +1542,7 @@ __kernel void predict(__global float* theta,
 *
 */
 __kernel void vec_predict(__global VECTOR* theta,
-		__global const VECTOR* features,
+		__global const float* features,
 		__global VECTOR* predictions,
 		int dim)
 {
@@ -0,0 +1,94 @@
+package horde;
+
+/**
+ * The learning algorithms that can run on the GPUs.
+ * Every demon picks its algorithm and the CLHorde groups the demons running the same algorithm in their own
+ * GPUHorde, so that only the buffers and the kernels needed by the algorithms in use are created.
+ *
+ * @author Clement Gehring
+ *
+ */
+public enum Algorithm {
+	/**
+	 * Off-policy GTD(lambda), the default. Needs theta, w and the trace.
+	 */
+	GTD_LAMBDA("updateGTDLambda", "predict", true, true, true),
+	/**
+	 * On-policy TD(lambda) with accumulating traces. Needs theta and the trace only, rho is ignored.
+	 */
+	TD_LAMBDA("updateTDLambda", "predict", false, false, false),
+	/**
+	 * On-policy true online TD(lambda). Needs theta, the trace and one extra value per demon, rho is ignored.
+	 */
+	TRUE_ONLINE_TD("updateTrueOnlineTD", "predict", false, false, false),
+	/**
+	 * Off-policy GQ(lambda) on action conditioned features, for control demons.
+	 * Needs theta, w and the trace for every action. The target policy is evaluated on x_tp1 at every step.
+	 */
+	GQ_LAMBDA("updateGQLambda", "predictGQ", true, true, false);
+
+	/**
+	 * The names of the kernels in horde.cl
+	 */
+	final String updateKernel, predictKernel;
+	/**
+	 * True if the algorithm needs the w weights
+	 */
+	final boolean usesW;
+	/**
+	 * True if the algorithm needs the importance sampling ratios
+	 */
+	final boolean usesRho;
+	/**
+	 * True if there is a vectorized version of the kernels ("vec_" prefix)
+	 */
+	final boolean vectorized;
+
+	Algorithm(String updateKernel, String predictKernel, boolean usesW, boolean usesRho, boolean vectorized){
+		this.updateKernel= updateKernel;
+		this.predictKernel= predictKernel;
+		this.usesW= usesW;
+		this.usesRho= usesRho;
+		this.vectorized= vectorized;
+	}
+
+	/**
+	 * @return The number of weight buffers per demon, each of them holding dim weights
+	 */
+	int weightBuffers(){
+		return usesW ? 3 : 2;
+	}
+
+	/**
+	 * Compute the memory needed on the GPU by a demon using this algorithm with weights stored as floats
+	 * @param nbFeatures	The dimension of the feature vectors
+	 * @param nbActions		The number of actions, only used by GQ(lambda)
+	 * @return	The number of bytes needed
+	 */
+	public long bytesPerDemon(int nbFeatures, int nbActions){
+		return bytesPerDemon(nbFeatures, nbActions, Precision.FP32, Precision.FP32);
+	}
+	
+	/**
+	 * Compute the memory needed on the GPU by a demon using this algorithm
+	 * @param nbFeatures		The dimension of the feature vectors
+	 * @param nbActions			The number of actions, only used by GQ(lambda)
+	 * @param weightPrecision	The storage of w and the trace
+	 * @param thetaPrecision	The storage of theta
+	 * @return	The number of bytes needed
+	 */
+	public long bytesPerDemon(int nbFeatures, int nbActions, Precision weightPrecision, Precision thetaPrecision){
+		long bytes= thetaPrecision.bytes + (weightBuffers()-1)*weightPrecision.bytes;
+		return bytes*dim(nbFeatures, nbActions) + (this == TRUE_ONLINE_TD ? 4 : 0)
+				+ (this == GQ_LAMBDA ? 4l*nbActions : 0);
+	}
+
+	/**
+	 * @param nbFeatures	The dimension of the feature vectors
+	 * @param nbActions		The number of actions
+	 * @return	The number of weights per demon in theta, w and the trace
+	 */
+	int dim(int nbFeatures, int nbActions){
+		return this == GQ_LAMBDA ? nbFeatures*nbActions : nbFeatures;
+	}
+}
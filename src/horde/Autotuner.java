@@ -0,0 +1,249 @@
+package horde;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import com.nativelibs4java.opencl.CLDevice;
+
+/**
+ * Picks the work group size, the vector width and the upload chunk of a GPUHorde by timing them on its device.
+ *
+ * The first GPUHorde of a given device and shape (algorithm, precisions, demons and features rounded up to a power
+ * of two) times every candidate on its own buffers before its weights are sent, see GPUHorde.benchmarkUpdate and
+ * GPUHorde.benchmarkUpload, and the fastest configuration is saved in a properties file. The GPUHordes of the same
+ * device and shape, in this run or in a later one, use the saved configuration without timing anything.
+ *
+ * The autotuner is off unless the system property horde.autotune is true or setEnabled is called, the file is
+ * horde-autotune.properties in the home directory unless horde.autotune.file is set.
+ *
+ * @author Clement Gehring
+ *
+ */
+public class Autotuner {
+
+	/**
+	 * The candidate work group sizes, the ones above the limit of the device are skipped
+	 */
+	private static final int[] groupSizes= {32, 64, 128, 256};
+	/**
+	 * The candidate vector widths of the vectorized kernels
+	 */
+	private static final int[] vectorSizes= {1, 2, 4, 8, 16};
+	/**
+	 * The candidate sizes of the staging buffers streaming the weights, in weights
+	 */
+	private static final int[] uploadChunks= {1 << 20, 1 << 22, 1 << 24};
+	/**
+	 * The number of timed launches of each candidate, after one launch to warm up
+	 */
+	private static final int launches= 8;
+
+	private static boolean enabled= Boolean.getBoolean("horde.autotune");
+	private static File file= new File(System.getProperty("horde.autotune.file",
+			System.getProperty("user.home")+ File.separator+ "horde-autotune.properties"));
+	/**
+	 * The saved configurations, loaded from the file the first time they are needed
+	 */
+	private static Properties saved;
+
+	/**
+	 * A configuration of a GPUHorde
+	 */
+	public static class Configuration {
+		public final int workGroupSize, vectorSize, uploadChunk;
+
+		Configuration(int workGroupSize, int vectorSize, int uploadChunk){
+			this.workGroupSize= workGroupSize;
+			this.vectorSize= vectorSize;
+			this.uploadChunk= uploadChunk;
+		}
+
+		@Override
+		public String toString(){
+			return workGroupSize+ ","+ vectorSize+ ","+ uploadChunk;
+		}
+
+		static Configuration parse(String value){
+			String[] values= value.split(",");
+			return new Configuration(Integer.parseInt(values[0]), Integer.parseInt(values[1]), Integer.parseInt(values[2]));
+		}
+	}
+
+	/**
+	 * Turn the autotuner on or off, for the GPUHordes initialised afterward
+	 * @param enabled	True to tune and use the saved configurations
+	 */
+	public static synchronized void setEnabled(boolean enabled){
+		Autotuner.enabled= enabled;
+	}
+
+	public static synchronized boolean isEnabled(){
+		return enabled;
+	}
+
+	/**
+	 * Change the file holding the configurations, for the GPUHordes initialised afterward
+	 * @param file	The properties file, created if needed
+	 */
+	public static synchronized void setFile(File file){
+		Autotuner.file= file;
+		saved= null;
+	}
+
+	/**
+	 * @return	The key of the configurations of a device and a horde shape
+	 */
+	static String key(CLDevice device, Algorithm algorithm, Precision weightPrecision, Precision thetaPrecision,
+			boolean vectorizable, int nbDemons, int nbFeatures){
+		return (device.getName().trim()+ "/"+ device.getDriverVersion().trim()+ "/"+ algorithm+ "/"+ weightPrecision+ "/"
+				+ thetaPrecision+ "/"+ (vectorizable ? "vec" : "scalar")+ "/"+ roundUp(nbDemons)+ "x"+ roundUp(nbFeatures))
+				.replace(' ', '_');
+	}
+
+	private static int roundUp(int n){
+		int power= 1;
+		while(power < n && power < (1 << 30)){
+			power <<= 1;
+		}
+		return power;
+	}
+
+	/**
+	 * @param key	The key of a device and a horde shape
+	 * @return	The saved configuration, null if there is none
+	 */
+	static synchronized Configuration lookup(String key){
+		String value= load().getProperty(key);
+		return value == null ? null : Configuration.parse(value);
+	}
+
+	/**
+	 * @return	The work group sizes worth timing on a device
+	 */
+	static int[] groupSizes(CLDevice device){
+		List<Integer> sizes= new ArrayList<Integer>();
+		for(int size: groupSizes){
+			if(size <= device.getMaxWorkGroupSize()){
+				sizes.add(size);
+			}
+		}
+		if(sizes.isEmpty()){
+			// the reductions need a power of two
+			sizes.add(Integer.highestOneBit((int) device.getMaxWorkGroupSize()));
+		}
+		return toArray(sizes);
+	}
+
+	/**
+	 * @param vectorizable	False if the vectorized kernels cannot be used
+	 * @return	The vector widths worth timing on a device
+	 */
+	static int[] vectorSizes(CLDevice device, boolean vectorizable){
+		if(!vectorizable){
+			return new int[] {1};
+		}
+		List<Integer> sizes= new ArrayList<Integer>();
+		for(int size: vectorSizes){
+			if(size <= Math.max(4, device.getPreferredVectorWidthFloat())){
+				sizes.add(size);
+			}
+		}
+		return toArray(sizes);
+	}
+
+	/**
+	 * @return	The padding of the demons needed by any candidate, a multiple of every work group and vector size
+	 */
+	static int padding(CLDevice device, boolean vectorizable){
+		int[] groups= groupSizes(device), vectors= vectorSizes(device, vectorizable);
+		return groups[groups.length-1]*vectors[vectors.length-1];
+	}
+
+	/**
+	 * Time every candidate configuration on a GPUHorde and save the fastest one.
+	 * Only one GPUHorde is tuned at a time so that they do not slow each other down.
+	 * @param horde			A GPUHorde with all its buffers allocated, padded as given by padding, but no weights sent.
+	 * 						It shrinks its buffers to the padding of the configuration afterward.
+	 * @param key			The key of its device and shape
+	 * @param vectorizable	False if the vectorized kernels cannot be used
+	 * @return	The fastest configuration, or the one saved by a GPUHorde with the same key tuned in the meantime
+	 */
+	static synchronized Configuration tune(GPUHorde horde, String key, boolean vectorizable){
+		Configuration configuration= lookup(key);
+		if(configuration != null){
+			return configuration;
+		}
+		int bestGroup= 0, bestVector= 0, bestChunk= 0;
+		long bestTime= Long.MAX_VALUE;
+		for(int vectorSize: vectorSizes(horde.device, vectorizable)){
+			for(int groupSize: groupSizes(horde.device)){
+				long time= horde.benchmarkUpdate(groupSize, vectorSize, launches);
+				if(time < bestTime){
+					bestTime= time;
+					bestGroup= groupSize;
+					bestVector= vectorSize;
+				}
+			}
+		}
+		bestTime= Long.MAX_VALUE;
+		for(int chunk: uploadChunks){
+			long time= horde.benchmarkUpload(chunk);
+			if(time < bestTime){
+				bestTime= time;
+				bestChunk= chunk;
+			}
+		}
+		configuration= new Configuration(bestGroup, bestVector, bestChunk);
+		load().setProperty(key, configuration.toString());
+		save();
+		return configuration;
+	}
+
+	private static Properties load(){
+		if(saved == null){
+			saved= new Properties();
+			if(file.exists()){
+				try{
+					InputStream in= new FileInputStream(file);
+					try{
+						saved.load(in);
+					}finally{
+						in.close();
+					}
+				}catch(IOException e){
+					e.printStackTrace();
+				}
+			}
+		}
+		return saved;
+	}
+
+	private static void save(){
+		try{
+			OutputStream out= new FileOutputStream(file);
+			try{
+				saved.store(out, "Configurations of the GPUHordes, by device and shape");
+			}finally{
+				out.close();
+			}
+		}catch(IOException e){
+			// the configuration is still used for this run
+			e.printStackTrace();
+		}
+	}
+
+	private static int[] toArray(List<Integer> values){
+		int[] array= new int[values.size()];
+		for(int i=0; i<array.length; i++){
+			array[i]= values.get(i);
+		}
+		return array;
+	}
+}
@@ -1,8 +1,12 @@
 package horde;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import org.bridj.Pointer;
 
-import rlpark.plugin.rltoys.algorithms.LinearLearner;
+import rlpark.plugin.rltoys.algorithms.functions.Predictor;
+import rlpark.plugin.rltoys.algorithms.predictions.td.GTDLambda;
 import rlpark.plugin.rltoys.envio.actions.Action;
 import rlpark.plugin.rltoys.envio.policy.Policy;
 import rlpark.plugin.rltoys.horde.demons.Demon;
@@ -11,7 +15,6 @@ import rlpark.plugin.rltoys.horde.functions.GammaFunction;
 import rlpark.plugin.rltoys.horde.functions.OutcomeFunction;
 import rlpark.plugin.rltoys.horde.functions.RewardFunction;
 import rlpark.plugin.rltoys.math.vector.RealVector;
-import rlpark.plugin.rltoys.utils.NotImplemented;
 
 public class CLDemon implements Demon{
 
@@ -21,6 +24,13 @@ public class CLDemon implements Demon{
 	transient Pointer<Float> rhos;
 	transient Pointer<Float> gammas;
 	
+	/**
+	 * The CLHorde hosting this demon and the global index of the demon in it
+	 */
+	transient CLHorde horde;
+	transient int index;
+	transient CLLearner learner;
+	
 	RewardFunction rewardfn;
 	GammaFunction gammafn;
 	OutcomeFunction outcomefn;
@@ -32,6 +42,22 @@ public class CLDemon implements Demon{
 	float[] w;
 	float[] trace;
 	
+	/**
+	 * The demons whose predictions are added to the reward of this demon, and their coefficients
+	 */
+	List<CLDemon> cumulantSources;
+	List<Float> cumulantCoefficients;
+	
+	/**
+	 * The algorithm learning this demon and, for GQ(lambda), the actions conditioning its features
+	 */
+	Algorithm algorithm= Algorithm.GTD_LAMBDA;
+	Action[] actions;
+	/**
+	 * The feature stream this demon learns on, null for the first stream of the CLHorde
+	 */
+	String stream;
+	
 	public CLDemon(Policy target, Policy behaviour, RewardFunction rewardFunction,
 		      GammaFunction gammaFunction, OutcomeFunction outcomeFunction){
 		this.targetPolicy=target;
@@ -40,7 +66,95 @@ public class CLDemon implements Demon{
 		this.gammafn= gammaFunction;
 		this.outcomefn= outcomeFunction;
 	}
+	
+	/**
+	 * Create a control demon learning the action values of its target policy with GQ(lambda).
+	 * Its weights hold nbFeatures values per action, in the order of the actions.
+	 * All the GQ(lambda) demons of a CLHorde must share the same actions.
+	 * @param target			The target policy, evaluated on x_tp1 at every step
+	 * @param behaviour			The behaviour policy
+	 * @param actions			The actions conditioning the features
+	 * @param rewardFunction	The reward function
+	 * @param gammaFunction		The gamma function
+	 * @param outcomeFunction	The outcome function
+	 */
+	public CLDemon(Policy target, Policy behaviour, Action[] actions, RewardFunction rewardFunction,
+			GammaFunction gammaFunction, OutcomeFunction outcomeFunction){
+		this(target, behaviour, rewardFunction, gammaFunction, outcomeFunction);
+		this.algorithm= Algorithm.GQ_LAMBDA;
+		this.actions= actions;
+	}
+	
+	/**
+	 * Choose the algorithm learning this demon.
+	 * This must be called before the demon is given to a CLHorde.
+	 * @param algorithm		The algorithm, GQ_LAMBDA requires the demon to be built with its actions
+	 */
+	public void setAlgorithm(Algorithm algorithm){
+		if(algorithm == Algorithm.GQ_LAMBDA && actions == null){
+			throw new IllegalArgumentException("GQ(lambda) demons need their actions");
+		}
+		this.algorithm= algorithm;
+	}
+	
+	/**
+	 * @return the algorithm learning this demon
+	 */
+	public Algorithm algorithm(){
+		// demons serialized before algorithms could be chosen use GTD(lambda)
+		return algorithm == null ? Algorithm.GTD_LAMBDA : algorithm;
+	}
+	
+	/**
+	 * Choose the feature stream this demon learns on, see FeatureStreams.
+	 * This must be called before the demon is given to a CLHorde.
+	 * @param stream	The name of the stream, null for the first stream of the CLHorde
+	 */
+	public void setStream(String stream){
+		this.stream= stream;
+	}
+	
+	/**
+	 * @return the name of the feature stream of this demon, null for the first stream of the CLHorde
+	 */
+	public String stream(){
+		return stream;
+	}
+	
+	/**
+	 * @return the actions conditioning the features of a GQ(lambda) demon, null otherwise
+	 */
+	public Action[] actions(){
+		return actions;
+	}
 
+	/**
+	 * Add the prediction of another demon to the cumulant of this demon (GVF networks).
+	 * The reward of this demon becomes its reward function (if any) plus the linear combination of the
+	 * predictions of its sources. The combination is computed on the GPU, within the update, from the
+	 * predictions of the sources for x_tp1 before any demon is updated. Every layer of a network therefore sees
+	 * its sources as they were at the end of the previous step, whatever the order in which demons run.
+	 * The sources must be hosted on the same GPU as this demon.
+	 * This must be called before the demon is given to a CLHorde.
+	 * @param source		The demon whose prediction is used
+	 * @param coefficient	The coefficient applied to that prediction
+	 */
+	public void addCumulant(CLDemon source, float coefficient){
+		if(cumulantSources == null){
+			cumulantSources= new ArrayList<CLDemon>();
+			cumulantCoefficients= new ArrayList<Float>();
+		}
+		cumulantSources.add(source);
+		cumulantCoefficients.add(coefficient);
+	}
+	
+	/**
+	 * @return true if part of the reward of this demon is computed from other demons
+	 */
+	public boolean hasCumulant(){
+		return cumulantSources != null && !cumulantSources.isEmpty();
+	}
+	
 	/**
 	 * Updates the arrays corresponding to that demon.
 	 * This method does not update the actual values on the GPU. That behaviour is handled in bulk by the 
@@ -49,11 +163,12 @@ public class CLDemon implements Demon{
 	@Override
 	public void update(RealVector x_t, Action a_t, RealVector x_tp1) {
 		float gamma= (float) gammafn.gamma();
-		float reward= (float) (rewardfn.reward() + (1-gamma)*outcomefn.outcome());
-		float rho= (float) (targetPolicy.pi(x_t, a_t) / behaviourPolicy.pi(x_t, a_t));
+		float reward= (float) (baseReward() + (1-gamma)*outcomefn.outcome());
 		
 		rewards.set(id, reward);
-		rhos.set(id, rho);
+		if(algorithm().usesRho){
+			updateRho(x_t, a_t);
+		}
 		gammas.set(id, gamma);
 		
 	}
@@ -63,8 +178,21 @@ public class CLDemon implements Demon{
 	 * GPUHorde in charge of this CLDemon.
 	 */
 	public void updateReward(){
-		float reward= (float) (rewardfn.reward() + (1-gammafn.gamma())*outcomefn.outcome());
-		rewards.set(id, reward);
+		rewards.set(id, reward());
+	}
+	
+	/**
+	 * @return	The reward of the last step, the outcome is given when the demon terminates
+	 */
+	float reward(){
+		return (float) (baseReward() + (1-gammafn.gamma())*outcomefn.outcome());
+	}
+	
+	/**
+	 * @return the reward given by the reward function, 0 if this demon only has a cumulant
+	 */
+	private double baseReward(){
+		return rewardfn == null ? 0 : rewardfn.reward();
 	}
 	
 	/**
@@ -73,8 +201,14 @@ public class CLDemon implements Demon{
 	 * GPUHorde in charge of this CLDemon.
 	 */
 	public void updateGamma(){
-		float gamma= (float) gammafn.gamma();
-		gammas.set(id, gamma);
+		gammas.set(id, gamma());
+	}
+	
+	/**
+	 * @return	The gamma of the last step
+	 */
+	float gamma(){
+		return (float) gammafn.gamma();
 	}
 	
 	/**
@@ -83,8 +217,14 @@ public class CLDemon implements Demon{
 	 * GPUHorde in charge of this CLDemon.
 	 */
 	public void updateRho(RealVector x_t, Action a_t){
-		float rho= (float) (targetPolicy.pi(x_t, a_t) / behaviourPolicy.pi(x_t, a_t));
-		rhos.set(id, rho);
+		rhos.set(id, rho(x_t, a_t));
+	}
+	
+	/**
+	 * @return	The importance sampling ratio of the action taken
+	 */
+	float rho(RealVector x_t, Action a_t){
+		return (float) (targetPolicy.pi(x_t, a_t) / behaviourPolicy.pi(x_t, a_t));
 	}
 	
 	/**
@@ -141,33 +281,103 @@ public class CLDemon implements Demon{
 		return trace;
 	}
 
+	/**
+	 * Link the CLDemon to the CLHorde hosting it
+	 * @param horde The CLHorde
+	 * @param index The global index of the demon in the CLHorde
+	 */
+	void attach(CLHorde horde, int index){
+		this.horde= horde;
+		this.index= index;
+		this.learner= null;
+	}
+	
+	/**
+	 * Get a view of the learner running on the GPU.
+	 * The demon must be part of a CLHorde.
+	 * @return the learner of this demon
+	 */
 	@Override
-	public LinearLearner learner() {
-		throw new NotImplemented();
+	public CLLearner learner() {
+		if(horde == null){
+			throw new IllegalStateException("The demon is not part of a CLHorde");
+		}
+		if(learner == null){
+			learner= new CLLearner(horde, index);
+		}
+		return learner;
+	}
+	
+	/**
+	 * @return the predictor of this demon
+	 */
+	public Predictor predicter() {
+		return learner();
+	}
+	
+	/**
+	 * @return the prediction for the last x_t used in an update
+	 */
+	public double prediction() {
+		return learner().prediction();
+	}
+	
+	/**
+	 * @return the target policy
+	 */
+	public Policy targetPolicy() {
+		return targetPolicy;
+	}
+	
+	/**
+	 * @return the behaviour policy
+	 */
+	public Policy behaviourPolicy() {
+		return behaviourPolicy;
+	}
+	
+	/**
+	 * @return the reward function
+	 */
+	public RewardFunction rewardFunction() {
+		return rewardfn;
+	}
+	
+	/**
+	 * @return the gamma function
+	 */
+	public GammaFunction gammaFunction() {
+		return gammafn;
+	}
+	
+	/**
+	 * @return the outcome function
+	 */
+	public OutcomeFunction outcomeFunction() {
+		return outcomefn;
 	}
 	
 	/**
 	 * convert a standard off policy demon into the write CLDemon.
-	 * Creates a similar CLDemon keeping the same policies and functions and transferring it weights
+	 * Creates a similar CLDemon keeping the same policies and functions and transferring it weights.
+	 * To convert many demons, HordeConverter writes the weights directly on the GPUs instead.
 	 * @param demon The demon that we wish to convert
 	 * @return The new CLDemon equivalent
 	 */
 	public static CLDemon convert(PredictionOffPolicyDemon demon){
-		//TODO get the right methods in some of the default demons to automate conversion
-		
-//		RewardFunction rfn= demon.rewardFunction();
-//		OutcomeFunction ofn= demon.outcomeFunction();
-//		GammaFunction gfn= demon.gammaFunction();
-//		
-//		Policy b= demon.behaviourPolicy();
-//		Policy t= demon.targetPolicy();
-//		
-//		float[] theta= demon.learner().weights()b.toFloats();
-//		
-//		CLDemon newDemon= new CLDemon(t, b, rfn, gfn, ofn);
-//		newDemon.setWeights(theta.clone(), null, null);		
-//		return newDemon;
-		throw new NotImplemented();
+		CLDemon newDemon= HordeConverter.convert(demon);
+		GTDLambda gtd= HordeConverter.learner(demon);
+		newDemon.setWeights(toFloats(gtd.weights().data), toFloats(gtd.secondaryWeights().data), 
+				toFloats(gtd.trace().vect().accessData()));
+		return newDemon;
+	}
+	
+	private static float[] toFloats(double[] d){
+		float[] f= new float[d.length];
+		for(int i=0; i<d.length; i++){
+			f[i]= (float) d[i];
+		}
+		return f;
 	}
 
 }
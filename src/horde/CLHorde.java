@@ -1,19 +1,28 @@
 package horde;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.LinkedList;
+import java.util.EnumMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
+import org.bridj.Pointer;
 
 import rlpark.plugin.rltoys.envio.actions.Action;
 import rlpark.plugin.rltoys.envio.observations.Observation;
@@ -22,21 +31,22 @@ import rlpark.plugin.rltoys.horde.functions.HordeUpdatable;
 import rlpark.plugin.rltoys.horde.functions.OutcomeFunction;
 import rlpark.plugin.rltoys.horde.functions.RewardFunction;
 import rlpark.plugin.rltoys.math.vector.RealVector;
-import rlpark.plugin.rltoys.utils.NotImplemented;
 
 import com.nativelibs4java.opencl.CLContext;
 import com.nativelibs4java.opencl.CLDevice;
+import com.nativelibs4java.opencl.CLEvent;
 import com.nativelibs4java.opencl.CLPlatform;
 import com.nativelibs4java.opencl.CLPlatform.ContextProperties;
-import com.nativelibs4java.opencl.CLPlatform.DeviceFeature;
 import com.nativelibs4java.opencl.CLQueue;
-import com.nativelibs4java.opencl.JavaCL;
 /**
  * This class is meant to mimic the Horde class from rlpark.
  * It sets up many demons on the GPUs which can be all updated at once. It will
  * also partition the workload on several GPUs if it can.
+ * The demons are grouped by feature stream and algorithm, every GPU hosts one GPUHorde per stream and algorithm in use,
+ * sized for the features of its stream (see FeatureStreams).
  * 
- * An instance of this class should only be accessed by one thread.
+ * An instance of this class should only be accessed by one thread, the other threads can read the predictions
+ * published on a PredictionSurface, see publishPredictions.
  * 
  * @author Clement Gehring
  *
@@ -48,11 +58,6 @@ public class CLHorde implements Serializable{
 	 */
 	private static final long serialVersionUID = -1657948742412084543L;
 	
-	/**
-	 * Only consider devices that are tagged as available
-	 */
-	private final static boolean onlyAvailable = true;
-	
 	/**
 	 * OpenCL platform
 	 */
@@ -71,14 +76,39 @@ public class CLHorde implements Serializable{
 	 */
 	transient CLDevice[] devices;
 	/**
-	 * The GPUHordes that reside in each GPU.
+	 * The GPUHordes, one per GPU and per algorithm in use.
 	 */
 	transient GPUHorde[] hordes;
+	/**
+	 * The index of the GPU of every GPUHorde
+	 */
+	transient int[] hordeDevices;
+	/**
+	 * Where the demons live: demons.get(i) is the demon localIndexes[i] of hordes[hordeIndexes[i]].
+	 * These arrays can be longer than the list of demons, hordeIndexes[i] is -1 if demon i was removed.
+	 */
+	transient int[] hordeIndexes, localIndexes;
+	/**
+	 * The global indexes of the demons of every GPUHorde, by local index. An array can be longer than the demons of its GPUHorde.
+	 * A free slot keeps the global index of the demon removed from it until the slot is given to another demon.
+	 */
+	transient int[][] globalIndexes;
 	
 	/**
-	 * The global list of all demons
+	 * The global list of all demons. A removed demon leaves null, the global indexes are never reused.
 	 */
 	List<CLDemon> demons;
+	/**
+	 * The global indexes of the demons not removed, in increasing order, the first nbLive are in use
+	 */
+	transient int[] liveIndexes;
+	transient int nbLive;
+	
+	/**
+	 * The compact table of the demons if the CLHorde was built from one, null otherwise.
+	 * The list of demons then holds handles only and gives CLDemon views created on demand.
+	 */
+	DemonTable table;
 	
 	/**
 	 * The global list of all updatable functions
@@ -86,12 +116,25 @@ public class CLHorde implements Serializable{
 	List<HordeUpdatable> functions;
 	
 	/**
-	 * The dimensions of the feature vectors
+	 * The dimensions of the feature vectors, with every stream
 	 */
 	private int nbFeatures;
+	/**
+	 * The feature streams packed in the feature vectors, see FeatureStreams
+	 */
+	private FeatureStreams streams;
+	/**
+	 * The index of the stream of every GPUHorde
+	 */
+	transient int[] hordeStreams;
 	
 	/**
-	 * Executor to launch all GPU operations simultaneously
+	 * The devices of the process, shared with the other CLHordes
+	 */
+	transient DeviceRuntime runtime;
+	/**
+	 * Executor initialising the GPUHordes simultaneously and converting the layouts of the weights, shared with the
+	 * other CLHordes of the runtime
 	 */
 	transient ExecutorService executor;
 	/**
@@ -102,10 +145,59 @@ public class CLHorde implements Serializable{
 	 * The wrappers for the predictions task
 	 */
 	transient GPUHordepredictor[] predictors;
+	/**
+	 * The wrappers for the chunk upload task
+	 */
+	transient GPUHordeChunkLoader[] chunkLoaders;
 	transient Future<?>[] futures;
 	
 	private boolean CPU=false;
 	
+	/**
+	 * How the weights are stored on the GPUs
+	 */
+	private Precision weightPrecision= Precision.FP32, thetaPrecision= Precision.FP32;
+	
+	/**
+	 * Delivers the history of the predictions read back from the GPUs, in order
+	 */
+	transient ExecutorService historyExecutor;
+	transient HistoryListener historyListener;
+	/**
+	 * The blocks of history handed to the background thread, in order, until their failure, if any, is thrown
+	 */
+	transient Queue<Future<?>> historyDeliveries;
+	
+	/**
+	 * Where the predictions of every update are published for the other threads, null if they are not published
+	 */
+	transient PredictionSurface surface;
+	transient boolean publishErrors;
+	
+	/**
+	 * Drains the snapshots of the weights to the host, and to disk, in order
+	 */
+	transient ExecutorService snapshotExecutor;
+	/**
+	 * The number of updates with an x_t, the step of the snapshots
+	 */
+	transient long updates;
+	
+	/**
+	 * Told about the demons quarantined after they diverged
+	 */
+	transient QuarantineListener quarantineListener;
+	
+	/**
+	 * The predictions and TD errors of the last update, fetched on demand
+	 */
+	transient float[] lastPredictions, lastErrors;
+	/**
+	 * The last feature vector used with predict and its predictions
+	 */
+	transient RealVector lastQuery;
+	transient float[] lastQueryPredictions;
+	
 	/**
 	 * This class is used to launch all the GPU updates at once
 	 * @author Clement Gehring
@@ -115,17 +207,53 @@ public class CLHorde implements Serializable{
 		GPUHorde horde;
 		RealVector x_t, x_tp1;
 		Action a_t;
+		int step;
 		
 		public void set(GPUHorde horde, RealVector x_t, Action a_t, RealVector x_tp1){
 			this.horde= horde;
 			this.x_t= x_t;
 			this.a_t= a_t;
 			this.x_tp1= x_tp1;
+			this.step= -1;
+		}
+		
+		public void set(GPUHorde horde, RealVector x_t, Action a_t, RealVector x_tp1, int step){
+			this.horde= horde;
+			this.x_t= x_t;
+			this.a_t= a_t;
+			this.x_tp1= x_tp1;
+			this.step= step;
+		}
+		
+		@Override
+		public void run() {
+			if(step < 0){
+				horde.update(x_t, a_t, x_tp1);
+			}else{
+				horde.update(x_t, a_t, x_tp1, step);
+			}
+		}
+	}
+	
+	/**
+	 * This class is used to upload a chunk of feature vectors to all GPUs at once
+	 * @author Clement Gehring
+	 *
+	 */
+	protected class GPUHordeChunkLoader implements Runnable{
+		GPUHorde horde;
+		Pointer<Float> data;
+		int steps;
+		
+		public void set(GPUHorde horde, Pointer<Float> data, int steps){
+			this.horde= horde;
+			this.data= data;
+			this.steps= steps;
 		}
 		
 		@Override
 		public void run() {
-			horde.update(x_t, a_t, x_tp1);
+			horde.loadChunk(data, steps);
 		}
 	}
 	
@@ -134,23 +262,34 @@ public class CLHorde implements Serializable{
 	 * @author Clement Gehring
 	 *
 	 */
-	protected class GPUHordepredictor implements Callable<float[]>{
+	protected class GPUHordepredictor implements Runnable{
 		GPUHorde horde;
 		RealVector v;
+		boolean errors;
+		float[] result;
 		public void set(GPUHorde horde, RealVector v){
 			this.horde= horde;
 			this.v= v;
+			this.errors= false;
 		}
 		public void set(GPUHorde horde){
 			this.horde= horde;
 			this.v= null;
+			this.errors= false;
+		}
+		public void setErrors(GPUHorde horde){
+			this.horde= horde;
+			this.v= null;
+			this.errors= true;
 		}
 		@Override
-		public float[] call() {
-			if(v==null){
-				return horde.predictions();
+		public void run() {
+			if(errors){
+				result= horde.errors();
+			}else if(v==null){
+				result= horde.predictions();
 			}else{
-				return horde.predictions(v);
+				result= horde.predictions(v);
 			}
 		}
 		
@@ -174,9 +313,55 @@ public class CLHorde implements Serializable{
 	
 	public CLHorde(List<CLDemon> demons, List<RewardFunction> rewardFunctions, List<OutcomeFunction> outcomeFunctions,
 		      List<GammaFunction> gammaFunctions, int nbFeatures, boolean CPU) {
-		// store the demons
-		this.demons= new ArrayList<CLDemon>();
-		this.demons.addAll(demons);
+		
+		this(demons, rewardFunctions, outcomeFunctions, gammaFunctions, nbFeatures, CPU, Precision.FP32, Precision.FP32);
+		
+	}
+	
+	/**
+	 * Build and initialise the CLHorde with a compact storage of the weights.
+	 * Storing w and the trace on 16 bits cuts the memory and the bandwidth of GTD(lambda) by a third,
+	 * storing theta as well halves them. The learning itself is still done with floats.
+	 * 
+	 * @param demons			The demons
+	 * @param rewardFunctions	All the reward functions that will need updating
+	 * @param outcomeFunctions	All the outcome functions that will need updating
+	 * @param gammaFunctions	All the gamma functions that will need updating
+	 * @param nbFeatures		The number of features
+	 * @param CPU				true if demons should run on the CPU and not on the GPUs
+	 * @param weightPrecision	The storage of w and the trace
+	 * @param thetaPrecision	The storage of theta
+	 */
+	public CLHorde(List<CLDemon> demons, List<RewardFunction> rewardFunctions, List<OutcomeFunction> outcomeFunctions,
+		      List<GammaFunction> gammaFunctions, int nbFeatures, boolean CPU, Precision weightPrecision, Precision thetaPrecision) {
+		this(demons, rewardFunctions, outcomeFunctions, gammaFunctions, FeatureStreams.single(nbFeatures), CPU, weightPrecision, thetaPrecision);
+	}
+	
+	/**
+	 * Build and initialise the CLHorde with demons learning on several feature streams, see FeatureStreams.
+	 * The demons of every stream are grouped in their own GPUHordes, sized for the features of the stream,
+	 * and all the GPUHordes are updated at once from the packed feature vectors.
+	 * The functions and the policies are given the packed feature vectors.
+	 * 
+	 * @param demons			The demons, see CLDemon.setStream
+	 * @param rewardFunctions	All the reward functions that will need updating
+	 * @param outcomeFunctions	All the outcome functions that will need updating
+	 * @param gammaFunctions	All the gamma functions that will need updating
+	 * @param streams			The feature streams
+	 * @param CPU				true if demons should run on the CPU and not on the GPUs
+	 * @param weightPrecision	The storage of w and the trace
+	 * @param thetaPrecision	The storage of theta
+	 */
+	public CLHorde(List<CLDemon> demons, List<RewardFunction> rewardFunctions, List<OutcomeFunction> outcomeFunctions,
+		      List<GammaFunction> gammaFunctions, FeatureStreams streams, boolean CPU, Precision weightPrecision, Precision thetaPrecision) {
+		// store the demons, a list backed by a DemonTable is kept as it is
+		if(demons instanceof DemonTable.DemonList){
+			this.table= ((DemonTable.DemonList) demons).table;
+			this.demons= demons;
+		}else{
+			this.demons= new ArrayList<CLDemon>();
+			this.demons.addAll(demons);
+		}
 		functions= new ArrayList<HordeUpdatable>();
 		
 		// add all functions to the update list
@@ -184,61 +369,307 @@ public class CLHorde implements Serializable{
 		addFunctions(outcomeFunctions);
 		addFunctions(gammaFunctions);
 		
-		this.nbFeatures=nbFeatures;
+		this.streams= streams;
+		this.nbFeatures=streams.nbFeatures();
 		this.CPU=CPU;
+		this.weightPrecision= weightPrecision;
+		this.thetaPrecision= thetaPrecision;
 		
 		// initialise the OpenCL context and partition the demons
 		init();
 		partitionDemons();
 	}
 	
+	/**
+	 * Build and initialise the CLHorde from a compact table of demons.
+	 * No CLDemon is created in steady state: the GPUs are given the handles of their demons, and the rewards,
+	 * gammas and rhos are computed once per distinct function or pair of policies of the table.
+	 * The global index of a demon is its handle.
+	 * 
+	 * @param table				The demons
+	 * @param rewardFunctions	All the reward functions that will need updating
+	 * @param outcomeFunctions	All the outcome functions that will need updating
+	 * @param gammaFunctions	All the gamma functions that will need updating
+	 * @param nbFeatures		The number of features
+	 * @param CPU				true if demons should run on the CPU and not on the GPUs
+	 * @param weightPrecision	The storage of w and the trace
+	 * @param thetaPrecision	The storage of theta
+	 */
+	public CLHorde(DemonTable table, List<RewardFunction> rewardFunctions, List<OutcomeFunction> outcomeFunctions,
+		      List<GammaFunction> gammaFunctions, int nbFeatures, boolean CPU, Precision weightPrecision, Precision thetaPrecision) {
+		this(table.asList(), rewardFunctions, outcomeFunctions, gammaFunctions, nbFeatures, CPU, weightPrecision, thetaPrecision);
+	}
+	
 	/**
 	 * Partitioning of the demons amongst the different GPU.
-	 * Currently, the partitioning is very simple and assumes all GPUs
-	 * are equivalent.
+	 * The demons are grouped by feature stream and algorithm and every group is split evenly amongst the GPUs, so that
+	 * each GPU hosts one GPUHorde per stream and algorithm. A demon and the sources of its cumulant (GVF networks) are
+	 * kept on the same GPU, see splitGroup. Currently, the partitioning is very simple and assumes all GPUs are equivalent.
 	 */
 	private void partitionDemons() {
 		//TODO implement a smarter way of partitioning demons in case where GPUs are different
 		
-		long[] maxAlloc= new long[devices.length];
-		long[] maxMem= new long[devices.length];
-		long totalMem=0;
 		int nbDemons= demons.size();
+		int nbDevices= devices.length;
+		
+		// CLHordes saved before the feature streams have a single one
+		if(streams == null){
+			streams= FeatureStreams.single(nbFeatures);
+		}
+		
+		// group the demons by stream and algorithm, keeping their order, the demons of a table use the first stream
+		List<Map<Algorithm, List<Integer>>> streamGroups= new ArrayList<Map<Algorithm, List<Integer>>>();
+		for(int s=0; s<streams.size(); s++){
+			streamGroups.add(new EnumMap<Algorithm, List<Integer>>(Algorithm.class));
+		}
+		if(table != null){
+			table.horde= this;
+		}
+		liveIndexes= new int[Math.max(16, nbDemons)];
+		nbLive= 0;
+		for(int i=0; i< nbDemons; i++){
+			if(table == null && demons.get(i) == null){
+				// removed before the CLHorde was saved
+				continue;
+			}
+			liveIndexes[nbLive++]= i;
+			Algorithm algorithm= table != null ? table.algorithm(i) : demons.get(i).algorithm();
+			Map<Algorithm, List<Integer>> groups= streamGroups.get(table != null ? 0 : streams.index(demons.get(i).stream()));
+			if(!groups.containsKey(algorithm)){
+				groups.put(algorithm, new ArrayList<Integer>());
+			}
+			groups.get(algorithm).add(i);
+			if(table == null){
+				demons.get(i).attach(this, i);
+			}
+		}
 		
-		// compute the total available memory and store the memory info of each GPU
-		for(int i=0; i<devices.length; i++){
-			maxAlloc[i]= devices[i].getMaxMemAllocSize();
-			maxMem[i]= devices[i].getGlobalMemSize();
-			totalMem += maxMem[i];
-			// check if max buff alloc is big enough
-			if(maxAlloc[i] < GPUHorde.getAllocReq(nbFeatures, nbDemons/devices.length)){
-				throw new RuntimeException("Too small alloc size. Too many demons, too many features");
+		// compute the total available memory and the memory needed by the algorithms in use
+		long totalMem=0;
+		long memReq= 8*nbFeatures + 12*nbDemons;
+		for(int i=0; i<nbDevices; i++){
+			totalMem += devices[i].getGlobalMemSize();
+		}
+		if(CPU){
+			// the NUMA nodes of the CPU all report the memory of the machine
+			totalMem= devices[0].getGlobalMemSize();
+		}
+		for(int s=0; s<streams.size(); s++){
+			// the memory of a group is sized for the features of its stream only
+			int width= streams.width(s);
+			for(Map.Entry<Algorithm, List<Integer>> group: streamGroups.get(s).entrySet()){
+				Algorithm algorithm= group.getKey();
+				int nbActions= algorithm == Algorithm.GQ_LAMBDA ? demons.get(group.getValue().get(0)).actions.length : 1;
+				int size= group.getValue().size();
+				memReq += algorithm.bytesPerDemon(width, nbActions, weightPrecision, thetaPrecision)*size;
+				
+				// check if max buff alloc is big enough
+				Precision largest= thetaPrecision.bytes > weightPrecision.bytes ? thetaPrecision : weightPrecision;
+				for(int i=0; i<nbDevices; i++){
+					if(devices[i].getMaxMemAllocSize() < GPUHorde.getAllocReq(algorithm.dim(width, nbActions), (size+nbDevices-1)/nbDevices, largest)){
+						throw new RuntimeException("Too small alloc size. Too many demons, too many features");
+					}
+				}
 			}
 		}
 		
 		// check if enough memory is available
-		long memReq= 12*nbFeatures*nbDemons + 8*nbFeatures + 12*nbDemons;
 		if(totalMem< memReq){
 			throw new RuntimeException("Not enough memory on GPUs. Too many demons, too many features");
 		}
+		checkCumulantSources();
 		
-		// Separate the demons amongst the GPUs and initialise their GPUHorde
-		ArrayList<CLDemon>[] demonArrays= new ArrayList[devices.length];
-		for(int i=0; i<devices.length; i++){
-			demonArrays[i]= new ArrayList<CLDemon>(demons.size()/devices.length);
+		// Separate every group amongst the GPUs, the first GPUs get one more demon if the split is uneven
+		// and the networks of cumulants are not cut
+		List<GPUHorde> hordeList= new ArrayList<GPUHorde>();
+		List<List<CLDemon>> demonLists= new ArrayList<List<CLDemon>>();
+		List<Integer> deviceList= new ArrayList<Integer>();
+		List<int[]> globalList= new ArrayList<int[]>();
+		List<Integer> streamList= new ArrayList<Integer>();
+		hordeIndexes= new int[nbDemons];
+		localIndexes= new int[nbDemons];
+		Arrays.fill(hordeIndexes, -1);
+		for(int s=0; s<streams.size(); s++){
+			for(Map.Entry<Algorithm, List<Integer>> group: streamGroups.get(s).entrySet()){
+				List<int[]> blocks= splitGroup(group.getValue(), nbDevices);
+				for(int i=0; i<nbDevices; i++){
+					int[] global= blocks.get(i);
+					if(global.length == 0){
+						continue;
+					}
+					for(int k=0; k<global.length; k++){
+						hordeIndexes[global[k]]= hordeList.size();
+						localIndexes[global[k]]= k;
+					}
+					List<CLDemon> demonList;
+					if(table != null){
+						// the handles of a table are the global indexes
+						demonList= table.asList(global);
+					}else{
+						demonList= new ArrayList<CLDemon>(global.length);
+						for(int globalIndex: global){
+							demonList.add(demons.get(globalIndex));
+						}
+					}
+					GPUHorde horde= new GPUHorde(contexts[i], queues[i], devices[i], group.getKey());
+					horde.setPrecision(weightPrecision, thetaPrecision);
+					horde.setFeatureStream(streams.offset(s), nbFeatures);
+					hordeList.add(horde);
+					demonLists.add(demonList);
+					deviceList.add(i);
+					globalList.add(global);
+					streamList.add(s);
+				}
+			}
 		}
-		
-		for(int i=0; i< demons.size(); i++){
-			int GPUIndex = getGPUindex(i);
-			demonArrays[GPUIndex].add(demons.get(i));
+		hordes= hordeList.toArray(new GPUHorde[hordeList.size()]);
+		globalIndexes= globalList.toArray(new int[globalList.size()][]);
+		hordeDevices= new int[hordes.length];
+		hordeStreams= new int[hordes.length];
+		for(int i=0; i<hordes.length; i++){
+			hordeDevices[i]= deviceList.get(i);
+			hordeStreams[i]= streamList.get(i);
 		}
-		for(int i=0; i<devices.length; i++){
-			hordes[i].initialise(demonArrays[i], nbFeatures);
+		if(CPU){
+			appleDriverCheck();
 		}
 		
+		// set up executor, the updater runnables and the predictor callables
+		// the GPUHordes sharing a GPU also share its queue, each of them uses its own kernels and events
+		executor= runtime.executor;
+		updaters= new GPUHordeUpdater[hordes.length];
+		predictors= new GPUHordepredictor[hordes.length];
+		chunkLoaders= new GPUHordeChunkLoader[hordes.length];
+		futures= new Future<?>[hordes.length];
+		for(int i=0; i< hordes.length; i++){
+			updaters[i]= new GPUHordeUpdater();
+			predictors[i]= new GPUHordepredictor();
+			chunkLoaders[i]= new GPUHordeChunkLoader();
+		}
 		
+		// initialise the GPUHordes simultaneously: every one compiles its kernels and sends its weights on its own
+		for(int i=0; i<hordes.length; i++){
+			final GPUHorde horde= hordes[i];
+			final List<CLDemon> demonList= demonLists.get(i);
+			final int width= streams.width(hordeStreams[i]);
+			futures[i]= executor.submit(new Runnable() {
+				@Override
+				public void run() {
+					horde.initialise(demonList, width);
+				}
+			});
+		}
+		waitForAll();
 	}
 
+	/**
+	 * Check that the sources of every cumulant can be hosted by the GPUHorde of their demon: they must be demons of
+	 * this CLHorde learning with the same algorithm on the same feature stream.
+	 */
+	private void checkCumulantSources(){
+		if(table != null){
+			return;
+		}
+		Map<CLDemon, Integer> globals= new IdentityHashMap<CLDemon, Integer>();
+		for(int i=0; i<demons.size(); i++){
+			if(demons.get(i) != null){
+				globals.put(demons.get(i), i);
+			}
+		}
+		for(int i=0; i<demons.size(); i++){
+			CLDemon demon= demons.get(i);
+			if(demon == null || !demon.hasCumulant()){
+				continue;
+			}
+			for(CLDemon source: demon.cumulantSources){
+				Integer g= globals.get(source);
+				if(g == null){
+					throw new IllegalArgumentException("A cumulant source of demon "+ i+ " is not a demon of this CLHorde");
+				}
+				if(source.algorithm() != demon.algorithm() || streams.index(source.stream()) != streams.index(demon.stream())){
+					throw new IllegalArgumentException("The cumulant source "+ g+ " of demon "+ i
+							+ " must use the same algorithm and feature stream as the demon");
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Split a group of demons amongst the GPUs, in order. The demons linked by cumulants, directly or not, form a
+	 * network that goes to a single GPU: a GPU takes networks until it holds its share of the demons, so the split
+	 * is the same as a contiguous one when no demon has a cumulant.
+	 * @param indexes		The global indexes of the demons of the group
+	 * @param nbDevices		The number of GPUs
+	 * @return	The global indexes of the demons of every GPU, possibly none
+	 */
+	private List<int[]> splitGroup(List<Integer> indexes, int nbDevices){
+		int size= indexes.size();
+		
+		// the networks, numbered by their first demon, with a union-find over the positions in the group
+		int[] parent= new int[size];
+		for(int k=0; k<size; k++){
+			parent[k]= k;
+		}
+		if(table == null){
+			Map<CLDemon, Integer> positions= new IdentityHashMap<CLDemon, Integer>();
+			for(int k=0; k<size; k++){
+				positions.put(demons.get(indexes.get(k)), k);
+			}
+			for(int k=0; k<size; k++){
+				CLDemon demon= demons.get(indexes.get(k));
+				if(!demon.hasCumulant()){
+					continue;
+				}
+				for(CLDemon source: demon.cumulantSources){
+					int a= root(parent, k), b= root(parent, positions.get(source));
+					parent[Math.max(a, b)]= Math.min(a, b);
+				}
+			}
+		}
+		Map<Integer, List<Integer>> networks= new LinkedHashMap<Integer, List<Integer>>();
+		for(int k=0; k<size; k++){
+			int r= root(parent, k);
+			if(!networks.containsKey(r)){
+				networks.put(r, new ArrayList<Integer>());
+			}
+			networks.get(r).add(indexes.get(k));
+		}
+		
+		List<int[]> blocks= new ArrayList<int[]>(nbDevices);
+		List<Integer> block= new ArrayList<Integer>();
+		int assigned= 0;
+		for(List<Integer> network: networks.values()){
+			block.addAll(network);
+			assigned += network.size();
+			int end= (blocks.size()+1)*(size/nbDevices) + Math.min(blocks.size()+1, size%nbDevices);
+			if(assigned >= end && blocks.size() < nbDevices-1){
+				blocks.add(toArray(block));
+				block.clear();
+			}
+		}
+		while(blocks.size() < nbDevices){
+			blocks.add(toArray(block));
+			block.clear();
+		}
+		return blocks;
+	}
+	
+	private static int root(int[] parent, int k){
+		while(parent[k] != k){
+			parent[k]= parent[parent[k]];
+			k= parent[k];
+		}
+		return k;
+	}
+	
+	private static int[] toArray(List<Integer> values){
+		int[] array= new int[values.size()];
+		for(int i=0; i<array.length; i++){
+			array[i]= values.get(i);
+		}
+		return array;
+	}
+	
 	/**
 	 * Add a needed function that will require updates
 	 * @param fn An updateable functions
@@ -256,103 +687,241 @@ public class CLHorde implements Serializable{
 		}
 	}
 	
+	/**
+	 * Add a demon without rebuilding the CLHorde. The demon takes a free slot of a GPUHorde learning with its algorithm,
+	 * and only its weights are written on the GPU, from the weights saved in the CLDemon if it has any.
+	 * When the GPUHordes of that algorithm have no free slot, the one hosting the fewest demons reallocates its buffers
+	 * with twice as many slots, see reserve to do it ahead of time. The global indexes of the other demons do not change.
+	 * A demon learning with an algorithm, or on a feature stream, not in use gets a new GPUHorde, which only holds the feature chunks uploaded after it.
+	 * Its functions are added to the updated functions if they are not already there.
+	 * @param demon		The demon, it cannot have a cumulant
+	 * @return	The global index of the demon, a global index is never reused
+	 */
+	public int addDemon(CLDemon demon){
+		if(table != null){
+			throw new UnsupportedOperationException("The demons of a DemonTable are fixed once the CLHorde is built");
+		}
+		lastPredictions= null;
+		lastErrors= null;
+		lastQueryPredictions= null;
+		
+		// prefer a GPUHorde with a free slot, then the one hosting the fewest demons
+		int stream= streams.index(demon.stream());
+		int hordeIndex= -1;
+		for(int i=0; i<hordes.length; i++){
+			if(hordes[i].algorithm != demon.algorithm() || hordeStreams[i] != stream){
+				continue;
+			}
+			if(hordeIndex < 0 || (hordes[i].hasFreeSlot() && !hordes[hordeIndex].hasFreeSlot())
+					|| (hordes[i].hasFreeSlot() == hordes[hordeIndex].hasFreeSlot() && hordes[i].nbDemons() < hordes[hordeIndex].nbDemons())){
+				hordeIndex= i;
+			}
+		}
+		int localIndex;
+		if(hordeIndex < 0){
+			hordeIndex= addHorde(demon);
+			localIndex= 0;
+		}else{
+			if(!hordes[hordeIndex].hasFreeSlot()){
+				// the history is reallocated with the other buffers
+				flushHistory();
+			}
+			localIndex= hordes[hordeIndex].addDemon(demon);
+		}
+		
+		int globalIndex= demons.size();
+		demons.add(demon);
+		demon.attach(this, globalIndex);
+		if(globalIndex >= hordeIndexes.length){
+			hordeIndexes= Arrays.copyOf(hordeIndexes, Math.max(16, 2*globalIndex));
+			localIndexes= Arrays.copyOf(localIndexes, hordeIndexes.length);
+		}
+		hordeIndexes[globalIndex]= hordeIndex;
+		localIndexes[globalIndex]= localIndex;
+		if(nbLive == liveIndexes.length){
+			liveIndexes= Arrays.copyOf(liveIndexes, 2*nbLive);
+		}
+		liveIndexes[nbLive++]= globalIndex;
+		if(localIndex >= globalIndexes[hordeIndex].length){
+			globalIndexes[hordeIndex]= Arrays.copyOf(globalIndexes[hordeIndex], Math.max(localIndex+1, hordes[hordeIndex].stride));
+		}
+		globalIndexes[hordeIndex][localIndex]= globalIndex;
+		
+		addFunction(demon.rewardfn);
+		addFunction(demon.gammafn);
+		addFunction(demon.outcomefn);
+		return globalIndex;
+	}
 	
+	/**
+	 * Remove a demon without rebuilding the CLHorde. Its slot is quarantined until another demon is added in it.
+	 * The global indexes of the other demons do not change and demons.get(index) becomes null.
+	 * @param index		The global index of the demon, it cannot be a cumulant source of another demon
+	 */
+	public void removeDemon(int index){
+		if(table != null){
+			throw new UnsupportedOperationException("The demons of a DemonTable are fixed once the CLHorde is built");
+		}
+		hordes[getHordeIndex(index)].removeDemon(getLocalIndex(index));
+		demons.set(index, null);
+		hordeIndexes[index]= -1;
+		int position= Arrays.binarySearch(liveIndexes, 0, nbLive, index);
+		System.arraycopy(liveIndexes, position+1, liveIndexes, position, nbLive-position-1);
+		nbLive--;
+		lastPredictions= null;
+		lastErrors= null;
+		lastQueryPredictions= null;
+	}
 	
+	/**
+	 * Reserve free slots so that adding demons does not reallocate the buffers of the GPUs.
+	 * Every algorithm in use on every feature stream gets slots more slots, spread evenly amongst its GPUHordes.
+	 * @param slots		The number of demons that can be added per algorithm and stream
+	 */
+	public void reserve(int slots){
+		// the history is reallocated with the other buffers
+		flushHistory();
+		Runnable[] tasks= new Runnable[hordes.length];
+		for(int i=0; i<hordes.length; i++){
+			// the GPUHordes a demon of the same algorithm and stream could be added to
+			int nbHordes= 0;
+			for(int j=0; j<hordes.length; j++){
+				if(hordes[j].algorithm == hordes[i].algorithm && hordeStreams[j] == hordeStreams[i]){
+					nbHordes++;
+				}
+			}
+			final GPUHorde horde= hordes[i];
+			final int share= (slots + nbHordes - 1)/nbHordes;
+			tasks[i]= new Runnable() {
+				@Override
+				public void run() {
+					horde.reserve(share);
+				}
+			};
+		}
+		runOnDevices(tasks);
+	}
 	
 	/**
-	 * Initialise all the OpenCL contexts and pick the best platform on which to run on GPUs
+	 * Add a function to the updated functions if it is not already there
+	 * @param fn	A function, can be null
 	 */
-	public void init(){
-		init(CPU);
+	private void addFunction(Object fn){
+		if(!(fn instanceof HordeUpdatable)){
+			return;
+		}
+		for(HordeUpdatable function: functions){
+			if(function == fn){
+				return;
+			}
+		}
+		functions.add((HordeUpdatable) fn);
 	}
 	
 	/**
-	 *  Initialise all the OpenCL contexts and pick the best platform on which to run or on the CPU
-	 * @param CPU true if demons should run on the CPU and not on the GPUs
+	 * Create a GPUHorde for a demon learning with an algorithm not in use, on the GPU hosting the fewest demons.
+	 * It starts with the parameters, the statistics, the divergence detection and the history of the other GPUHordes.
+	 * @param demon		The first demon of the GPUHorde
+	 * @return	The index of the new GPUHorde
 	 */
-	public void init(boolean CPU){
-		LinkedList<CLContext> contextList= new LinkedList<CLContext>();
+	private int addHorde(CLDemon demon){
+		int[] load= new int[devices.length];
+		for(int i=0; i<hordes.length; i++){
+			load[hordeDevices[i]] += hordes[i].nbDemons();
+		}
+		int device= 0;
+		for(int i=1; i<devices.length; i++){
+			if(load[i] < load[device]){
+				device= i;
+			}
+		}
+		int stream= streams.index(demon.stream());
+		GPUHorde horde= new GPUHorde(contexts[device], queues[device], devices[device], demon.algorithm());
+		horde.setPrecision(weightPrecision, thetaPrecision);
+		horde.setFeatureStream(streams.offset(stream), nbFeatures);
+		GPUHorde model= hordes.length > 0 ? hordes[0] : null;
+		if(model != null){
+			horde.macros.putAll(model.macros);
+			flushHistory();
+		}
 		
+		int hordeIndex= hordes.length;
+		hordes= Arrays.copyOf(hordes, hordeIndex+1);
+		hordes[hordeIndex]= horde;
+		hordeDevices= Arrays.copyOf(hordeDevices, hordeIndex+1);
+		hordeDevices[hordeIndex]= device;
+		hordeStreams= Arrays.copyOf(hordeStreams, hordeIndex+1);
+		hordeStreams[hordeIndex]= stream;
+		globalIndexes= Arrays.copyOf(globalIndexes, hordeIndex+1);
+		globalIndexes[hordeIndex]= new int[1];
 		if(CPU){
-			contexts= new CLContext[1];
-			contexts[0]= JavaCL.createBestContext(DeviceFeature.CPU);
-			if(contexts[0] == null || contexts[0].getPlatform().listCPUDevices(onlyAvailable).length <1){
-				throw new RuntimeException("CPU context failed. Maybe your opencl drivers are missing.");
-			}
-			devices= contexts[0].getDevices();
-			platform= contexts[0].getPlatform();
-			
-		}else{
-			// get all platforms containing GPUs
-			CLPlatform[] platforms = JavaCL.listGPUPoweredPlatforms();
-			int maxGPU=0, maxGPUindex=0;
-			
-			// check if any platform was found
-			if(platforms.length == 0){
-				throw new RuntimeException("No OpenCL platform detected. Maybe your opencl drivers are missing.");
+			appleDriverCheck();
+		}
+		List<CLDemon> demonList= new ArrayList<CLDemon>();
+		demonList.add(demon);
+		horde.initialise(demonList, streams.width(stream));
+		if(model != null){
+			if(model.statsBuf != null){
+				horde.trackStats(model.statsRate);
 			}
-			
-			// find the platform that offers the most GPUs
-			for(int i=0; i< platforms.length; i++){
-				devices= platforms[i].listGPUDevices(onlyAvailable);
-				if(maxGPU< devices.length){
-					maxGPU= devices.length;
-					maxGPUindex=i;
-				}
+			if(model.divergenceCountBuf != null){
+				horde.detectDivergence(model.divergenceBound);
 			}
-			
-			// check if a GPU was found
-			if(maxGPU == 0){
-				throw new RuntimeException("No available GPU found");
+			if(model.historyBuf != null){
+				// the blocks of every GPUHorde must cover the same updates
+				horde.recordHistory(model.historySteps, model.historyErrorBuf != null);
+				horde.historyRows= model.historyRows;
+				horde.historyDrained= model.historyDrained;
 			}
-			
-			// set platform
-			platform= platforms[maxGPUindex];
-	
-			// set devices
-			devices= platform.listGPUDevices(onlyAvailable);	
-			
-			// create a context for every GPU
-			for(int j=0; j< devices.length; j++){
-				contextList.add(platforms[maxGPUindex].createContext(null, devices[j]));
+			if(model.tileCoding != null){
+				horde.setTileCoding(model.tileCoding);
 			}
-			
-			// save all the new context in the array contexts
-			contexts= new CLContext[contextList.size()];
-			contexts= contextList.toArray(contexts);
 		}
 		
-		// create a queue for every context and create GPUHorde for every GPU
-		queues= new CLQueue[contexts.length];
-		hordes= new GPUHorde[contexts.length];
-		for(int i=0; i< contexts.length; i++){
-			queues[i]= contexts[i].createDefaultOutOfOrderQueueIfPossible();
-			if(queues[i]== null){
-				queues[i]= contexts[i].createDefaultQueue(null);
-			}
-			hordes[i]= new GPUHorde(contexts[i], queues[i], devices[i]);
+		// one more of every task wrapper
+		updaters= Arrays.copyOf(updaters, hordes.length);
+		predictors= Arrays.copyOf(predictors, hordes.length);
+		chunkLoaders= Arrays.copyOf(chunkLoaders, hordes.length);
+		futures= new Future<?>[hordes.length];
+		updaters[hordeIndex]= new GPUHordeUpdater();
+		predictors[hordeIndex]= new GPUHordepredictor();
+		chunkLoaders[hordeIndex]= new GPUHordeChunkLoader();
+		return hordeIndex;
+	}
+	
+	
+	
+	
+	/**
+	 * Initialise all the OpenCL contexts and pick the best platform on which to run on GPUs
+	 */
+	public void init(){
+		init(CPU);
+	}
+	
+	/**
+	 *  Initialise all the OpenCL contexts and pick the best platform on which to run or on the CPU.
+	 *  The contexts are those of the DeviceRuntime of the process, created by the first CLHorde.
+	 *  The GPUHordes are created when the demons are partitioned.
+	 * @param CPU true if demons should run on the CPU and not on the GPUs
+	 */
+	public void init(boolean CPU){
+		// the contexts, the queues and the threads are shared with the other CLHordes of the process
+		DeviceRuntime previous= runtime;
+		runtime= DeviceRuntime.acquire(CPU);
+		if(previous != null){
+			previous.release();
 		}
+		platform= runtime.platform;
+		devices= runtime.devices;
+		contexts= runtime.contexts;
+		queues= runtime.queues;
 		
-		
-		// print platform info
-		printPlatformInfo();
-		
-		// print device info
-		printDeviceInfo();
-		
-		// set up executor, the updater runnables and the predictor callables
-		executor= Executors.newFixedThreadPool(devices.length);
-		updaters= new GPUHordeUpdater[devices.length];
-		predictors= new GPUHordepredictor[devices.length];
-		futures= new Future<?>[devices.length];
-		for(int i=0; i< devices.length; i++){
-			updaters[i]= new GPUHordeUpdater();
-			predictors[i]= new GPUHordepredictor();
+		// print the platform and the devices once per runtime, not for every tenant
+		if(runtime.announce()){
+			printPlatformInfo();
+			printDeviceInfo();
 		}
-		if(CPU){
-			appleDriverCheck();
-		}
-		
 	}
 	/**
 	 * Check for apple cpu driver and prevent the workgroup size bug
@@ -360,7 +929,10 @@ public class CLHorde implements Serializable{
 	 */
 	private void appleDriverCheck(){
 		if(platform.getName().toLowerCase().contains("apple")){
-			hordes[0].workGroupSize[0]=1;
+			for(GPUHorde horde: hordes){
+				horde.workGroupSize[0]=1;
+				horde.autotune= false;
+			}
 		}
 	}
 	/**
@@ -407,86 +979,895 @@ public class CLHorde implements Serializable{
 			function.update(o_tp1, x_t, a_t, x_tp1);
 		}
 		
-		// start all the GPU updates concurrently
-		for(int i=0; i< devices.length; i++){
-			updaters[i].set(hordes[i], x_t, a_t, x_tp1);
-			futures[i]=executor.submit(updaters[i]);
+		lastPredictions= null;
+		lastErrors= null;
+		lastQueryPredictions= null;
+		if(x_t != null){
+			updates++;
 		}
 		
-		// wait for all to be finished
+		// start all the GPU updates concurrently
+		for(int i=0; i< hordes.length; i++){
+			updaters[i].set(hordes[i], x_t, a_t, x_tp1);
+		}
+		runOnDevices(updaters);
+		
+		collectHistory();
+		reportQuarantine();
+		if(x_t != null){
+			publish();
+		}
+	}
+	/**
+	 * Update the Horde using a step of the last chunk uploaded with loadFeatureChunk.
+	 * The feature vectors are taken from the copy of the chunk residing on the GPUs, x_t and x_tp1 are
+	 * only used by the functions and the policies.
+	 * @param o_tp1
+	 * @param x_t
+	 * @param a_t
+	 * @param x_tp1
+	 * @param step		The index of x_tp1 in the chunk
+	 */
+	public void update(Observation o_tp1, RealVector x_t, Action a_t, RealVector x_tp1, int step) {
+		// update all functions
+		for (HordeUpdatable function : functions){
+			function.update(o_tp1, x_t, a_t, x_tp1);
+		}
+		
+		lastPredictions= null;
+		lastErrors= null;
+		lastQueryPredictions= null;
+		if(x_t != null){
+			updates++;
+		}
+		
+		// start all the GPU updates concurrently
+		for(int i=0; i< hordes.length; i++){
+			updaters[i].set(hordes[i], x_t, a_t, x_tp1, step);
+		}
+		runOnDevices(updaters);
+		collectHistory();
+		reportQuarantine();
+		if(x_t != null){
+			publish();
+		}
+	}
+	
+	/**
+	 * Compute the feature vectors on the GPUs from the observations, see update(Observation, float[], Action, float[]).
+	 * Only the observations are sent to the GPUs at every step instead of the feature vectors.
+	 * @param coding	The tile coder, producing as many features as the horde has
+	 */
+	public void setTileCoding(final TileCoding coding){
+		if(coding.nbFeatures() != nbFeatures){
+			throw new IllegalArgumentException("The tile coder has "+ coding.nbFeatures()+ " features instead of "+ nbFeatures);
+		}
+		Runnable[] tasks= new Runnable[hordes.length];
+		for(int i=0; i<hordes.length; i++){
+			final GPUHorde horde= hordes[i];
+			tasks[i]= new Runnable() {
+				@Override
+				public void run() {
+					horde.setTileCoding(coding);
+				}
+			};
+		}
+		runOnDevices(tasks);
+	}
+	
+	/**
+	 * Update the Horde from observations tile coded on the GPUs, see setTileCoding.
+	 * The feature vectors only exist on the GPUs: the functions are updated, and the policies evaluated, with null
+	 * feature vectors.
+	 * @param o_tp1			The observation given to the functions
+	 * @param inputs_t		The observation of the last step, tile coded into x_t. If null, the traces are reset.
+	 * @param a_t			The action taken
+	 * @param inputs_tp1	The observation of this step, tile coded into x_tp1
+	 */
+	public void update(Observation o_tp1, final float[] inputs_t, final Action a_t, final float[] inputs_tp1){
+		for (HordeUpdatable function : functions){
+			function.update(o_tp1, null, a_t, null);
+		}
+		
+		lastPredictions= null;
+		lastErrors= null;
+		lastQueryPredictions= null;
+		if(inputs_t != null){
+			updates++;
+		}
+		
+		Runnable[] tasks= new Runnable[hordes.length];
+		for(int i=0; i< hordes.length; i++){
+			final GPUHorde horde= hordes[i];
+			tasks[i]= new Runnable() {
+				@Override
+				public void run() {
+					horde.update(inputs_t, a_t, inputs_tp1);
+				}
+			};
+		}
+		runOnDevices(tasks);
+		collectHistory();
+		reportQuarantine();
+		if(inputs_t != null){
+			publish();
+		}
+	}
+	
+	/**
+	 * Update the Horde with rewards, gammas and rhos computed elsewhere, by a DistributedHorde for instance.
+	 * The functions and the policies of the demons are not used. GQ(lambda) is not supported.
+	 * @param rewards	The reward of every demon, by global index
+	 * @param gammas	The gamma of every demon
+	 * @param rhos		The rho of every demon, can be null if no demon uses rho
+	 * @param x_t		The feature vector of the last step. If null, the traces are reset.
+	 * @param x_tp1		The feature vector of this step
+	 */
+	public void update(final float[] rewards, final float[] gammas, final float[] rhos, final RealVector x_t, final RealVector x_tp1){
+		lastPredictions= null;
+		lastErrors= null;
+		lastQueryPredictions= null;
+		if(x_t != null){
+			updates++;
+		}
+		
+		Runnable[] tasks= new Runnable[hordes.length];
+		for(int i=0; i< hordes.length; i++){
+			final GPUHorde horde= hordes[i];
+			final int[] global= globalIndexes[i];
+			tasks[i]= new Runnable() {
+				@Override
+				public void run() {
+					int size= horde.demons.size();
+					float[] localRewards= new float[size], localGammas= new float[size], localRhos= new float[size];
+					for(int k=0; k<size; k++){
+						localRewards[k]= rewards[global[k]];
+						localGammas[k]= gammas[global[k]];
+						localRhos[k]= rhos == null ? 1 : rhos[global[k]];
+					}
+					horde.update(localRewards, localGammas, localRhos, x_t, x_tp1);
+				}
+			};
+		}
+		runOnDevices(tasks);
+		collectHistory();
+		reportQuarantine();
+		if(x_t != null){
+			publish();
+		}
+	}
+	
+	/**
+	 * Run one task per GPUHorde on the workers of the runtime and wait for all of them.
+	 * Every device has one worker, shared with the other CLHordes of the runtime, which runs the tasks of its GPUHordes
+	 * one after the other. All the work on the GPUHordes goes through here, except their initialisation which compiles
+	 * the kernels of every GPUHorde at once on the executor.
+	 * @param tasks		The tasks, tasks[i] is the task of GPUHorde i, can be null
+	 */
+	private void runOnDevices(final Runnable[] tasks){
+		Runnable[] deviceTasks= new Runnable[devices.length];
+		for(int d=0; d<devices.length; d++){
+			final int device= d;
+			deviceTasks[d]= new Runnable() {
+				@Override
+				public void run() {
+					for(int i=0; i<tasks.length; i++){
+						if(hordeDevices[i] == device && tasks[i] != null){
+							tasks[i].run();
+						}
+					}
+				}
+			};
+		}
+		runtime.workers.run(deviceTasks);
+	}
+	
+	/**
+	 * @return The time it takes the workers of the runtime to pick up the updates, the chunk uploads and the predictions,
+	 * over all its tenants
+	 */
+	public DeviceWorkers.Latency dispatchLatency(){
+		return runtime.workers.latency();
+	}
+	
+	/**
+	 * Publish the predictions, and optionally the TD errors, of every update on a surface that any thread can read
+	 * without locks while the updates go on. The predictions are read back from the GPUs by the thread calling update,
+	 * right after every update.
+	 * @param errors	Also publish the TD errors
+	 * @return	The surface
+	 */
+	public PredictionSurface publishPredictions(boolean errors){
+		if(surface == null){
+			surface= new PredictionSurface();
+		}
+		publishErrors= errors;
+		return surface;
+	}
+	
+	private void publish(){
+		if(surface == null){
+			return;
+		}
+		lastPredictions= predictions();
+		if(publishErrors){
+			lastErrors= errors();
+		}
+		surface.publish(updates, lastPredictions, publishErrors ? lastErrors : null);
+	}
+	
+	/**
+	 * Detect the demons that diverge and quarantine them.
+	 * After every update the GPUs flag the demons whose prediction or TD error is not finite or larger than the bound,
+	 * and only the number of flagged demons is read back, without blocking. The flagged demons are quarantined
+	 * before the next update: their weights are set to zero, they are not updated anymore and they predict zero.
+	 * @param bound		The largest magnitude allowed for the predictions and the TD errors
+	 * @param listener	Told about every quarantined demon, can be null
+	 */
+	public void detectDivergence(final float bound, QuarantineListener listener){
+		quarantineListener= listener;
+		Runnable[] tasks= new Runnable[hordes.length];
+		for(int i=0; i<hordes.length; i++){
+			final GPUHorde horde= hordes[i];
+			tasks[i]= new Runnable() {
+				@Override
+				public void run() {
+					horde.detectDivergence(bound);
+				}
+			};
+		}
+		runOnDevices(tasks);
+	}
+	
+	/**
+	 * Tell the listener about the demons quarantined during the last update
+	 */
+	private void reportQuarantine(){
+		for(int i=0; i<hordes.length; i++){
+			if(hordes[i].pendingQuarantine.isEmpty()){
+				continue;
+			}
+			for(int localIndex: hordes[i].pendingQuarantine){
+				int globalIndex= globalIndexes[i][localIndex];
+				if(quarantineListener != null){
+					quarantineListener.quarantined(globalIndex, demons.get(globalIndex));
+				}
+			}
+			hordes[i].pendingQuarantine.clear();
+		}
+	}
+	
+	/**
+	 * Quarantine a demon: its weights are set to zero, it is not updated anymore and it predicts zero.
+	 * @param index		The global index of the demon
+	 */
+	public void quarantine(int index){
+		hordes[getHordeIndex(index)].quarantine(getLocalIndex(index));
+	}
+	
+	/**
+	 * Let a quarantined demon learn again, starting from zero weights
+	 * @param index		The global index of the demon
+	 */
+	public void release(int index){
+		hordes[getHordeIndex(index)].release(getLocalIndex(index));
+	}
+	
+	/**
+	 * @param index		The global index of a demon
+	 * @return	True if the demon is quarantined
+	 */
+	public boolean isQuarantined(int index){
+		return hordes[getHordeIndex(index)].isQuarantined(getLocalIndex(index));
+	}
+	
+	/**
+	 * Maintain learning statistics for every demon on the GPUs: the average TD error, the average squared TD error,
+	 * the surprise, the progress and a flag for the demons with a TD error that is not finite.
+	 * They are updated by every update without any transfer, see stats and statsSummary to fetch them.
+	 * @param rate	The rate of the moving averages, 0.01 averages roughly the last 100 updates
+	 */
+	public void trackStats(final float rate){
+		Runnable[] tasks= new Runnable[hordes.length];
+		for(int i=0; i<hordes.length; i++){
+			final GPUHorde horde= hordes[i];
+			tasks[i]= new Runnable() {
+				@Override
+				public void run() {
+					horde.trackStats(rate);
+				}
+			};
+		}
+		runOnDevices(tasks);
+	}
+	
+	/**
+	 * Set the learning statistics of all demons to zero
+	 */
+	public void resetStats(){
+		Runnable[] tasks= new Runnable[hordes.length];
+		for(int i=0; i<hordes.length; i++){
+			final GPUHorde horde= hordes[i];
+			tasks[i]= new Runnable() {
+				@Override
+				public void run() {
+					horde.resetStats();
+				}
+			};
+		}
+		runOnDevices(tasks);
+	}
+	
+	/**
+	 * Fetch the learning statistics of every demon. trackStats must have been called.
+	 * @return	The statistics, indexed by global index
+	 */
+	public LearningStats stats(){
+		final LearningStats stats= new LearningStats(demons.size());
+		Runnable[] tasks= new Runnable[hordes.length];
+		for(int i=0; i<hordes.length; i++){
+			final GPUHorde horde= hordes[i];
+			final int[] columns= globalIndexes[i];
+			tasks[i]= new Runnable() {
+				@Override
+				public void run() {
+					horde.readStats(stats, columns);
+				}
+			};
+		}
+		runOnDevices(tasks);
+		return stats;
+	}
+	
+	/**
+	 * Reduce the learning statistics of all demons on the GPUs, without reading the statistics of every demon.
+	 * trackStats must have been called.
+	 * @return	The statistics of the whole horde
+	 */
+	public LearningStats.Summary statsSummary(){
+		final double[][] reduced= new double[hordes.length][];
+		Runnable[] tasks= new Runnable[hordes.length];
+		for(int i=0; i<hordes.length; i++){
+			final int hordeIndex= i;
+			tasks[i]= new Runnable() {
+				@Override
+				public void run() {
+					reduced[hordeIndex]= hordes[hordeIndex].reduceStats();
+				}
+			};
+		}
+		runOnDevices(tasks);
+		double squared= 0, absolute= 0, surprise= 0, diverged= 0;
+		for(double[] r: reduced){
+			squared += r[0];
+			absolute += r[1];
+			surprise= Math.max(surprise, r[2]);
+			diverged += r[3];
+		}
+		int nbDemons= 0;
+		for(GPUHorde horde: hordes){
+			nbDemons += horde.nbDemons();
+		}
+		return new LearningStats.Summary(squared, absolute, surprise, (int) diverged, nbDemons);
+	}
+	
+	/**
+	 * Record the predictions, and optionally the TD errors, of every demon at every update.
+	 * The GPUs append each update to a ring in their own memory and read back a block of updates in one
+	 * transfer every steps updates, without blocking the updates. The blocks are given to the listener by a
+	 * background thread. Call flushHistory to get the updates of an incomplete block.
+	 * @param steps		The number of updates read back at once
+	 * @param errors	Also record the TD errors
+	 * @param listener	Receives the blocks of history
+	 */
+	public void recordHistory(final int steps, final boolean errors, HistoryListener listener){
+		if(historyListener != null){
+			throw new IllegalStateException("The history is already recorded");
+		}
+		historyListener= listener;
+		historyExecutor= Executors.newSingleThreadExecutor();
+		historyDeliveries= new ArrayDeque<Future<?>>();
+		Runnable[] tasks= new Runnable[hordes.length];
+		for(int i=0; i<hordes.length; i++){
+			final GPUHorde horde= hordes[i];
+			tasks[i]= new Runnable() {
+				@Override
+				public void run() {
+					horde.recordHistory(steps, errors);
+				}
+			};
+		}
+		runOnDevices(tasks);
+	}
+	
+	/**
+	 * Read back the updates recorded since the last block, then wait until all the history has been given to the listener.
+	 * A failure of the listener, or of the read backs, is thrown once all the history is delivered.
+	 */
+	public void flushHistory(){
+		if(historyListener == null){
+			return;
+		}
+		Runnable[] tasks= new Runnable[hordes.length];
+		for(int i=0; i<hordes.length; i++){
+			final GPUHorde horde= hordes[i];
+			tasks[i]= new Runnable() {
+				@Override
+				public void run() {
+					horde.pendingHistory= horde.readHistory();
+				}
+			};
+		}
+		runOnDevices(tasks);
+		collectHistory();
+		checkHistory(true);
+	}
+	
+	/**
+	 * Hand the blocks of history being read back by the GPUs to the background thread, which waits for the
+	 * transfers, puts the demons in global order and calls the listener.
+	 * The failure of a block already delivered is thrown first.
+	 */
+	private void collectHistory(){
+		if(historyListener == null){
+			return;
+		}
+		checkHistory(false);
+		// the GPUHordes without demons record nothing, the others read back their blocks at the same updates
+		GPUHorde.HistoryBlock first= null;
+		final GPUHorde.HistoryBlock[] blocks= new GPUHorde.HistoryBlock[hordes.length];
+		final int[] strides= new int[hordes.length];
+		for(int i=0; i<hordes.length; i++){
+			blocks[i]= hordes[i].pendingHistory;
+			strides[i]= hordes[i].stride;
+			hordes[i].pendingHistory= null;
+			if(first == null){
+				first= blocks[i];
+			}
+		}
+		if(first == null){
+			return;
+		}
+		final int steps= first.steps;
+		final long firstStep= first.firstStep;
+		final boolean withErrors= first.errors != null;
+		final int nbDemons= demons.size();
+		final HistoryListener listener= historyListener;
+		historyDeliveries.add(historyExecutor.submit(new Runnable() {
+			@Override
+			public void run() {
+				float[] predictions= new float[steps*nbDemons];
+				float[] errors= withErrors ? new float[steps*nbDemons] : null;
+				for(int h=0; h<blocks.length; h++){
+					if(blocks[h] == null){
+						continue;
+					}
+					CLEvent.waitFor(blocks[h].reads);
+					scatter(blocks[h].predictions, predictions, h, steps, strides[h], blocks[h].width);
+					if(errors != null){
+						scatter(blocks[h].errors, errors, h, steps, strides[h], blocks[h].width);
+					}
+				}
+				listener.history(firstStep, steps, predictions, errors);
+			}
+			
+			private void scatter(Pointer<Float> block, float[] out, int hordeIndex, int steps, int stride, int width){
+				float[] rows= block.getFloats();
+				block.release();
+				int[] columns= globalIndexes[hordeIndex];
+				for(int s=0; s<steps; s++){
+					for(int i=0; i<width; i++){
+						out[s*nbDemons + columns[i]]= rows[s*stride + i];
+					}
+				}
+			}
+		}));
+	}
+	
+	/**
+	 * Throw the first failure of the blocks of history delivered so far
+	 * @param wait	Wait for all the blocks to be delivered, otherwise only the delivered ones are checked
+	 */
+	private void checkHistory(boolean wait){
+		Throwable failure= null;
+		while(!historyDeliveries.isEmpty() && (wait || historyDeliveries.peek().isDone())){
+			try {
+				historyDeliveries.peek().get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				if(failure == null){
+					failure= e;
+				}
+				break;
+			} catch (ExecutionException e) {
+				if(failure == null){
+					failure= e.getCause();
+				}
+			}
+			historyDeliveries.remove();
+		}
+		rethrow(failure);
+	}
+	
+	/**
+	 * Take a snapshot of the weights of all the demons, see snapshot(File)
+	 * @return	The snapshot, once it has been read back
+	 */
+	public Future<WeightSnapshot> snapshot(){
+		return snapshot(null);
+	}
+	
+	/**
+	 * Take a consistent snapshot of theta, w and the traces of all the demons as they are after the last update.
+	 * The GPUs copy their weights in their own memory, which only delays the next update by the copy. The copies
+	 * are then read back, put in global order and optionally written to a file by a background thread while the
+	 * updates go on. The snapshots are completed in order.
+	 * @param file		Where to write the snapshot, null to only keep it in memory
+	 * @return	The snapshot, once it has been read back and written
+	 */
+	public Future<WeightSnapshot> snapshot(final File file){
+		final GPUHorde.SnapshotBlock[] blocks= new GPUHorde.SnapshotBlock[hordes.length];
+		final int[][] columns= new int[hordes.length][];
+		Runnable[] tasks= new Runnable[hordes.length];
+		for(int i=0; i<hordes.length; i++){
+			final GPUHorde horde= hordes[i];
+			final int h= i;
+			columns[i]= globalIndexes[i].clone();
+			tasks[i]= new Runnable() {
+				@Override
+				public void run() {
+					blocks[h]= horde.snapshot();
+				}
+			};
+		}
+		runOnDevices(tasks);
+		
+		final long step= updates;
+		final int nbDemons= demons.size();
+		if(snapshotExecutor == null){
+			snapshotExecutor= Executors.newSingleThreadExecutor();
+		}
+		return snapshotExecutor.submit(new Callable<WeightSnapshot>() {
+			@Override
+			public WeightSnapshot call() throws IOException {
+				float[][] thetas= new float[nbDemons][];
+				float[][] ws= new float[nbDemons][];
+				float[][] traces= new float[nbDemons][];
+				for(int h=0; h<blocks.length; h++){
+					if(blocks[h] != null){
+						blocks[h].rows(thetas, ws, traces, columns[h]);
+					}
+				}
+				WeightSnapshot snapshot= new WeightSnapshot(step, thetas, ws, traces);
+				if(file != null){
+					snapshot.write(file);
+				}
+				return snapshot;
+			}
+		});
+	}
+	
+	/**
+	 * Upload a chunk of feature vectors to every GPU in one transfer per GPU.
+	 * The chunk can be reused as soon as this call returns.
+	 * @param data		The feature vectors, nbFeatures floats per step
+	 * @param steps		The number of steps in the chunk
+	 */
+	public void loadFeatureChunk(Pointer<Float> data, int steps){
+		for(int i=0; i< hordes.length; i++){
+			chunkLoaders[i].set(hordes[i], data, steps);
+		}
+		runOnDevices(chunkLoaders);
+	}
+	
+	/**
+	 * Wait for all the submitted GPU tasks to be finished
+	 */
+	private void waitForAll(){
+		// every task is done before the first failure is thrown, as with the workers
+		Throwable failure= null;
 		for(Future future: futures){
 			try {
 				future.get();
 			} catch (InterruptedException e) {
-				e.printStackTrace();
+				Thread.currentThread().interrupt();
+				if(failure == null){
+					failure= e;
+				}
 			} catch (ExecutionException e) {
-				e.printStackTrace();
+				if(failure == null){
+					failure= e.getCause();
+				}
 			}
 		}
-		
+		rethrow(failure);
+	}
+	
+	/**
+	 * Throw the failure of a task on the calling thread, unchecked exceptions and errors as they are
+	 * @param failure	The failure, nothing is thrown if it is null
+	 */
+	static void rethrow(Throwable failure){
+		if(failure instanceof RuntimeException){
+			throw (RuntimeException) failure;
+		}else if(failure instanceof Error){
+			throw (Error) failure;
+		}else if(failure != null){
+			throw new RuntimeException(failure);
+		}
 	}
+	
 	/**
 	 * Call to compute all predictions
 	 * @param v		The feature vector on which to base the predictions
 	 * @return		Returns the predictions
 	 */
 	public float[] predictions(RealVector v){
-		float[] p= new float[demons.size()];
-		
 		// start computing the prediction on all GPUs
-		for(int i=0; i<devices.length; i++){
+		for(int i=0; i<hordes.length; i++){
 			predictors[i].set(hordes[i], v);
-			futures[i]= executor.submit(predictors[i]);
 		}
 		
-		// wait and consolidate the results
-		int i=0;
-		for( int j=0; j< devices.length; j++){
-			float[] ptmp=null;
-			try {
-				ptmp = (float[]) futures[i].get();
-			} catch (InterruptedException e) {
-				e.printStackTrace();
-			} catch (ExecutionException e) {
-				e.printStackTrace();
+		return gather();
+	}
+	
+	/**
+	 * Compute the predictions of all demons for a batch of feature vectors in one pass on every GPU.
+	 * @param vs	The feature vectors
+	 * @return		The predictions, the prediction of demon i for vs.get(q) is at q*demons.size() + i
+	 */
+	public float[] predictions(List<? extends RealVector> vs){
+		float[] out= new float[vs.size()*demons.size()];
+		predictions(vs, out);
+		return out;
+	}
+
+	/**
+	 * Compute the predictions of all demons for a batch of feature vectors in one pass on every GPU.
+	 * Each GPU sends all the feature vectors at once and computes the whole block of predictions with a single kernel,
+	 * which is much cheaper than one call of predictions(RealVector) per vector.
+	 * @param vs	The feature vectors
+	 * @param out	Where to store the predictions, the prediction of demon i for vs.get(q) is stored at q*demons.size() + i.
+	 * 				It must hold at least vs.size()*demons.size() values.
+	 */
+	public void predictions(final List<? extends RealVector> vs, final float[] out){
+		if(out.length < (long) vs.size()*demons.size()){
+			throw new IllegalArgumentException("The output buffer is too small");
+		}
+		Runnable[] tasks= new Runnable[hordes.length];
+		for(int i=0; i<hordes.length; i++){
+			final GPUHorde horde= hordes[i];
+			final int[] columns= globalIndexes[i];
+			tasks[i]= new Runnable() {
+				@Override
+				public void run() {
+					horde.predictions(vs, out, demons.size(), columns);
+				}
+			};
+		}
+		runOnDevices(tasks);
+	}
+
+	/**
+	 * Select the demons whose prediction is above a threshold.
+	 * The selection is done on every GPU and only the selected demons are read back.
+	 * @param v			The feature vector, if null the predictions of the last update are used
+	 * @param threshold	The selected predictions are strictly greater than the threshold
+	 * @return	The global indexes and the predictions of the selected demons, in increasing order of index
+	 */
+	public Selection above(final RealVector v, final float threshold){
+		final Selection[] selections= new Selection[hordes.length];
+		Runnable[] tasks= new Runnable[hordes.length];
+		for(int i=0; i<hordes.length; i++){
+			final int hordeIndex= i;
+			tasks[i]= new Runnable() {
+				@Override
+				public void run() {
+					selections[hordeIndex]= hordes[hordeIndex].selectAbove(v, threshold);
+				}
+			};
+		}
+		runOnDevices(tasks);
+
+		// the demons are spread over the GPUs, sort them by global index
+		float[] values= new float[demons.size()];
+		boolean[] selected= new boolean[demons.size()];
+		int count= 0;
+		for(int i=0; i<hordes.length; i++){
+			for(int j=0; j<selections[i].size(); j++){
+				int globalIndex= globalIndexes[i][selections[i].indexes[j]];
+				selected[globalIndex]= true;
+				values[globalIndex]= selections[i].values[j];
+				count++;
 			}
-			for(int k=0; k< ptmp.length && i<demons.size(); k++){
-				p[i] = ptmp[k];
-				i++;
+		}
+		Selection selection= new Selection(new int[count], new float[count]);
+		int j= 0;
+		for(int i=0; i<selected.length; i++){
+			if(selected[i]){
+				selection.indexes[j]= i;
+				selection.values[j]= values[i];
+				j++;
+			}
+		}
+		return selection;
+	}
+
+	/**
+	 * Find the demons with the k largest predictions.
+	 * Every GPU keeps its best candidates, only these are read back and merged.
+	 * @param v		The feature vector, if null the predictions of the last update are used
+	 * @param k		The number of demons to select
+	 * @return	The global indexes and the predictions of the selected demons, in decreasing order of prediction
+	 */
+	public Selection top(final RealVector v, final int k){
+		final Selection[] selections= new Selection[hordes.length];
+		Runnable[] tasks= new Runnable[hordes.length];
+		for(int i=0; i<hordes.length; i++){
+			final int hordeIndex= i;
+			tasks[i]= new Runnable() {
+				@Override
+				public void run() {
+					selections[hordeIndex]= hordes[hordeIndex].top(v, k);
+				}
+			};
+		}
+		runOnDevices(tasks);
+
+		int count= 0;
+		for(Selection selection: selections){
+			count += selection.size();
+		}
+		int[] indexes= new int[count];
+		float[] values= new float[count];
+		int j= 0;
+		for(int i=0; i<hordes.length; i++){
+			for(int l=0; l<selections[i].size(); l++){
+				indexes[j]= globalIndexes[i][selections[i].indexes[l]];
+				values[j]= selections[i].values[l];
+				j++;
 			}
 		}
+		return Selection.top(indexes, values, demons.size(), k);
+	}
+
+	/**
+	 * Compute the predictions of a subset of the demons.
+	 * Only the requested predictions are read back from the GPUs.
+	 * @param v			The feature vector, if null the predictions of the last update are used
+	 * @param indexes	The global indexes of the demons
+	 * @return	The predictions, in the order of indexes
+	 */
+	public float[] predictions(final RealVector v, int[] indexes){
+		// split the subset by GPUHorde
+		final int[][] localSubsets= new int[hordes.length][];
+		int[] sizes= new int[hordes.length];
+		for(int index: indexes){
+			sizes[getHordeIndex(index)]++;
+		}
+		for(int i=0; i<hordes.length; i++){
+			localSubsets[i]= new int[sizes[i]];
+			sizes[i]= 0;
+		}
+		for(int index: indexes){
+			int hordeIndex= getHordeIndex(index);
+			localSubsets[hordeIndex][sizes[hordeIndex]++]= getLocalIndex(index);
+		}
+
+		final float[][] localPredictions= new float[hordes.length][];
+		Runnable[] tasks= new Runnable[hordes.length];
+		for(int i=0; i<hordes.length; i++){
+			final int hordeIndex= i;
+			tasks[i]= new Runnable() {
+				@Override
+				public void run() {
+					localPredictions[hordeIndex]= hordes[hordeIndex].predictions(v, localSubsets[hordeIndex]);
+				}
+			};
+		}
+		runOnDevices(tasks);
+
+		float[] p= new float[indexes.length];
+		Arrays.fill(sizes, 0);
+		for(int i=0; i<indexes.length; i++){
+			int hordeIndex= getHordeIndex(indexes[i]);
+			p[i]= localPredictions[hordeIndex][sizes[hordeIndex]++];
+		}
 		return p;
 	}
-	
+
 	/**
 	 * Call to compute all predictions based on the last feature vector used
 	 * @return		Returns the predictions
 	 */
 	public float[] predictions(){
-		float[] p= new float[demons.size()];
-		
 		// start computing the prediction on all GPUs
-		for(int i=0; i<devices.length; i++){
+		for(int i=0; i<hordes.length; i++){
 			predictors[i].set(hordes[i]);
-			futures[i]= executor.submit(predictors[i]);
 		}
 		
-		// wait and consolidate the results
-		int i=0;
-		for( int j=0; j< devices.length; j++){
-			float[] ptmp=null;
-			try {
-				ptmp = (float[]) futures[i].get();
-			} catch (InterruptedException e) {
-				e.printStackTrace();
-			} catch (ExecutionException e) {
-				e.printStackTrace();
-			}
-			for(int k=0; k< ptmp.length && i<demons.size(); k++){
-				p[i] = ptmp[k];
-				i++;
+		return gather();
+	}
+	
+	/**
+	 * Fetch the TD errors of the last update
+	 * @return		Returns the TD errors
+	 */
+	public float[] errors(){
+		for(int i=0; i<hordes.length; i++){
+			predictors[i].setErrors(hordes[i]);
+		}
+		
+		return gather();
+	}
+	
+	/**
+	 * Get the prediction of one demon for the last feature vector x_t used in an update.
+	 * The predictions of all demons are fetched at once the first time this is called after an update.
+	 * @param index		The global index of the demon
+	 * @return		The prediction
+	 */
+	public float prediction(int index){
+		if(lastPredictions == null){
+			lastPredictions= predictions();
+		}
+		return lastPredictions[index];
+	}
+	
+	/**
+	 * Get the prediction of one demon for a given feature vector.
+	 * The predictions of all demons are computed at once the first time a feature vector is used.
+	 * The feature vector should not be modified afterward.
+	 * @param index		The global index of the demon
+	 * @param v			The feature vector
+	 * @return		The prediction
+	 */
+	public float predict(int index, RealVector v){
+		if(lastQuery != v || lastQueryPredictions == null){
+			lastQueryPredictions= predictions(v);
+			lastQuery= v;
+		}
+		return lastQueryPredictions[index];
+	}
+	
+	/**
+	 * Get the TD error of one demon for the last update.
+	 * The errors of all demons are fetched at once the first time this is called after an update.
+	 * @param index		The global index of the demon
+	 * @return		The TD error
+	 */
+	public float error(int index){
+		if(lastErrors == null){
+			lastErrors= errors();
+		}
+		return lastErrors[index];
+	}
+	
+	/**
+	 * Set the weight theta and the trace of one demon for one feature to zero.
+	 * @param index		The global index of the demon
+	 * @param feature	The index of the feature
+	 */
+	public void resetWeight(int index, int feature){
+		hordes[getHordeIndex(index)].resetWeight(getLocalIndex(index), feature);
+		lastPredictions= null;
+		lastQueryPredictions= null;
+	}
+	
+	/**
+	 * Run the predictors on the workers, wait for them and consolidate their results in demon order
+	 * @return	The results of all GPUHordes
+	 */
+	private float[] gather(){
+		runOnDevices(predictors);
+		float[] p= new float[demons.size()];
+		for( int j=0; j< hordes.length; j++){
+			float[] ptmp= predictors[j].result;
+			predictors[j].result= null;
+			int[] global= globalIndexes[j];
+			for(int k=0; k< ptmp.length && k< global.length; k++){
+				p[global[k]] = ptmp[k];
 			}
-			
 		}
 		return p;
 	}
@@ -504,64 +1885,128 @@ public class CLHorde implements Serializable{
 		}
 	}
 	
+	/**
+	 * Set parameters in all the GPUHordes of one GPU.
+	 * @param i			The index of the GPU, see getGPUindex
+	 * @param alpha		The new alpha value.
+	 * @param eta		The new eta value.
+	 * @param lambda	The new lambda value.
+	 */
 	public void setParam(int i, float alpha, float eta, float lambda){
-		hordes[i].setParam(alpha, eta, lambda);
+		for(int h=0; h<hordes.length; h++){
+			if(hordeDevices[h] == i){
+				hordes[h].setParam(alpha, eta, lambda);
+			}
+		}
+	}
+	
+	/**
+	 * Set parameters in one GPUHorde.
+	 * @param hordeIndex	The index of the GPUHorde, see getHordeIndex
+	 * @param alpha			The new alpha value.
+	 * @param eta			The new eta value.
+	 * @param lambda		The new lambda value.
+	 */
+	public void setHordeParam(int hordeIndex, float alpha, float eta, float lambda){
+		hordes[hordeIndex].setParam(alpha, eta, lambda);
 	}
 	
+	/**
+	 * Fetch the theta weights of one demon.
+	 * This is a blocking call that reads all the weights of the GPU hosting the demon. Use sparingly.
+	 * @param index		The global index of the demon
+	 * @return		The theta weights of the demon
+	 */
 	public float[] getTheta(int index){
-		throw new NotImplemented();
+		final int hordeIndex= getHordeIndex(index);
+		final GPUHorde horde= hordes[hordeIndex];
+		final double[][] rows= new double[horde.demons.size()][];
+		double[] theta= new double[horde.dim];
+		rows[getLocalIndex(index)]= theta;
+		Runnable[] tasks= new Runnable[hordes.length];
+		tasks[hordeIndex]= new Runnable() {
+			@Override
+			public void run() {
+				horde.readWeights(rows, null, null, executor);
+			}
+		};
+		runOnDevices(tasks);
+		float[] f= new float[theta.length];
+		for(int i=0; i<f.length; i++){
+			f[i]= (float) theta[i];
+		}
+		return f;
 	}
 	
 	/**
-	 * Compute index of the GPU to which to demon[globalIndex] belongs to.
+	 * @return The dimension of the feature vectors, every stream packed
+	 */
+	public int nbFeatures(){
+		return nbFeatures;
+	}
+	
+	/**
+	 * @return	The feature streams packed in the feature vectors
+	 */
+	public FeatureStreams streams(){
+		return streams;
+	}
+
+	/**
+	 * Get the index of the GPU to which to demon[globalIndex] belongs to.
 	 * @param globalIndex	The global index of a demon
 	 * @return		The GPU index.
 	 */
 	public int getGPUindex(int globalIndex){
+		return hordeDevices[getHordeIndex(globalIndex)];
+	}
+	
+	/**
+	 * Get the index of the GPUHorde hosting demon[globalIndex].
+	 * @param globalIndex	The global index of a demon
+	 * @return		The index of the GPUHorde.
+	 */
+	public int getHordeIndex(int globalIndex){
 		if(globalIndex>= demons.size() || globalIndex< 0) 
 			throw new IndexOutOfBoundsException("index: "+Integer.toString(globalIndex));
+		if(hordeIndexes[globalIndex] < 0)
+			throw new IllegalArgumentException("The demon "+ globalIndex+ " was removed");
 		
-		int numDemon= demons.size(), numDev= devices.length;
-		int bigHalf= (numDemon/numDev +1) * numDemon%numDev;
-		int GPUIndex=0;
-		
-		if(globalIndex < bigHalf){
-			GPUIndex= globalIndex/ (numDemon/numDev +1);
-		}else{
-			globalIndex -= bigHalf;
-			GPUIndex= (globalIndex/ (numDemon/numDev)) + numDemon%numDev;
-		}
-		
-		return GPUIndex;
+		return hordeIndexes[globalIndex];
 	}
 	
 	/**
-	 * Compute the internal index to access demons inside GPUHorde.
+	 * Get the internal index to access demons inside GPUHorde.
 	 * @param globalIndex	The global index of a demon
 	 * @return		The internal index used by GPUHorde to access demon[globalIndex]
 	 */
 	public int getLocalIndex(int globalIndex){
 		if(globalIndex>= demons.size() || globalIndex< 0) 
 			throw new IndexOutOfBoundsException("index: "+Integer.toString(globalIndex));
+		if(hordeIndexes[globalIndex] < 0)
+			throw new IllegalArgumentException("The demon "+ globalIndex+ " was removed");
 		
-		int numDemon= demons.size(), numDev= devices.length;
-		int bigHalf= (numDemon/numDev +1) * numDemon%numDev;
-		int localIndex=0;
-		
-		if(globalIndex < bigHalf){
-			localIndex= globalIndex % (numDemon/numDev +1);
-		}else{
-			globalIndex -= bigHalf;
-			localIndex= globalIndex % (numDemon/numDev);
-		}
-		
-		return localIndex;
+		return localIndexes[globalIndex];
 	}
 	/**
-	 * When all is done, call this method to shutdown executor.
+	 * When all is done, call this method to leave the DeviceRuntime and shutdown the background threads.
 	 */
 	public void shutdown(){
-		executor.shutdown();
+		flushHistory();
+		if(historyExecutor != null){
+			historyExecutor.shutdown();
+		}
+		if(snapshotExecutor != null){
+			// the snapshots still running read the queues of the runtime
+			snapshotExecutor.shutdown();
+			try {
+				snapshotExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		runtime.release();
+		runtime= null;
 	}
 	
 	/**
@@ -571,57 +2016,54 @@ public class CLHorde implements Serializable{
 	 */
 	public float[] getTheta(){
 		//TODO reorder the theta in a way that makes sense. Should be done in GPUHorde
-		float[] theta= new float[nbFeatures*demons.size()];
-		int k=0;
+		float[][] thetas= new float[hordes.length][];
 		for(int i=0; i<hordes.length; i++){
-			float[] thetaGPU= hordes[i].getTheta();
-			for(int j=0; j<thetaGPU.length && k<nbFeatures*demons.size(); j++){
-				theta[k]= thetaGPU[j];
-				k++;
-			}
+			thetas[i]= hordes[i].getTheta();
 		}
-		return theta;
-		
+		return concat(thetas);
 	}
 	
 	/**
 	 * Fetch the w weights (unordered).
 	 * This is a blocking call and will not fetch all GPUs simultaneously.
+	 * The algorithms without w weights do not contribute any.
 	 * @return	The weights in their unordered form
 	 */
 	public float[] getW(){
 		//TODO reorder the w weights in a way that makes sense. Should be done in GPUHorde
-		float[] w= new float[nbFeatures*demons.size()];
-		int k=0;
+		float[][] ws= new float[hordes.length][];
 		for(int i=0; i<hordes.length; i++){
-			float[] wGPU= hordes[i].getW();
-			for(int j=0; j<wGPU.length && k<nbFeatures*demons.size(); j++){
-				w[k]= wGPU[j];
-				k++;
-			}
+			ws[i]= hordes[i].getW();
 		}
-		return w;
-		
+		return concat(ws);
 	}
 	
 	/**
-	 * Fetch the w weights (unordered).
+	 * Fetch the trace (unordered).
 	 * This is a blocking call and will not fetch all GPUs simultaneously.
 	 * @return	The weights in their unordered form
 	 */
 	public float[] getTrace(){
 		//TODO reorder the trace in a way that makes sense. Should be done in GPUHorde
-		float[] trace= new float[nbFeatures*demons.size()];
-		int k=0;
+		float[][] traces= new float[hordes.length][];
 		for(int i=0; i<hordes.length; i++){
-			float[] traceGPU= hordes[i].getTrace();
-			for(int j=0; j<traceGPU.length && k<nbFeatures*demons.size(); j++){
-				trace[k]= traceGPU[j];
-				k++;
-			}
+			traces[i]= hordes[i].getTrace();
 		}
-		return trace;
-		
+		return concat(traces);
+	}
+	
+	private static float[] concat(float[][] arrays){
+		int length= 0;
+		for(float[] array: arrays){
+			length += array.length;
+		}
+		float[] all= new float[length];
+		int k= 0;
+		for(float[] array: arrays){
+			System.arraycopy(array, 0, all, k, array.length);
+			k += array.length;
+		}
+		return all;
 	}
 	
 	/**
@@ -634,6 +2076,75 @@ public class CLHorde implements Serializable{
 		}
 	}
 	
+	/**
+	 * Send the weights of all demons directly in the GPU layout.
+	 * All GPUs are handled simultaneously and the conversion of each of them is split amongst all processors.
+	 * Any of the arrays can be null, and so can any row, in which case the weights are set to zero.
+	 * @param thetas	The theta weights, thetas[i] belongs to demons.get(i)
+	 * @param ws		The w weights
+	 * @param traces	The traces
+	 */
+	public void importWeights(double[][] thetas, double[][] ws, double[][] traces){
+		transferWeights(thetas, ws, traces, true);
+	}
+	
+	/**
+	 * Fetch the weights of all demons and convert them from the GPU layout.
+	 * All GPUs are handled simultaneously and the conversion of each of them is split amongst all processors.
+	 * The arrays must be allocated by the caller. Any of them can be null, and so can any row.
+	 * @param thetas	Where to store the theta weights, thetas[i] belongs to demons.get(i)
+	 * @param ws		Where to store the w weights
+	 * @param traces	Where to store the traces
+	 */
+	public void exportWeights(double[][] thetas, double[][] ws, double[][] traces){
+		transferWeights(thetas, ws, traces, false);
+	}
+	
+	private void transferWeights(double[][] thetas, double[][] ws, double[][] traces, final boolean upload){
+		lastPredictions= null;
+		lastQueryPredictions= null;
+		// the workers of the devices move the buffers, the threads of the runtime convert the layouts
+		Runnable[] tasks= new Runnable[hordes.length];
+		for(int i=0; i<hordes.length; i++){
+			final GPUHorde horde= hordes[i];
+			final double[][] localThetas= localRows(thetas, i);
+			final double[][] localWs= localRows(ws, i);
+			final double[][] localTraces= localRows(traces, i);
+			tasks[i]= new Runnable() {
+				@Override
+				public void run() {
+					if(upload){
+						horde.writeWeights(localThetas, localWs, localTraces, executor);
+					}else{
+						horde.readWeights(localThetas, localWs, localTraces, executor);
+					}
+				}
+			};
+		}
+		runOnDevices(tasks);
+	}
+	
+	/**
+	 * Extract the rows belonging to the demons of one GPUHorde
+	 * @param rows			One row per demon
+	 * @param hordeIndex	The index of the GPUHorde
+	 * @return		The rows indexed by local index
+	 */
+	private double[][] localRows(double[][] rows, int hordeIndex){
+		if(rows == null){
+			return null;
+		}
+		if(rows.length != demons.size()){
+			throw new IllegalArgumentException("Expected one row per demon");
+		}
+		int[] global= globalIndexes[hordeIndex];
+		double[][] local= new double[hordes[hordeIndex].demons.size()][];
+		for(int i=0; i<local.length; i++){
+			local[i]= rows[global[i]];
+		}
+		return local;
+	}
+	
 	private void writeObject(ObjectOutputStream oos) throws IOException{
 		saveWeights();
 		oos.defaultWriteObject();
@@ -642,6 +2153,11 @@ public class CLHorde implements Serializable{
 	private void readObject(ObjectInputStream ois)
     		throws ClassNotFoundException, IOException {
 		ois.defaultReadObject();
+		if(weightPrecision == null){
+			// saved before the weights could be stored on 16 bits
+			weightPrecision= Precision.FP32;
+			thetaPrecision= Precision.FP32;
+		}
 		init();
 		partitionDemons();
 	}
@@ -0,0 +1,160 @@
+package horde;
+
+import java.util.AbstractList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import rlpark.plugin.rltoys.envio.actions.Action;
+import rlpark.plugin.rltoys.envio.observations.Observation;
+import rlpark.plugin.rltoys.horde.Horde;
+import rlpark.plugin.rltoys.horde.Surprise;
+import rlpark.plugin.rltoys.horde.demons.Demon;
+import rlpark.plugin.rltoys.horde.functions.GammaFunction;
+import rlpark.plugin.rltoys.horde.functions.HordeUpdatable;
+import rlpark.plugin.rltoys.horde.functions.OutcomeFunction;
+import rlpark.plugin.rltoys.horde.functions.RewardFunction;
+import rlpark.plugin.rltoys.math.vector.RealVector;
+
+/**
+ * Presents a CLHorde as an rlpark Horde so that it can be used by HordeAgent and any other rlpark tool.
+ * Switching an agent to the GPUs only requires replacing
+ * 	new Horde(demons, rewardFunctions, outcomeFunctions, gammaFunctions)
+ * by
+ * 	new CLHordeAdapter(demons, rewardFunctions, outcomeFunctions, gammaFunctions, nbFeatures)
+ *
+ * The demons are the CLDemons of the CLHorde. Their learner() is a view on the GPUs, which makes
+ * per demon predictions, TD errors and rlpark's Surprise available.
+ * CLDemons can be added once the CLHorde is built, see CLHorde.addDemon.
+ *
+ * @author Clement Gehring
+ *
+ */
+public class CLHordeAdapter extends Horde{
+
+	/**
+	 * The CLHorde doing all the work
+	 */
+	final CLHorde horde;
+
+	/**
+	 * Build a CLHorde and present it as a Horde
+	 * @param demons			The demons
+	 * @param rewardFunctions	All the reward functions that will need updating
+	 * @param outcomeFunctions	All the outcome functions that will need updating
+	 * @param gammaFunctions	All the gamma functions that will need updating
+	 * @param nbFeatures		The number of features
+	 */
+	public CLHordeAdapter(List<CLDemon> demons, List<RewardFunction> rewardFunctions, List<OutcomeFunction> outcomeFunctions,
+			List<GammaFunction> gammaFunctions, int nbFeatures){
+		this(new CLHorde(demons, rewardFunctions, outcomeFunctions, gammaFunctions, nbFeatures));
+	}
+
+	/**
+	 * Present an existing CLHorde as a Horde
+	 * @param horde		The CLHorde
+	 */
+	public CLHordeAdapter(CLHorde horde){
+		this.horde= horde;
+	}
+
+	@Override
+	public void update(Observation o_tp1, RealVector x_t, Action a_t, RealVector x_tp1) {
+		horde.update(o_tp1, x_t, a_t, x_tp1);
+	}
+
+	@Override
+	public List<HordeUpdatable> functions() {
+		return horde.functions;
+	}
+
+	/**
+	 * @return	A read only view of the demons of the CLHorde, without the slots left by the removed demons
+	 */
+	@Override
+	public List<Demon> demons() {
+		return new AbstractList<Demon>() {
+			@Override
+			public Demon get(int index) {
+				if(index < 0 || index >= horde.nbLive){
+					throw new IndexOutOfBoundsException("Index: "+ index+ ", size: "+ horde.nbLive);
+				}
+				return horde.demons.get(horde.liveIndexes[index]);
+			}
+
+			@Override
+			public int size() {
+				return horde.nbLive;
+			}
+
+			@Override
+			public Iterator<Demon> iterator() {
+				final Iterator<CLDemon> slots= horde.demons.iterator();
+				return new Iterator<Demon>() {
+					private CLDemon next= advance();
+
+					private CLDemon advance(){
+						while(slots.hasNext()){
+							CLDemon demon= slots.next();
+							if(demon != null){
+								return demon;
+							}
+						}
+						return null;
+					}
+
+					@Override
+					public boolean hasNext() {
+						return next != null;
+					}
+
+					@Override
+					public Demon next() {
+						if(next == null){
+							throw new NoSuchElementException();
+						}
+						CLDemon demon= next;
+						next= advance();
+						return demon;
+					}
+
+					@Override
+					public void remove() {
+						throw new UnsupportedOperationException();
+					}
+				};
+			}
+		};
+	}
+
+	@Override
+	public boolean addFunction(HordeUpdatable function) {
+		horde.addFunctions(function);
+		return true;
+	}
+
+	@Override
+	public boolean addDemon(Demon demon) {
+		if(!(demon instanceof CLDemon)){
+			throw new UnsupportedOperationException("Only CLDemons can be added to a CLHorde");
+		}
+		horde.addDemon((CLDemon) demon);
+		return true;
+	}
+
+	/**
+	 * Create an rlpark Surprise measure over all the demons
+	 * @param trackingSpeed		The tracking speed of the error normalizers
+	 * @return	The surprise measure, to be updated after every step
+	 */
+	public Surprise newSurprise(int trackingSpeed){
+		return new Surprise(demons(), trackingSpeed);
+	}
+
+	/**
+	 * @return the CLHorde doing the work
+	 */
+	public CLHorde clHorde(){
+		return horde;
+	}
+}
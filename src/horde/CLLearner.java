@@ -0,0 +1,68 @@
+package horde;
+
+import rlpark.plugin.rltoys.algorithms.LinearLearner;
+import rlpark.plugin.rltoys.algorithms.functions.Predictor;
+import rlpark.plugin.rltoys.math.vector.RealVector;
+import rlpark.plugin.rltoys.math.vector.implementations.PVector;
+
+/**
+ * A view of the learner of one demon running in a CLHorde, whatever its algorithm.
+ * Predictions and TD errors are fetched for all demons at once and cached until the next update, so that
+ * iterating over the learners of all demons (e.g. with rlpark's Surprise) costs one transfer per step.
+ *
+ * @author Clement Gehring
+ *
+ */
+public class CLLearner implements LinearLearner, Predictor{
+
+	private static final long serialVersionUID = -2409466716011253190L;
+
+	/**
+	 * The CLHorde hosting the demon
+	 */
+	final transient CLHorde horde;
+	/**
+	 * The global index of the demon
+	 */
+	final int index;
+
+	public CLLearner(CLHorde horde, int index){
+		this.horde= horde;
+		this.index= index;
+	}
+
+	@Override
+	public void resetWeight(int index) {
+		horde.resetWeight(this.index, index);
+	}
+
+	/**
+	 * Fetch a copy of theta. This is a blocking call that reads all the weights of a GPU, use sparingly.
+	 */
+	@Override
+	public PVector weights() {
+		float[] theta= horde.getTheta(index);
+		PVector v= new PVector(theta.length);
+		for(int i=0; i<theta.length; i++){
+			v.data[i]= theta[i];
+		}
+		return v;
+	}
+
+	@Override
+	public double error() {
+		return horde.error(index);
+	}
+
+	@Override
+	public double predict(RealVector x) {
+		return horde.predict(index, x);
+	}
+
+	/**
+	 * @return the prediction for the last x_t used in an update
+	 */
+	public double prediction() {
+		return horde.prediction(index);
+	}
+}
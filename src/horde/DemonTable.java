@@ -0,0 +1,329 @@
+package horde;
+
+import java.io.Serializable;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+
+import org.bridj.Pointer;
+
+import rlpark.plugin.rltoys.envio.actions.Action;
+import rlpark.plugin.rltoys.envio.policy.Policy;
+import rlpark.plugin.rltoys.horde.functions.GammaFunction;
+import rlpark.plugin.rltoys.horde.functions.OutcomeFunction;
+import rlpark.plugin.rltoys.horde.functions.RewardFunction;
+import rlpark.plugin.rltoys.math.vector.RealVector;
+
+/**
+ * A compact table of demons, for hordes of millions of demons.
+ *
+ * A demon is an int handle. Its policies and functions are stored as indexes in small tables holding every distinct
+ * policy and function once, so the table holds a few ints per demon and no object at all. The rewards, gammas
+ * and rhos are computed once per distinct function (or pair of policies) at every step, then spread to the demons.
+ *
+ * A CLHorde built from a table never creates a CLDemon in steady state. asList gives CLDemon views of the demons,
+ * created on demand, which can be used like any CLDemon to query the learner of a demon. The demons of a table
+ * cannot have cumulants and start with zero weights.
+ *
+ * @author Clement Gehring
+ *
+ */
+public class DemonTable implements Serializable {
+
+	private static final long serialVersionUID = -2803851925171301720L;
+
+	/**
+	 * The distinct values of a column of the table
+	 */
+	static class Values<T> implements Serializable{
+		private static final long serialVersionUID = 2386051316082470376L;
+		final List<T> values= new ArrayList<T>();
+		final Map<T, Integer> indexes= new IdentityHashMap<T, Integer>();
+
+		/**
+		 * @param value		A value, compared by identity
+		 * @return	The index of that value, added if it was not there
+		 */
+		int index(T value){
+			Integer index= indexes.get(value);
+			if(index == null){
+				index= values.size();
+				values.add(value);
+				indexes.put(value, index);
+			}
+			return index;
+		}
+
+		T get(int index){
+			return values.get(index);
+		}
+
+		int size(){
+			return values.size();
+		}
+	}
+
+	final Values<Policy> policies= new Values<Policy>();
+	final Values<RewardFunction> rewardFunctions= new Values<RewardFunction>();
+	final Values<GammaFunction> gammaFunctions= new Values<GammaFunction>();
+	final Values<OutcomeFunction> outcomeFunctions= new Values<OutcomeFunction>();
+	final Values<Action[]> actionSets= new Values<Action[]>();
+	/**
+	 * The distinct pairs of target and behaviour policies, keyed by (target << 32) | behaviour
+	 */
+	private final Map<Long, Integer> policyPairIndexes= new HashMap<Long, Integer>();
+	private final List<int[]> policyPairs= new ArrayList<int[]>();
+
+	/**
+	 * The columns of the table, the entry of demon h is at h
+	 */
+	int[] targets= new int[16], behaviours= new int[16], policyPairsOf= new int[16], rewards= new int[16],
+			gammas= new int[16], outcomes= new int[16], actions= new int[16];
+	byte[] algorithms= new byte[16];
+	int size;
+
+	/**
+	 * The CLHorde using this table, given to the CLDemon views
+	 */
+	transient CLHorde horde;
+
+	/**
+	 * Add a demon learning with GTD(lambda)
+	 * @param target			The target policy
+	 * @param behaviour			The behaviour policy
+	 * @param rewardFunction	The reward function, can be null
+	 * @param gammaFunction		The gamma function
+	 * @param outcomeFunction	The outcome function
+	 * @return	The handle of the demon, which is also its global index in a CLHorde built from this table
+	 */
+	public int add(Policy target, Policy behaviour, RewardFunction rewardFunction,
+			GammaFunction gammaFunction, OutcomeFunction outcomeFunction){
+		return add(target, behaviour, rewardFunction, gammaFunction, outcomeFunction, Algorithm.GTD_LAMBDA);
+	}
+
+	/**
+	 * Add a demon
+	 * @param target			The target policy
+	 * @param behaviour			The behaviour policy
+	 * @param rewardFunction	The reward function, can be null
+	 * @param gammaFunction		The gamma function
+	 * @param outcomeFunction	The outcome function
+	 * @param algorithm			The algorithm learning the demon, see add with actions for GQ(lambda)
+	 * @return	The handle of the demon
+	 */
+	public int add(Policy target, Policy behaviour, RewardFunction rewardFunction,
+			GammaFunction gammaFunction, OutcomeFunction outcomeFunction, Algorithm algorithm){
+		if(algorithm == Algorithm.GQ_LAMBDA){
+			throw new IllegalArgumentException("GQ(lambda) demons need their actions");
+		}
+		return add(target, behaviour, null, rewardFunction, gammaFunction, outcomeFunction, algorithm);
+	}
+
+	/**
+	 * Add a control demon learning with GQ(lambda)
+	 * @param target			The target policy
+	 * @param behaviour			The behaviour policy
+	 * @param actions			The actions conditioning the features, shared by all the GQ(lambda) demons
+	 * @param rewardFunction	The reward function, can be null
+	 * @param gammaFunction		The gamma function
+	 * @param outcomeFunction	The outcome function
+	 * @return	The handle of the demon
+	 */
+	public int add(Policy target, Policy behaviour, Action[] actions, RewardFunction rewardFunction,
+			GammaFunction gammaFunction, OutcomeFunction outcomeFunction){
+		return add(target, behaviour, actions, rewardFunction, gammaFunction, outcomeFunction, Algorithm.GQ_LAMBDA);
+	}
+
+	private int add(Policy target, Policy behaviour, Action[] actionSet, RewardFunction rewardFunction,
+			GammaFunction gammaFunction, OutcomeFunction outcomeFunction, Algorithm algorithm){
+		if(horde != null){
+			throw new IllegalStateException("The table is already used by a CLHorde");
+		}
+		if(size == targets.length){
+			int capacity= 2*size;
+			targets= Arrays.copyOf(targets, capacity);
+			behaviours= Arrays.copyOf(behaviours, capacity);
+			policyPairsOf= Arrays.copyOf(policyPairsOf, capacity);
+			rewards= Arrays.copyOf(rewards, capacity);
+			gammas= Arrays.copyOf(gammas, capacity);
+			outcomes= Arrays.copyOf(outcomes, capacity);
+			actions= Arrays.copyOf(actions, capacity);
+			algorithms= Arrays.copyOf(algorithms, capacity);
+		}
+		int h= size++;
+		targets[h]= policies.index(target);
+		behaviours[h]= policies.index(behaviour);
+		long pair= ((long) targets[h] << 32) | behaviours[h];
+		Integer pairIndex= policyPairIndexes.get(pair);
+		if(pairIndex == null){
+			pairIndex= policyPairs.size();
+			policyPairs.add(new int[] {targets[h], behaviours[h]});
+			policyPairIndexes.put(pair, pairIndex);
+		}
+		policyPairsOf[h]= pairIndex;
+		rewards[h]= rewardFunction == null ? -1 : rewardFunctions.index(rewardFunction);
+		gammas[h]= gammaFunctions.index(gammaFunction);
+		outcomes[h]= outcomeFunctions.index(outcomeFunction);
+		actions[h]= actionSet == null ? -1 : actionSets.index(actionSet);
+		algorithms[h]= (byte) algorithm.ordinal();
+		return h;
+	}
+
+	/**
+	 * @return The number of demons
+	 */
+	public int size(){
+		return size;
+	}
+
+	public Algorithm algorithm(int handle){
+		return Algorithm.values()[algorithms[handle]];
+	}
+
+	public Policy targetPolicy(int handle){
+		return policies.get(targets[handle]);
+	}
+
+	public Policy behaviourPolicy(int handle){
+		return policies.get(behaviours[handle]);
+	}
+
+	public RewardFunction rewardFunction(int handle){
+		return rewards[handle] < 0 ? null : rewardFunctions.get(rewards[handle]);
+	}
+
+	public GammaFunction gammaFunction(int handle){
+		return gammaFunctions.get(gammas[handle]);
+	}
+
+	public OutcomeFunction outcomeFunction(int handle){
+		return outcomeFunctions.get(outcomes[handle]);
+	}
+
+	public Action[] actions(int handle){
+		return actions[handle] < 0 ? null : actionSets.get(actions[handle]);
+	}
+
+	/**
+	 * Create a CLDemon view of a demon. The view is not kept by the table.
+	 * @param handle	The handle of the demon
+	 * @return	A new CLDemon with the policies and the functions of the demon, attached to the CLHorde if any
+	 */
+	public CLDemon view(int handle){
+		CLDemon demon;
+		if(algorithm(handle) == Algorithm.GQ_LAMBDA){
+			demon= new CLDemon(targetPolicy(handle), behaviourPolicy(handle), actions(handle), rewardFunction(handle),
+					gammaFunction(handle), outcomeFunction(handle));
+		}else{
+			demon= new CLDemon(targetPolicy(handle), behaviourPolicy(handle), rewardFunction(handle),
+					gammaFunction(handle), outcomeFunction(handle));
+			demon.setAlgorithm(algorithm(handle));
+		}
+		if(horde != null){
+			demon.attach(horde, handle);
+		}
+		return demon;
+	}
+
+	/**
+	 * @return All the demons as CLDemon views, created on demand
+	 */
+	public List<CLDemon> asList(){
+		int[] handles= new int[size];
+		for(int i=0; i<size; i++){
+			handles[i]= i;
+		}
+		return new DemonList(this, handles);
+	}
+
+	/**
+	 * @param handles	Handles of demons
+	 * @return	These demons as CLDemon views, created on demand
+	 */
+	List<CLDemon> asList(int[] handles){
+		return new DemonList(this, handles);
+	}
+
+	/**
+	 * A list of demons of a table, holding only their handles
+	 */
+	static class DemonList extends AbstractList<CLDemon> implements RandomAccess, Serializable{
+		private static final long serialVersionUID = 6911466563049432158L;
+		final DemonTable table;
+		final int[] handles;
+
+		DemonList(DemonTable table, int[] handles){
+			this.table= table;
+			this.handles= handles;
+		}
+
+		@Override
+		public CLDemon get(int index){
+			return table.view(handles[index]);
+		}
+
+		@Override
+		public int size(){
+			return handles.length;
+		}
+	}
+
+	/**
+	 * Compute the rewards, the gammas and, if needed, the rhos of some demons and store them in the arrays sent to the GPU.
+	 * Every function and every pair of policies is evaluated once, whatever the number of demons using it.
+	 * @param handles	The handles of the demons, demon handles[i] is stored at i
+	 * @param reward	The rewards
+	 * @param gamma		The gammas
+	 * @param rho		The rhos, null if they are not needed
+	 * @param x_t		The feature vector on which rho is computed
+	 * @param a_t		The action taken
+	 * @param scratch	A float array of at least handles.length values
+	 */
+	void stage(int[] handles, Pointer<Float> reward, Pointer<Float> gamma, Pointer<Float> rho,
+			RealVector x_t, Action a_t, float[] scratch){
+		double[] gammaValues= new double[gammaFunctions.size()];
+		for(int i=0; i<gammaValues.length; i++){
+			gammaValues[i]= gammaFunctions.get(i).gamma();
+		}
+		double[] rewardValues= new double[rewardFunctions.size()];
+		for(int i=0; i<rewardValues.length; i++){
+			rewardValues[i]= rewardFunctions.get(i).reward();
+		}
+		double[] outcomeValues= new double[outcomeFunctions.size()];
+		for(int i=0; i<outcomeValues.length; i++){
+			outcomeValues[i]= outcomeFunctions.get(i).outcome();
+		}
+
+		// the same formulas as CLDemon
+		for(int i=0; i<handles.length; i++){
+			int h= handles[i];
+			double g= gammaValues[gammas[h]];
+			scratch[i]= (float) ((rewards[h] < 0 ? 0 : rewardValues[rewards[h]]) + (1-g)*outcomeValues[outcomes[h]]);
+		}
+		reward.setFloatsAtOffset(0, scratch, 0, handles.length);
+		for(int i=0; i<handles.length; i++){
+			scratch[i]= (float) gammaValues[gammas[handles[i]]];
+		}
+		gamma.setFloatsAtOffset(0, scratch, 0, handles.length);
+
+		if(rho != null){
+			double[] rhoValues= new double[policyPairs.size()];
+			boolean[] computed= new boolean[rhoValues.length];
+			for(int i=0; i<handles.length; i++){
+				int pair= policyPairsOf[handles[i]];
+				if(!computed[pair]){
+					int[] policyPair= policyPairs.get(pair);
+					rhoValues[pair]= policies.get(policyPair[0]).pi(x_t, a_t)/policies.get(policyPair[1]).pi(x_t, a_t);
+					computed[pair]= true;
+				}
+				scratch[i]= (float) rhoValues[pair];
+			}
+			rho.setFloatsAtOffset(0, scratch, 0, handles.length);
+		}
+	}
+}
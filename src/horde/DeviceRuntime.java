@@ -0,0 +1,339 @@
+package horde;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import com.nativelibs4java.opencl.CLContext;
+import com.nativelibs4java.opencl.CLDevice;
+import com.nativelibs4java.opencl.CLPlatform;
+import com.nativelibs4java.opencl.CLPlatform.DeviceFeature;
+import com.nativelibs4java.opencl.CLProgram;
+import com.nativelibs4java.opencl.CLQueue;
+import com.nativelibs4java.opencl.JavaCL;
+import com.nativelibs4java.util.IOUtils;
+
+/**
+ * The OpenCL devices of the process, shared by all the CLHordes of the JVM.
+ * There is one runtime for the GPUs and one for the CPU, created by the first CLHorde using them and released with
+ * all its devices when its last CLHorde shuts down.
+ * A runtime owns one context and one queue per device, the threads launching the work of the GPUHordes and the
+ * compiled programs: the GPUHordes of all the CLHordes compiling the same program with the same macros on the same
+ * context share it, so a program is only compiled once per device.
+ *
+ * On a machine with several NUMA nodes, the CPU runtime has one device per node, see NumaNodes.
+ *
+ * The CLHordes are the tenants of the runtime, see acquire and release.
+ *
+ * @author Clement Gehring
+ *
+ */
+public class DeviceRuntime {
+
+	/**
+	 * Only consider devices that are tagged as available
+	 */
+	private final static boolean onlyAvailable = true;
+
+	private static DeviceRuntime gpuRuntime, cpuRuntime;
+
+	final CLPlatform platform;
+	final CLDevice[] devices;
+	final CLContext[] contexts;
+	final CLQueue[] queues;
+	/**
+	 * The threads on which the tenants launch the work of their GPUHordes
+	 */
+	final ExecutorService executor;
+	/**
+	 * The threads running the work of every step of the tenants, one per device
+	 */
+	final DeviceWorkers workers;
+	private int tenants;
+	/**
+	 * True once a tenant has described the devices
+	 */
+	private boolean announced;
+
+	/**
+	 * The source of the kernels, read once
+	 */
+	private static String kernelSource;
+
+	/**
+	 * A compiled program, built by the first GPUHorde needing it
+	 */
+	private static class ProgramEntry{
+		CLProgram program;
+	}
+	/**
+	 * The programs of every context, by macros and source
+	 */
+	private final Map<CLContext, Map<String, ProgramEntry>> programs= new IdentityHashMap<CLContext, Map<String, ProgramEntry>>();
+
+	/**
+	 * Get the runtime of the GPUs or of the CPU, created the first time, and count the caller as a tenant
+	 * @param CPU	true for the CPU, false for the GPUs
+	 * @return	The runtime
+	 */
+	public static synchronized DeviceRuntime acquire(boolean CPU){
+		DeviceRuntime runtime= CPU ? cpuRuntime : gpuRuntime;
+		if(runtime == null){
+			runtime= new DeviceRuntime(CPU);
+			if(CPU){
+				cpuRuntime= runtime;
+			}else{
+				gpuRuntime= runtime;
+			}
+		}
+		runtime.tenants++;
+		return runtime;
+	}
+
+	/**
+	 * A tenant is done with the runtime. The last tenant stops the threads and releases the programs, the queues and
+	 * the contexts, the next CLHorde creates a new runtime.
+	 */
+	public void release(){
+		synchronized(DeviceRuntime.class){
+			if(--tenants > 0){
+				return;
+			}
+			if(gpuRuntime == this){
+				gpuRuntime= null;
+			}else if(cpuRuntime == this){
+				cpuRuntime= null;
+			}
+			// the programs compiled on the contexts go with them
+			for(Map<String, ProgramEntry> contextPrograms: programs.values()){
+				for(ProgramEntry entry: contextPrograms.values()){
+					synchronized(entry){
+						if(entry.program != null){
+							entry.program.release();
+						}
+					}
+				}
+			}
+			programs.clear();
+		}
+		workers.stop();
+		executor.shutdown();
+		for(CLQueue queue: queues){
+			queue.finish();
+			queue.release();
+		}
+		for(CLContext context: contexts){
+			context.release();
+		}
+	}
+
+	/**
+	 * @return The number of tenants using the runtime
+	 */
+	public int tenants(){
+		synchronized(DeviceRuntime.class){
+			return tenants;
+		}
+	}
+
+	/**
+	 * @return	The number of devices, for the CPU the number of NUMA nodes it is split into, 1 if it is not split
+	 */
+	public int nbDevices(){
+		return devices.length;
+	}
+
+	/**
+	 * @return	True for the first tenant asking only, which describes the platform and the devices
+	 */
+	synchronized boolean announce(){
+		if(announced){
+			return false;
+		}
+		announced= true;
+		return true;
+	}
+
+	private DeviceRuntime(boolean CPU){
+		if(CPU){
+			CLContext context= JavaCL.createBestContext(DeviceFeature.CPU);
+			if(context == null || context.getPlatform().listCPUDevices(onlyAvailable).length <1){
+				throw new RuntimeException("CPU context failed. Maybe your opencl drivers are missing.");
+			}
+			platform= context.getPlatform();
+			
+			// on a NUMA machine, every node is a device with its own context and queue
+			CLDevice[] nodes= NumaNodes.split(platform, context.getDevices()[0]);
+			if(nodes != null){
+				context.release();
+				devices= nodes;
+				contexts= createContexts(platform, devices);
+			}else{
+				contexts= new CLContext[] {context};
+				devices= context.getDevices();
+			}
+
+		}else{
+			// get all platforms containing GPUs
+			CLPlatform[] platforms = JavaCL.listGPUPoweredPlatforms();
+			int maxGPU=0, maxGPUindex=0;
+
+			// check if any platform was found
+			if(platforms.length == 0){
+				throw new RuntimeException("No OpenCL platform detected. Maybe your opencl drivers are missing.");
+			}
+
+			// find the platform that offers the most GPUs
+			for(int i=0; i< platforms.length; i++){
+				int nbGPU= platforms[i].listGPUDevices(onlyAvailable).length;
+				if(maxGPU< nbGPU){
+					maxGPU= nbGPU;
+					maxGPUindex=i;
+				}
+			}
+
+			// check if a GPU was found
+			if(maxGPU == 0){
+				throw new RuntimeException("No available GPU found");
+			}
+
+			platform= platforms[maxGPUindex];
+			devices= platform.listGPUDevices(onlyAvailable);
+			contexts= createContexts(platform, devices);
+		}
+
+		// create a queue for every context
+		queues= new CLQueue[contexts.length];
+		for(int i=0; i< contexts.length; i++){
+			queues[i]= contexts[i].createDefaultOutOfOrderQueueIfPossible();
+			if(queues[i]== null){
+				queues[i]= contexts[i].createDefaultQueue(null);
+			}
+		}
+
+		workers= new DeviceWorkers(devices.length, CPU ? "horde-cpu-worker" : "horde-gpu-worker");
+		
+		// the threads mostly wait for the devices: enough for every GPUHorde of a few tenants to launch at once
+		int threads= Math.max(Runtime.getRuntime().availableProcessors(), devices.length*Algorithm.values().length);
+		executor= Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				// a tenant that does not shut down must not keep the JVM alive
+				Thread thread= new Thread(r, "horde-device");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Create a context for every GPU, all at once
+	 */
+	private static CLContext[] createContexts(final CLPlatform platform, CLDevice[] devices){
+		CLContext[] contexts= new CLContext[devices.length];
+		ExecutorService pool= Executors.newFixedThreadPool(devices.length);
+		try{
+			List<Future<CLContext>> created= new ArrayList<Future<CLContext>>();
+			for(int j=0; j< devices.length; j++){
+				final CLDevice device= devices[j];
+				created.add(pool.submit(new Callable<CLContext>() {
+					@Override
+					public CLContext call() {
+						return platform.createContext(null, device);
+					}
+				}));
+			}
+			for(int j=0; j< devices.length; j++){
+				contexts[j]= created.get(j).get();
+			}
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		}finally{
+			pool.shutdown();
+		}
+		return contexts;
+	}
+
+	/**
+	 * @return The source of the kernels, horde.cl
+	 */
+	static synchronized String kernelSource() throws IOException{
+		if(kernelSource == null){
+			kernelSource= IOUtils.readText(new File("../horde.cl"));
+		}
+		return kernelSource;
+	}
+
+	/**
+	 * Get a program built with some macros, compiled the first time it is asked for on a context.
+	 * Different programs are compiled concurrently.
+	 * @param context	The context
+	 * @param source	The source of the program
+	 * @param macros	The macros defined for the program
+	 * @return	The built program, shared: only create kernels from it
+	 */
+	static CLProgram program(CLContext context, String source, Map<String, String> macros){
+		// the order in which the macros were defined does not matter
+		Map<String, String> sorted= new TreeMap<String, String>(macros);
+		String key= sorted.toString()+ "\n"+ source;
+		ProgramEntry entry;
+		synchronized(DeviceRuntime.class){
+			DeviceRuntime owner= null;
+			for(DeviceRuntime runtime: new DeviceRuntime[] {gpuRuntime, cpuRuntime}){
+				if(runtime != null && runtime.owns(context)){
+					owner= runtime;
+				}
+			}
+			if(owner == null){
+				// a context created outside of the runtimes, nothing to share it with
+				return build(context, source, sorted);
+			}
+			Map<String, ProgramEntry> contextPrograms= owner.programs.get(context);
+			if(contextPrograms == null){
+				contextPrograms= new HashMap<String, ProgramEntry>();
+				owner.programs.put(context, contextPrograms);
+			}
+			entry= contextPrograms.get(key);
+			if(entry == null){
+				entry= new ProgramEntry();
+				contextPrograms.put(key, entry);
+			}
+		}
+		synchronized(entry){
+			if(entry.program == null){
+				entry.program= build(context, source, sorted);
+			}
+			return entry.program;
+		}
+	}
+
+	private static CLProgram build(CLContext context, String source, Map<String, String> macros){
+		CLProgram program= context.createProgram(source);
+		for(Map.Entry<String, String> macro: macros.entrySet()){
+			program.defineMacro(macro.getKey(), macro.getValue());
+		}
+		return program.build();
+	}
+
+	private boolean owns(CLContext context){
+		for(CLContext c: contexts){
+			if(c == context){
+				return true;
+			}
+		}
+		return false;
+	}
+}
@@ -0,0 +1,223 @@
+package horde;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * One dedicated thread per device running the work of every step of the CLHordes of a DeviceRuntime, with a lower
+ * latency than an executor.
+ *
+ * The thread of a CLHorde posts a step by storing one task per worker and incrementing the step sequence, a volatile
+ * counter. The workers spin on the sequence for a while before parking, so a step following the last one closely
+ * is picked up without any wake up. The last worker to finish a step releases the thread of the CLHorde, which also
+ * spins before parking. A task that fails makes run throw once all the tasks of the step are done.
+ *
+ * The time between the post of a step and the start of its tasks is measured, see latency.
+ *
+ * @author Clement Gehring
+ *
+ */
+public class DeviceWorkers {
+
+	/**
+	 * How long a thread spins before parking, in nanoseconds
+	 */
+	private static final long spinNanos= 50000;
+
+	/**
+	 * The dispatch latency of the tasks run so far
+	 */
+	public static class Latency {
+		/**
+		 * The number of tasks dispatched
+		 */
+		public final long tasks;
+		/**
+		 * The average and the largest time between the post of a step and the start of a task, in nanoseconds
+		 */
+		public final double meanNanos;
+		public final long maxNanos;
+
+		Latency(long tasks, long totalNanos, long maxNanos){
+			this.tasks= tasks;
+			this.meanNanos= tasks > 0 ? (double) totalNanos/tasks : 0;
+			this.maxNanos= maxNanos;
+		}
+
+		@Override
+		public String toString(){
+			return "tasks: "+ tasks+ ", mean dispatch: "+ meanNanos/1000+ "us, max dispatch: "+ maxNanos/1000+ "us";
+		}
+	}
+
+	private final Thread[] threads;
+	/**
+	 * The task of every worker for the posted step
+	 */
+	private final Runnable[] tasks;
+	private final Throwable[] failures;
+	/**
+	 * The posted step and the time it was posted. The tasks are written before the sequence, which publishes them.
+	 */
+	private volatile long sequence;
+	private volatile long postTime;
+	private volatile boolean stopped;
+	/**
+	 * The workers parked waiting for a step, 1 if parked
+	 */
+	private final AtomicIntegerArray parked;
+	/**
+	 * The workers still running the posted step, and the thread waiting for them
+	 */
+	private final AtomicInteger remaining= new AtomicInteger();
+	private volatile Thread waiter;
+	private volatile boolean waiting;
+
+	/**
+	 * The dispatch latencies, per worker to avoid any sharing
+	 */
+	private final long[] latencyTotal, latencyMax, latencyCount;
+
+	/**
+	 * Start the workers
+	 * @param count		The number of workers
+	 * @param name		The prefix of the names of the threads
+	 */
+	DeviceWorkers(int count, String name){
+		threads= new Thread[count];
+		tasks= new Runnable[count];
+		failures= new Throwable[count];
+		parked= new AtomicIntegerArray(count);
+		latencyTotal= new long[count];
+		latencyMax= new long[count];
+		latencyCount= new long[count];
+		for(int i=0; i<count; i++){
+			final int worker= i;
+			threads[i]= new Thread(new Runnable() {
+				@Override
+				public void run() {
+					work(worker);
+				}
+			}, name+ "-"+ i);
+			threads[i].setDaemon(true);
+			threads[i].start();
+		}
+	}
+
+	/**
+	 * @return	The number of workers
+	 */
+	int size(){
+		return threads.length;
+	}
+
+	/**
+	 * Run one task on every worker and wait for all of them. The steps of several threads run one after the other.
+	 * @param tasks		The tasks, tasks[i] runs on worker i, can be null
+	 */
+	synchronized void run(Runnable[] tasks){
+		if(tasks.length != threads.length){
+			throw new IllegalArgumentException("Expected one task per worker");
+		}
+		System.arraycopy(tasks, 0, this.tasks, 0, tasks.length);
+		remaining.set(threads.length);
+		waiter= Thread.currentThread();
+		postTime= System.nanoTime();
+		sequence++;
+		for(int i=0; i<threads.length; i++){
+			if(parked.get(i) != 0){
+				LockSupport.unpark(threads[i]);
+			}
+		}
+
+		// spin, then park until the last worker releases this thread
+		long start= System.nanoTime();
+		while(remaining.get() > 0){
+			if(System.nanoTime() - start < spinNanos){
+				continue;
+			}
+			waiting= true;
+			if(remaining.get() > 0){
+				LockSupport.park(this);
+			}
+			waiting= false;
+		}
+
+		Throwable failure= null;
+		for(int i=0; i<failures.length; i++){
+			if(failures[i] != null && failure == null){
+				failure= failures[i];
+			}
+			failures[i]= null;
+			this.tasks[i]= null;
+		}
+		if(failure instanceof RuntimeException){
+			throw (RuntimeException) failure;
+		}else if(failure instanceof Error){
+			throw (Error) failure;
+		}else if(failure != null){
+			throw new RuntimeException(failure);
+		}
+	}
+
+	private void work(int worker){
+		long seen= 0;
+		while(true){
+			// spin, then park until the next step is posted
+			long start= System.nanoTime();
+			while(sequence == seen && !stopped){
+				if(System.nanoTime() - start < spinNanos){
+					continue;
+				}
+				parked.set(worker, 1);
+				if(sequence == seen && !stopped){
+					LockSupport.park(this);
+				}
+				parked.set(worker, 0);
+			}
+			if(stopped){
+				return;
+			}
+			seen= sequence;
+			long latency= System.nanoTime() - postTime;
+			latencyTotal[worker] += latency;
+			latencyMax[worker]= Math.max(latencyMax[worker], latency);
+			latencyCount[worker]++;
+
+			try{
+				if(tasks[worker] != null){
+					tasks[worker].run();
+				}
+			}catch(Throwable t){
+				failures[worker]= t;
+			}
+			if(remaining.decrementAndGet() == 0 && waiting){
+				LockSupport.unpark(waiter);
+			}
+		}
+	}
+
+	/**
+	 * @return	The dispatch latency of the steps run so far, over all the workers
+	 */
+	Latency latency(){
+		long total= 0, max= 0, count= 0;
+		for(int i=0; i<threads.length; i++){
+			total += latencyTotal[i];
+			max= Math.max(max, latencyMax[i]);
+			count += latencyCount[i];
+		}
+		return new Latency(count, total, max);
+	}
+
+	/**
+	 * Stop the workers once they are done with the current step
+	 */
+	void stop(){
+		stopped= true;
+		for(Thread thread: threads){
+			LockSupport.unpark(thread);
+		}
+	}
+}
@@ -0,0 +1,366 @@
+package horde;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import rlpark.plugin.rltoys.envio.actions.Action;
+import rlpark.plugin.rltoys.envio.observations.Observation;
+import rlpark.plugin.rltoys.horde.functions.GammaFunction;
+import rlpark.plugin.rltoys.horde.functions.HordeUpdatable;
+import rlpark.plugin.rltoys.horde.functions.OutcomeFunction;
+import rlpark.plugin.rltoys.horde.functions.RewardFunction;
+import rlpark.plugin.rltoys.math.vector.RealVector;
+
+/**
+ * A horde whose demons are split amongst several worker processes, see HordeWorker, each of them running a CLHorde
+ * on its own devices. The demons are partitioned by node the way a CLHorde partitions them by GPU: node i hosts a
+ * contiguous block of demons, demon g is demon getLocalIndex(g) of node getNodeIndex(g).
+ *
+ * The coordinator keeps the functions and the policies. At every step it computes the rewards, the gammas and the rhos
+ * of all the demons and sends every worker, in one binary message, the feature vectors and the values of its demons.
+ * The workers update at the same time and answer with the time they took, and every few steps with their predictions
+ * and the summary of their learning statistics. The time spent coordinating a step is reported by overhead.
+ *
+ * An instance of this class should only be accessed by one thread.
+ *
+ * @author Clement Gehring
+ *
+ */
+public class DistributedHorde {
+
+	private final List<CLDemon> demons;
+	private final List<HordeUpdatable> functions= new ArrayList<HordeUpdatable>();
+	private final int nbFeatures;
+
+	/**
+	 * The links to the workers
+	 */
+	private final Transport.Link[] links;
+	/**
+	 * Where the demons live: demon g is demon localIndexes[g] of node nodeIndexes[g]. The demons of node i start at first[i].
+	 */
+	private final int[] nodeIndexes, localIndexes, first;
+	/**
+	 * Whether the demons of a node use rho, only the rhos used are sent
+	 */
+	private final boolean[] usesRho;
+
+	/**
+	 * The predictions and the statistics are reported every reportInterval steps
+	 */
+	private int reportInterval= 1;
+	private long updates;
+	private float[] predictions;
+	private LearningStats.Summary summary;
+
+	/**
+	 * The time spent by the steps and the time the slowest worker spent updating, in nanoseconds
+	 */
+	private long steps, stepNanos, workerNanos, startBytes;
+
+	/**
+	 * The cost of coordinating the workers
+	 */
+	public static class Overhead {
+		public final long steps;
+		/**
+		 * The average time of a step, seen from the coordinator
+		 */
+		public final double meanStepNanos;
+		/**
+		 * The average time the slowest worker spent updating in a step
+		 */
+		public final double meanWorkerNanos;
+		/**
+		 * The average time spent computing the inputs, in the messages and waiting for them in a step
+		 */
+		public final double meanOverheadNanos;
+		/**
+		 * The average number of bytes sent and received in a step
+		 */
+		public final double bytesPerStep;
+
+		Overhead(long steps, long stepNanos, long workerNanos, long bytes){
+			this.steps= steps;
+			this.meanStepNanos= steps > 0 ? (double) stepNanos/steps : 0;
+			this.meanWorkerNanos= steps > 0 ? (double) workerNanos/steps : 0;
+			this.meanOverheadNanos= meanStepNanos - meanWorkerNanos;
+			this.bytesPerStep= steps > 0 ? (double) bytes/steps : 0;
+		}
+
+		@Override
+		public String toString(){
+			return "steps: "+ steps+ ", step: "+ meanStepNanos/1000+ "us, workers: "+ meanWorkerNanos/1000
+					+ "us, overhead: "+ meanOverheadNanos/1000+ "us, bytes per step: "+ bytesPerStep;
+		}
+	}
+
+	/**
+	 * Split the demons amongst the workers and wait for all of them to be ready.
+	 * The demons cannot have cumulants and cannot learn with GQ(lambda).
+	 *
+	 * @param demons			The demons
+	 * @param rewardFunctions	All the reward functions that will need updating
+	 * @param outcomeFunctions	All the outcome functions that will need updating
+	 * @param gammaFunctions	All the gamma functions that will need updating
+	 * @param nbFeatures		The number of features
+	 * @param transport			How to reach the workers
+	 * @param nbNodes			The number of workers
+	 * @param CPU				true if the workers should run the demons on their CPU and not on their GPUs
+	 * @throws IOException
+	 */
+	public DistributedHorde(List<CLDemon> demons, List<RewardFunction> rewardFunctions, List<OutcomeFunction> outcomeFunctions,
+			List<GammaFunction> gammaFunctions, int nbFeatures, Transport transport, int nbNodes, boolean CPU) throws IOException{
+		for(CLDemon demon: demons){
+			if(demon.hasCumulant()){
+				throw new IllegalArgumentException("The demons of a DistributedHorde cannot have cumulants");
+			}
+			if(demon.algorithm() == Algorithm.GQ_LAMBDA){
+				throw new IllegalArgumentException("GQ(lambda) needs the target policies on the workers");
+			}
+		}
+		this.demons= new ArrayList<CLDemon>(demons);
+		this.nbFeatures= nbFeatures;
+		addFunctions(rewardFunctions);
+		addFunctions(outcomeFunctions);
+		addFunctions(gammaFunctions);
+
+		// the first nodes get one more demon if the split is uneven
+		int nbDemons= demons.size();
+		nodeIndexes= new int[nbDemons];
+		localIndexes= new int[nbDemons];
+		first= new int[nbNodes+1];
+		usesRho= new boolean[nbNodes];
+		for(int i=0; i<nbNodes; i++){
+			first[i]= i*(nbDemons/nbNodes) + Math.min(i, nbDemons%nbNodes);
+		}
+		first[nbNodes]= nbDemons;
+		for(int i=0; i<nbNodes; i++){
+			for(int g=first[i]; g<first[i+1]; g++){
+				nodeIndexes[g]= i;
+				localIndexes[g]= g-first[i];
+				usesRho[i] |= this.demons.get(g).algorithm().usesRho;
+			}
+		}
+
+		// send every worker its demons, then wait for all of them to build their CLHorde
+		links= new Transport.Link[nbNodes];
+		for(int i=0; i<nbNodes; i++){
+			links[i]= transport.connect(i);
+			ByteArrayOutputStream bytes= new ByteArrayOutputStream();
+			ObjectOutputStream oos= new ObjectOutputStream(bytes);
+			oos.writeObject(new ArrayList<CLDemon>(this.demons.subList(first[i], first[i+1])));
+			oos.close();
+			ByteBuffer message= ByteBuffer.allocate(1 + 4 + 1 + bytes.size());
+			message.put(HordeWorker.setup).putInt(nbFeatures).put((byte) (CPU ? 1 : 0)).put(bytes.toByteArray());
+			message.flip();
+			links[i].send(message);
+		}
+		for(int i=0; i<nbNodes; i++){
+			links[i].receive();
+			startBytes += links[i].bytes();
+		}
+	}
+
+	/**
+	 * Add the needed functions that will require updates
+	 * @param fns A collection of updateable functions
+	 */
+	public void addFunctions(Collection<?> fns){
+		for( Object fn: fns){
+			functions.add( (HordeUpdatable) fn);
+		}
+	}
+
+	/**
+	 * Report the predictions and the statistics of the workers every few steps only, the steps in between only
+	 * exchange the inputs and a short answer.
+	 * @param steps		The number of steps between two reports
+	 */
+	public void setReportInterval(int steps){
+		reportInterval= steps;
+	}
+
+	/**
+	 * Update the functions, then make every worker update its demons at the same time
+	 * @param o_tp1
+	 * @param x_t
+	 * @param a_t
+	 * @param x_tp1
+	 */
+	public void update(Observation o_tp1, RealVector x_t, Action a_t, RealVector x_tp1){
+		long start= System.nanoTime();
+		for (HordeUpdatable function : functions){
+			function.update(o_tp1, x_t, a_t, x_tp1);
+		}
+		boolean report= x_t != null && (updates+1) % reportInterval == 0;
+		if(x_t != null){
+			updates++;
+		}
+
+		try{
+			// send all the messages before waiting for any answer
+			for(int i=0; i<links.length; i++){
+				links[i].send(updateMessage(i, x_t, a_t, x_tp1, report));
+			}
+			long slowest= 0;
+			double[][] reports= new double[links.length][];
+			for(int i=0; i<links.length; i++){
+				ByteBuffer answer= links[i].receive();
+				slowest= Math.max(slowest, answer.getLong());
+				if(report){
+					reports[i]= readReport(i, answer);
+				}
+			}
+			if(report){
+				summary= combine(reports);
+			}
+			steps++;
+			workerNanos += slowest;
+			stepNanos += System.nanoTime() - start;
+		}catch(IOException e){
+			throw new RuntimeException(e);
+		}
+	}
+
+	private ByteBuffer updateMessage(int node, RealVector x_t, Action a_t, RealVector x_tp1, boolean report){
+		int size= first[node+1] - first[node];
+		byte flags= 0;
+		if(x_t == null){
+			flags |= HordeWorker.resetFlag;
+		}
+		if(usesRho[node] && x_t != null){
+			flags |= HordeWorker.rhoFlag;
+		}
+		if(report){
+			flags |= HordeWorker.reportFlag;
+		}
+		int vectors= x_t == null ? 1 : 2;
+		int values= (flags & HordeWorker.rhoFlag) != 0 ? 3 : 2;
+		ByteBuffer message= ByteBuffer.allocate(1 + 1 + 4 + 4*vectors*nbFeatures + 4 + 4*values*size);
+		message.put(HordeWorker.update).put(flags).putInt(nbFeatures);
+		if(x_t != null){
+			HordeWorker.putFloats(message, toFloats(x_t));
+		}
+		HordeWorker.putFloats(message, toFloats(x_tp1));
+
+		// the same formulas as CLDemon, without the arrays of a GPUHorde
+		float[] rewards= new float[size], gammas= new float[size], rhos= new float[size];
+		for(int k=0; k<size; k++){
+			CLDemon demon= demons.get(first[node]+k);
+			rewards[k]= demon.reward();
+			gammas[k]= demon.gamma();
+			if((flags & HordeWorker.rhoFlag) != 0 && demon.algorithm().usesRho){
+				rhos[k]= demon.rho(x_t, a_t);
+			}
+		}
+		message.putInt(size);
+		HordeWorker.putFloats(message, rewards);
+		HordeWorker.putFloats(message, gammas);
+		if((flags & HordeWorker.rhoFlag) != 0){
+			HordeWorker.putFloats(message, rhos);
+		}
+		message.flip();
+		return message;
+	}
+
+	private static float[] toFloats(RealVector v){
+		double[] d= v.accessData();
+		float[] f= new float[d.length];
+		for(int i=0; i<d.length; i++){
+			f[i]= (float) d[i];
+		}
+		return f;
+	}
+
+	/**
+	 * @return	The sums over the healthy demons of the worker of the squared errors and of the absolute errors,
+	 * 			the largest surprise and the number of diverged demons
+	 */
+	private double[] readReport(int node, ByteBuffer answer){
+		double squared= answer.getDouble(), absolute= answer.getDouble(), surprise= answer.getDouble();
+		int diverged= answer.getInt();
+		float[] nodePredictions= HordeWorker.getFloats(answer, answer.getInt());
+		if(predictions == null){
+			predictions= new float[demons.size()];
+		}
+		System.arraycopy(nodePredictions, 0, predictions, first[node], nodePredictions.length);
+		// the averages of the workers are averages over their healthy demons, turn them back into sums
+		int healthy= first[node+1] - first[node] - diverged;
+		return new double[] {squared*healthy, absolute*healthy, surprise, diverged};
+	}
+
+	private LearningStats.Summary combine(double[][] reports){
+		double squared= 0, absolute= 0, surprise= 0;
+		int diverged= 0;
+		for(double[] r: reports){
+			squared += r[0];
+			absolute += r[1];
+			surprise= Math.max(surprise, r[2]);
+			diverged += (int) r[3];
+		}
+		return new LearningStats.Summary(squared, absolute, surprise, diverged, demons.size());
+	}
+
+	/**
+	 * @return The predictions of all the demons at the last report, null before the first one
+	 */
+	public float[] predictions(){
+		return predictions;
+	}
+
+	/**
+	 * @return The summary of the learning statistics of all the demons at the last report, null before the first one
+	 */
+	public LearningStats.Summary statsSummary(){
+		return summary;
+	}
+
+	/**
+	 * @return The cost of coordinating the workers since the workers are ready
+	 */
+	public Overhead overhead(){
+		long bytes= -startBytes;
+		for(Transport.Link link: links){
+			bytes += link.bytes();
+		}
+		return new Overhead(steps, stepNanos, workerNanos, bytes);
+	}
+
+	/**
+	 * @param globalIndex	The index of a demon
+	 * @return	The index of the worker hosting the demon
+	 */
+	public int getNodeIndex(int globalIndex){
+		return nodeIndexes[globalIndex];
+	}
+
+	/**
+	 * @param globalIndex	The index of a demon
+	 * @return	The global index of the demon in the CLHorde of its worker
+	 */
+	public int getLocalIndex(int globalIndex){
+		return localIndexes[globalIndex];
+	}
+
+	/**
+	 * Shut the workers down and close the links
+	 */
+	public void shutdown(){
+		ByteBuffer message= ByteBuffer.allocate(1);
+		message.put(HordeWorker.shutdown).flip();
+		for(Transport.Link link: links){
+			try {
+				link.send(message.duplicate());
+				link.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+}
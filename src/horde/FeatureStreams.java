@@ -0,0 +1,121 @@
+package horde;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+import rlpark.plugin.rltoys.math.vector.RealVector;
+import rlpark.plugin.rltoys.math.vector.implementations.PVector;
+
+/**
+ * The named feature streams of a CLHorde. Every demon learns on one stream, see CLDemon.setStream, with as many
+ * weights as the stream has features.
+ *
+ * The streams are packed one after the other in a single feature vector, the one given to CLHorde.update,
+ * to the predictions and to the chunks: stream s covers the features offset(s) to offset(s)+width(s).
+ * Every GPUHorde only sends and stores its own stream, see pack to build the packed vector.
+ *
+ * @author Clement Gehring
+ *
+ */
+public class FeatureStreams implements Serializable {
+
+	private static final long serialVersionUID = 5925837014722853307L;
+
+	/**
+	 * The name of the only stream of a CLHorde built with a number of features
+	 */
+	public static final String defaultStream= "features";
+
+	private final List<String> names= new ArrayList<String>();
+	private final List<Integer> widths= new ArrayList<Integer>();
+	private final List<Integer> offsets= new ArrayList<Integer>();
+	private int nbFeatures;
+
+	/**
+	 * @param nbFeatures	The number of features
+	 * @return	A single stream, named defaultStream
+	 */
+	public static FeatureStreams single(int nbFeatures){
+		FeatureStreams streams= new FeatureStreams();
+		streams.add(defaultStream, nbFeatures);
+		return streams;
+	}
+
+	/**
+	 * Add a stream after the others
+	 * @param name		The name of the stream
+	 * @param width		Its number of features
+	 * @return	This
+	 */
+	public FeatureStreams add(String name, int width){
+		if(names.contains(name)){
+			throw new IllegalArgumentException("Stream "+ name+ " already exists");
+		}
+		names.add(name);
+		widths.add(width);
+		offsets.add(nbFeatures);
+		nbFeatures += width;
+		return this;
+	}
+
+	/**
+	 * @param name	The name of a stream, null for the first one
+	 * @return	The index of the stream in the packed vector
+	 */
+	public int index(String name){
+		if(name == null){
+			return 0;
+		}
+		int index= names.indexOf(name);
+		if(index < 0){
+			throw new IllegalArgumentException("Unknown stream: "+ name);
+		}
+		return index;
+	}
+
+	public int size(){
+		return names.size();
+	}
+
+	public String name(int stream){
+		return names.get(stream);
+	}
+
+	public int width(int stream){
+		return widths.get(stream);
+	}
+
+	public int offset(int stream){
+		return offsets.get(stream);
+	}
+
+	/**
+	 * @return	The number of features of the packed vector
+	 */
+	public int nbFeatures(){
+		return nbFeatures;
+	}
+
+	/**
+	 * Pack the feature vectors of all the streams
+	 * @param vectors	One vector per stream, in the order of the streams, a null vector gives zeros
+	 * @return	The packed vector
+	 */
+	public PVector pack(RealVector... vectors){
+		if(vectors.length != names.size()){
+			throw new IllegalArgumentException("Expected one vector per stream");
+		}
+		double[] packed= new double[nbFeatures];
+		for(int s=0; s<vectors.length; s++){
+			if(vectors[s] == null){
+				continue;
+			}
+			if(vectors[s].getDimension() != widths.get(s)){
+				throw new IllegalArgumentException("Stream "+ names.get(s)+ " has "+ widths.get(s)+ " features");
+			}
+			System.arraycopy(vectors[s].accessData(), 0, packed, offsets.get(s), widths.get(s));
+		}
+		return new PVector(packed);
+	}
+}
@@ -0,0 +1,130 @@
+package horde;
+
+import java.nio.FloatBuffer;
+
+import rlpark.plugin.rltoys.math.vector.MutableVector;
+import rlpark.plugin.rltoys.math.vector.RealVector;
+import rlpark.plugin.rltoys.math.vector.implementations.PVector;
+
+/**
+ * A read only feature vector backed by a region of a FloatBuffer.
+ * A FeatureView is meant to be moved around a buffer of feature vectors (e.g. a chunk of a trajectory)
+ * so that no object needs to be created at every step. Anything keeping a reference to a FeatureView should
+ * copy it first.
+ *
+ * @author Clement Gehring
+ *
+ */
+public class FeatureView implements RealVector{
+
+	private static final long serialVersionUID = -3296487127730734517L;
+
+	/**
+	 * The buffer holding the features
+	 */
+	transient FloatBuffer buffer;
+	/**
+	 * The index of the first feature in the buffer
+	 */
+	int offset;
+	/**
+	 * The dimension of the feature vector
+	 */
+	final int dim;
+	/**
+	 * Lazily filled copy of the features, only used by accessData
+	 */
+	private double[] data;
+	private boolean dataValid= false;
+
+	public FeatureView(int dim){
+		this.dim= dim;
+	}
+
+	/**
+	 * Move the view to another feature vector
+	 * @param buffer	The buffer holding the features
+	 * @param offset	The index of the first feature in the buffer
+	 * @return	This view
+	 */
+	public FeatureView set(FloatBuffer buffer, int offset){
+		this.buffer= buffer;
+		this.offset= offset;
+		dataValid= false;
+		return this;
+	}
+
+	@Override
+	public int getDimension() {
+		return dim;
+	}
+
+	@Override
+	public double getEntry(int i) {
+		return buffer.get(offset+i);
+	}
+
+	@Override
+	public double dotProduct(RealVector other) {
+		double sum= 0;
+		for(int i=0; i<dim; i++){
+			float f= buffer.get(offset+i);
+			if(f != 0){
+				sum += f*other.getEntry(i);
+			}
+		}
+		return sum;
+	}
+
+	@Override
+	public MutableVector mapMultiply(double d) {
+		return copyAsMutable().mapMultiplyToSelf(d);
+	}
+
+	@Override
+	public MutableVector subtract(RealVector other) {
+		return copyAsMutable().subtractToSelf(other);
+	}
+
+	@Override
+	public MutableVector add(RealVector other) {
+		return copyAsMutable().addToSelf(other);
+	}
+
+	@Override
+	public MutableVector ebeMultiply(RealVector v) {
+		return copyAsMutable().ebeMultiplyToSelf(v);
+	}
+
+	@Override
+	public MutableVector newInstance(int size) {
+		return new PVector(size);
+	}
+
+	@Override
+	public MutableVector copyAsMutable() {
+		return new PVector(accessData(), true);
+	}
+
+	@Override
+	public RealVector copy() {
+		return copyAsMutable();
+	}
+
+	/**
+	 * The returned array is reused by the view and is only valid until the view is moved.
+	 */
+	@Override
+	public double[] accessData() {
+		if(data == null){
+			data= new double[dim];
+		}
+		if(!dataValid){
+			for(int i=0; i<dim; i++){
+				data[i]= buffer.get(offset+i);
+			}
+			dataValid= true;
+		}
+		return data;
+	}
+}
@@ -0,0 +1,271 @@
+package horde;
+
+import java.util.List;
+
+import rlpark.plugin.rltoys.math.vector.RealVector;
+import rlpark.plugin.rltoys.math.vector.SparseVector;
+
+/**
+ * Serves the predictions of demons that are not learning anymore.
+ *
+ * Only theta is kept, quantized to one byte per weight with a scale per demon (INT8) or stored as
+ * half precision (FP16), instead of the 12 bytes per weight held on the GPUs by a learning demon.
+ * The predictions are computed on the CPU from a feature major matrix: the weights of all the demons for
+ * one feature are contiguous, so a sparse feature vector only streams the rows of its active features.
+ * The demons are processed by tiles small enough for the accumulators to stay in cache, and a batch of
+ * feature vectors reuses every row of a tile for all the vectors of the batch.
+ *
+ * A frozen demon can be promoted back to a learning demon with the dequantized theta.
+ * An instance of this class can be queried by several threads at once.
+ *
+ * @author Clement Gehring
+ *
+ */
+public class FrozenDemonPool {
+
+	public enum Encoding {
+		/**
+		 * One byte per weight, theta is scaled by the largest absolute weight of the demon
+		 */
+		INT8,
+		/**
+		 * Two bytes per weight, IEEE half precision
+		 */
+		FP16
+	}
+
+	/**
+	 * The number of demons processed together, small enough for the accumulators of a batch to stay in cache
+	 */
+	private static final int tileSize= 1024;
+
+	final Encoding encoding;
+	final int nbFeatures;
+	final int nbDemons;
+	/**
+	 * The demons, kept to be promoted back
+	 */
+	final CLDemon[] demons;
+	/**
+	 * The weight of demon i for feature j is at i + j*nbDemons
+	 */
+	private final byte[] int8Weights;
+	private final short[] halfWeights;
+	/**
+	 * The scale of each demon, only used by INT8
+	 */
+	private final float[] scales;
+
+	/**
+	 * Export demons of a CLHorde into a pool. The demons keep learning in the CLHorde, the pool holds a copy of
+	 * their current theta and can outlive the CLHorde.
+	 * @param horde		The CLHorde
+	 * @param indexes	The global indexes of the demons to export, GQ(lambda) demons are not supported
+	 * @param encoding	How to store the weights
+	 */
+	public FrozenDemonPool(CLHorde horde, int[] indexes, Encoding encoding){
+		this(demons(horde.demons, indexes), thetas(horde, indexes), horde.nbFeatures(), encoding);
+	}
+
+	/**
+	 * Build a pool from weights held on the host
+	 * @param demons		The demons
+	 * @param thetas		The theta of every demon
+	 * @param nbFeatures	The dimension of the feature vectors
+	 * @param encoding		How to store the weights
+	 */
+	public FrozenDemonPool(CLDemon[] demons, double[][] thetas, int nbFeatures, Encoding encoding){
+		this.encoding= encoding;
+		this.nbFeatures= nbFeatures;
+		this.nbDemons= demons.length;
+		this.demons= demons.clone();
+		if(thetas.length != nbDemons){
+			throw new IllegalArgumentException("Expected one theta per demon");
+		}
+
+		if(encoding == Encoding.INT8){
+			int8Weights= new byte[nbDemons*nbFeatures];
+			halfWeights= null;
+			scales= new float[nbDemons];
+			for(int i=0; i<nbDemons; i++){
+				double max= 0;
+				for(int j=0; j<nbFeatures; j++){
+					max= Math.max(max, Math.abs(thetas[i][j]));
+				}
+				scales[i]= (float) (max/127);
+				double inverse= max == 0 ? 0 : 127/max;
+				for(int j=0; j<nbFeatures; j++){
+					int8Weights[i + j*nbDemons]= (byte) Math.round(thetas[i][j]*inverse);
+				}
+			}
+		}else{
+			int8Weights= null;
+			scales= null;
+			halfWeights= new short[nbDemons*nbFeatures];
+			for(int i=0; i<nbDemons; i++){
+				for(int j=0; j<nbFeatures; j++){
+					halfWeights[i + j*nbDemons]= Precision.toHalf((float) thetas[i][j]);
+				}
+			}
+		}
+	}
+
+	private static CLDemon[] demons(List<CLDemon> demons, int[] indexes){
+		CLDemon[] selected= new CLDemon[indexes.length];
+		for(int i=0; i<indexes.length; i++){
+			selected[i]= demons.get(indexes[i]);
+			if(selected[i].algorithm() == Algorithm.GQ_LAMBDA){
+				throw new IllegalArgumentException("GQ(lambda) demons cannot be frozen");
+			}
+		}
+		return selected;
+	}
+
+	private static double[][] thetas(CLHorde horde, int[] indexes){
+		double[][] all= new double[horde.demons.size()][];
+		double[][] selected= new double[indexes.length][];
+		for(int i=0; i<indexes.length; i++){
+			selected[i]= new double[horde.nbFeatures()];
+			all[indexes[i]]= selected[i];
+		}
+		horde.exportWeights(all, null, null);
+		return selected;
+	}
+
+	/**
+	 * Compute the predictions of all the demons of the pool
+	 * @param v		The feature vector
+	 * @return	The predictions, in the order of the pool
+	 */
+	public float[] predictions(RealVector v){
+		return predictions(new RealVector[] {v})[0];
+	}
+
+	/**
+	 * Compute the predictions of all the demons of the pool for a batch of feature vectors
+	 * @param vs	The feature vectors
+	 * @return	The predictions, predictions[b][i] is the prediction of demon i for vs[b]
+	 */
+	public float[][] predictions(RealVector[] vs){
+		// extract the active features of every vector once
+		int[][] active= new int[vs.length][];
+		float[][] values= new float[vs.length][];
+		for(int b=0; b<vs.length; b++){
+			extract(vs[b], b, active, values);
+		}
+
+		float[][] p= new float[vs.length][nbDemons];
+		for(int start=0; start<nbDemons; start+= tileSize){
+			int end= Math.min(nbDemons, start+tileSize);
+			for(int b=0; b<vs.length; b++){
+				float[] out= p[b];
+				int[] features= active[b];
+				float[] x= values[b];
+				for(int k=0; k<features.length; k++){
+					int row= features[k]*nbDemons;
+					float value= x[k];
+					if(int8Weights != null){
+						for(int i=start; i<end; i++){
+							out[i] += value*int8Weights[row + i];
+						}
+					}else{
+						for(int i=start; i<end; i++){
+							out[i] += value*Precision.fromHalf(halfWeights[row + i]);
+						}
+					}
+				}
+				if(scales != null){
+					for(int i=start; i<end; i++){
+						out[i] *= scales[i];
+					}
+				}
+			}
+		}
+		return p;
+	}
+
+	/**
+	 * Store the non zero features of a vector
+	 */
+	private void extract(RealVector v, int b, int[][] active, float[][] values){
+		int[] indexes;
+		int count;
+		if(v instanceof SparseVector){
+			indexes= ((SparseVector) v).nonZeroIndexes();
+			count= ((SparseVector) v).nonZeroElements();
+		}else{
+			double[] d= v.accessData();
+			indexes= new int[d.length];
+			count= 0;
+			for(int j=0; j<d.length; j++){
+				if(d[j] != 0){
+					indexes[count++]= j;
+				}
+			}
+		}
+		active[b]= new int[count];
+		values[b]= new float[count];
+		for(int k=0; k<count; k++){
+			int j= indexes[k];
+			if(j < 0 || j >= nbFeatures){
+				throw new IndexOutOfBoundsException("feature: "+ j);
+			}
+			active[b][k]= j;
+			values[b][k]= (float) v.getEntry(j);
+		}
+	}
+
+	/**
+	 * Get the theta of a demon as it is served, after quantization
+	 * @param index		The index of the demon in the pool
+	 * @return	The theta of the demon
+	 */
+	public float[] getTheta(int index){
+		float[] theta= new float[nbFeatures];
+		for(int j=0; j<nbFeatures; j++){
+			if(int8Weights != null){
+				theta[j]= scales[index]*int8Weights[index + j*nbDemons];
+			}else{
+				theta[j]= Precision.fromHalf(halfWeights[index + j*nbDemons]);
+			}
+		}
+		return theta;
+	}
+
+	/**
+	 * Promote a frozen demon back to a learning demon.
+	 * The returned CLDemon keeps the policies, the functions and the algorithm of the original demon and starts
+	 * from the served theta, with w and the trace set to zero. It can be given to a new CLHorde.
+	 * @param index		The index of the demon in the pool
+	 * @return	A new CLDemon
+	 */
+	public CLDemon promote(int index){
+		CLDemon demon= demons[index];
+		CLDemon promoted= new CLDemon(demon.targetPolicy, demon.behaviourPolicy, demon.rewardfn, demon.gammafn, demon.outcomefn);
+		promoted.setAlgorithm(demon.algorithm());
+		promoted.setWeights(getTheta(index), null, null);
+		return promoted;
+	}
+
+	/**
+	 * @return The number of demons in the pool
+	 */
+	public int size(){
+		return nbDemons;
+	}
+
+	/**
+	 * @param index		The index of a demon in the pool
+	 * @return	The demon that was frozen
+	 */
+	public CLDemon demon(int index){
+		return demons[index];
+	}
+
+	/**
+	 * @return The memory used by the weights in bytes
+	 */
+	public long bytes(){
+		return int8Weights != null ? int8Weights.length + 4l*scales.length : 2l*halfWeights.length;
+	}
+}
@@ -1,15 +1,23 @@
 package horde;
 
-import java.io.File;
 import java.io.IOException;
 import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import org.bridj.Pointer;
 
 import rlpark.plugin.rltoys.envio.actions.Action;
+import rlpark.plugin.rltoys.envio.policy.Policy;
 import rlpark.plugin.rltoys.math.vector.RealVector;
-import rlpark.plugin.rltoys.utils.NotImplemented;
 
 import com.nativelibs4java.opencl.CLBuffer;
 import com.nativelibs4java.opencl.CLContext;
@@ -19,9 +27,9 @@ import com.nativelibs4java.opencl.CLKernel;
 import com.nativelibs4java.opencl.CLMem.Usage;
 import com.nativelibs4java.opencl.CLProgram;
 import com.nativelibs4java.opencl.CLQueue;
-import com.nativelibs4java.util.IOUtils;
 /**
  * The horde living on a GPU.
+ * All the demons of a GPUHorde learn with the same algorithm, only the buffers needed by that algorithm are created.
  * An instance of this class should be used by only one thread at a time.
  * Most of the wait is differed so to allow the CPU to keep working until it needs to get the results.
  * @author Clement Gehring
@@ -31,16 +39,55 @@ public class GPUHorde {
 	/**
 	 * Buffer that reside on the GPU
 	 */
-	CLBuffer<Float> thetaBuf, wBuf, traceBuf, rhoBuf, rewardBuf, gammaBuf, predictionBuf;
+	CLBuffer<Float> rhoBuf, rewardBuf, gammaBuf, predictionBuf, errorBuf;
+	/**
+	 * The weight buffers, holding floats or 16 bit values depending on their precision
+	 */
+	CLBuffer<?> thetaBuf, wBuf, traceBuf;
+	/**
+	 * The eligibility traces shared by the GTD(lambda) demons with the same policies and gamma function, whose traces
+	 * would be identical. Demon i uses the trace of class traceClass[i], stored at traceClass[i] + j*traceStride in traceBuf,
+	 * and the trace of class c is updated once per update with the rho and the gamma of demon representatives[c].
+	 * These are null when every demon has its own trace.
+	 */
+	CLBuffer<Integer> traceClassBuf, representativeBuf;
+	int[] traceClass, representatives;
+	int nbTraceClasses, traceStride;
+	/**
+	 * The class of every distinct combination of policies and gamma function, and the index of the objects in the combinations
+	 */
+	Map<List<Integer>, Integer> traceClasses;
+	private final Map<Object, Integer> identities= new IdentityHashMap<Object, Integer>();
+	/**
+	 * Share the traces when at most this fraction of the demons would keep a trace of their own
+	 */
+	private static final double traceSharingRatio= 0.5;
+	/**
+	 * How theta, and w and the trace, are stored on the GPU
+	 */
+	Precision thetaPrecision= Precision.FP32, weightPrecision= Precision.FP32;
+	/**
+	 * Buffers only used by some algorithms: the previous predictions of true online TD(lambda) and
+	 * the target policies of GQ(lambda). wBuf and rhoBuf are also null when the algorithm does not need them.
+	 */
+	CLBuffer<Float> vOldBuf, piBuf;
 	/**
 	 * Array containing updatable parameter
 	 */
-	Pointer<Float> gamma, rho, reward;
+	Pointer<Float> gamma, rho, reward, pi;
 	
 	/**
 	 * Feature buffers that reside on the GPU
 	 */
 	CLBuffer<Float>[] featuresBuf;
+	/**
+	 * Buffer holding a chunk of replayed feature vectors on the GPU
+	 */
+	CLBuffer<Float> chunkBuf;
+	/**
+	 * The number of feature vectors in the current chunk
+	 */
+	int chunkSteps;
 	/**
 	 * Array containing the feature vectors
 	 */
@@ -53,16 +100,197 @@ public class GPUHorde {
 	/**
 	 * A kernel (program) that will run on the GPU
 	 */
-	CLKernel updateHorde, predict, traceReset;
+	CLKernel updateHorde, predict, clear, clearShorts, computeCumulants, predictBatch, selectAbove, topKGroups, gatherPredictions,
+			updateStats, reduceStats, checkDivergence, resetDemon, setDemon, relayout, relayoutShorts, updateSharedTraces,
+			tileCode, clearFeatures;
+	/**
+	 * The tile coder computing the feature vectors on the GPU from the observations, null if the features come from the host.
+	 * The observations of the last step and of this step are sent together in inputsBuf.
+	 */
+	TileCoding tileCoding;
+	CLBuffer<Float> inputsBuf, inputMinsBuf, inputScalesBuf;
+	CLBuffer<Integer> tilingsBuf, tilingInputsBuf;
+	Pointer<Float> inputs;
+	/**
+	 * The buffers of the batched predictions: the feature vectors of a batch, one after the other, and
+	 * the predictions of demon i for vector q at q*stride + i. They grow with the batches.
+	 */
+	CLBuffer<Float> batchFeaturesBuf, batchPredictionBuf;
+	Pointer<Float> batchFeatures;
+	/**
+	 * The buffers of the selection queries, they grow with the queries
+	 */
+	CLBuffer<Integer> selectionCountBuf, selectionIndexBuf;
+	CLBuffer<Float> selectionValueBuf;
+	/**
+	 * 1 for the demons being updated, 0 for the quarantined demons
+	 */
+	CLBuffer<Float> activeBuf;
+	Pointer<Float> active;
+	/**
+	 * The divergence detection: the number of demons flagged by the last update, read back without blocking,
+	 * and their indexes. These are null unless the divergence is detected.
+	 */
+	CLBuffer<Integer> divergenceCountBuf, divergedBuf;
+	Pointer<Integer> divergenceCount, zeroCount;
+	CLEvent divergenceRead;
+	float divergenceBound;
+	/**
+	 * The local indexes of the demons quarantined since the last time they were collected by the CLHorde
+	 */
+	List<Integer> pendingQuarantine= new ArrayList<Integer>();
+	/**
+	 * The learning statistics of every demon, statistic s of demon i is at i + s*stride (see LearningStats),
+	 * and the statistics reduced by every work group. These are null unless the statistics are tracked.
+	 */
+	CLBuffer<Float> statsBuf, statsPartialBuf;
+	/**
+	 * The rate of the moving averages of the statistics
+	 */
+	float statsRate;
+	/**
+	 * The history of the predictions, and optionally of the TD errors, of the last 2*historySteps updates.
+	 * The row of update s starts at (s % (2*historySteps))*stride: one half of the ring is read back while the
+	 * other one is filled. These are null unless the history is recorded.
+	 */
+	CLBuffer<Float> historyBuf, historyErrorBuf;
+	int historySteps;
+	/**
+	 * The number of rows appended to the history and the number of rows read back
+	 */
+	long historyRows, historyDrained;
+	/**
+	 * The events of the copies of the last row, and of the last read back of each half of the ring
+	 */
+	CLEvent[] historyAppend, historyReads[]= new CLEvent[2][];
+	/**
+	 * The last block of history read back, until it is collected by the CLHorde
+	 */
+	HistoryBlock pendingHistory;
+	
+	/**
+	 * The copies of theta, w and the trace taken by snapshot, reused from one snapshot to the next.
+	 * The next update, and anything else writing the weights, waits for snapshotCopies. The next copy waits for snapshotReads.
+	 */
+	CLBuffer<?>[] snapshotBufs;
+	CLEvent[] snapshotCopies, snapshotReads;
+	
+	/**
+	 * The weights copied by snapshot, being read back from the GPU
+	 */
+	static class SnapshotBlock{
+		int width, stride, traceWidth, dim;
+		/**
+		 * The trace of demon i is trace traceClass[i], null if every demon has its own trace
+		 */
+		int[] traceClass;
+		/**
+		 * The free slots, whose weights are not part of the snapshot
+		 */
+		boolean[] free;
+		Precision[] precisions;
+		Pointer<?>[] weights;
+		CLEvent[] reads;
+		
+		/**
+		 * Wait for the transfers and convert the weights into one row per demon. The weights on the host are released.
+		 * @param thetas	Where to store the theta weights, by global index
+		 * @param ws		Where to store the w weights, left alone if the algorithm has none
+		 * @param traces	Where to store the traces
+		 * @param columns	The global index of every demon
+		 */
+		void rows(float[][] thetas, float[][] ws, float[][] traces, int[] columns){
+			CLEvent.waitFor(reads);
+			float[][][] rows= {thetas, ws, traces};
+			for(int k=0; k<weights.length; k++){
+				if(weights[k] == null){
+					continue;
+				}
+				int width= k == 2 ? traceWidth : stride;
+				for(int i=0; i<this.width; i++){
+					if(!free[i]){
+						rows[k][columns[i]]= new float[dim];
+					}
+				}
+				for(int j=0; j<dim; j++){
+					float[] values= precisions[k].get(weights[k], (long) j*width, width);
+					for(int i=0; i<this.width; i++){
+						if(!free[i]){
+							rows[k][columns[i]][j]= values[k == 2 && traceClass != null ? traceClass[i] : i];
+						}
+					}
+				}
+				weights[k].release();
+			}
+		}
+	}
+	
+	/**
+	 * A block of history being read back from the GPU
+	 */
+	static class HistoryBlock{
+		long firstStep;
+		int steps;
+		/**
+		 * The number of slots in use when the block was read, the other slots of a row are padding
+		 */
+		int width;
+		Pointer<Float> predictions, errors;
+		CLEvent[] reads;
+	}
+	/**
+	 * The number of feature vectors handled by a work item of predictBatch, QUERY_TILE in horde.cl
+	 */
+	private static final int queryTile= 16;
+	/**
+	 * The largest number of predictions computed by one launch of predictBatch
+	 */
+	private static final int maxBatchPredictions= 1 << 24;
 	/**
 	 * The dimensions of the kernel tasks
 	 */
 	int[] numDemon;
+	/**
+	 * The cumulants of the GVF networks in compressed rows: the sources of demon i are at
+	 * cumulantOffsetBuf[i] to cumulantOffsetBuf[i+1]. These are null if no demon has a cumulant.
+	 */
+	CLBuffer<Integer> cumulantOffsetBuf, cumulantSourceBuf;
+	CLBuffer<Float> cumulantCoefficientBuf;
+	/**
+	 * The number of demons after padding.
+	 * The weights of demon i for feature j are stored at i + j*stride in theta, w and trace.
+	 */
+	int stride;
+	/**
+	 * The algorithm learning all the demons of this GPUHorde
+	 */
+	final Algorithm algorithm;
+	/**
+	 * The actions conditioning the features of GQ(lambda) demons
+	 */
+	Action[] actions;
+	int nbActions= 1;
+	/**
+	 * The number of weights per demon in theta, w and trace
+	 */
+	int dim;
 	/**
 	 * The work group size;
 	 * For best performance, should be a multiple of the wavefront size (usually 64)
 	 */
 	int[] workGroupSize= {128};
+	/**
+	 * The number of features converted by each task when changing the layout of the weights
+	 */
+	private static final int featureBlock= 256;
+	/**
+	 * The number of weights held by each of the two staging buffers used to stream the saved weights to the GPU
+	 */
+	private int uploadChunk= 1 << 22;
+	/**
+	 * False once the work group size is forced, see CLHorde.appleDriverCheck, the Autotuner is not used then
+	 */
+	boolean autotune= true;
 	
 	/**
 	 * The context to be used by the GPUHorde
@@ -78,13 +306,31 @@ public class GPUHorde {
 	CLDevice device;
 	
 	/**
-	 * All the demons that reside on this GPUHorde's GPU
+	 * All the demons that reside on this GPUHorde's GPU, demons.get(i) is stored in slot i.
+	 * A removed demon leaves null in its slot until the slot is given to an added demon.
 	 */
 	List<CLDemon> demons;
+	/**
+	 * The slots of the removed demons, given to the next added demons before any slot past the last demon.
+	 * The slots from demons.size() to stride are free as well.
+	 */
+	List<Integer> freeSlots= new ArrayList<Integer>();
 	/**
 	 * The dimensions of the feature vectors
 	 */
 	int nbFeatures;
+	/**
+	 * The feature vectors given to this GPUHorde pack several streams, see FeatureStreams: its features are
+	 * featureOffset to featureOffset+nbFeatures of vectors of packedFeatures features. 0 means that no stream is packed.
+	 */
+	int featureOffset, packedFeatures;
+	/**
+	 * The table holding the demons and their handles, if the demons come from a DemonTable.
+	 * No CLDemon is used in that case.
+	 */
+	DemonTable table;
+	int[] handles;
+	float[] stagingScratch;
 	
 	/**
 	 * The source code for the kernels
@@ -94,9 +340,14 @@ public class GPUHorde {
 	 * The Uncompiled program containing all kernels
 	 */
 	CLProgram hordeProgram;
+	/**
+	 * The macros defined when compiling the program (the parameters of the algorithm)
+	 */
+	Map<String, String> macros= new LinkedHashMap<String, String>();
 	
 	/**
-	 * The last feature vector used for the predictions
+	 * The feature vector of the predictions held by predictionBuf, null if it is not known on the host:
+	 * after an update from a chunk or from tile coded observations, or before any update
 	 */
 	RealVector last;
 	
@@ -111,17 +362,46 @@ public class GPUHorde {
 	 */
 	private int vectorSize=4;
 	
-	private String updateKernelName= "updateGTDLambda", 
-				predictKernelName= "predict",
-				traceResetKernelName= "traceReset";
+	private String updateKernelName, 
+				predictKernelName,
+				clearKernelName= "traceReset",
+				clearShortsKernelName= "clearShorts",
+				cumulantKernelName= "computeCumulants",
+				predictBatchKernelName= "predictBatch";
 	
 	
 	public GPUHorde(CLContext context, CLQueue queue, CLDevice device) {
+		this(context, queue, device, Algorithm.GTD_LAMBDA);
+	}
+	
+	public GPUHorde(CLContext context, CLQueue queue, CLDevice device, Algorithm algorithm) {
 		this.context=context;
 		this.queue=queue;
 		this.device=device;
+		this.algorithm=algorithm;
 	}
 
+	/**
+	 * Choose how the weights are stored on the GPU. This must be called before initialise.
+	 * The kernels always compute with floats, the vectorized kernels are not used with a 16 bit format.
+	 * @param weightPrecision	The storage of w and the trace
+	 * @param thetaPrecision	The storage of theta
+	 */
+	public void setPrecision(Precision weightPrecision, Precision thetaPrecision){
+		this.weightPrecision= weightPrecision;
+		this.thetaPrecision= thetaPrecision;
+	}
+	
+	/**
+	 * Learn on one stream of packed feature vectors, see FeatureStreams. This must be called before initialise.
+	 * @param offset			The first feature of the stream
+	 * @param packedFeatures	The number of features of the packed vectors
+	 */
+	public void setFeatureStream(int offset, int packedFeatures){
+		this.featureOffset= offset;
+		this.packedFeatures= packedFeatures;
+	}
+	
 	/**
 	 * Set up all the  buffers and initialise them on the GPU.
 	 * @param demonList A list with all the demons that need to run on that GPU
@@ -130,12 +410,50 @@ public class GPUHorde {
 	public void initialise(List<CLDemon> demonList, int nbFeatures) {
 		demons= demonList;
 		this.nbFeatures= nbFeatures;
+		if(packedFeatures == 0){
+			packedFeatures= nbFeatures;
+		}
+		if(demonList instanceof DemonTable.DemonList){
+			table= ((DemonTable.DemonList) demonList).table;
+			handles= ((DemonTable.DemonList) demonList).handles;
+			stagingScratch= new float[handles.length];
+		}
 		
 		// set the dimensions of the task
 		numDemon= new int[] {demons.size()};
 		
+		// the features of GQ(lambda) are conditioned on the actions
+		if(algorithm == Algorithm.GQ_LAMBDA && demons.size() > 0){
+			actions= actionsOf(0);
+			for(int i=0; i<demons.size(); i++){
+				if(!Arrays.equals(actions, actionsOf(i))){
+					throw new IllegalArgumentException("All GQ(lambda) demons must share the same actions");
+				}
+			}
+			nbActions= actions.length;
+		}
+		dim= algorithm.dim(nbFeatures, nbActions);
+		
+		// the demons sharing their trace are updated one at a time
+		boolean shared= algorithm == Algorithm.GTD_LAMBDA && findTraceClasses();
+		
 		// set size of vector
-		vectorSize= device.getPreferredVectorWidthFloat();
+		boolean compact= weightPrecision != Precision.FP32 || thetaPrecision != Precision.FP32;
+		boolean vectorizable= algorithm.vectorized && !compact && !shared;
+		vectorSize= vectorizable ? device.getPreferredVectorWidthFloat() : 1;
+		
+		// use the configuration tuned for this device and shape, if any, or tune one once the buffers are allocated
+		String tuningKey= null;
+		boolean tuning= false;
+		if(autotune && Autotuner.isEnabled() && demons.size() > 0){
+			tuningKey= Autotuner.key(device, algorithm, weightPrecision, thetaPrecision, vectorizable, demons.size(), nbFeatures);
+			Autotuner.Configuration configuration= Autotuner.lookup(tuningKey);
+			if(configuration != null){
+				configure(configuration);
+			}else{
+				tuning= true;
+			}
+		}
 		vectorize= vectorSize>1;
 		if(vectorize){
 			System.out.println("Using vector optimization");
@@ -143,9 +461,13 @@ public class GPUHorde {
 			System.out.println("Vector optimization not supported");
 		}
 		
-		// pad the demons so that we have a multiple of the group size
-		int size= vectorSize * workGroupSize[0];
+		// pad the demons so that we have a multiple of the group size, of every candidate group size when tuning
+		int size= tuning ? Autotuner.padding(device, vectorizable) : vectorSize * workGroupSize[0];
 		numDemon[0] += ((size - numDemon[0]%size))%size;
+		stride= numDemon[0];
+		if(shared){
+			padTraces(tuning ? size : workGroupSize[0]);
+		}
 		
 		
 		features= new Pointer[2];
@@ -159,251 +481,1787 @@ public class GPUHorde {
 			return;
 		}
 		// allocate all arrays
-		gamma= Pointer.allocateFloats(demons.size()).order(order);
-		reward= Pointer.allocateFloats(demons.size()).order(order);
-		rho= Pointer.allocateFloats(demons.size()).order(order);
+		// the staging arrays hold every slot, so that demons can be added without reallocating them
+		gamma= Pointer.allocateFloats(stride).order(order);
+		reward= Pointer.allocateFloats(stride).order(order);
+		rho= Pointer.allocateFloats(stride).order(order);
 		
 		features[0]= Pointer.allocateFloats(nbFeatures).order(order);
 		features[1]= Pointer.allocateFloats(nbFeatures).order(order);
 		
 		// create all buffers to be used on the GPU
-		thetaBuf= context.createFloatBuffer(Usage.InputOutput, nbFeatures*numDemon[0]);
-		wBuf= context.createFloatBuffer(Usage.InputOutput, nbFeatures*numDemon[0]);
-		traceBuf= context.createFloatBuffer(Usage.InputOutput, nbFeatures*numDemon[0]);
+		thetaBuf= thetaPrecision.createBuffer(context, (long) dim*stride);
+		if(algorithm.usesW){
+			wBuf= weightPrecision.createBuffer(context, (long) dim*stride);
+		}
+		if(shared){
+			traceClass= Arrays.copyOf(traceClass, stride);
+			traceBuf= weightPrecision.createBuffer(context, (long) dim*traceStride);
+			traceClassBuf= context.createIntBuffer(Usage.Input, Pointer.allocateInts(stride).order(order).setInts(traceClass), true);
+			representativeBuf= context.createIntBuffer(Usage.Input, Pointer.allocateInts(traceStride).order(order).setInts(representatives), true);
+		}else{
+			traceBuf= weightPrecision.createBuffer(context, (long) dim*stride);
+		}
+		if(weightPrecision.macro != null){
+			macros.put("WEIGHT_"+ weightPrecision.macro, "1");
+		}
+		if(thetaPrecision.macro != null){
+			macros.put("THETA_"+ thetaPrecision.macro, "1");
+		}
 		
 		gammaBuf= context.createFloatBuffer(Usage.Input, numDemon[0]);
-		rhoBuf= context.createFloatBuffer(Usage.Input, numDemon[0]);
-		rewardBuf= context.createFloatBuffer(Usage.Input, numDemon[0]);
+		if(algorithm.usesRho){
+			rhoBuf= context.createFloatBuffer(Usage.Input, numDemon[0]);
+		}
+		if(algorithm == Algorithm.TRUE_ONLINE_TD){
+			vOldBuf= context.createFloatBuffer(Usage.InputOutput, numDemon[0]);
+		}
+		if(algorithm == Algorithm.GQ_LAMBDA){
+			pi= Pointer.allocateFloats((long) nbActions*stride).order(order);
+			piBuf= context.createFloatBuffer(Usage.Input, (long) nbActions*stride);
+		}
+		// the free slots are not updated
+		active= Pointer.allocateFloats(stride).order(order);
+		for(int i=0; i<stride; i++){
+			active.set(i, i < demons.size() ? 1f : 0f);
+		}
+		activeBuf= context.createFloatBuffer(Usage.Input, stride);
+		activeBuf.write(queue, active, true);
+		rewardBuf= context.createFloatBuffer(Usage.InputOutput, numDemon[0]);
 		predictionBuf= context.createFloatBuffer(Usage.Output, numDemon[0]);
+		errorBuf= context.createFloatBuffer(Usage.Output, numDemon[0]);
+		
+		createCumulants();
 		
 		featuresBuf[0]= context.createFloatBuffer(Usage.Input, nbFeatures);
 		featuresBuf[1]= context.createFloatBuffer(Usage.Input, nbFeatures);
 		
-		if(vectorize){
-			updateKernelName= "vec_"+updateKernelName;
-			predictKernelName= "vec_"+predictKernelName;
-			numDemon[0]= (int) numDemon[0]/4;
-		}
+		setKernelNames();
 		
 		try {
-			kernelSource= IOUtils.readText(new File("../horde.cl"));
+			kernelSource= DeviceRuntime.kernelSource();
 		} catch (IOException e) {
 			e.printStackTrace();
 			System.exit(1);
 		}
 
 		
-		// create the program from source
-		hordeProgram= context.createProgram(kernelSource);
-		if(vectorize){
-			hordeProgram.defineMacro("VECTOR", "float"+ Integer.toString(vectorSize));
+		// time the candidate configurations before the weights are sent, as the timed updates change them
+		if(tuning){
+			configure(Autotuner.tune(this, tuningKey, vectorizable));
+			setKernelNames();
 		}
 		
-		// create all the kernels and set the arguments
-		updateHorde = hordeProgram.createKernel(updateKernelName);
-		updateHorde.setArgs(thetaBuf, wBuf, traceBuf, featuresBuf[0], featuresBuf[1], rhoBuf, rewardBuf, gammaBuf, predictionBuf, nbFeatures);
-		
-		predict = hordeProgram.createKernel(predictKernelName);
-		predict.setArgs(thetaBuf, featuresBuf[0], predictionBuf, nbFeatures);
-		
-		traceReset = hordeProgram.createKernel(traceResetKernelName);
-		traceReset.setArgs(traceBuf, nbFeatures);
+		// create the program from source and all the kernels
+		createKernels();
 		
-		// initialise all weights using the kernel initialise
-		CLKernel initKernel= hordeProgram.createKernel("initialise");
-		initKernel.setArgs(thetaBuf, wBuf, traceBuf, nbFeatures);
-		
-		CLEvent initEvent= initKernel.enqueueNDRange(queue, numDemon, workGroupSize);
-		initEvent.waitFor();
+		// drop the padding only needed by the other candidates, the weights are not sent yet
+		if(tuning){
+			resize(demons.size());
+		}
 		
-		uploadWeights();
+		// send the weights saved in the demons, the buffers that no demon has weights for are only set to zero
+		writeSavedWeights();
+		if(vOldBuf != null){
+			clear(vOldBuf, Precision.FP32, 1).waitFor();
+		}
 		
 		// link all demons to their reward, rho and gamma arrays
-		for(int i=0; i< demons.size(); i++){
+		for(int i=0; table == null && i< demons.size(); i++){
 			demons.get(i).initialize(i, reward, rho, gamma);
 		}
 		
 		
 	}
 
-	public void update(RealVector x_t, Action a_t, RealVector x_tp1) {
-		
-		if(x_t == null){
-			//set trace to zero if x_t is null
-			resetTrace();
-		}else{
-			// update the rewards on the GPU
-			for( CLDemon demon: demons){
-				demon.updateReward();
-			}
-			CLEvent rewardWrite= rewardBuf.write(queue, reward, false, demonUpdate);
-			
-			// update the gammas on the GPU
-			for( CLDemon demon: demons){
-				demon.updateGamma();
-			}
-			CLEvent gammaWrite= gammaBuf.write(queue, gamma, false, demonUpdate);
-			
-			// update the rhos on the GPU
-			for( CLDemon demon: demons){
-				demon.updateRho(x_t, a_t);
-			}
-			CLEvent rhoWrite= rhoBuf.write(queue, rho, false, demonUpdate);
-			
-			// update the feature vectors on the GPU
-			double[] d1=x_t.accessData();
-			double[] d2=x_tp1.accessData();
-			float[] f1= new float[d1.length];
-			float[] f2= new float[d2.length];
-			for(int i=0; i< d1.length; i++){
-				f1[i]= (float) d1[i];
-				f2[i]= (float) d2[i];
-			}
-			
-			features[0].setFloats(f1);
-			CLEvent feature1Write= featuresBuf[0].write(queue, features[0], false, demonUpdate);
-			
-			features[1].setFloats(f2);
-			CLEvent feature2Write= featuresBuf[0].write(queue, features[0], false, demonUpdate);
-			
-			//checkForNaN(); //BUG HUNT
-			
-			// Once all memory transfers are done, run the kernel that will update the weights on the GPU
-			CLEvent lastUpdate= demonUpdate;
-			last= x_t;
-			demonUpdate = updateHorde.enqueueNDRange(queue, numDemon, workGroupSize, rewardWrite, gammaWrite, rhoWrite, feature1Write, feature2Write);
-			if(lastUpdate != null){
-				lastUpdate.waitFor();
-//				lastUpdate.release();
+	/**
+	 * Group the demons whose traces are identical: the ones with the same target policy, behaviour policy and gamma function.
+	 * @return	True if there are few enough groups for the demons to share their traces
+	 */
+	private boolean findTraceClasses(){
+		if(demons.size() == 0){
+			return false;
+		}
+		traceClasses= new HashMap<List<Integer>, Integer>();
+		int[] classes= new int[demons.size()];
+		List<Integer> firsts= new ArrayList<Integer>();
+		for(int i=0; i<demons.size(); i++){
+			List<Integer> key= traceKey(i);
+			Integer c= traceClasses.get(key);
+			if(c == null){
+				c= firsts.size();
+				firsts.add(i);
+				traceClasses.put(key, c);
 			}
-			
-			
-//			rewardWrite.release();
-//			gammaWrite.release();
-//			rhoWrite.release();
-//			feature1Write.release();
-//			feature2Write.release();
+			classes[i]= c;
 		}
-		
+		if(firsts.size() > traceSharingRatio*demons.size()){
+			traceClasses= null;
+			identities.clear();
+			return false;
+		}
+		nbTraceClasses= firsts.size();
+		traceStride= nbTraceClasses + (workGroupSize[0] - nbTraceClasses%workGroupSize[0])%workGroupSize[0];
+		traceClass= classes;
+		representatives= new int[traceStride];
+		Arrays.fill(representatives, -1);
+		for(int c=0; c<nbTraceClasses; c++){
+			representatives[c]= firsts.get(c);
+		}
+		return true;
+	}
+
+	/**
+	 * Pad the shared traces to a multiple of a group size, the representative of the padding is -1
+	 * @param multiple	The group size
+	 */
+	private void padTraces(int multiple){
+		traceStride= nbTraceClasses + (multiple - nbTraceClasses%multiple)%multiple;
+		representatives= Arrays.copyOf(representatives, traceStride);
+		Arrays.fill(representatives, nbTraceClasses, traceStride, -1);
 	}
 	
-	public void resetTrace(){
-		(traceReset.enqueueNDRange(queue, numDemon, workGroupSize, demonUpdate)).waitFor();
+	/**
+	 * Use a configuration given by the Autotuner
+	 * @param configuration		The configuration
+	 */
+	private void configure(Autotuner.Configuration configuration){
+		workGroupSize[0]= configuration.workGroupSize;
+		vectorSize= configuration.vectorSize;
+		uploadChunk= configuration.uploadChunk;
 	}
 	
 	/**
-	 * Generate the predictions for the given feature vector.
-	 * This method will not recompute the predictions if the feature vector did not change
-	 * from the last time it was computed.
-	 * @param v		The feature vector
-	 * @return		An array containing all the predictions. Demon[i] will store in prediction[i].
+	 * Choose the update and predict kernels, vectorized or not, and the number of tasks running them
 	 */
-	public float[] predictions(RealVector v){
-		Pointer<Float> predictions;
-		//check if the predictions need to be recomputed
-		if(v==null || last== null || v.equals(last)){
-			//if no, then just upload the predictions
-			predictions= predictionBuf.read(queue, demonUpdate);
-		}else{
-			//if yes, send the new feature vector and start the kernel
-			double[] d1=v.accessData();
-			float[] f1= new float[d1.length];
-			for(int i=0; i< d1.length; i++){
-				f1[i]= (float) d1[i];
-			}
-			features[0].setFloats(f1);
-			CLEvent feature1Write= featuresBuf[0].write(queue, features[0], false, demonUpdate);
-			
-			CLEvent predictEvent= predict.enqueueNDRange(queue, numDemon, workGroupSize, feature1Write);
-			predictions= predictionBuf.read(queue, predictEvent);
-			
-			last=v;
+	private void setKernelNames(){
+		vectorize= vectorSize>1;
+		updateKernelName= traceClassBuf != null ? "updateGTDLambdaShared" : algorithm.updateKernel;
+		predictKernelName= algorithm.predictKernel;
+		numDemon[0]= stride;
+		if(vectorize){
+			updateKernelName= "vec_"+updateKernelName;
+			predictKernelName= "vec_"+predictKernelName;
+			numDemon[0]= stride/vectorSize;
 		}
+	}
+	
+	/**
+	 * Time the update kernel with a work group size and a vector width, on the buffers of this GPUHorde.
+	 * The weights are garbage afterward, this is only done before they are sent, see Autotuner.
+	 * @param groupSize		The work group size
+	 * @param vectorSize	The vector width, 1 for the scalar kernel
+	 * @param launches		The number of launches timed, after one launch to warm up
+	 * @return	The time taken by the launches, in nanoseconds
+	 */
+	long benchmarkUpdate(int groupSize, int vectorSize, int launches){
+		workGroupSize[0]= groupSize;
+		this.vectorSize= vectorSize;
+		setKernelNames();
+		createKernels();
 		
-		float[] p= new float[demons.size()];
-		float[] paddedP= predictions.getFloats();
-		for(int i=0; i< p.length; i++){
-			p[i]= paddedP[i];
+		// the features, rewards, gammas, rhos and probabilities are zeros so that the timed updates stay finite
+		CLEvent[] writes= {featuresBuf[0].write(queue, features[0], false), featuresBuf[1].write(queue, features[1], false), 
+				rewardBuf.write(queue, reward, false), gammaBuf.write(queue, gamma, false), 
+				rhoBuf != null ? rhoBuf.write(queue, rho, false) : null, piBuf != null ? piBuf.write(queue, pi, false) : null};
+		CLEvent event= updateHorde.enqueueNDRange(queue, numDemon, workGroupSize, writes);
+		event.waitFor();
+		long start= System.nanoTime();
+		for(int i=0; i<launches; i++){
+			event= updateHorde.enqueueNDRange(queue, numDemon, workGroupSize, event);
 		}
-//		predictions.release();
-		return p;
+		event.waitFor();
+		return System.nanoTime() - start;
+	}
+	
+	/**
+	 * Time streaming theta to the GPU with staging buffers of a given size
+	 * @param chunk		The number of weights held by each staging buffer
+	 * @return	The time taken, in nanoseconds
+	 */
+	long benchmarkUpload(int chunk){
+		uploadChunk= chunk;
+		float[][] rows= new float[demons.size()][];
+		rows[0]= new float[dim];
+		long start= System.nanoTime();
+		stream(thetaBuf, thetaPrecision, rows, stride);
+		return System.nanoTime() - start;
 	}
+	
 	/**
-	 * Fetch the prediction from the last seen feature Vector
-	 * @return		An array with the predictions of the last seen feature Vector. Demon[i] will store in prediction[i].
+	 * @param localIndex	The index of a demon
+	 * @return	What determines the trace of the demon besides lambda and the features
 	 */
-	public float[] predictions(){
-		return predictions(last);
+	private List<Integer> traceKey(int localIndex){
+		if(table != null){
+			int h= handles[localIndex];
+			return Arrays.asList(table.targets[h], table.behaviours[h], table.gammas[h]);
+		}
+		CLDemon demon= demons.get(localIndex);
+		return Arrays.asList(identity(demon.targetPolicy), identity(demon.behaviourPolicy), identity(demon.gammafn));
 	}
-
+	
+	private int identity(Object o){
+		Integer id= identities.get(o);
+		if(id == null){
+			id= identities.size();
+			identities.put(o, id);
+		}
+		return id;
+	}
+	
 	/**
-	 * Set the parameters alpha, eta and lambda.
-	 * This is a costly procedure as it needs to recompile the kernel. Use sparingly.
-	 * @param alpha		The new alpha.
-	 * @param eta		The new eta.
-	 * @param lambda	The new lambda.
+	 * Give a demon the trace of its class, a new class is created if no other demon has the same trace
+	 * @param localIndex	The index of the demon
 	 */
-	public void setParam(float alpha, float eta, float lambda) {
-		if(kernelSource == null){
-			throw new RuntimeException("GPUHorde needs to be initialised to change parameters, sorry...");
+	private void joinTraceClass(int localIndex){
+		List<Integer> key= traceKey(localIndex);
+		Integer c= traceClasses.get(key);
+		if(c == null){
+			if(nbTraceClasses == traceStride){
+				growTraces(2*traceStride);
+			}
+			c= nbTraceClasses++;
+			// the traces past the last class are zero
+			traceClasses.put(key, c);
 		}
-
-		// create the program from source
-		hordeProgram= context.createProgram(kernelSource);
-		
-		
-		hordeProgram.undefineMacro("ALPHA");
-		hordeProgram.undefineMacro("ETA");
-		hordeProgram.undefineMacro("LAMBDA");
-		
-		// define all the required parameters
-		hordeProgram.defineMacro("ALPHA", Float.toString(alpha)+"f");
-		hordeProgram.defineMacro("ETA", Float.toString(eta)+"f");
-		hordeProgram.defineMacro("LAMBDA", Float.toString(lambda)+"f");
-		
-		// create all the kernels and set the arguments
-		updateHorde = hordeProgram.createKernel(updateKernelName);
-		updateHorde.setArgs(thetaBuf, wBuf, traceBuf, featuresBuf[0], featuresBuf[1], rhoBuf, rewardBuf, gammaBuf, predictionBuf, nbFeatures);
-		
-		predict = hordeProgram.createKernel(predictKernelName);
-		predict.setArgs(thetaBuf, featuresBuf[0], predictionBuf, nbFeatures);
-		
-		traceReset = hordeProgram.createKernel(traceResetKernelName);
-		traceReset.setArgs(traceBuf, nbFeatures);
-		
+		if(representatives[c] < 0){
+			representatives[c]= localIndex;
+			write(representativeBuf, c, representatives[c]);
+		}
+		traceClass[localIndex]= c;
+		write(traceClassBuf, localIndex, c);
 	}
 	
-	public float[] getTheta(){
-		Pointer<Float> theta= thetaBuf.read(queue, demonUpdate);
-		return theta.getFloats();
+	/**
+	 * Take a removed demon out of its trace class, another demon of the class is used to update the trace
+	 * @param localIndex	The index of the demon, its slot is already free
+	 */
+	private void leaveTraceClass(int localIndex){
+		int c= traceClass[localIndex];
+		if(representatives[c] != localIndex){
+			return;
+		}
+		representatives[c]= -1;
+		for(int i=0; i<demons.size(); i++){
+			if(demons.get(i) != null && traceClass[i] == c){
+				representatives[c]= i;
+				break;
+			}
+		}
+		write(representativeBuf, c, representatives[c]);
 	}
 	
-	public float[] getW(){
-		Pointer<Float> w= wBuf.read(queue, demonUpdate);
-		return w.getFloats();
+	/**
+	 * Reallocate the shared traces for more classes, see resize
+	 * @param capacity	The number of classes needed
+	 */
+	private void growTraces(int capacity){
+		int oldStride= traceStride;
+		traceStride= capacity + (workGroupSize[0] - capacity%workGroupSize[0])%workGroupSize[0];
+		traceBuf= relayout(traceBuf, weightPrecision, oldStride, traceStride, dim);
+		representatives= Arrays.copyOf(representatives, traceStride);
+		Arrays.fill(representatives, oldStride, traceStride, -1);
+		representativeBuf.release();
+		representativeBuf= context.createIntBuffer(Usage.Input, 
+				Pointer.allocateInts(traceStride).order(context.getByteOrder()).setInts(representatives), true);
+		setKernelArgs();
 	}
 	
-	public float[] getTrace(){
-		Pointer<Float> trace= traceBuf.read(queue, demonUpdate);
-		return trace.getFloats();
+	/**
+	 * Write one int of a buffer. This is a blocking call.
+	 */
+	private void write(CLBuffer<Integer> buffer, int index, int value){
+		Pointer<Integer> p= Pointer.allocateInt().order(context.getByteOrder());
+		p.set(value);
+		buffer.write(queue, index, 1, p, true, demonUpdate);
+		p.release();
 	}
 	
-
-	public static long getAllocReq(int nbFeatures, int nbDemons) {
-		return 4l*nbDemons*nbFeatures;
+	/**
+	 * @return	The number of traces per feature in traceBuf
+	 */
+	private int traceWidth(){
+		return traceClassBuf != null ? traceStride : stride;
 	}
 	
-	public void checkForNaN(){
-		float[] f= reward.getFloats();
-		for(int i=0; i<f.length; i++){
-			if(Float.isNaN(f[i])){
-				throw new RuntimeException("reward has NaN");
-			}
-		}
+	public void update(RealVector x_t, Action a_t, RealVector x_tp1) {
 		
-		f=gamma.getFloats();
-		for(int i=0; i<f.length; i++){
-			if(Float.isNaN(f[i])){
+		if(x_t == null){
+			//set trace to zero if x_t is null
+			resetTrace();
+		}else{
+			CLEvent[] stagingWrites= writeStaging(x_t, a_t, x_tp1);
+			launchUpdate(stagingWrites, x_t, x_tp1);
+		}
+		
+	}
+	
+	/**
+	 * Update the demons with rewards, gammas and rhos computed elsewhere instead of by their functions and policies,
+	 * see HordeWorker. GQ(lambda), which also needs the target policies, is not supported.
+	 * @param rewards	The reward of every demon, by local index
+	 * @param gammas	The gamma of every demon
+	 * @param rhos		The rho of every demon, ignored if the algorithm does not use rho
+	 * @param x_t		The feature vector of the last step. If null, the trace is reset.
+	 * @param x_tp1		The feature vector of this step
+	 */
+	public void update(float[] rewards, float[] gammas, float[] rhos, RealVector x_t, RealVector x_tp1){
+		if(piBuf != null){
+			throw new UnsupportedOperationException("The target policies of GQ(lambda) cannot be given from outside");
+		}
+		if(x_t == null){
+			resetTrace();
+			return;
+		}
+		reward.setFloatsAtOffset(0, rewards, 0, rewards.length);
+		gamma.setFloatsAtOffset(0, gammas, 0, gammas.length);
+		CLEvent[] stagingWrites= new CLEvent[4];
+		stagingWrites[0]= rewardBuf.write(queue, reward, false, demonUpdate);
+		stagingWrites[1]= gammaBuf.write(queue, gamma, false, demonUpdate);
+		if(rhoBuf != null){
+			rho.setFloatsAtOffset(0, rhos, 0, rhos.length);
+			stagingWrites[2]= rhoBuf.write(queue, rho, false, demonUpdate);
+		}
+		launchUpdate(stagingWrites, x_t, x_tp1);
+	}
+	
+	/**
+	 * Compute the feature vectors on the GPU with a tile coder, see CLHorde.setTileCoding
+	 * @param coding	The tile coder, producing the packed feature vectors: only the features of this GPUHorde are kept
+	 */
+	public void setTileCoding(TileCoding coding){
+		if(coding.nbFeatures() != packedFeatures){
+			throw new IllegalArgumentException("The tile coder has "+ coding.nbFeatures()+ " features instead of "+ packedFeatures);
+		}
+		tileCoding= coding;
+		if(demons.size() == 0){
+			return;
+		}
+		ByteOrder order= context.getByteOrder();
+		inputs= Pointer.allocateFloats(2l*coding.nbInputs()).order(order);
+		inputsBuf= context.createFloatBuffer(Usage.Input, 2l*coding.nbInputs());
+		inputMinsBuf= context.createFloatBuffer(Usage.Input, Pointer.allocateFloats(coding.nbInputs()).order(order).setFloats(coding.mins), true);
+		inputScalesBuf= context.createFloatBuffer(Usage.Input, Pointer.allocateFloats(coding.nbInputs()).order(order).setFloats(coding.scales), true);
+		int[] tilings= coding.tilings(), tilingInputs= coding.tilingInputs();
+		tilingsBuf= context.createIntBuffer(Usage.Input, Pointer.allocateInts(tilings.length).order(order).setInts(tilings), true);
+		tilingInputsBuf= context.createIntBuffer(Usage.Input, Pointer.allocateInts(tilingInputs.length).order(order).setInts(tilingInputs), true);
+		setKernelArgs();
+	}
+	
+	/**
+	 * Update the demons with feature vectors tile coded on the GPU from the observations.
+	 * Only the observations are sent, the feature vectors never exist on the host: the policies computing rho and
+	 * the target policies of GQ(lambda) are given null feature vectors.
+	 * @param inputs_t		The observation of the last step. If null, the trace is reset.
+	 * @param a_t			The action taken
+	 * @param inputs_tp1	The observation of this step
+	 */
+	public void update(float[] inputs_t, Action a_t, float[] inputs_tp1){
+		if(tileCoding == null){
+			throw new IllegalStateException("No tile coder, see setTileCoding");
+		}
+		if(demons.size() == 0){
+			return;
+		}
+		if(inputs_t == null){
+			resetTrace();
+			return;
+		}
+		CLEvent[] stagingWrites= writeStaging(null, a_t, null);
+		
+		// the feature vectors are cleared, then every tiling activates one feature of each
+		int nbInputs= tileCoding.nbInputs();
+		inputs.setFloatsAtOffset(0, inputs_t, 0, nbInputs);
+		inputs.setFloatsAtOffset(4l*nbInputs, inputs_tp1, 0, nbInputs);
+		CLEvent inputsWrite= inputsBuf.write(queue, inputs, false, demonUpdate);
+		int size= (nbFeatures + workGroupSize[0] - 1)/workGroupSize[0]*workGroupSize[0];
+		CLEvent cleared= clearFeatures.enqueueNDRange(queue, new int[] {size}, workGroupSize, demonUpdate);
+		CLEvent coded= tileCode.enqueueNDRange(queue, new int[] {tileCoding.nbTilings(), 2}, inputsWrite, cleared);
+		
+		last= null;
+		launchUpdate(stagingWrites, coded, coded);
+	}
+	
+	/**
+	 * Send the feature vectors to the GPU, then launch the update
+	 */
+	private void launchUpdate(CLEvent[] stagingWrites, RealVector x_t, RealVector x_tp1){
+		// update the feature vectors on the GPU
+		double[] d1=x_t.accessData();
+		double[] d2=x_tp1.accessData();
+		float[] f1= new float[nbFeatures];
+		float[] f2= new float[nbFeatures];
+		for(int i=0; i< nbFeatures; i++){
+			f1[i]= (float) d1[featureOffset+i];
+			f2[i]= (float) d2[featureOffset+i];
+		}
+		
+		features[0].setFloats(f1);
+		CLEvent feature1Write= featuresBuf[0].write(queue, features[0], false, demonUpdate);
+		
+		features[1].setFloats(f2);
+		CLEvent feature2Write= featuresBuf[1].write(queue, features[1], false, demonUpdate);
+		
+		//checkForNaN(); //BUG HUNT
+		
+		last= x_t;
+		launchUpdate(stagingWrites, feature1Write, feature2Write);
+	}
+	
+	/**
+	 * Update the demons using feature vectors from the last uploaded chunk.
+	 * The feature vectors never leave the GPU: x_t and x_tp1 are copied from the chunk buffer
+	 * to the feature buffers by the device itself.
+	 * @param x_t		A host view of x_t, only used to compute rho. If null, the trace is reset.
+	 * @param a_t		The action taken
+	 * @param x_tp1		A host view of x_tp1, only used by the target policies of GQ(lambda)
+	 * @param step		The index of the step in the chunk
+	 */
+	public void update(RealVector x_t, Action a_t, RealVector x_tp1, int step) {
+		
+		if(x_t == null){
+			//set trace to zero if x_t is null
+			resetTrace();
+		}else{
+			CLEvent[] stagingWrites= writeStaging(x_t, a_t, x_tp1);
+			
+			// row 0 of the chunk buffer holds the last step of the previous chunk 
+			CLEvent feature1Write= chunkBuf.copyTo(queue, (long) step*packedFeatures + featureOffset, nbFeatures, featuresBuf[0], 0, demonUpdate);
+			CLEvent feature2Write= chunkBuf.copyTo(queue, (long) (step+1)*packedFeatures + featureOffset, nbFeatures, featuresBuf[1], 0, demonUpdate);
+			
+			// the feature view is reused by the reader, do not keep it for the predictions
+			last= null;
+			launchUpdate(stagingWrites, feature1Write, feature2Write);
+		}
+	}
+	
+	/**
+	 * Upload a whole chunk of feature vectors in a single transfer.
+	 * The last feature vector of the previous chunk is kept, on the GPU, in front of the new chunk
+	 * so that the first step of the chunk still has access to x_t.
+	 * This call blocks until the host memory has been read, after which the chunk can be reused.
+	 * @param data		The feature vectors, one after the other, with every stream if they are packed
+	 * @param steps		The number of feature vectors in the chunk
+	 */
+	public void loadChunk(Pointer<Float> data, int steps){
+		if(demons.size() == 0){
+			return;
+		}
+		long size= (long) (steps+1)*packedFeatures;
+		CLEvent carry= null;
+		if(chunkBuf == null || chunkBuf.getElementCount() < size){
+			CLBuffer<Float> newChunkBuf= context.createFloatBuffer(Usage.Input, size);
+			if(chunkBuf != null){
+				carry= chunkBuf.copyTo(queue, (long) chunkSteps*packedFeatures, packedFeatures, newChunkBuf, 0, demonUpdate);
+				carry.waitFor();
+				chunkBuf.release();
+			}
+			chunkBuf= newChunkBuf;
+		}else if(chunkSteps > 0){
+			carry= chunkBuf.copyTo(queue, (long) chunkSteps*packedFeatures, packedFeatures, chunkBuf, 0, demonUpdate);
+		}
+		
+		// the chunk is sent as raw bytes, convert it if the device does not share its byte order
+		if(!context.getByteOrder().equals(data.order())){
+			data= Pointer.allocateFloats((long) steps*packedFeatures).order(context.getByteOrder()).setFloats(data.getFloats(steps*packedFeatures));
+		}
+		chunkBuf.write(queue, packedFeatures, (long) steps*packedFeatures, data, true, carry, demonUpdate);
+		chunkSteps= steps;
+	}
+	
+	/**
+	 * Compute the rewards, gammas, and if the algorithm needs them the rhos and target policies,
+	 * of all demons and send them to the GPU.
+	 * @param x_t	The feature vector used to compute rho
+	 * @param a_t	The action taken
+	 * @param x_tp1	The feature vector on which the target policies are evaluated
+	 * @return	The events of the transfers, some of them can be null
+	 */
+	private CLEvent[] writeStaging(RealVector x_t, Action a_t, RealVector x_tp1){
+		if(table != null){
+			// every function is evaluated once for all the demons of the table
+			table.stage(handles, reward, gamma, rhoBuf == null ? null : rho, x_t, a_t, stagingScratch);
+		}else{
+			for( CLDemon demon: demons){
+				if(demon == null){
+					continue;
+				}
+				demon.updateReward();
+				demon.updateGamma();
+				if(rhoBuf != null){
+					demon.updateRho(x_t, a_t);
+				}
+			}
+		}
+		
+		// update the rewards, the gammas and the rhos on the GPU
+		CLEvent rewardWrite= rewardBuf.write(queue, reward, false, demonUpdate);
+		CLEvent gammaWrite= gammaBuf.write(queue, gamma, false, demonUpdate);
+		CLEvent rhoWrite= null;
+		if(rhoBuf != null){
+			rhoWrite= rhoBuf.write(queue, rho, false, demonUpdate);
+		}
+		
+		// update the target policies and the action taken for GQ(lambda)
+		CLEvent piWrite= null;
+		if(piBuf != null){
+			piWrite= writePolicies(x_tp1);
+			updateHorde.setArg(11, actionIndex(a_t));
+		}
+		
+		return new CLEvent[] {rewardWrite, gammaWrite, rhoWrite, piWrite};
+	}
+	
+	/**
+	 * Evaluate the target policy of every demon on a feature vector and send them to the GPU.
+	 * The probability of action a for demon i is stored at i + a*stride.
+	 * @param x		The feature vector
+	 * @return	The event of the transfer
+	 */
+	private CLEvent writePolicies(RealVector x){
+		for(int i=0; i<demons.size(); i++){
+			if(table == null && demons.get(i) == null){
+				continue;
+			}
+			Policy target= table != null ? table.targetPolicy(handles[i]) : demons.get(i).targetPolicy;
+			for(int a=0; a<nbActions; a++){
+				pi.set(i + (long) a*stride, (float) target.pi(x, actions[a]));
+			}
+		}
+		return piBuf.write(queue, pi, false, demonUpdate);
+	}
+	
+	/**
+	 * @param localIndex	The index of a demon
+	 * @return	The actions conditioning the features of that demon
+	 */
+	private Action[] actionsOf(int localIndex){
+		return table != null ? table.actions(handles[localIndex]) : demons.get(localIndex).actions;
+	}
+	
+	/**
+	 * @param action	An action
+	 * @return	The index of that action in the actions of the GQ(lambda) demons
+	 */
+	private int actionIndex(Action action){
+		for(int i=0; i<nbActions; i++){
+			if(actions[i] == action || actions[i].equals(action)){
+				return i;
+			}
+		}
+		throw new IllegalArgumentException("Unknown action: "+ action);
+	}
+	
+	/**
+	 * Once all memory transfers are done, run the kernel that will update the weights on the GPU.
+	 * The cumulants of the GVF networks, if any, are computed first.
+	 */
+	private void launchUpdate(CLEvent[] stagingWrites, CLEvent feature1Write, CLEvent feature2Write){
+		// the demons that diverged during the previous update are not updated again
+		collectDiverged();
+		CLEvent rewardWrite= stagingWrites[0];
+		if(computeCumulants != null){
+			// add the predictions of the sources to the rewards before any demon is updated
+			rewardWrite= computeCumulants.enqueueNDRange(queue, new int[] {stride}, workGroupSize, rewardWrite, feature2Write);
+		}
+		CLEvent lastUpdate= demonUpdate;
+		// the history copies of the last update must be done before the predictions are overwritten
+		// and so must the copies of a snapshot before the weights are, and the flags of the slots before they are read
+		CLEvent[] waits= {rewardWrite, stagingWrites[1], stagingWrites[2], stagingWrites[3], feature1Write, feature2Write, 
+				null, null, null, null, null, null, lastUpdate};
+		if(historyAppend != null){
+			waits[6]= historyAppend[0];
+			waits[7]= historyAppend[1];
+		}
+		if(snapshotCopies != null){
+			System.arraycopy(snapshotCopies, 0, waits, 9, 3);
+		}
+		if(updateSharedTraces != null){
+			// every shared trace is updated once, before the demons using it
+			waits[8]= updateSharedTraces.enqueueNDRange(queue, new int[] {traceStride}, workGroupSize, 
+					lastUpdate, stagingWrites[1], stagingWrites[2], feature1Write, waits[11]);
+		}
+		demonUpdate = updateHorde.enqueueNDRange(queue, numDemon, workGroupSize, waits);
+		snapshotCopies= null;
+		if(statsBuf != null){
+			// the statistics are part of the update: the next update waits for them before writing the errors
+			demonUpdate= updateStats.enqueueNDRange(queue, new int[] {stride}, workGroupSize, demonUpdate);
+		}
+		if(divergenceCountBuf != null){
+			// the count is read without blocking and checked before the next update
+			CLEvent countReset= divergenceCountBuf.write(queue, zeroCount, false, divergenceRead);
+			demonUpdate= checkDivergence.enqueueNDRange(queue, new int[] {stride}, workGroupSize, demonUpdate, countReset);
+			divergenceRead= divergenceCountBuf.read(queue, divergenceCount, false, demonUpdate);
+		}
+		if(historyBuf != null){
+			appendHistory();
+		}
+		if(lastUpdate != null){
+			lastUpdate.waitFor();
+//			lastUpdate.release();
+		}
+	}
+	
+	/**
+	 * Flag the demons whose prediction or TD error is not finite or larger than a bound after an update.
+	 * The flagged demons are quarantined before the next update.
+	 * @param bound		The largest magnitude allowed
+	 */
+	public void detectDivergence(float bound){
+		if(demons.size() == 0){
+			return;
+		}
+		if(divergenceCountBuf == null){
+			divergenceCountBuf= context.createIntBuffer(Usage.InputOutput, 1);
+			divergedBuf= context.createIntBuffer(Usage.Output, stride);
+			divergenceCount= Pointer.allocateInt().order(context.getByteOrder());
+			zeroCount= Pointer.allocateInt().order(context.getByteOrder());
+		}
+		divergenceBound= bound;
+		checkDivergence.setArgs(predictionBuf, errorBuf, activeBuf, divergenceCountBuf, divergedBuf, divergenceBound, demons.size());
+	}
+	
+	/**
+	 * Quarantine the demons flagged by the last update, if its detection is done
+	 */
+	private void collectDiverged(){
+		if(divergenceRead == null){
+			return;
+		}
+		divergenceRead.waitFor();
+		divergenceRead= null;
+		int count= divergenceCount.getInt();
+		if(count == 0){
+			return;
+		}
+		for(int index: divergedBuf.read(queue, 0, count, demonUpdate).getInts()){
+			quarantine(index);
+			pendingQuarantine.add(index);
+		}
+	}
+	
+	/**
+	 * Quarantine a demon: its weights are set to zero and it is not updated anymore, its predictions are zero.
+	 * @param localIndex	The index of the demon
+	 */
+	public void quarantine(int localIndex){
+		writeActive(localIndex, 0f);
+		writeDemon(localIndex, null, null, null);
+		if(vOldBuf != null){
+			write(vOldBuf, Precision.FP32, localIndex, new float[] {0f});
+		}
+	}
+	
+	/**
+	 * Let a quarantined demon learn again, starting from zero weights
+	 * @param localIndex	The index of the demon
+	 */
+	public void release(int localIndex){
+		writeActive(localIndex, 1f);
+	}
+	
+	/**
+	 * Send the flag of one slot without blocking, the operations enqueued afterward wait for it
+	 * @param localIndex	The index of the slot
+	 * @param value			1 if the demon of the slot is updated, 0 otherwise
+	 */
+	private void writeActive(int localIndex, float value){
+		active.set(localIndex, value);
+		demonUpdate= activeBuf.write(queue, localIndex, 1, active.next(localIndex), false, demonUpdate);
+	}
+	
+	/**
+	 * @param localIndex	The index of a demon
+	 * @return	True if the demon is quarantined
+	 */
+	public boolean isQuarantined(int localIndex){
+		return active.get(localIndex) == 0f;
+	}
+	
+	/**
+	 * Add a demon without rebuilding the GPUHorde. The demon takes the slot of a removed demon, or the slot after
+	 * the last demon. Only the weights of that slot are written, from the weights saved in the CLDemon if it has any.
+	 * When every slot is taken, the buffers are reallocated with twice as many slots.
+	 * @param demon		The demon, it must learn with the algorithm of this GPUHorde and cannot have a cumulant
+	 * @return	The local index of the demon
+	 */
+	public int addDemon(CLDemon demon){
+		if(table != null){
+			throw new UnsupportedOperationException("The demons of a DemonTable are fixed once the GPUHorde is initialised");
+		}
+		if(demon.algorithm() != algorithm){
+			throw new IllegalArgumentException("This GPUHorde only hosts demons learning with "+ algorithm);
+		}
+		if(demon.hasCumulant()){
+			throw new IllegalArgumentException("An added demon cannot have a cumulant");
+		}
+		if(algorithm == Algorithm.GQ_LAMBDA && !Arrays.equals(actions, demon.actions)){
+			throw new IllegalArgumentException("All GQ(lambda) demons must share the same actions");
+		}
+		int localIndex;
+		if(!freeSlots.isEmpty()){
+			localIndex= freeSlots.remove(freeSlots.size()-1);
+			demons.set(localIndex, demon);
+		}else{
+			if(demons.size() == stride){
+				// grow in large steps so that the copies are paid once for many additions
+				resize(2*stride);
+			}
+			localIndex= demons.size();
+			demons.add(demon);
+			setDemonCount();
+		}
+		demon.initialize(localIndex, reward, rho, gamma);
+		if(traceClassBuf != null){
+			joinTraceClass(localIndex);
+		}
+		writeDemon(localIndex, demon.getTheta(), demon.getW(), demon.getTrace());
+		if(statsBuf != null){
+			clearStats(localIndex);
+		}
+		writeActive(localIndex, 1f);
+		return localIndex;
+	}
+	
+	/**
+	 * Remove a demon. Its slot is quarantined until it is given to an added demon, the other demons keep their local index.
+	 * @param localIndex	The index of the demon
+	 */
+	public void removeDemon(int localIndex){
+		if(table != null){
+			throw new UnsupportedOperationException("The demons of a DemonTable are fixed once the GPUHorde is initialised");
+		}
+		CLDemon demon= demons.get(localIndex);
+		if(demon == null){
+			throw new IllegalArgumentException("The slot "+ localIndex+ " is free");
+		}
+		if(cumulantOffsetBuf != null){
+			for(CLDemon other: demons){
+				if(other != null && other.hasCumulant() && other.cumulantSources.contains(demon)){
+					throw new IllegalArgumentException("The demon is a cumulant source of another demon");
+				}
+			}
+		}
+		quarantine(localIndex);
+		demons.set(localIndex, null);
+		if(traceClassBuf != null){
+			leaveTraceClass(localIndex);
+		}
+		pendingQuarantine.remove(Integer.valueOf(localIndex));
+		if(statsBuf != null){
+			clearStats(localIndex);
+		}
+		if(demon.hasCumulant()){
+			// the slot must not receive the cumulant anymore
+			createCumulants();
+			setKernelArgs();
+		}
+		freeSlots.add(localIndex);
+	}
+	
+	/**
+	 * Make sure a number of demons can be added without reallocating the buffers
+	 * @param slots		The number of demons
+	 */
+	public void reserve(int slots){
+		if(demons.size() == 0){
+			return;
+		}
+		int free= freeSlots.size() + stride - demons.size();
+		if(free < slots){
+			resize(stride + slots - free);
+		}
+	}
+	
+	/**
+	 * @return	True if a demon can be added without reallocating the buffers
+	 */
+	public boolean hasFreeSlot(){
+		return !freeSlots.isEmpty() || demons.size() < stride;
+	}
+	
+	/**
+	 * @return	The number of demons, the free slots are not counted
+	 */
+	public int nbDemons(){
+		return demons.size() - freeSlots.size();
+	}
+	
+	/**
+	 * @return	The number of traces shared by the demons, 0 if every demon has its own trace
+	 */
+	public int nbTraceClasses(){
+		return traceClassBuf != null ? nbTraceClasses : 0;
+	}
+	
+	/**
+	 * Set all the weights of one demon. This is a blocking call. A shared trace is left as it is.
+	 * @param localIndex	The index of the demon
+	 * @param theta			The theta weights, or null for zeros
+	 * @param w				The w weights, or null for zeros
+	 * @param trace			The trace, or null for zeros
+	 */
+	private void writeDemon(int localIndex, float[] theta, float[] w, float[] trace){
+		waitForSnapshot();
+		int size= (dim + workGroupSize[0] - 1)/workGroupSize[0]*workGroupSize[0];
+		if(theta == null && w == null && trace == null){
+			resetDemon.setArgs(thetaBuf, wBuf == null ? traceBuf : wBuf, traceBuf, localIndex, dim, stride, wBuf == null ? 0 : 1, 
+					traceClassBuf == null ? 1 : 0);
+			resetDemon.enqueueNDRange(queue, new int[] {size}, workGroupSize, demonUpdate).waitFor();
+			return;
+		}
+		float[] values= new float[3*dim];
+		if(theta != null){
+			System.arraycopy(theta, 0, values, 0, Math.min(dim, theta.length));
+		}
+		if(w != null){
+			System.arraycopy(w, 0, values, dim, Math.min(dim, w.length));
+		}
+		if(trace != null){
+			System.arraycopy(trace, 0, values, 2*dim, Math.min(dim, trace.length));
+		}
+		Pointer<Float> p= Pointer.allocateFloats(values.length).order(context.getByteOrder()).setFloats(values);
+		CLBuffer<Float> valuesBuf= context.createFloatBuffer(Usage.Input, p, true);
+		setDemon.setArgs(thetaBuf, wBuf == null ? traceBuf : wBuf, traceBuf, valuesBuf, localIndex, dim, stride, wBuf == null ? 0 : 1, 
+				traceClassBuf == null ? 1 : 0);
+		setDemon.enqueueNDRange(queue, new int[] {size}, workGroupSize, demonUpdate).waitFor();
+		valuesBuf.release();
+		p.release();
+	}
+	
+	/**
+	 * Set the learning statistics of one demon to zero
+	 * @param localIndex	The index of the demon
+	 */
+	private void clearStats(int localIndex){
+		float[] zero= {0f};
+		for(int s=0; s<LearningStats.nbStats; s++){
+			write(statsBuf, Precision.FP32, localIndex + (long) s*stride, zero);
+		}
+	}
+	
+	/**
+	 * Tell the kernels ignoring the padding how many demons there are
+	 */
+	private void setDemonCount(){
+		if(statsBuf != null){
+			updateStats.setArg(3, demons.size());
+		}
+		if(divergenceCountBuf != null){
+			checkDivergence.setArg(6, demons.size());
+		}
+	}
+	
+	/**
+	 * Reallocate the buffers with another number of slots, padded to the work group and vector sizes. Every buffer
+	 * is copied to the new layout by the GPU itself and the demons keep their local index. The history must have been
+	 * read back entirely.
+	 * @param capacity	The number of slots needed, at least the number of demons
+	 */
+	private void resize(int capacity){
+		int oldStride= stride;
+		int size= vectorSize * workGroupSize[0];
+		if(capacity + ((size - capacity%size))%size == oldStride){
+			return;
+		}
+		stride= capacity + ((size - capacity%size))%size;
+		int kept= Math.min(oldStride, stride);
+		numDemon[0]= vectorize ? stride/vectorSize : stride;
+		ByteOrder order= context.getByteOrder();
+		
+		// the weights and the state kept from one update to the next
+		thetaBuf= relayout(thetaBuf, thetaPrecision, oldStride, dim);
+		wBuf= relayout(wBuf, weightPrecision, oldStride, dim);
+		if(traceClassBuf == null){
+			traceBuf= relayout(traceBuf, weightPrecision, oldStride, dim);
+		}else{
+			// the shared traces do not depend on the number of slots, only the class of every slot does
+			traceClass= Arrays.copyOf(traceClass, stride);
+			traceClassBuf.release();
+			traceClassBuf= context.createIntBuffer(Usage.Input, Pointer.allocateInts(stride).order(order).setInts(traceClass), true);
+		}
+		vOldBuf= relayout(vOldBuf, Precision.FP32, oldStride, 1);
+		predictionBuf= relayout(predictionBuf, Precision.FP32, oldStride, 1);
+		errorBuf= relayout(errorBuf, Precision.FP32, oldStride, 1);
+		statsBuf= relayout(statsBuf, Precision.FP32, oldStride, LearningStats.nbStats);
+		
+		// the staging values are written before every update, the demons are linked to the new arrays
+		Pointer<Float> oldGamma= gamma, oldReward= reward, oldRho= rho;
+		gamma= Pointer.allocateFloats(stride).order(order).setFloatsAtOffset(0, oldGamma.getFloats(), 0, kept);
+		reward= Pointer.allocateFloats(stride).order(order).setFloatsAtOffset(0, oldReward.getFloats(), 0, kept);
+		rho= Pointer.allocateFloats(stride).order(order).setFloatsAtOffset(0, oldRho.getFloats(), 0, kept);
+		oldGamma.release();
+		oldReward.release();
+		oldRho.release();
+		for(int i=0; table == null && i<demons.size(); i++){
+			if(demons.get(i) != null){
+				demons.get(i).initialize(i, reward, rho, gamma);
+			}
+		}
+		gammaBuf.release();
+		gammaBuf= context.createFloatBuffer(Usage.Input, stride);
+		rewardBuf.release();
+		rewardBuf= context.createFloatBuffer(Usage.InputOutput, stride);
+		if(rhoBuf != null){
+			rhoBuf.release();
+			rhoBuf= context.createFloatBuffer(Usage.Input, stride);
+		}
+		if(piBuf != null){
+			pi.release();
+			pi= Pointer.allocateFloats((long) nbActions*stride).order(order);
+			piBuf.release();
+			piBuf= context.createFloatBuffer(Usage.Input, (long) nbActions*stride);
+		}
+		
+		// the new slots, if any, are free
+		Pointer<Float> oldActive= active;
+		active= Pointer.allocateFloats(stride).order(order).setFloatsAtOffset(0, oldActive.getFloats(), 0, kept);
+		oldActive.release();
+		activeBuf.release();
+		activeBuf= context.createFloatBuffer(Usage.Input, active, true);
+		
+		// the buffers sized by the number of slots
+		if(statsPartialBuf != null){
+			statsPartialBuf.release();
+			statsPartialBuf= context.createFloatBuffer(Usage.Output, 4l*stride/workGroupSize[0]);
+		}
+		if(divergedBuf != null){
+			divergedBuf.release();
+			divergedBuf= context.createIntBuffer(Usage.Output, stride);
+		}
+		if(batchFeaturesBuf != null){
+			batchFeaturesBuf.release();
+			batchPredictionBuf.release();
+			batchFeatures.release();
+			batchFeaturesBuf= null;
+			batchPredictionBuf= null;
+			batchFeatures= null;
+		}
+		if(historyBuf != null){
+			historyBuf.release();
+			historyBuf= context.createFloatBuffer(Usage.InputOutput, 2l*historySteps*stride);
+			if(historyErrorBuf != null){
+				historyErrorBuf.release();
+				historyErrorBuf= context.createFloatBuffer(Usage.InputOutput, 2l*historySteps*stride);
+			}
+			historyAppend= null;
+			historyReads= new CLEvent[2][];
+		}
+		if(cumulantOffsetBuf != null){
+			createCumulants();
+		}
+		setKernelArgs();
+	}
+	
+	/**
+	 * Copy a buffer holding size values per demon into a new buffer using the current stride.
+	 * The old buffer is released.
+	 * @param buffer		The buffer, can be null
+	 * @param precision		The format of the values
+	 * @param oldStride		The stride of the buffer
+	 * @param size			The number of values per demon
+	 * @return	The new buffer, or null if buffer is null
+	 */
+	private <T> CLBuffer<T> relayout(CLBuffer<T> buffer, Precision precision, int oldStride, int size){
+		return relayout(buffer, precision, oldStride, stride, size);
+	}
+	
+	/**
+	 * Copy a buffer holding size rows of oldStride values into a new buffer with rows of newStride values, the values
+	 * past oldStride are zero and the ones past newStride are dropped
+	 */
+	@SuppressWarnings("unchecked")
+	private <T> CLBuffer<T> relayout(CLBuffer<T> buffer, Precision precision, int oldStride, int newStride, int size){
+		if(buffer == null){
+			return null;
+		}
+		waitForSnapshot();
+		CLBuffer<?> newBuffer= precision.createBuffer(context, (long) size*newStride);
+		CLKernel kernel= precision.bytes == 4 ? relayout : relayoutShorts;
+		kernel.setArgs(buffer, newBuffer, oldStride, size);
+		kernel.enqueueNDRange(queue, new int[] {newStride}, workGroupSize, demonUpdate).waitFor();
+		buffer.release();
+		return (CLBuffer<T>) newBuffer;
+	}
+	
+	/**
+	 * Maintain the learning statistics of every demon on the GPU, updated after every update.
+	 * @param rate	The rate of the moving averages
+	 */
+	public void trackStats(float rate){
+		if(demons.size() == 0){
+			return;
+		}
+		statsRate= rate;
+		if(statsBuf == null){
+			statsBuf= context.createFloatBuffer(Usage.InputOutput, (long) LearningStats.nbStats*stride);
+			statsPartialBuf= context.createFloatBuffer(Usage.Output, 4l*stride/workGroupSize[0]);
+		}
+		updateStats.setArgs(errorBuf, statsBuf, statsRate, demons.size());
+		resetStats();
+	}
+	
+	/**
+	 * Set the learning statistics of every demon to zero
+	 */
+	public void resetStats(){
+		if(statsBuf != null){
+			clear(statsBuf, Precision.FP32, LearningStats.nbStats).waitFor();
+		}
+	}
+	
+	/**
+	 * Fetch the learning statistics of every demon
+	 * @param stats		Where to store them
+	 * @param columns	The global index of every demon
+	 */
+	public void readStats(LearningStats stats, int[] columns){
+		if(statsBuf == null){
+			return;
+		}
+		float[] s= statsBuf.read(queue, demonUpdate).getFloats();
+		for(int i=0; i<demons.size(); i++){
+			stats.set(columns[i], s, i, stride);
+		}
+	}
+	
+	/**
+	 * Reduce the learning statistics on the GPU, only one value per work group and per statistic is read back.
+	 * @return	The sum of the mean squared errors, the sum of the absolute mean errors, the largest surprise and the number
+	 * 			of diverged demons
+	 */
+	public double[] reduceStats(){
+		double[] r= new double[4];
+		if(statsBuf == null){
+			return r;
+		}
+		reduceStats.setArgs(statsBuf, statsPartialBuf);
+		reduceStats.setLocalArg(2, 16l*workGroupSize[0]);
+		reduceStats.setArg(3, demons.size());
+		CLEvent reduceEvent= reduceStats.enqueueNDRange(queue, new int[] {stride}, workGroupSize, demonUpdate);
+		float[] partial= statsPartialBuf.read(queue, reduceEvent).getFloats();
+		for(int g=0; g<partial.length; g+= 4){
+			r[0] += partial[g];
+			r[1] += partial[g+1];
+			r[2]= Math.max(r[2], partial[g+2]);
+			r[3] += partial[g+3];
+		}
+		return r;
+	}
+	
+	/**
+	 * Record the predictions, and optionally the TD errors, of every update in a ring on the GPU.
+	 * Every historySteps updates the filled half of the ring is read back without blocking, see readHistory.
+	 * @param steps		The number of updates read back at once
+	 * @param errors	Also record the TD errors
+	 */
+	public void recordHistory(int steps, boolean errors){
+		if(demons.size() == 0){
+			return;
+		}
+		historySteps= steps;
+		historyBuf= context.createFloatBuffer(Usage.InputOutput, 2l*steps*stride);
+		if(errors){
+			historyErrorBuf= context.createFloatBuffer(Usage.InputOutput, 2l*steps*stride);
+		}
+	}
+	
+	/**
+	 * Copy the predictions and the errors of the last update to the next row of the history, on the GPU
+	 */
+	private void appendHistory(){
+		int row= (int) (historyRows % (2*historySteps));
+		CLEvent[] halfRead= historyReads[row/historySteps];
+		CLEvent[] waits= {demonUpdate, halfRead == null ? null : halfRead[0], halfRead == null ? null : halfRead[1]};
+		historyAppend= new CLEvent[2];
+		historyAppend[0]= predictionBuf.copyTo(queue, 0, demons.size(), historyBuf, (long) row*stride, waits);
+		if(historyErrorBuf != null){
+			historyAppend[1]= errorBuf.copyTo(queue, 0, demons.size(), historyErrorBuf, (long) row*stride, waits);
+		}
+		historyRows++;
+		if(historyRows % historySteps == 0){
+			pendingHistory= readHistory();
+		}
+	}
+	
+	/**
+	 * Start reading back the rows of the history appended since the last read back, without blocking.
+	 * @return	The block being read, or null if there is nothing to read
+	 */
+	HistoryBlock readHistory(){
+		if(historyBuf == null || historyRows == historyDrained){
+			return null;
+		}
+		HistoryBlock block= new HistoryBlock();
+		block.firstStep= historyDrained;
+		block.steps= (int) (historyRows - historyDrained);
+		block.width= demons.size();
+		long offset= (historyDrained % (2*historySteps))*stride;
+		long length= (long) block.steps*stride;
+		
+		// every copy waits for the previous update, which waits for the previous copy: the last copy covers them all
+		block.reads= new CLEvent[2];
+		block.predictions= Pointer.allocateFloats(length).order(context.getByteOrder());
+		block.reads[0]= historyBuf.read(queue, offset, length, block.predictions, false, historyAppend);
+		if(historyErrorBuf != null){
+			block.errors= Pointer.allocateFloats(length).order(context.getByteOrder());
+			block.reads[1]= historyErrorBuf.read(queue, offset, length, block.errors, false, historyAppend);
+		}
+		historyReads[(int) (historyDrained % (2*historySteps))/historySteps]= block.reads;
+		historyDrained= historyRows;
+		return block;
+	}
+	
+	public void resetTrace(){
+		clear(traceBuf, weightPrecision, dim, traceWidth()).waitFor();
+		if(vOldBuf != null){
+			// true online TD(lambda) starts the episode with no previous prediction
+			clear(vOldBuf, Precision.FP32, 1).waitFor();
+		}
+	}
+	
+	/**
+	 * Set a buffer holding size values per demon to zero
+	 * @param buffer	The buffer
+	 * @param precision	The format of the values
+	 * @param size		The number of values per demon
+	 * @return	The event of the kernel
+	 */
+	private CLEvent clear(CLBuffer<?> buffer, Precision precision, int size){
+		return clear(buffer, precision, size, stride);
+	}
+	
+	/**
+	 * Set a buffer holding size values per row of width values to zero
+	 */
+	private CLEvent clear(CLBuffer<?> buffer, Precision precision, int size, int width){
+		waitForSnapshot();
+		CLKernel kernel= precision.bytes == 4 ? clear : clearShorts;
+		kernel.setArgs(buffer, size);
+		return kernel.enqueueNDRange(queue, new int[] {width}, workGroupSize, demonUpdate);
+	}
+	
+	/**
+	 * Generate the predictions for the given feature vector.
+	 * This method will not recompute the predictions if the feature vector did not change
+	 * from the last time it was computed.
+	 * @param v		The feature vector
+	 * @return		An array containing all the predictions. Demon[i] will store in prediction[i].
+	 */
+	public float[] predictions(RealVector v){
+		Pointer<Float> predictions= predictionBuf.read(queue, computePredictions(v));
+		
+		float[] p= new float[demons.size()];
+		float[] paddedP= predictions.getFloats();
+		for(int i=0; i< p.length; i++){
+			p[i]= paddedP[i];
+		}
+//		predictions.release();
+		return p;
+	}
+	
+	/**
+	 * Compute the predictions for the given feature vector in predictionBuf, without reading them.
+	 * The predictions are not recomputed if the feature vector did not change from the last time.
+	 * @param v		The feature vector, if null the predictions of the last update are used
+	 * @return	The event after which predictionBuf holds the predictions
+	 */
+	private CLEvent computePredictions(RealVector v){
+		//check if the predictions need to be recomputed, they always are if the last feature vector is not known
+		if(v==null || (last != null && v.equals(last))){
+			return demonUpdate;
+		}
+		//if yes, send the new feature vector and start the kernel
+		double[] d1=v.accessData();
+		float[] f1= new float[nbFeatures];
+		for(int i=0; i< nbFeatures; i++){
+			f1[i]= (float) d1[featureOffset+i];
+		}
+		features[0].setFloats(f1);
+		CLEvent feature1Write= featuresBuf[0].write(queue, features[0], false, demonUpdate);
+		
+		// GQ(lambda) predicts the expected value under the target policy
+		CLEvent piWrite= piBuf == null ? null : writePolicies(v);
+		
+		last=v;
+		return predict.enqueueNDRange(queue, numDemon, workGroupSize, feature1Write, piWrite);
+	}
+	
+	/**
+	 * Select the demons whose prediction for a feature vector is above a threshold.
+	 * The selection is done on the GPU, only the selected demons are read back.
+	 * @param v			The feature vector, if null the predictions of the last update are used
+	 * @param threshold	The selected predictions are strictly greater than the threshold
+	 * @return	The local indexes and the predictions of the selected demons, in no particular order
+	 */
+	public Selection selectAbove(RealVector v, float threshold){
+		if(demons.size() == 0){
+			return new Selection(new int[0], new float[0]);
+		}
+		CLEvent predictEvent= computePredictions(v);
+		ensureSelectionCapacity(stride);
+		Pointer<Integer> zero= Pointer.allocateInt().order(context.getByteOrder());
+		CLEvent countReset= selectionCountBuf.write(queue, zero, false, demonUpdate);
+		
+		selectAbove.setArgs(predictionBuf, threshold, selectionCountBuf, selectionIndexBuf, selectionValueBuf, demons.size());
+		CLEvent selectEvent= selectAbove.enqueueNDRange(queue, new int[] {stride}, workGroupSize, predictEvent, countReset);
+		int count= selectionCountBuf.read(queue, selectEvent).getInt();
+		zero.release();
+		if(count == 0){
+			return new Selection(new int[0], new float[0]);
+		}
+		return withoutFreeSlots(new Selection(selectionIndexBuf.read(queue, 0, count, selectEvent).getInts(), 
+				selectionValueBuf.read(queue, 0, count, selectEvent).getFloats()));
+	}
+	
+	/**
+	 * Find the demons with the k largest predictions for a feature vector.
+	 * Every work group keeps its k largest predictions on the GPU, only these candidates are read back and merged.
+	 * @param v		The feature vector, if null the predictions of the last update are used
+	 * @param k		The number of demons to select
+	 * @return	The local indexes and the predictions of the selected demons, in decreasing order of prediction
+	 */
+	public Selection top(RealVector v, int k){
+		k= Math.min(k, nbDemons());
+		if(k <= 0){
+			return new Selection(new int[0], new float[0]);
+		}
+		CLEvent predictEvent= computePredictions(v);
+		// the free slots can take the place of demons amongst the candidates of a group
+		int groupK= Math.min(k + freeSlots.size(), workGroupSize[0]);
+		int nbCandidates= stride/workGroupSize[0]*groupK;
+		ensureSelectionCapacity(nbCandidates);
+		
+		topKGroups.setArgs(predictionBuf, selectionIndexBuf, selectionValueBuf);
+		topKGroups.setLocalArg(3, 4l*workGroupSize[0]);
+		topKGroups.setLocalArg(4, 4l*workGroupSize[0]);
+		topKGroups.setArg(5, demons.size());
+		topKGroups.setArg(6, groupK);
+		CLEvent topEvent= topKGroups.enqueueNDRange(queue, new int[] {stride}, workGroupSize, predictEvent);
+		int[] indexes= selectionIndexBuf.read(queue, 0, nbCandidates, topEvent).getInts();
+		float[] values= selectionValueBuf.read(queue, 0, nbCandidates, topEvent).getFloats();
+		Selection candidates= withoutFreeSlots(new Selection(indexes, values));
+		return Selection.top(candidates.indexes, candidates.values, demons.size(), k);
+	}
+	
+	/**
+	 * @param selection		Demons selected on the GPU
+	 * @return	The selection without the free slots
+	 */
+	private Selection withoutFreeSlots(Selection selection){
+		if(freeSlots.isEmpty()){
+			return selection;
+		}
+		int count= 0;
+		for(int index: selection.indexes){
+			if(!isFree(index)){
+				count++;
+			}
+		}
+		Selection kept= new Selection(new int[count], new float[count]);
+		int j= 0;
+		for(int i=0; i<selection.size(); i++){
+			if(!isFree(selection.indexes[i])){
+				kept.indexes[j]= selection.indexes[i];
+				kept.values[j]= selection.values[i];
+				j++;
+			}
+		}
+		return kept;
+	}
+	
+	/**
+	 * @param localIndex	The index of a slot
+	 * @return	True if the slot held a demon that was removed
+	 */
+	private boolean isFree(int localIndex){
+		return table == null && localIndex >= 0 && localIndex < demons.size() && demons.get(localIndex) == null;
+	}
+	
+	/**
+	 * Fetch the predictions of some of the demons for a feature vector.
+	 * Only the requested predictions are read back.
+	 * @param v			The feature vector, if null the predictions of the last update are used
+	 * @param indexes	The local indexes of the demons
+	 * @return	The predictions, in the order of indexes
+	 */
+	public float[] predictions(RealVector v, int[] indexes){
+		if(indexes.length == 0){
+			return new float[0];
+		}
+		CLEvent predictEvent= computePredictions(v);
+		ensureSelectionCapacity(indexes.length);
+		Pointer<Integer> subset= Pointer.allocateInts(indexes.length).order(context.getByteOrder()).setInts(indexes);
+		CLEvent subsetWrite= selectionIndexBuf.write(queue, 0, indexes.length, subset, false, demonUpdate);
+		
+		gatherPredictions.setArgs(predictionBuf, selectionIndexBuf, selectionValueBuf, indexes.length);
+		int size= (indexes.length + workGroupSize[0] - 1)/workGroupSize[0]*workGroupSize[0];
+		CLEvent gatherEvent= gatherPredictions.enqueueNDRange(queue, new int[] {size}, workGroupSize, predictEvent, subsetWrite);
+		float[] p= selectionValueBuf.read(queue, 0, indexes.length, gatherEvent).getFloats();
+		subset.release();
+		return p;
+	}
+	
+	/**
+	 * Make sure the buffers of the selections can hold a number of demons
+	 * @param size		The number of demons
+	 */
+	private void ensureSelectionCapacity(int size){
+		if(selectionIndexBuf != null && selectionIndexBuf.getElementCount() >= size){
+			return;
+		}
+		if(selectionIndexBuf != null){
+			selectionIndexBuf.release();
+			selectionValueBuf.release();
+		}else{
+			selectionCountBuf= context.createIntBuffer(Usage.InputOutput, 1);
+		}
+		selectionIndexBuf= context.createIntBuffer(Usage.InputOutput, size);
+		selectionValueBuf= context.createFloatBuffer(Usage.Output, size);
+	}
+	
+	/**
+	 * Generate the predictions of all demons for a batch of feature vectors.
+	 * The feature vectors are sent in one transfer, all the predictions are computed by one kernel that reads
+	 * theta once per tile of feature vectors, and they are fetched in one transfer.
+	 * GQ(lambda) demons evaluate their target policies on every vector, so they are still predicted one vector at a time.
+	 * @param vs		The feature vectors
+	 * @param out		Where to store the predictions, the prediction of demon i for vs.get(q) is stored at
+	 * 					out[q*rowLength + columns[i]]
+	 * @param rowLength	The length of a row of out
+	 * @param columns	The column of each demon in out
+	 */
+	public void predictions(List<? extends RealVector> vs, float[] out, int rowLength, int[] columns){
+		if(demons.size() == 0 || vs.isEmpty()){
+			return;
+		}
+		if(predictBatch == null){
+			for(int q=0; q<vs.size(); q++){
+				float[] p= predictions(vs.get(q));
+				for(int i=0; i<p.length; i++){
+					out[q*rowLength + columns[i]]= p[i];
+				}
+			}
+			return;
+		}
+		
+		// split the batch if the predictions would not fit in a reasonable buffer
+		int batchSize= Math.max(queryTile, (maxBatchPredictions/stride)/queryTile*queryTile);
+		for(int start=0; start<vs.size(); start+= batchSize){
+			int count= Math.min(batchSize, vs.size()-start);
+			ensureBatchCapacity(count);
+			
+			// send all the feature vectors at once
+			for(int q=0; q<count; q++){
+				double[] d= vs.get(start+q).accessData();
+				float[] f= new float[nbFeatures];
+				for(int j=0; j<nbFeatures; j++){
+					f[j]= (float) d[featureOffset+j];
+				}
+				batchFeatures.setFloatsAtOffset(4l*q*nbFeatures, f);
+			}
+			CLEvent featuresWrite= batchFeaturesBuf.write(queue, 0, (long) count*nbFeatures, batchFeatures, false, demonUpdate);
+			
+			predictBatch.setArgs(thetaBuf, batchFeaturesBuf, batchPredictionBuf, nbFeatures, count);
+			int tiles= (count + queryTile - 1)/queryTile;
+			CLEvent predictEvent= predictBatch.enqueueNDRange(queue, new int[] {stride, tiles}, new int[] {workGroupSize[0], 1}, 
+					featuresWrite, demonUpdate);
+			float[] p= batchPredictionBuf.read(queue, 0, (long) count*stride, predictEvent).getFloats();
+			
+			for(int q=0; q<count; q++){
+				int row= (start+q)*rowLength;
+				for(int i=0; i<demons.size(); i++){
+					out[row + columns[i]]= p[q*stride + i];
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Make sure the buffers of the batched predictions can hold a number of feature vectors
+	 * @param count		The number of feature vectors
+	 */
+	private void ensureBatchCapacity(int count){
+		if(batchFeaturesBuf != null && batchFeaturesBuf.getElementCount() >= (long) count*nbFeatures){
+			return;
+		}
+		if(batchFeaturesBuf != null){
+			batchFeaturesBuf.release();
+			batchPredictionBuf.release();
+		}
+		batchFeatures= Pointer.allocateFloats((long) count*nbFeatures).order(context.getByteOrder());
+		batchFeaturesBuf= context.createFloatBuffer(Usage.Input, (long) count*nbFeatures);
+		batchPredictionBuf= context.createFloatBuffer(Usage.Output, (long) count*stride);
+	}
+	
+	/**
+	 * Fetch the prediction from the last seen feature Vector
+	 * @return		An array with the predictions of the last seen feature Vector. Demon[i] will store in prediction[i].
+	 */
+	public float[] predictions(){
+		return predictions(last);
+	}
+
+	/**
+	 * Set the parameters alpha, eta and lambda.
+	 * This is a costly procedure as it needs to recompile the kernel. Use sparingly.
+	 * @param alpha		The new alpha.
+	 * @param eta		The new eta.
+	 * @param lambda	The new lambda.
+	 */
+	public void setParam(float alpha, float eta, float lambda) {
+		if(kernelSource == null){
+			throw new RuntimeException("GPUHorde needs to be initialised to change parameters, sorry...");
+		}
+
+		// define all the required parameters
+		macros.put("ALPHA", Float.toString(alpha)+"f");
+		macros.put("ETA", Float.toString(eta)+"f");
+		macros.put("LAMBDA", Float.toString(lambda)+"f");
+		
+		createKernels();
+	}
+	
+	/**
+	 * Get the program with all the macros, compiled once per device for all the GPUHordes of the process, 
+	 * then create all the kernels and set their arguments.
+	 */
+	private void createKernels(){
+		Map<String, String> programMacros= new LinkedHashMap<String, String>(macros);
+		if(vectorize){
+			programMacros.put("VECTOR", "float"+ Integer.toString(vectorSize));
+		}
+		hordeProgram= DeviceRuntime.program(context, kernelSource, programMacros);
+		
+		updateHorde = hordeProgram.createKernel(updateKernelName);
+		predict = hordeProgram.createKernel(predictKernelName);
+		
+		// the batched predictions only exist for the algorithms predicting with theta alone
+		if(algorithm != Algorithm.GQ_LAMBDA){
+			predictBatch = hordeProgram.createKernel(predictBatchKernelName);
+		}
+		selectAbove = hordeProgram.createKernel("selectAbove");
+		topKGroups = hordeProgram.createKernel("topKGroups");
+		gatherPredictions = hordeProgram.createKernel("gatherPredictions");
+		updateStats = hordeProgram.createKernel("updateStats");
+		reduceStats = hordeProgram.createKernel("reduceStats");
+		checkDivergence = hordeProgram.createKernel("checkDivergence");
+		resetDemon = hordeProgram.createKernel("resetDemon");
+		setDemon = hordeProgram.createKernel("setDemon");
+		relayout = hordeProgram.createKernel("relayout");
+		relayoutShorts = hordeProgram.createKernel("relayoutShorts");
+		clear = hordeProgram.createKernel(clearKernelName);
+		clearShorts = hordeProgram.createKernel(clearShortsKernelName);
+		computeCumulants = null;
+		tileCode = null;
+		updateSharedTraces = traceClassBuf != null ? hordeProgram.createKernel("updateSharedTraces") : null;
+		
+		setKernelArgs();
+	}
+	
+	/**
+	 * Set the arguments of the kernels run at every update, after the kernels are created or the buffers reallocated.
+	 */
+	private void setKernelArgs(){
+		switch(algorithm){
+		case TD_LAMBDA:
+			updateHorde.setArgs(thetaBuf, traceBuf, featuresBuf[0], featuresBuf[1], rewardBuf, gammaBuf, predictionBuf, errorBuf, nbFeatures, activeBuf);
+			predict.setArgs(thetaBuf, featuresBuf[0], predictionBuf, nbFeatures);
+			break;
+		case TRUE_ONLINE_TD:
+			updateHorde.setArgs(thetaBuf, traceBuf, vOldBuf, featuresBuf[0], featuresBuf[1], rewardBuf, gammaBuf, predictionBuf, errorBuf, nbFeatures, activeBuf);
+			predict.setArgs(thetaBuf, featuresBuf[0], predictionBuf, nbFeatures);
+			break;
+		case GQ_LAMBDA:
+			// the action index (argument 11) is set before every update
+			updateHorde.setArgs(thetaBuf, wBuf, traceBuf, featuresBuf[0], featuresBuf[1], rhoBuf, rewardBuf, gammaBuf, piBuf, 
+					predictionBuf, errorBuf, 0, nbFeatures, nbActions, activeBuf);
+			predict.setArgs(thetaBuf, featuresBuf[0], piBuf, predictionBuf, nbFeatures, nbActions);
+			break;
+		default:
+			if(traceClassBuf != null){
+				// rho is only used by the shared traces
+				updateSharedTraces.setArgs(traceBuf, featuresBuf[0], rhoBuf, gammaBuf, representativeBuf, nbFeatures);
+				updateHorde.setArgs(thetaBuf, wBuf, traceBuf, featuresBuf[0], featuresBuf[1], rewardBuf, gammaBuf, predictionBuf, errorBuf, nbFeatures, 
+						activeBuf, traceClassBuf, traceStride);
+			}else{
+				updateHorde.setArgs(thetaBuf, wBuf, traceBuf, featuresBuf[0], featuresBuf[1], rhoBuf, rewardBuf, gammaBuf, predictionBuf, errorBuf, nbFeatures, activeBuf);
+			}
+			predict.setArgs(thetaBuf, featuresBuf[0], predictionBuf, nbFeatures);
+		}
+		
+		if(statsBuf != null){
+			updateStats.setArgs(errorBuf, statsBuf, statsRate, demons.size());
+		}
+		if(divergenceCountBuf != null){
+			checkDivergence.setArgs(predictionBuf, errorBuf, activeBuf, divergenceCountBuf, divergedBuf, divergenceBound, demons.size());
+		}
+		
+		if(cumulantOffsetBuf == null){
+			computeCumulants = null;
+		}else{
+			if(computeCumulants == null){
+				computeCumulants = hordeProgram.createKernel(cumulantKernelName);
+			}
+			computeCumulants.setArgs(thetaBuf, featuresBuf[1], rewardBuf, cumulantOffsetBuf, cumulantSourceBuf, cumulantCoefficientBuf, nbFeatures, stride);
+		}
+		
+		if(tileCoding != null){
+			if(tileCode == null){
+				tileCode = hordeProgram.createKernel("tileCode");
+				clearFeatures = hordeProgram.createKernel("clearFeatures");
+			}
+			tileCode.setArgs(inputsBuf, inputMinsBuf, inputScalesBuf, tilingsBuf, tilingInputsBuf, featuresBuf[0], featuresBuf[1], 
+					tileCoding.nbInputs(), tileCoding.nbTilings(), tileCoding.memorySize(), featureOffset, nbFeatures);
+			clearFeatures.setArgs(featuresBuf[0], featuresBuf[1], nbFeatures);
+		}
+	}
+	
+	/**
+	 * Create the buffers describing the cumulants of the GVF networks, if any demon has one.
+	 * The previous buffers, if any, are released.
+	 */
+	private void createCumulants(){
+		if(table != null){
+			return;
+		}
+		if(cumulantOffsetBuf != null){
+			cumulantOffsetBuf.release();
+			cumulantSourceBuf.release();
+			cumulantCoefficientBuf.release();
+			cumulantOffsetBuf= null;
+			cumulantSourceBuf= null;
+			cumulantCoefficientBuf= null;
+		}
+		Map<CLDemon, Integer> localIndexes= new IdentityHashMap<CLDemon, Integer>();
+		int nbSources= 0;
+		for(int i=0; i<demons.size(); i++){
+			if(demons.get(i) == null){
+				continue;
+			}
+			localIndexes.put(demons.get(i), i);
+			if(demons.get(i).hasCumulant()){
+				nbSources += demons.get(i).cumulantSources.size();
+			}
+		}
+		if(nbSources == 0){
+			return;
+		}
+		if(algorithm == Algorithm.GQ_LAMBDA){
+			throw new IllegalArgumentException("GQ(lambda) demons cannot have cumulants");
+		}
+		
+		ByteOrder order= context.getByteOrder();
+		Pointer<Integer> offsets= Pointer.allocateInts(stride+1).order(order);
+		Pointer<Integer> sources= Pointer.allocateInts(nbSources).order(order);
+		Pointer<Float> coefficients= Pointer.allocateFloats(nbSources).order(order);
+		int k= 0;
+		for(int i=0; i<stride; i++){
+			offsets.set(i, k);
+			CLDemon demon= i < demons.size() ? demons.get(i) : null;
+			if(demon == null || !demon.hasCumulant()){
+				continue;
+			}
+			for(int j=0; j<demon.cumulantSources.size(); j++){
+				Integer source= localIndexes.get(demon.cumulantSources.get(j));
+				if(source == null){
+					throw new IllegalArgumentException("The cumulant sources of a demon must be hosted on the same GPU and use the same algorithm");
+				}
+				sources.set(k, source);
+				coefficients.set(k, demon.cumulantCoefficients.get(j));
+				k++;
+			}
+		}
+		offsets.set(stride, k);
+		
+		cumulantOffsetBuf= context.createIntBuffer(Usage.Input, offsets, true);
+		cumulantSourceBuf= context.createIntBuffer(Usage.Input, sources, true);
+		cumulantCoefficientBuf= context.createFloatBuffer(Usage.Input, coefficients, true);
+		
+		offsets.release();
+		sources.release();
+		coefficients.release();
+	}
+	
+	/**
+	 * Fetch the TD errors of the last update
+	 * @return		An array containing the TD errors. Demon[i] will store in error[i].
+	 */
+	public float[] errors(){
+		float[] e= new float[demons.size()];
+		if(e.length == 0){
+			return e;
+		}
+		Pointer<Float> errors= errorBuf.read(queue, demonUpdate);
+		errors.getFloatsAtOffset(0, e, 0, e.length);
+		errors.release();
+		return e;
+	}
+	
+	/**
+	 * Set the weight theta and the trace of one demon for one feature to zero
+	 * @param localIndex	The index of the demon on this GPU
+	 * @param feature		The index of the feature
+	 */
+	public void resetWeight(int localIndex, int feature){
+		long offset= localIndex + (long) feature*stride;
+		float[] zero= {0f};
+		write(thetaBuf, thetaPrecision, offset, zero);
+		if(traceClassBuf == null){
+			// a shared trace also belongs to other demons
+			write(traceBuf, weightPrecision, offset, zero);
+		}
+	}
+	
+	public float[] getTheta(){
+		return read(thetaBuf, thetaPrecision);
+	}
+	
+	public float[] getW(){
+		if(wBuf == null){
+			return new float[0];
+		}
+		return read(wBuf, weightPrecision);
+	}
+	
+	public float[] getTrace(){
+		return read(traceBuf, weightPrecision);
+	}
+	
+	/**
+	 * Read a whole weight buffer
+	 * @param buffer		The buffer
+	 * @param precision		The format of the buffer
+	 * @return	The weights as floats
+	 */
+	private float[] read(CLBuffer<?> buffer, Precision precision){
+		Pointer<?> p= buffer.read(queue, demonUpdate);
+		float[] f= precision.get(p, 0, (int) buffer.getElementCount());
+		p.release();
+		return f;
+	}
+	
+	/**
+	 * Write weights in a weight buffer. This is a blocking call.
+	 * @param buffer		The buffer
+	 * @param precision		The format of the buffer
+	 * @param offset		The index of the first weight to write
+	 * @param values		The weights
+	 */
+	private void write(CLBuffer<?> buffer, Precision precision, long offset, float[] values){
+		Pointer<?> p= precision.allocate(values.length, context.getByteOrder());
+		precision.set(p, 0, values);
+		write(buffer, offset, values.length, p);
+		p.release();
+	}
+	
+	private void write(CLBuffer<?> buffer, long offset, long length, Pointer<?> p){
+		write(buffer, offset, length, p, true);
+	}
+	
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private CLEvent write(CLBuffer<?> buffer, long offset, long length, Pointer<?> p, boolean blocking){
+		waitForSnapshot();
+		return ((CLBuffer) buffer).write(queue, offset, length, (Pointer) p, blocking, demonUpdate);
+	}
+	
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private CLEvent read(CLBuffer<?> buffer, long length, Pointer<?> p, CLEvent event){
+		return ((CLBuffer) buffer).read(queue, 0, length, (Pointer) p, false, event);
+	}
+	
+	/**
+	 * Copy theta, w and the trace on the GPU once the last update is done, then start reading the copies back
+	 * without blocking. Updating can go on right away: the next update only waits for the copies, which stay on the GPU.
+	 * @return	The block being read, or null if there are no demons
+	 */
+	SnapshotBlock snapshot(){
+		if(demons.size() == 0){
+			return null;
+		}
+		CLBuffer<?>[] live= {thetaBuf, wBuf, traceBuf};
+		Precision[] precisions= {thetaPrecision, weightPrecision, weightPrecision};
+		if(snapshotBufs == null){
+			snapshotBufs= new CLBuffer<?>[live.length];
+		}
+		// the copies of the last snapshot must be read back before they are overwritten
+		CLEvent[] waits= {demonUpdate, null, null, null};
+		if(snapshotReads != null){
+			System.arraycopy(snapshotReads, 0, waits, 1, 3);
+		}
+		
+		SnapshotBlock block= new SnapshotBlock();
+		block.width= demons.size();
+		block.stride= stride;
+		block.traceWidth= traceWidth();
+		block.dim= dim;
+		block.traceClass= traceClass == null ? null : traceClass.clone();
+		block.free= new boolean[demons.size()];
+		for(int i=0; i<block.free.length; i++){
+			block.free[i]= isFree(i);
+		}
+		block.precisions= precisions;
+		block.weights= new Pointer<?>[live.length];
+		snapshotCopies= new CLEvent[live.length];
+		snapshotReads= new CLEvent[live.length];
+		for(int k=0; k<live.length; k++){
+			if(live[k] == null){
+				continue;
+			}
+			long size= live[k].getElementCount();
+			if(snapshotBufs[k] == null || snapshotBufs[k].getElementCount() != size){
+				// the buffers grew since the last snapshot
+				if(snapshotBufs[k] != null){
+					CLEvent.waitFor(waits);
+					snapshotBufs[k].release();
+				}
+				snapshotBufs[k]= precisions[k].createBuffer(context, size);
+			}
+			snapshotCopies[k]= live[k].copyTo(queue, 0, size, snapshotBufs[k], 0, waits);
+			block.weights[k]= precisions[k].allocate(size, context.getByteOrder());
+			snapshotReads[k]= read(snapshotBufs[k], size, block.weights[k], snapshotCopies[k]);
+		}
+		block.reads= snapshotReads;
+		return block;
+	}
+	
+	/**
+	 * Wait for the copies of the last snapshot, before the weights are written outside of an update
+	 */
+	private void waitForSnapshot(){
+		if(snapshotCopies != null){
+			CLEvent.waitFor(snapshotCopies);
+			snapshotCopies= null;
+		}
+	}
+	
+
+	public static long getAllocReq(int nbFeatures, int nbDemons) {
+		return getAllocReq(nbFeatures, nbDemons, Precision.FP32);
+	}
+	
+	/**
+	 * @param nbFeatures	The number of weights per demon
+	 * @param nbDemons		The number of demons
+	 * @param precision		The storage of the weights
+	 * @return	The size of the largest buffer allocated for the weights
+	 */
+	public static long getAllocReq(int nbFeatures, int nbDemons, Precision precision) {
+		return (long) precision.bytes*nbDemons*nbFeatures;
+	}
+	
+	public void checkForNaN(){
+		float[] f= reward.getFloats();
+		for(int i=0; i<f.length; i++){
+			if(Float.isNaN(f[i])){
+				throw new RuntimeException("reward has NaN");
+			}
+		}
+		
+		f=gamma.getFloats();
+		for(int i=0; i<f.length; i++){
+			if(Float.isNaN(f[i])){
 				throw new RuntimeException("gamma has NaN");
 			}
 		}
@@ -449,23 +2307,28 @@ public class GPUHorde {
 	 */
 	public void saveWeights() {
 		// read in all the weights
-		float[][] thetas= new float[demons.size()][nbFeatures];
-		float[] GPUTheta= thetaBuf.read(queue, demonUpdate).getFloats();
+		float[][] thetas= new float[demons.size()][dim];
+		float[] GPUTheta= getTheta();
 		
-		float[][] ws= new float[demons.size()][nbFeatures];
-		float[] GPUW= wBuf.read(queue, demonUpdate).getFloats();
+		float[][] ws= wBuf == null ? null : new float[demons.size()][dim];
+		float[] GPUW= getW();
 		
-		float[][] traces= new float[demons.size()][nbFeatures];
-		float[] GPUTrace= traceBuf.read(queue, demonUpdate).getFloats();
+		float[][] traces= new float[demons.size()][dim];
+		float[] GPUTrace= getTrace();
 		
 		// parse the weights by demon
 		for(int i=0; i<demons.size(); i++){
-			for(int j=0; j<nbFeatures; j++){
-				thetas[i][j]= GPUTheta[i + j*numDemon[0]];
-				ws[i][j]= GPUW[i + j*numDemon[0]];
-				traces[i][j]= GPUTrace[i + j*numDemon[0]];
+			if(demons.get(i) == null){
+				continue;
+			}
+			for(int j=0; j<dim; j++){
+				thetas[i][j]= GPUTheta[i + j*stride];
+				if(ws != null){
+					ws[i][j]= GPUW[i + j*stride];
+				}
+				traces[i][j]= GPUTrace[(traceClassBuf == null ? i : traceClass[i]) + j*traceWidth()];
 			}
-			demons.get(i).setWeights(thetas[i], ws[i], traces[i]);
+			demons.get(i).setWeights(thetas[i], ws == null ? null : ws[i], traces[i]);
 		}	
 	}
 	
@@ -473,40 +2336,228 @@ public class GPUHorde {
 	 * upload to GPU any previous weights saved within CLDemons
 	 */
 	public void uploadWeights(){
-		// create all the float arrays
-		ByteOrder order= context.getByteOrder();
-		Pointer<Float> theta= Pointer.allocateFloats(numDemon[0]*nbFeatures).order(order);
-		Pointer<Float> w= Pointer.allocateFloats(numDemon[0]*nbFeatures).order(order);
-		Pointer<Float> trace= Pointer.allocateFloats(numDemon[0]*nbFeatures).order(order);
+		if(table != null){
+			// the demons of a table have no weights of their own
+			return;
+		}
+		writeSavedWeights();
+	}
+	
+	/**
+	 * Stream the weights saved within the CLDemons to the GPU. A buffer that no demon has weights for is set to zero
+	 * on the GPU instead, without any transfer.
+	 */
+	private void writeSavedWeights(){
+		float[][] thetas= new float[demons.size()][];
+		float[][] ws= new float[demons.size()][];
+		float[][] traces= new float[demons.size()][];
+		for(int i=0; table == null && i<demons.size(); i++){
+			CLDemon d= demons.get(i);
+			if(d != null){
+				thetas[i]= d.getTheta();
+				ws[i]= d.getW();
+				traces[i]= d.getTrace();
+			}
+		}
 		
-		// set all weights to the right value
-		for(int i=0; i<demons.size(); i++){
-			for(int j=0; j<nbFeatures; j++){
-				CLDemon d= demons.get(i);
-				float[] tmp= d.getTheta();
-				if(tmp != null){
-					theta.set(i+j*numDemon[0], tmp[j]);
+		if(!stream(thetaBuf, thetaPrecision, thetas, stride)){
+			clear(thetaBuf, thetaPrecision, dim).waitFor();
+		}
+		if(wBuf != null && !stream(wBuf, weightPrecision, ws, stride)){
+			clear(wBuf, weightPrecision, dim).waitFor();
+		}
+		if(!stream(traceBuf, weightPrecision, classRows(traces), traceWidth())){
+			clear(traceBuf, weightPrecision, dim, traceWidth()).waitFor();
+		}
+	}
+	
+	/**
+	 * @param rows	Rows of traces, rows[i] belongs to demon i, can be null
+	 * @return	The rows of the trace buffer: with shared traces, class c gets the first row of its demons that is not null
+	 */
+	private <T> T[] classRows(T[] rows){
+		if(traceClassBuf == null || rows == null){
+			return rows;
+		}
+		T[] classRows= Arrays.copyOf(rows, traceStride);
+		Arrays.fill(classRows, null);
+		for(int i=0; i<Math.min(rows.length, demons.size()); i++){
+			if(rows[i] != null && demons.get(i) != null && classRows[traceClass[i]] == null){
+				classRows[traceClass[i]]= rows[i];
+			}
+		}
+		return classRows;
+	}
+	
+	/**
+	 * Send weights stored per demon to the GPU by blocks of features. Two staging buffers of bounded size are used in turn:
+	 * one is filled while the other one is being sent.
+	 * @param buffer		The buffer
+	 * @param precision		The format of the buffer
+	 * @param rows			The weights, rows[i] belongs to demon i, a null row gives zeros
+	 * @param stride		The number of rows of the buffer, see traceWidth
+	 * @return	False if every row is null, nothing is sent in that case
+	 */
+	private boolean stream(CLBuffer<?> buffer, Precision precision, float[][] rows, int stride){
+		boolean any= false;
+		for(float[] row: rows){
+			any |= row != null;
+		}
+		if(!any){
+			return false;
+		}
+		int features= Math.max(1, uploadChunk/stride);
+		float[] values= new float[features*stride];
+		Pointer<?>[] staging= {precision.allocate(values.length, context.getByteOrder()), 
+				precision.allocate(values.length, context.getByteOrder())};
+		CLEvent[] writes= new CLEvent[2];
+		int k= 0;
+		for(int start=0; start<dim; start+= features){
+			int end= Math.min(dim, start+features);
+			Arrays.fill(values, 0f);
+			for(int i=0; i<rows.length; i++){
+				float[] row= rows[i];
+				if(row == null){
+					continue;
+				}
+				for(int j=start; j<end; j++){
+					values[i + (j-start)*stride]= row[j];
 				}
-				
-				tmp= d.getW();
-				if(tmp != null){
-					w.set(i+j*numDemon[0], tmp[j]);
+			}
+			
+			// the staging buffer must have been sent before it is filled again
+			if(writes[k] != null){
+				writes[k].waitFor();
+			}
+			precision.set(staging[k], 0, values);
+			writes[k]= write(buffer, (long) start*stride, (long) (end-start)*stride, staging[k], false);
+			k ^= 1;
+		}
+		CLEvent.waitFor(writes);
+		staging[0].release();
+		staging[1].release();
+		return true;
+	}
+	
+	/**
+	 * Convert weights stored per demon into the GPU layout and send them to the GPU.
+	 * The conversion is split by blocks of features amongst the threads of the pool.
+	 * Any of the arrays can be null, and so can any row, in which case the GPU keeps zeros.
+	 * Each row holds dim weights, ws is ignored if the algorithm has no w weights.
+	 * @param thetas	The theta weights, thetas[i] belongs to demon i of this GPUHorde
+	 * @param ws		The w weights
+	 * @param traces	The traces, with shared traces the first row of a class that is not null sets the trace of the class
+	 * @param pool		The threads doing the conversion
+	 */
+	public void writeWeights(double[][] thetas, double[][] ws, double[][] traces, ExecutorService pool){
+		if(demons.size() == 0){
+			return;
+		}
+		writeLayout(thetaBuf, thetaPrecision, thetas, stride, pool);
+		writeLayout(wBuf, weightPrecision, ws, stride, pool);
+		writeLayout(traceBuf, weightPrecision, classRows(traces), traceWidth(), pool);
+	}
+	
+	/**
+	 * Fetch the weights from the GPU and convert them into one array per demon.
+	 * The arrays must be allocated by the caller. Any of them can be null, and so can any row.
+	 * @param thetas	Where to store the theta weights, thetas[i] belongs to demon i of this GPUHorde
+	 * @param ws		Where to store the w weights
+	 * @param traces	Where to store the traces
+	 * @param pool		The threads doing the conversion
+	 */
+	public void readWeights(double[][] thetas, double[][] ws, double[][] traces, ExecutorService pool){
+		if(demons.size() == 0){
+			return;
+		}
+		readLayout(thetaBuf, thetaPrecision, thetas, stride, pool);
+		readLayout(wBuf, weightPrecision, ws, stride, pool);
+		if(traceClassBuf == null || traces == null){
+			readLayout(traceBuf, weightPrecision, traces, stride, pool);
+			return;
+		}
+		// read every shared trace once, then copy it to each of its demons
+		double[][] classRows= new double[traceStride][];
+		for(int i=0; i<Math.min(traces.length, demons.size()); i++){
+			if(traces[i] != null && demons.get(i) != null && classRows[traceClass[i]] == null){
+				classRows[traceClass[i]]= new double[dim];
+			}
+		}
+		readLayout(traceBuf, weightPrecision, classRows, traceStride, pool);
+		for(int i=0; i<Math.min(traces.length, demons.size()); i++){
+			if(traces[i] != null && demons.get(i) != null){
+				System.arraycopy(classRows[traceClass[i]], 0, traces[i], 0, dim);
+			}
+		}
+	}
+	
+	private void writeLayout(CLBuffer<?> buffer, final Precision precision, final double[][] rows, final int stride, ExecutorService pool){
+		if(rows == null || buffer == null){
+			return;
+		}
+		final Pointer<?> layout= precision.allocate((long) stride*dim, context.getByteOrder());
+		List<Future<?>> tasks= new ArrayList<Future<?>>();
+		for(int block=0; block<dim; block+= featureBlock){
+			final int start= block, end= Math.min(dim, block+featureBlock);
+			tasks.add(pool.submit(new Runnable() {
+				@Override
+				public void run() {
+					float[] values= new float[(end-start)*stride];
+					for(int i=0; i<rows.length; i++){
+						double[] row= rows[i];
+						if(row == null){
+							continue;
+						}
+						for(int j=start; j<end; j++){
+							values[i + (j-start)*stride]= (float) row[j];
+						}
+					}
+					precision.set(layout, (long) start*stride, values);
 				}
-				
-				tmp= d.getTrace();
-				if(tmp != null){
-					trace.set(i+j*numDemon[0], tmp[j]);
+			}));
+		}
+		waitFor(tasks);
+		write(buffer, 0, (long) stride*dim, layout);
+		layout.release();
+	}
+	
+	private void readLayout(CLBuffer<?> buffer, final Precision precision, final double[][] rows, final int stride, ExecutorService pool){
+		if(rows == null || buffer == null){
+			return;
+		}
+		final Pointer<?> layout= buffer.read(queue, demonUpdate);
+		List<Future<?>> tasks= new ArrayList<Future<?>>();
+		for(int block=0; block<dim; block+= featureBlock){
+			final int start= block, end= Math.min(dim, block+featureBlock);
+			tasks.add(pool.submit(new Runnable() {
+				@Override
+				public void run() {
+					float[] values= precision.get(layout, (long) start*stride, (end-start)*stride);
+					for(int i=0; i<rows.length; i++){
+						double[] row= rows[i];
+						if(row == null){
+							continue;
+						}
+						for(int j=start; j<end; j++){
+							row[j]= values[i + (j-start)*stride];
+						}
+					}
 				}
+			}));
+		}
+		waitFor(tasks);
+		layout.release();
+	}
+	
+	private static void waitFor(List<Future<?>> tasks){
+		for(Future<?> task: tasks){
+			try {
+				task.get();
+			} catch (InterruptedException e) {
+				throw new RuntimeException(e);
+			} catch (ExecutionException e) {
+				throw new RuntimeException(e.getCause());
 			}
 		}
-		
-		// send the weights to the GPU
-		traceBuf.write(queue, trace, true, demonUpdate);
-		wBuf.write(queue, w, true, demonUpdate);
-		thetaBuf.write(queue, theta, true, demonUpdate);
-		
-		trace.release();
-		w.release();
-		theta.release();
 	}
 }
@@ -0,0 +1,20 @@
+package horde;
+
+/**
+ * Receives the history of the predictions recorded by a CLHorde.
+ * The blocks are delivered in order, by a background thread, as soon as they are read back from the GPUs.
+ *
+ * @author Clement Gehring
+ *
+ */
+public interface HistoryListener {
+
+	/**
+	 * A block of consecutive updates was read back.
+	 * @param firstStep		The index of the first update of the block, counting only the updates with an x_t
+	 * @param steps			The number of updates in the block
+	 * @param predictions	The prediction of demon i after update firstStep+s is at s*nbDemons + i
+	 * @param errors		The TD errors, in the same layout, or null if they are not recorded
+	 */
+	void history(long firstStep, int steps, float[] predictions, float[] errors);
+}
@@ -0,0 +1,179 @@
+package horde;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
+
+import rlpark.plugin.rltoys.algorithms.LinearLearner;
+import rlpark.plugin.rltoys.algorithms.predictions.td.GTDLambda;
+import rlpark.plugin.rltoys.algorithms.traces.Traces;
+import rlpark.plugin.rltoys.envio.policy.Policy;
+import rlpark.plugin.rltoys.horde.demons.Demon;
+import rlpark.plugin.rltoys.horde.demons.PredictionOffPolicyDemon;
+import rlpark.plugin.rltoys.horde.functions.GammaFunction;
+import rlpark.plugin.rltoys.horde.functions.OutcomeFunction;
+import rlpark.plugin.rltoys.horde.functions.RewardFunction;
+import rlpark.plugin.rltoys.math.vector.MutableVector;
+
+/**
+ * Moves whole lists of demons between rlpark and CLHorde.
+ * Only PredictionOffPolicyDemon learning with GTDLambda can be converted since it is the algorithm run by the GPUs.
+ * Some of the fields needed are not exposed by rlpark, they are read by reflection.
+ *
+ * Typical use:
+ * 	List<CLDemon> clDemons= HordeConverter.convert(demons);
+ * 	CLHorde horde= new CLHorde(clDemons, ...);
+ * 	HordeConverter.setParam(horde, demons);
+ * 	HordeConverter.importWeights(horde, demons);
+ *
+ * @author Clement Gehring
+ *
+ */
+public class HordeConverter {
+
+	private HordeConverter(){
+	}
+
+	/**
+	 * Create the CLDemons equivalent to rlpark demons, keeping the same policies and functions.
+	 * The weights are not copied, use importWeights once the CLHorde is built.
+	 * @param demons	The rlpark demons
+	 * @return		The CLDemons in the same order
+	 */
+	public static List<CLDemon> convert(List<? extends Demon> demons){
+		List<CLDemon> clDemons= new ArrayList<CLDemon>(demons.size());
+		for(Demon demon: demons){
+			clDemons.add(convert(checkDemon(demon)));
+		}
+		return clDemons;
+	}
+
+	/**
+	 * Create the CLDemon equivalent to an rlpark demon, keeping the same policies and functions.
+	 * @param demon		The rlpark demon
+	 * @return		The new CLDemon without weights
+	 */
+	public static CLDemon convert(PredictionOffPolicyDemon demon){
+		Policy target= demon.targetPolicy();
+		Policy behaviour= (Policy) field(demon, "behaviour");
+		RewardFunction rfn= demon.rewardFunction();
+		GammaFunction gfn= (GammaFunction) field(demon, "gammaFunction");
+		OutcomeFunction ofn= (OutcomeFunction) field(demon, "outcomeFunction");
+		return new CLDemon(target, behaviour, rfn, gfn, ofn);
+	}
+
+	/**
+	 * Set the parameters of a CLHorde to the ones used by the rlpark demons.
+	 * A CLHorde shares alpha, eta and lambda amongst all its demons so they must be the same for all learners.
+	 * @param horde		The CLHorde
+	 * @param demons	The rlpark demons
+	 */
+	public static void setParam(CLHorde horde, List<? extends Demon> demons){
+		float[] param= null;
+		for(Demon demon: demons){
+			float[] p= param(learner(demon));
+			if(param == null){
+				param= p;
+			}else if(param[0] != p[0] || param[1] != p[1] || param[2] != p[2]){
+				throw new IllegalArgumentException("All learners must share the same alpha, eta and lambda");
+			}
+		}
+		if(param != null){
+			horde.setParam(param[0], param[1], param[2]);
+		}
+	}
+
+	/**
+	 * Copy theta, w and the trace of the rlpark learners directly into the GPU buffers of a CLHorde.
+	 * @param horde		The CLHorde built from convert(demons)
+	 * @param demons	The rlpark demons
+	 */
+	public static void importWeights(CLHorde horde, List<? extends Demon> demons){
+		double[][] thetas= new double[demons.size()][];
+		double[][] ws= new double[demons.size()][];
+		double[][] traces= new double[demons.size()][];
+		for(int i=0; i<thetas.length; i++){
+			GTDLambda gtd= learner(demons.get(i));
+			thetas[i]= gtd.weights().data;
+			ws[i]= gtd.secondaryWeights().data;
+			traces[i]= gtd.trace().vect().accessData();
+		}
+		horde.importWeights(thetas, ws, traces);
+	}
+
+	/**
+	 * Copy theta, w and the trace of a CLHorde back into the rlpark learners.
+	 * @param horde		The CLHorde built from convert(demons)
+	 * @param demons	The rlpark demons, in the same order as in the CLHorde
+	 */
+	public static void exportWeights(CLHorde horde, List<? extends Demon> demons){
+		double[][] thetas= new double[demons.size()][];
+		double[][] ws= new double[demons.size()][];
+		double[][] traces= new double[demons.size()][];
+		for(int i=0; i<thetas.length; i++){
+			GTDLambda gtd= learner(demons.get(i));
+			thetas[i]= gtd.weights().data;
+			ws[i]= gtd.secondaryWeights().data;
+			traces[i]= new double[thetas[i].length];
+		}
+		horde.exportWeights(thetas, ws, traces);
+
+		// the traces are often sparse, only set the active entries
+		for(int i=0; i<traces.length; i++){
+			Traces trace= learner(demons.get(i)).trace();
+			MutableVector e= trace.vect();
+			e.clear();
+			for(int j=0; j<traces[i].length; j++){
+				if(traces[i][j] != 0){
+					e.setEntry(j, traces[i][j]);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Get the alpha, eta and lambda parameters of a learner
+	 * @param gtd	The learner
+	 * @return	An array containing alpha, eta and lambda
+	 */
+	static float[] param(GTDLambda gtd){
+		double lambda= (Double) field(gtd, "lambda");
+		return new float[] {(float) gtd.alpha_v, (float) (gtd.alpha_w/gtd.alpha_v), (float) lambda};
+	}
+
+	static GTDLambda learner(Demon demon){
+		LinearLearner learner= checkDemon(demon).learner();
+		if(!(learner instanceof GTDLambda)){
+			throw new IllegalArgumentException("Only GTDLambda learners can be converted");
+		}
+		return (GTDLambda) learner;
+	}
+
+	private static PredictionOffPolicyDemon checkDemon(Demon demon){
+		if(!(demon instanceof PredictionOffPolicyDemon)){
+			throw new IllegalArgumentException("Only PredictionOffPolicyDemon can be converted");
+		}
+		return (PredictionOffPolicyDemon) demon;
+	}
+
+	/**
+	 * Read a field that rlpark does not expose
+	 * @param o		The object
+	 * @param name	The name of the field
+	 * @return	The value of the field
+	 */
+	private static Object field(Object o, String name){
+		for(Class<?> c= o.getClass(); c != null; c= c.getSuperclass()){
+			try {
+				Field f= c.getDeclaredField(name);
+				f.setAccessible(true);
+				return f.get(o);
+			} catch (NoSuchFieldException e) {
+				// look in the super class
+			} catch (IllegalAccessException e) {
+				throw new RuntimeException(e);
+			}
+		}
+		throw new RuntimeException("No field "+ name+ " in "+ o.getClass().getName());
+	}
+}
@@ -0,0 +1,169 @@
+package horde;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import rlpark.plugin.rltoys.horde.functions.GammaFunction;
+import rlpark.plugin.rltoys.horde.functions.OutcomeFunction;
+import rlpark.plugin.rltoys.horde.functions.RewardFunction;
+import rlpark.plugin.rltoys.math.vector.RealVector;
+import rlpark.plugin.rltoys.math.vector.implementations.PVector;
+
+/**
+ * A process learning one shard of the demons of a DistributedHorde on its own devices.
+ * The worker builds a CLHorde from the demons sent by the coordinator, then updates it with the feature vectors,
+ * the rewards, the gammas and the rhos sent at every step and answers with the time it took. Every few steps,
+ * as asked by the coordinator, the answer also holds the predictions and the summary of the learning statistics.
+ *
+ * The messages are binary, one per step and per worker, see DistributedHorde.
+ *
+ * @author Clement Gehring
+ *
+ */
+public class HordeWorker implements Runnable {
+
+	/**
+	 * The kinds of messages sent by the coordinator
+	 */
+	static final byte setup= 0, update= 1, shutdown= 2;
+	/**
+	 * The flags of an update: x_t is null, the rhos are sent, the predictions and the statistics are asked for
+	 */
+	static final byte resetFlag= 1, rhoFlag= 2, reportFlag= 4;
+	/**
+	 * The rate of the statistics reported to the coordinator
+	 */
+	static final float statsRate= 0.01f;
+
+	private final Transport.Link link;
+	private CLHorde horde;
+
+	/**
+	 * @param link	The link to the coordinator
+	 */
+	public HordeWorker(Transport.Link link){
+		this.link= link;
+	}
+
+	/**
+	 * Serve the coordinator until it shuts the worker down
+	 */
+	@Override
+	public void run() {
+		try{
+			while(true){
+				ByteBuffer message= link.receive();
+				byte kind= message.get();
+				if(kind == setup){
+					setup(message);
+				}else if(kind == update){
+					update(message);
+				}else{
+					break;
+				}
+			}
+		}catch(IOException e){
+			throw new RuntimeException(e);
+		}catch(ClassNotFoundException e){
+			throw new RuntimeException(e);
+		}finally{
+			if(horde != null){
+				horde.shutdown();
+			}
+			try {
+				link.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private void setup(ByteBuffer message) throws IOException, ClassNotFoundException{
+		int nbFeatures= message.getInt();
+		boolean CPU= message.get() != 0;
+		byte[] serialized= new byte[message.remaining()];
+		message.get(serialized);
+		ObjectInputStream ois= new ObjectInputStream(new ByteArrayInputStream(serialized));
+		List<CLDemon> demons= (List<CLDemon>) ois.readObject();
+		ois.close();
+
+		// the functions stay with the coordinator, which sends their values
+		horde= new CLHorde(demons, new ArrayList<RewardFunction>(), new ArrayList<OutcomeFunction>(),
+				new ArrayList<GammaFunction>(), nbFeatures, CPU);
+		horde.trackStats(statsRate);
+		ByteBuffer ready= ByteBuffer.allocate(4);
+		ready.putInt(demons.size()).flip();
+		link.send(ready);
+	}
+
+	private void update(ByteBuffer message) throws IOException{
+		long start= System.nanoTime();
+		byte flags= message.get();
+		int nbFeatures= message.getInt();
+		RealVector x_t= null, x_tp1;
+		if((flags & resetFlag) == 0){
+			x_t= new PVector(getDoubles(message, nbFeatures));
+		}
+		x_tp1= new PVector(getDoubles(message, nbFeatures));
+		int nbDemons= message.getInt();
+		float[] rewards= getFloats(message, nbDemons);
+		float[] gammas= getFloats(message, nbDemons);
+		float[] rhos= (flags & rhoFlag) != 0 ? getFloats(message, nbDemons) : null;
+		horde.update(rewards, gammas, rhos, x_t, x_tp1);
+
+		ByteBuffer answer;
+		if((flags & reportFlag) != 0){
+			float[] predictions= horde.predictions();
+			LearningStats.Summary summary= horde.statsSummary();
+			answer= ByteBuffer.allocate(8 + 3*8 + 4 + 4 + 4*predictions.length);
+			answer.putLong(System.nanoTime() - start);
+			answer.putDouble(summary.meanSquaredError).putDouble(summary.meanAbsoluteError).putDouble(summary.maxSurprise);
+			answer.putInt(summary.diverged);
+			answer.putInt(predictions.length);
+			putFloats(answer, predictions);
+		}else{
+			answer= ByteBuffer.allocate(8);
+			answer.putLong(System.nanoTime() - start);
+		}
+		answer.flip();
+		link.send(answer);
+	}
+
+	static void putFloats(ByteBuffer buffer, float[] values){
+		buffer.asFloatBuffer().put(values);
+		buffer.position(buffer.position() + 4*values.length);
+	}
+
+	static float[] getFloats(ByteBuffer buffer, int length){
+		float[] values= new float[length];
+		buffer.asFloatBuffer().get(values);
+		buffer.position(buffer.position() + 4*length);
+		return values;
+	}
+
+	private static double[] getDoubles(ByteBuffer buffer, int length){
+		float[] f= getFloats(buffer, length);
+		double[] d= new double[length];
+		for(int i=0; i<length; i++){
+			d[i]= f[i];
+		}
+		return d;
+	}
+
+	/**
+	 * Start a worker listening on a SocketTransport
+	 * @param args	The index of the worker, the port of worker 0, optionally the address to listen on (loopback by default)
+	 * @throws IOException
+	 */
+	public static void main(String[] args) throws IOException{
+		int node= Integer.parseInt(args[0]);
+		int basePort= Integer.parseInt(args[1]);
+		SocketTransport transport= args.length > 2 ? new SocketTransport(args[2], basePort) : SocketTransport.loopback(basePort);
+		new HordeWorker(transport.accept(node)).run();
+	}
+}
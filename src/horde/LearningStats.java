@@ -0,0 +1,100 @@
+package horde;
+
+/**
+ * The learning statistics of the demons, maintained on the GPUs by the update pass.
+ * The averages are exponential moving averages of the TD errors, see updateStats in horde.cl.
+ *
+ * @author Clement Gehring
+ *
+ */
+public class LearningStats {
+	/**
+	 * The number of statistics stored per demon on the GPUs
+	 */
+	static final int nbStats= 6;
+	static final int meanErrorStat= 0, meanSquaredErrorStat= 1, surpriseStat= 2, progressStat= 3, divergedStat= 4, normalizerStat= 5;
+
+	/**
+	 * The average TD error of every demon
+	 */
+	public final float[] meanError;
+	/**
+	 * The average squared TD error of every demon
+	 */
+	public final float[] meanSquaredError;
+	/**
+	 * The distance of the last TD error to the average, in standard deviations
+	 */
+	public final float[] surprise;
+	/**
+	 * |average TD error|/sqrt(average squared TD error): close to one while the demon makes a systematic error,
+	 * close to zero once its error is only noise
+	 */
+	public final float[] progress;
+	/**
+	 * True if the demon had a TD error that is not finite
+	 */
+	public final boolean[] diverged;
+
+	LearningStats(int nbDemons){
+		meanError= new float[nbDemons];
+		meanSquaredError= new float[nbDemons];
+		surprise= new float[nbDemons];
+		progress= new float[nbDemons];
+		diverged= new boolean[nbDemons];
+	}
+
+	/**
+	 * Store the statistics of a demon from the GPU layout
+	 * @param index		The global index of the demon
+	 * @param stats		The statistics of all the demons of a GPUHorde
+	 * @param local		The local index of the demon
+	 * @param stride	The stride of the GPUHorde
+	 */
+	void set(int index, float[] stats, int local, int stride){
+		float normalizer= stats[local + normalizerStat*stride];
+		if(normalizer > 0){
+			meanError[index]= stats[local + meanErrorStat*stride]/normalizer;
+			meanSquaredError[index]= stats[local + meanSquaredErrorStat*stride]/normalizer;
+		}
+		surprise[index]= stats[local + surpriseStat*stride];
+		progress[index]= stats[local + progressStat*stride];
+		diverged[index]= stats[local + divergedStat*stride] > 0;
+	}
+
+	/**
+	 * Statistics of the whole horde, reduced on the GPUs
+	 */
+	public static class Summary {
+		/**
+		 * The average over the demons of their average squared TD error, the diverged demons are left out
+		 */
+		public final double meanSquaredError;
+		/**
+		 * The average over the demons of their |average TD error|, the diverged demons are left out
+		 */
+		public final double meanAbsoluteError;
+		/**
+		 * The largest surprise of the demons that did not diverge
+		 */
+		public final double maxSurprise;
+		/**
+		 * The number of demons that had a TD error that is not finite
+		 */
+		public final int diverged;
+
+		Summary(double squaredSum, double absoluteSum, double maxSurprise, int diverged, int nbDemons){
+			int healthy= nbDemons - diverged;
+			this.meanSquaredError= healthy > 0 ? squaredSum/healthy : 0;
+			this.meanAbsoluteError= healthy > 0 ? absoluteSum/healthy : 0;
+			this.maxSurprise= maxSurprise;
+			this.diverged= diverged;
+		}
+
+		@Override
+		public String toString(){
+			return "mean squared error: "+ meanSquaredError+ ", mean absolute error: "+ meanAbsoluteError
+					+ ", max surprise: "+ maxSurprise+ ", diverged: "+ diverged;
+		}
+	}
+}
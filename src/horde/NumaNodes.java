@@ -0,0 +1,97 @@
+package horde;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+
+import org.bridj.Pointer;
+
+import com.nativelibs4java.opencl.CLDevice;
+import com.nativelibs4java.opencl.CLPlatform;
+import com.nativelibs4java.opencl.library.OpenCLLibrary;
+import com.nativelibs4java.opencl.library.OpenCLLibrary.cl_device_id;
+
+/**
+ * Splits the CPU device into one sub-device per NUMA node, with device fission (OpenCL 1.2).
+ *
+ * The OpenCL runtime runs the kernels of a sub-device on the cores of its node only, so the buffers of the GPUHordes
+ * of a sub-device are first touched, when their weights are sent or cleared, and then updated by threads of the same
+ * node. Each node gets its own context and queue in the DeviceRuntime and CLHorde partitions the demons amongst the
+ * nodes as amongst GPUs, gathering the predictions of all of them.
+ *
+ * JavaCL 1.0 has no API for sub-devices: the native call is made directly and the devices are wrapped by reflection.
+ * The CPU is used as a single device if the machine has a single node, if the platform cannot split its device
+ * or if the system property horde.numa is false: see DeviceRuntime.nbDevices for the outcome.
+ *
+ * @author Clement Gehring
+ *
+ */
+class NumaNodes {
+
+	/**
+	 * Where Linux lists the NUMA nodes
+	 */
+	private static final File nodeDirectory= new File("/sys/devices/system/node");
+
+	/**
+	 * @return	The number of NUMA nodes of the machine, 1 if they cannot be listed
+	 */
+	static int count(){
+		File[] nodes= nodeDirectory.listFiles(new FileFilter() {
+			@Override
+			public boolean accept(File file) {
+				return file.isDirectory() && file.getName().matches("node[0-9]+");
+			}
+		});
+		return nodes == null || nodes.length == 0 ? 1 : nodes.length;
+	}
+
+	/**
+	 * Split a CPU device by NUMA node
+	 * @param platform	The platform of the device
+	 * @param device	The CPU device
+	 * @return	One sub-device per node, or null if the device is not split
+	 */
+	static CLDevice[] split(CLPlatform platform, CLDevice device){
+		if(!Boolean.parseBoolean(System.getProperty("horde.numa", "true")) || count() < 2){
+			return null;
+		}
+		try{
+			OpenCLLibrary cl= new OpenCLLibrary();
+			Method entity= Class.forName("com.nativelibs4java.opencl.CLAbstractEntity").getDeclaredMethod("getEntity");
+			entity.setAccessible(true);
+			cl_device_id id= new cl_device_id((Long) entity.invoke(device));
+
+			// cl_device_partition_property is a pointer sized integer, the list ends with 0
+			@SuppressWarnings({ "unchecked", "rawtypes" })
+			Pointer<Pointer<Integer>> properties= (Pointer) Pointer.pointerToSizeTs(
+					OpenCLLibrary.CL_DEVICE_PARTITION_BY_AFFINITY_DOMAIN, OpenCLLibrary.CL_DEVICE_AFFINITY_DOMAIN_NUMA, 0);
+			Pointer<Integer> count= Pointer.allocateInt();
+			int status= cl.clCreateSubDevices(id, properties, 0, null, count);
+			if(status != OpenCLLibrary.CL_SUCCESS || count.get() < 2){
+				return null;
+			}
+			int nodes= count.get();
+			Pointer<cl_device_id> ids= Pointer.allocateTypedPointers(cl_device_id.class, nodes);
+			status= cl.clCreateSubDevices(id, properties, nodes, ids, null);
+			if(status != OpenCLLibrary.CL_SUCCESS){
+				return null;
+			}
+
+			Constructor<CLDevice> wrap= CLDevice.class.getDeclaredConstructor(CLPlatform.class, long.class);
+			wrap.setAccessible(true);
+			CLDevice[] devices= new CLDevice[nodes];
+			for(int i=0; i<nodes; i++){
+				devices[i]= wrap.newInstance(platform, ids.get(i).getPeer());
+			}
+			return devices;
+		}catch(Exception e){
+			e.printStackTrace();
+			return null;
+		}catch(UnsatisfiedLinkError e){
+			// an OpenCL 1.1 library has no clCreateSubDevices
+			return null;
+		}
+	}
+}
@@ -0,0 +1,213 @@
+package horde;
+
+import java.nio.ByteOrder;
+
+import org.bridj.Pointer;
+
+import com.nativelibs4java.opencl.CLBuffer;
+import com.nativelibs4java.opencl.CLContext;
+import com.nativelibs4java.opencl.CLMem.Usage;
+
+/**
+ * How the weights are stored on the GPUs.
+ * The 16 bit formats halve the memory and the bandwidth used by a weight buffer. The kernels still compute
+ * with floats, only the loads and the stores convert the values. FP16 keeps more precision for small values
+ * such as traces, BFLOAT16 keeps the range of a float.
+ *
+ * The host always sees floats: this class converts the weights when they are sent to or read from the GPUs.
+ *
+ * @author Clement Gehring
+ *
+ */
+public enum Precision {
+	FP32(4, null),
+	FP16(2, "HALF"),
+	BFLOAT16(2, "BFLOAT16");
+
+	/**
+	 * The number of bytes per weight
+	 */
+	final int bytes;
+	/**
+	 * The suffix of the macro selecting that storage in horde.cl, null for floats
+	 */
+	final String macro;
+
+	Precision(int bytes, String macro){
+		this.bytes= bytes;
+		this.macro= macro;
+	}
+
+	/**
+	 * @return The number of bytes per weight
+	 */
+	public int bytes(){
+		return bytes;
+	}
+
+	/**
+	 * Create a weight buffer on the GPU
+	 * @param context	The context of the GPU
+	 * @param size		The number of weights
+	 * @return	A buffer of floats or of shorts
+	 */
+	CLBuffer<?> createBuffer(CLContext context, long size){
+		if(this == FP32){
+			return context.createFloatBuffer(Usage.InputOutput, size);
+		}
+		return context.createShortBuffer(Usage.InputOutput, size);
+	}
+
+	/**
+	 * Allocate host memory in the GPU format
+	 * @param size	The number of weights
+	 * @param order	The byte order of the GPU
+	 * @return	The memory, set to zero
+	 */
+	Pointer<?> allocate(long size, ByteOrder order){
+		if(this == FP32){
+			return Pointer.allocateFloats(size).order(order);
+		}
+		return Pointer.allocateShorts(size).order(order);
+	}
+
+	/**
+	 * Encode floats in host memory allocated with allocate
+	 * @param p			The memory
+	 * @param index		The index of the first weight to set
+	 * @param values	The values
+	 */
+	@SuppressWarnings("unchecked")
+	void set(Pointer<?> p, long index, float[] values){
+		if(this == FP32){
+			((Pointer<Float>) p).setFloatsAtOffset(4*index, values);
+			return;
+		}
+		short[] s= new short[values.length];
+		for(int i=0; i<s.length; i++){
+			s[i]= encode(values[i]);
+		}
+		((Pointer<Short>) p).setShortsAtOffset(2*index, s);
+	}
+
+	/**
+	 * Decode floats from host memory holding weights in the GPU format
+	 * @param p			The memory
+	 * @param index		The index of the first weight to get
+	 * @param length	The number of weights
+	 * @return	The values
+	 */
+	@SuppressWarnings("unchecked")
+	float[] get(Pointer<?> p, long index, int length){
+		if(this == FP32){
+			return ((Pointer<Float>) p).next(index).getFloats(length);
+		}
+		short[] s= ((Pointer<Short>) p).next(index).getShorts(length);
+		float[] f= new float[length];
+		for(int i=0; i<length; i++){
+			f[i]= decode(s[i]);
+		}
+		return f;
+	}
+
+	/**
+	 * @param f		A float
+	 * @return	The closest value in this format, as stored on the GPU (only for the 16 bit formats)
+	 */
+	public short encode(float f){
+		return this == FP16 ? toHalf(f) : toBfloat16(f);
+	}
+
+	/**
+	 * @param s		A value stored on the GPU (only for the 16 bit formats)
+	 * @return	The float it represents
+	 */
+	public float decode(short s){
+		return this == FP16 ? fromHalf(s) : fromBfloat16(s);
+	}
+
+	/**
+	 * Convert a float to IEEE half precision, rounding to the nearest even like vstore_half_rte
+	 * @param f		The float
+	 * @return	The bits of the half
+	 */
+	public static short toHalf(float f){
+		int bits= Float.floatToRawIntBits(f);
+		int sign= (bits >>> 16) & 0x8000;
+		int exponent= (bits >>> 23) & 0xff;
+		int mantissa= bits & 0x7fffff;
+		if(exponent == 0xff){
+			// infinity or NaN
+			return (short) (sign | 0x7c00 | (mantissa != 0 ? 0x200 : 0));
+		}
+		int e= exponent - 127 + 15;
+		if(e >= 0x1f){
+			return (short) (sign | 0x7c00);
+		}
+		int half, remainder, midpoint;
+		if(e <= 0){
+			// subnormal half or zero
+			if(e < -10){
+				return (short) sign;
+			}
+			mantissa |= 0x800000;
+			int shift= 14 - e;
+			half= mantissa >> shift;
+			remainder= mantissa & ((1 << shift) - 1);
+			midpoint= 1 << (shift - 1);
+		}else{
+			half= (e << 10) | (mantissa >> 13);
+			remainder= mantissa & 0x1fff;
+			midpoint= 0x1000;
+		}
+		// a carry into the exponent gives the next power of two, or infinity, as it should
+		if(remainder > midpoint || (remainder == midpoint && (half & 1) != 0)){
+			half++;
+		}
+		return (short) (sign | half);
+	}
+
+	/**
+	 * Convert IEEE half precision to a float
+	 * @param h		The bits of the half
+	 * @return	The float
+	 */
+	public static float fromHalf(short h){
+		int bits= h & 0xffff;
+		int sign= (bits & 0x8000) << 16;
+		int exponent= (bits >>> 10) & 0x1f;
+		int mantissa= bits & 0x3ff;
+		if(exponent == 0x1f){
+			return Float.intBitsToFloat(sign | 0x7f800000 | (mantissa << 13));
+		}
+		if(exponent == 0){
+			// zero or subnormal, mantissa*2^-24
+			float f= mantissa * 5.9604645e-8f;
+			return sign != 0 ? -f : f;
+		}
+		return Float.intBitsToFloat(sign | ((exponent - 15 + 127) << 23) | (mantissa << 13));
+	}
+
+	/**
+	 * Convert a float to bfloat16, rounding to the nearest even like floatToBfloat16 in horde.cl
+	 * @param f		The float
+	 * @return	The bits of the bfloat16
+	 */
+	public static short toBfloat16(float f){
+		if(Float.isNaN(f)){
+			return (short) 0x7fc0;
+		}
+		int bits= Float.floatToRawIntBits(f);
+		bits += 0x7fff + ((bits >>> 16) & 1);
+		return (short) (bits >>> 16);
+	}
+
+	/**
+	 * Convert bfloat16 to a float
+	 * @param b		The bits of the bfloat16
+	 * @return	The float
+	 */
+	public static float fromBfloat16(short b){
+		return Float.intBitsToFloat((b & 0xffff) << 16);
+	}
+}
@@ -0,0 +1,135 @@
+package horde;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The predictions, and optionally the TD errors, of the last update of a CLHorde, published by the learner thread
+ * and read by any number of other threads without locks and without accessing the GPUs, see CLHorde.publishPredictions.
+ *
+ * Two versions are kept: the one being read and the one being written. The learner writes the next version in the
+ * version that is not published and then publishes it with a volatile write. A reader announces itself on the
+ * published version before copying it, the learner never overwrites a version that has readers and uses new
+ * arrays instead. A reader only retries when a version was published while it was announcing itself.
+ *
+ * @author Clement Gehring
+ *
+ */
+public class PredictionSurface {
+
+	/**
+	 * One version of the predictions
+	 */
+	private static class Version{
+		long step= -1;
+		float[] predictions, errors;
+		final AtomicInteger readers= new AtomicInteger();
+	}
+
+	/**
+	 * The published version, and the other one
+	 */
+	private volatile Version front= new Version();
+	private Version back= new Version();
+
+	/**
+	 * Publish the predictions of an update. Only one thread, the learner thread of a CLHorde, should call this.
+	 * @param step			The number of updates with an x_t done so far
+	 * @param predictions	The predictions, copied
+	 * @param errors		The TD errors, copied, can be null
+	 */
+	public void publish(long step, float[] predictions, float[] errors){
+		Version next= back;
+		if(next.readers.get() != 0){
+			// a slow reader still copies the old version, leave it the arrays
+			next= new Version();
+		}
+		next.step= step;
+		next.predictions= copy(predictions, next.predictions);
+		next.errors= copy(errors, next.errors);
+		back= front;
+		front= next;
+	}
+
+	private static float[] copy(float[] source, float[] destination){
+		if(source == null){
+			return null;
+		}
+		if(destination == null || destination.length != source.length){
+			destination= new float[source.length];
+		}
+		System.arraycopy(source, 0, destination, 0, source.length);
+		return destination;
+	}
+
+	/**
+	 * @return The step of the latest version, -1 if nothing was published yet
+	 */
+	public long step(){
+		return front.step;
+	}
+
+	/**
+	 * Copy the predictions of the latest version. This can be called from any thread.
+	 * @param predictions	Where to store the predictions, at least one per demon
+	 * @param errors		Where to store the TD errors, can be null, left alone if they are not published
+	 * @return	The step of the version copied, -1 if nothing was published yet
+	 */
+	public long read(float[] predictions, float[] errors){
+		while(true){
+			Version version= front;
+			version.readers.incrementAndGet();
+			try{
+				if(version != front){
+					// published in the meantime, the version may already be rewritten
+					continue;
+				}
+				if(version.predictions != null){
+					System.arraycopy(version.predictions, 0, predictions, 0, version.predictions.length);
+				}
+				if(errors != null && version.errors != null){
+					System.arraycopy(version.errors, 0, errors, 0, version.errors.length);
+				}
+				return version.step;
+			}finally{
+				version.readers.decrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * @return	A copy of the latest predictions, null if nothing was published yet
+	 */
+	public float[] predictions(){
+		while(true){
+			Version version= front;
+			version.readers.incrementAndGet();
+			try{
+				if(version != front){
+					continue;
+				}
+				return version.predictions == null ? null : version.predictions.clone();
+			}finally{
+				version.readers.decrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * @param index		The global index of a demon
+	 * @return	The latest prediction of that demon, 0 if nothing was published yet
+	 */
+	public float prediction(int index){
+		while(true){
+			Version version= front;
+			version.readers.incrementAndGet();
+			try{
+				if(version != front){
+					continue;
+				}
+				return version.predictions == null ? 0 : version.predictions[index];
+			}finally{
+				version.readers.decrementAndGet();
+			}
+		}
+	}
+}
@@ -0,0 +1,18 @@
+package horde;
+
+/**
+ * Told about the demons quarantined by a CLHorde because they diverged.
+ * The listener is called by the thread updating the CLHorde, after the update that detected the divergence.
+ *
+ * @author Clement Gehring
+ *
+ */
+public interface QuarantineListener {
+
+	/**
+	 * A demon diverged: its weights were set to zero and it is not updated anymore.
+	 * @param index		The global index of the demon
+	 * @param demon		The demon
+	 */
+	void quarantined(int index, CLDemon demon);
+}
@@ -0,0 +1,65 @@
+package horde;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * The result of a query selecting demons by their predictions: the indexes of the selected demons and their predictions.
+ *
+ * @author Clement Gehring
+ *
+ */
+public class Selection {
+	/**
+	 * The indexes of the selected demons
+	 */
+	public final int[] indexes;
+	/**
+	 * values[i] is the prediction of the demon indexes[i]
+	 */
+	public final float[] values;
+
+	public Selection(int[] indexes, float[] values){
+		this.indexes= indexes;
+		this.values= values;
+	}
+
+	/**
+	 * @return The number of selected demons
+	 */
+	public int size(){
+		return indexes.length;
+	}
+
+	/**
+	 * Keep the k largest of a set of candidates
+	 * @param indexes		The indexes of the candidates
+	 * @param values		The predictions of the candidates
+	 * @param nbDemons		The candidates with an index greater or equal are ignored (the padding of the GPUs)
+	 * @param k				The number of candidates to keep
+	 * @return	The k largest candidates, in decreasing order of prediction
+	 */
+	static Selection top(int[] indexes, final float[] values, int nbDemons, int k){
+		List<Integer> candidates= new ArrayList<Integer>(indexes.length);
+		for(int i=0; i<indexes.length; i++){
+			if(indexes[i] < nbDemons){
+				candidates.add(i);
+			}
+		}
+		Collections.sort(candidates, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				return Float.compare(values[b], values[a]);
+			}
+		});
+		k= Math.min(k, candidates.size());
+		Selection selection= new Selection(new int[k], new float[k]);
+		for(int i=0; i<k; i++){
+			selection.indexes[i]= indexes[candidates.get(i)];
+			selection.values[i]= values[candidates.get(i)];
+		}
+		return selection;
+	}
+}
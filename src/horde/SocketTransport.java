@@ -0,0 +1,125 @@
+package horde;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+
+/**
+ * A Transport over TCP sockets: worker i listens on basePort+i. Use the loopback address to run the workers on the same machine.
+ * Every message is sent as its length followed by its bytes, Nagle's algorithm is disabled.
+ *
+ * @author Clement Gehring
+ *
+ */
+public class SocketTransport implements Transport {
+
+	/**
+	 * How long the coordinator keeps trying to reach a worker that is still starting, in milliseconds
+	 */
+	private static final int connectTimeout= 30000, connectRetry= 100;
+
+	private final String host;
+	private final int basePort;
+
+	/**
+	 * @param host		The host of the workers
+	 * @param basePort	The port of worker 0
+	 */
+	public SocketTransport(String host, int basePort){
+		this.host= host;
+		this.basePort= basePort;
+	}
+
+	/**
+	 * @param basePort	The port of worker 0
+	 * @return	A transport to workers running on this machine
+	 */
+	public static SocketTransport loopback(int basePort){
+		return new SocketTransport("127.0.0.1", basePort);
+	}
+
+	@Override
+	public Link connect(int node) throws IOException {
+		long deadline= System.currentTimeMillis() + connectTimeout;
+		while(true){
+			try{
+				return new SocketLink(new Socket(host, basePort+node));
+			}catch(ConnectException e){
+				if(System.currentTimeMillis() > deadline){
+					throw e;
+				}
+			}
+			try {
+				Thread.sleep(connectRetry);
+			} catch (InterruptedException e) {
+				throw new IOException(e);
+			}
+		}
+	}
+
+	@Override
+	public Link accept(int node) throws IOException {
+		ServerSocket server= new ServerSocket(basePort+node, 1, InetAddress.getByName(host));
+		try{
+			return new SocketLink(server.accept());
+		}finally{
+			server.close();
+		}
+	}
+
+	static class SocketLink implements Link {
+		private final Socket socket;
+		private final DataInputStream in;
+		private final DataOutputStream out;
+		private long bytes;
+
+		SocketLink(Socket socket) throws IOException{
+			this.socket= socket;
+			// the messages are small and the coordinator waits for the answers
+			socket.setTcpNoDelay(true);
+			in= new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			out= new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+		}
+
+		@Override
+		public void send(ByteBuffer message) throws IOException {
+			int length= message.remaining();
+			out.writeInt(length);
+			if(message.hasArray()){
+				out.write(message.array(), message.arrayOffset() + message.position(), length);
+			}else{
+				byte[] b= new byte[length];
+				message.duplicate().get(b);
+				out.write(b);
+			}
+			out.flush();
+			bytes += 4 + length;
+		}
+
+		@Override
+		public ByteBuffer receive() throws IOException {
+			int length= in.readInt();
+			byte[] b= new byte[length];
+			in.readFully(b);
+			bytes += 4 + length;
+			return ByteBuffer.wrap(b);
+		}
+
+		@Override
+		public long bytes() {
+			return bytes;
+		}
+
+		@Override
+		public void close() throws IOException {
+			socket.close();
+		}
+	}
+}
@@ -0,0 +1,183 @@
+package horde;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The description of a tile coder run by the GPUHordes themselves, see CLHorde.setTileCoding.
+ * Like the TileCoders of rlpark, it holds groups of tilings over some of the inputs, each group displacing its tilings
+ * by a fraction of a tile, with optional hashing of the tiles and an optional bias feature. The features it produces are
+ * binary: one active feature per tiling.
+ *
+ * Without hashing every tiling of a group owns (resolution+1)^inputs features, one after the other. With hashing all the
+ * tilings share memorySize features. The bias feature, if any, is the last one.
+ *
+ * @author Clement Gehring
+ *
+ */
+public class TileCoding implements Serializable {
+
+	private static final long serialVersionUID = -3547061349372153245L;
+
+	/**
+	 * The number of ints describing a tiling, see tilings
+	 */
+	public static final int tilingInts= 6;
+
+	final float[] mins, scales;
+	/**
+	 * Per tiling: the first of its inputs in tilingInputs, their number, the resolution, the index of the tiling in its group,
+	 * the number of tilings of the group and its first feature
+	 */
+	private final List<int[]> tilings= new ArrayList<int[]>();
+	private final List<Integer> tilingInputs= new ArrayList<Integer>();
+	private int memorySize;
+	private boolean bias;
+	private int nbFeatures;
+
+	/**
+	 * @param mins	The lower bound of every input
+	 * @param maxs	The upper bound of every input
+	 */
+	public TileCoding(double[] mins, double[] maxs){
+		if(mins.length != maxs.length){
+			throw new IllegalArgumentException("Expected one bound of each kind per input");
+		}
+		this.mins= new float[mins.length];
+		this.scales= new float[mins.length];
+		for(int i=0; i<mins.length; i++){
+			this.mins[i]= (float) mins[i];
+			this.scales[i]= (float) (1/(maxs[i] - mins[i]));
+		}
+	}
+
+	/**
+	 * Add tilings over all the inputs
+	 * @param resolution	The number of tiles along every input
+	 * @param nbTilings		The number of tilings, displaced from each other
+	 */
+	public void addFullTilings(int resolution, int nbTilings){
+		int[] inputs= new int[mins.length];
+		for(int i=0; i<inputs.length; i++){
+			inputs[i]= i;
+		}
+		addTilings(inputs, resolution, nbTilings);
+	}
+
+	/**
+	 * Add tilings over every input alone
+	 * @param resolution	The number of tiles along the input
+	 * @param nbTilings		The number of tilings of every input
+	 */
+	public void addIndependentTilings(int resolution, int nbTilings){
+		for(int i=0; i<mins.length; i++){
+			addTilings(new int[] {i}, resolution, nbTilings);
+		}
+	}
+
+	/**
+	 * Add tilings over some of the inputs
+	 * @param inputs		The indexes of the inputs
+	 * @param resolution	The number of tiles along every input
+	 * @param nbTilings		The number of tilings, displaced from each other
+	 */
+	public void addTilings(int[] inputs, int resolution, int nbTilings){
+		if(bias){
+			throw new IllegalStateException("The bias feature must be added last");
+		}
+		long tiles= 1;
+		for(int input: inputs){
+			if(input < 0 || input >= mins.length){
+				throw new IllegalArgumentException("Unknown input: "+ input);
+			}
+			tiles *= resolution+1;
+		}
+		if(memorySize == 0 && nbFeatures + tiles*nbTilings > Integer.MAX_VALUE){
+			throw new IllegalArgumentException("Too many tiles, use hashing");
+		}
+		int first= tilingInputs.size();
+		for(int input: inputs){
+			tilingInputs.add(input);
+		}
+		for(int t=0; t<nbTilings; t++){
+			tilings.add(new int[] {first, inputs.length, resolution, t, nbTilings, memorySize > 0 ? 0 : nbFeatures});
+			if(memorySize == 0){
+				nbFeatures += tiles;
+			}
+		}
+	}
+
+	/**
+	 * Hash the tiles of the tilings added afterward into a fixed number of features
+	 * @param memorySize	The number of hashed features
+	 */
+	public void setHashing(int memorySize){
+		if(!tilings.isEmpty()){
+			throw new IllegalStateException("The hashing must be set before any tiling is added");
+		}
+		this.memorySize= memorySize;
+		nbFeatures= memorySize;
+	}
+
+	/**
+	 * Add a feature that is always active
+	 */
+	public void includeBias(){
+		if(!bias){
+			tilings.add(new int[] {0, 0, 0, 0, 1, nbFeatures});
+			nbFeatures++;
+			bias= true;
+		}
+	}
+
+	/**
+	 * @return	The number of features produced
+	 */
+	public int nbFeatures(){
+		return nbFeatures;
+	}
+
+	/**
+	 * @return	The number of inputs of an observation
+	 */
+	public int nbInputs(){
+		return mins.length;
+	}
+
+	/**
+	 * @return	The number of tilings, the bias included, which is the number of active features
+	 */
+	public int nbTilings(){
+		return tilings.size();
+	}
+
+	/**
+	 * @return	The number of hashed features, 0 if the tiles are not hashed
+	 */
+	public int memorySize(){
+		return memorySize;
+	}
+
+	/**
+	 * @return	The description of the tilings, tilingInts per tiling, as read by the tileCode kernel
+	 */
+	public int[] tilings(){
+		int[] values= new int[Math.max(1, tilings.size()*tilingInts)];
+		for(int i=0; i<tilings.size(); i++){
+			System.arraycopy(tilings.get(i), 0, values, i*tilingInts, tilingInts);
+		}
+		return values;
+	}
+
+	/**
+	 * @return	The inputs of all the tilings, one after the other
+	 */
+	public int[] tilingInputs(){
+		int[] values= new int[Math.max(1, tilingInputs.size())];
+		for(int i=0; i<tilingInputs.size(); i++){
+			values[i]= tilingInputs.get(i);
+		}
+		return values;
+	}
+}
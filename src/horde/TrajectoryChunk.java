@@ -0,0 +1,181 @@
+package horde;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.bridj.Pointer;
+
+/**
+ * A decoded block of a trajectory.
+ * The feature vectors of a chunk are contiguous, nbFeatures floats per step, so that the whole chunk can be
+ * sent to the GPUs in one transfer. With the DENSE encoding, they are read directly from the mapped file.
+ * With the SPARSE encoding, they are decoded in a direct buffer owned by the chunk.
+ *
+ * Chunks are recycled by the TrajectoryReader.
+ *
+ * @author Clement Gehring
+ *
+ */
+public class TrajectoryChunk {
+
+	final int nbFeatures, nbObservations, encoding;
+
+	/**
+	 * The number of steps in the chunk
+	 */
+	int steps;
+	/**
+	 * The index of the first step of the chunk within the whole trajectory
+	 */
+	long firstStep;
+	/**
+	 * The file offset of the following block
+	 */
+	long nextOffset;
+
+	final int[] actions;
+	FloatBuffer observations;
+	FloatBuffer features;
+	Pointer<Float> featurePointer;
+
+	/**
+	 * The buffer in which sparse blocks are decoded
+	 */
+	private ByteBuffer decoded;
+	private final ByteBuffer blockHeader= ByteBuffer.allocate(TrajectoryWriter.BLOCK_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+	TrajectoryChunk(int nbFeatures, int nbObservations, int encoding, int blockSteps){
+		this.nbFeatures= nbFeatures;
+		this.nbObservations= nbObservations;
+		this.encoding= encoding;
+		actions= new int[blockSteps];
+		if(encoding == TrajectoryWriter.SPARSE){
+			decoded= ByteBuffer.allocateDirect(4*blockSteps*nbFeatures).order(ByteOrder.LITTLE_ENDIAN);
+			features= decoded.asFloatBuffer();
+			featurePointer= Pointer.pointerToBuffer(decoded).as(Float.class).order(ByteOrder.LITTLE_ENDIAN);
+		}
+	}
+
+	/**
+	 * Map and decode the block starting at a given offset
+	 * @param channel		The trajectory file
+	 * @param offset		The offset of the block
+	 * @param firstStep		The index of the first step of the block within the whole trajectory
+	 * @return	false if there is no block at that offset
+	 * @throws IOException
+	 */
+	boolean decode(FileChannel channel, long offset, long firstStep) throws IOException{
+		this.firstStep= firstStep;
+		if(offset + TrajectoryWriter.BLOCK_HEADER_SIZE > channel.size()){
+			steps= 0;
+			return false;
+		}
+		blockHeader.clear();
+		while(blockHeader.hasRemaining()){
+			if(channel.read(blockHeader, offset + blockHeader.position()) < 0){
+				throw new IOException("Truncated trajectory block");
+			}
+		}
+		steps= blockHeader.getInt(0);
+		int size= blockHeader.getInt(4);
+		if(steps > actions.length || offset + size > channel.size()){
+			throw new IOException("Corrupted trajectory block");
+		}
+		nextOffset= offset + size;
+
+		// map the block and bring it in memory while the previous chunk is being learned
+		MappedByteBuffer block= channel.map(FileChannel.MapMode.READ_ONLY, offset, size);
+		block.order(ByteOrder.LITTLE_ENDIAN);
+		block.load();
+
+		int position= TrajectoryWriter.BLOCK_HEADER_SIZE;
+		for(int i=0; i<steps; i++){
+			actions[i]= block.getInt(position);
+			position += 4;
+		}
+		observations= slice(block, position).asFloatBuffer();
+		position += 4*steps*nbObservations;
+
+		if(encoding == TrajectoryWriter.DENSE){
+			ByteBuffer featureBytes= slice(block, position);
+			features= featureBytes.asFloatBuffer();
+			featurePointer= Pointer.pointerToBuffer(featureBytes).as(Float.class).order(ByteOrder.LITTLE_ENDIAN);
+		}else{
+			// clear the dense vectors then scatter the non zero features
+			int length= 4*steps*nbFeatures;
+			for(int i=0; i<length; i+= 8){
+				if(i+8 <= length){
+					decoded.putLong(i, 0l);
+				}else{
+					decoded.putInt(i, 0);
+				}
+			}
+			int pairs= position + 4*steps;
+			for(int i=0; i<steps; i++){
+				int nz= block.getInt(position);
+				position += 4;
+				for(int j=0; j<nz; j++){
+					int index= block.getInt(pairs);
+					if(index < 0 || index >= nbFeatures){
+						throw new IOException("Corrupted trajectory block");
+					}
+					features.put(i*nbFeatures + index, block.getFloat(pairs+4));
+					pairs += 8;
+				}
+			}
+		}
+		return true;
+	}
+
+	private static ByteBuffer slice(ByteBuffer buffer, int position){
+		ByteBuffer dup= buffer.duplicate();
+		dup.position(position);
+		return dup.slice().order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	/**
+	 * @return The number of steps in the chunk
+	 */
+	public int steps(){
+		return steps;
+	}
+
+	/**
+	 * @param step	The index of a step in the chunk
+	 * @return	The index of the action of that step or TrajectoryWriter.EPISODE_START
+	 */
+	public int action(int step){
+		return actions[step];
+	}
+
+	/**
+	 * Move a view to the feature vector of a step
+	 * @param step	The index of a step in the chunk
+	 * @param view	The view to move
+	 * @return	The view
+	 */
+	public FeatureView features(int step, FeatureView view){
+		return view.set(features, step*nbFeatures);
+	}
+
+	/**
+	 * Move an observation to a step
+	 * @param step			The index of a step in the chunk
+	 * @param observation	The observation to move
+	 * @return	The observation
+	 */
+	public TrajectoryObservation observation(int step, TrajectoryObservation observation){
+		return observation.set(observations, step*nbObservations, firstStep + step);
+	}
+
+	/**
+	 * @return The feature vectors of the whole chunk, nbFeatures floats per step
+	 */
+	public Pointer<Float> featurePointer(){
+		return featurePointer;
+	}
+}
@@ -0,0 +1,65 @@
+package horde;
+
+import java.nio.FloatBuffer;
+
+import rlpark.plugin.rltoys.envio.observations.Observation;
+
+/**
+ * The raw observation recorded with a step of a trajectory.
+ * Like FeatureView, an instance is moved from step to step during a replay and should not be kept.
+ *
+ * @author Clement Gehring
+ *
+ */
+public class TrajectoryObservation implements Observation{
+
+	/**
+	 * The buffer holding the observations
+	 */
+	FloatBuffer buffer;
+	/**
+	 * The index of the first value in the buffer
+	 */
+	int offset;
+	/**
+	 * The number of values in the observation
+	 */
+	final int size;
+	/**
+	 * The index of the step within the whole trajectory
+	 */
+	long step;
+
+	public TrajectoryObservation(int size){
+		this.size= size;
+	}
+
+	TrajectoryObservation set(FloatBuffer buffer, int offset, long step){
+		this.buffer= buffer;
+		this.offset= offset;
+		this.step= step;
+		return this;
+	}
+
+	/**
+	 * @param i		The index of the value
+	 * @return		The i-th value of the observation
+	 */
+	public double get(int i){
+		return buffer.get(offset+i);
+	}
+
+	/**
+	 * @return the number of values in the observation
+	 */
+	public int size(){
+		return size;
+	}
+
+	/**
+	 * @return the index of the step within the whole trajectory
+	 */
+	public long step(){
+		return step;
+	}
+}
@@ -0,0 +1,213 @@
+package horde;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import rlpark.plugin.rltoys.envio.actions.Action;
+
+/**
+ * Reads a trajectory written by TrajectoryWriter and replays it through a CLHorde.
+ *
+ * The file is memory mapped block by block. While a chunk is being learned, the next one is mapped, loaded
+ * and decoded by a background thread. The replay does not create any object per step: the feature vectors of a
+ * chunk are sent to the GPUs in one transfer and the functions and policies see views on the mapped memory.
+ *
+ * An instance of this class should only be accessed by one thread.
+ *
+ * @author Clement Gehring
+ *
+ */
+public class TrajectoryReader {
+
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+
+	final int nbFeatures, nbObservations, encoding, blockSteps;
+
+	/**
+	 * Thread decoding the next chunk
+	 */
+	private final ExecutorService prefetcher;
+	/**
+	 * The two chunks, one being learned and one being decoded
+	 */
+	private final TrajectoryChunk[] chunks;
+	private int current= 1;
+	private Future<TrajectoryChunk> next;
+
+	/**
+	 * The last feature vector of the previous chunk, needed by the first step of a chunk
+	 */
+	private final FloatBuffer carry;
+
+	/**
+	 * This class decodes a chunk in the background
+	 * @author Clement Gehring
+	 *
+	 */
+	protected class ChunkDecoder implements Callable<TrajectoryChunk>{
+		final TrajectoryChunk chunk;
+		final long offset, firstStep;
+
+		ChunkDecoder(TrajectoryChunk chunk, long offset, long firstStep){
+			this.chunk= chunk;
+			this.offset= offset;
+			this.firstStep= firstStep;
+		}
+
+		@Override
+		public TrajectoryChunk call() throws IOException {
+			return chunk.decode(channel, offset, firstStep) ? chunk : null;
+		}
+	}
+
+	/**
+	 * Open a trajectory and start decoding its first chunk
+	 * @param trajectory	The trajectory file
+	 * @throws IOException
+	 */
+	public TrajectoryReader(File trajectory) throws IOException{
+		file= new RandomAccessFile(trajectory, "r");
+		channel= file.getChannel();
+
+		ByteBuffer header= ByteBuffer.allocate(TrajectoryWriter.HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		while(header.hasRemaining()){
+			if(channel.read(header) < 0){
+				close();
+				throw new IOException("Not a trajectory file");
+			}
+		}
+		if(header.getInt(0) != TrajectoryWriter.MAGIC || header.getInt(4) != TrajectoryWriter.VERSION){
+			close();
+			throw new IOException("Not a trajectory file or unsupported version");
+		}
+		encoding= header.getInt(8);
+		nbFeatures= header.getInt(12);
+		nbObservations= header.getInt(16);
+		blockSteps= header.getInt(20);
+
+		chunks= new TrajectoryChunk[2];
+		for(int i=0; i<chunks.length; i++){
+			chunks[i]= new TrajectoryChunk(nbFeatures, nbObservations, encoding, blockSteps);
+		}
+		carry= ByteBuffer.allocateDirect(4*nbFeatures).order(ByteOrder.nativeOrder()).asFloatBuffer();
+
+		prefetcher= Executors.newSingleThreadExecutor();
+		next= prefetcher.submit(new ChunkDecoder(chunks[0], TrajectoryWriter.HEADER_SIZE, 0));
+	}
+
+	/**
+	 * Get the next chunk and start decoding the one after it.
+	 * The chunk returned by the previous call must not be used anymore.
+	 * @return	The next chunk or null at the end of the trajectory
+	 * @throws IOException
+	 */
+	public TrajectoryChunk nextChunk() throws IOException{
+		if(next == null){
+			return null;
+		}
+		TrajectoryChunk chunk;
+		try {
+			chunk= next.get();
+		} catch (InterruptedException e) {
+			throw new IOException(e);
+		} catch (ExecutionException e) {
+			throw new IOException(e.getCause());
+		}
+		if(chunk == null){
+			next= null;
+			return null;
+		}
+
+		// decode the following chunk while this one is used
+		current= 1-current;
+		next= prefetcher.submit(new ChunkDecoder(chunks[1-current], chunk.nextOffset, chunk.firstStep + chunk.steps));
+		return chunk;
+	}
+
+	/**
+	 * Replay the whole trajectory through a horde.
+	 * The functions receive a TrajectoryObservation for o_tp1.
+	 * @param horde		The horde to update
+	 * @param actions	The actions, indexed as in the trajectory
+	 * @return		The number of steps replayed
+	 * @throws IOException
+	 */
+	public long replay(CLHorde horde, Action[] actions) throws IOException{
+		FeatureView x_t= new FeatureView(nbFeatures);
+		FeatureView x_tp1= new FeatureView(nbFeatures);
+		FeatureView previous= new FeatureView(nbFeatures);
+		TrajectoryObservation o_tp1= new TrajectoryObservation(nbObservations);
+		long nbSteps= 0;
+		boolean episode= false;
+
+		TrajectoryChunk chunk;
+		while((chunk= nextChunk()) != null){
+			horde.loadFeatureChunk(chunk.featurePointer(), chunk.steps());
+
+			for(int i=0; i<chunk.steps(); i++){
+				int action= chunk.action(i);
+				chunk.observation(i, o_tp1);
+				chunk.features(i, x_tp1);
+				if(action == TrajectoryWriter.EPISODE_START){
+					horde.update(o_tp1, null, null, x_tp1, i);
+					episode= true;
+				}else{
+					if(!episode){
+						throw new IOException("Trajectory step outside of an episode");
+					}
+					if(i == 0){
+						x_t.set(carry, 0);
+					}else{
+						chunk.features(i-1, x_t);
+					}
+					horde.update(o_tp1, x_t, actions[action], x_tp1, i);
+				}
+			}
+
+			// keep the last feature vector for the first step of the next chunk
+			chunk.features(chunk.steps()-1, previous);
+			for(int i=0; i<nbFeatures; i++){
+				carry.put(i, (float) previous.getEntry(i));
+			}
+			nbSteps += chunk.steps();
+		}
+		return nbSteps;
+	}
+
+	/**
+	 * @return The dimension of the feature vectors
+	 */
+	public int nbFeatures(){
+		return nbFeatures;
+	}
+
+	/**
+	 * @return The number of values per observation
+	 */
+	public int nbObservations(){
+		return nbObservations;
+	}
+
+	/**
+	 * Stop the background thread and close the file
+	 * @throws IOException
+	 */
+	public void close() throws IOException{
+		if(prefetcher != null){
+			prefetcher.shutdownNow();
+		}
+		channel.close();
+		file.close();
+	}
+}
@@ -0,0 +1,211 @@
+package horde;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+import rlpark.plugin.rltoys.math.vector.RealVector;
+
+/**
+ * Writes a trajectory in the compact binary format read by TrajectoryReader.
+ *
+ * The file starts with a header of six little endian ints: magic, version, encoding, nbFeatures,
+ * nbObservations and blockSteps. It is followed by blocks of at most blockSteps steps. Every block is laid out
+ * column by column so that its feature vectors are contiguous and can be sent to the GPUs as they are:
+ *
+ * int steps, int blockBytes, int[steps] actions, float[steps*nbObservations] observations, then the features.
+ * The DENSE encoding stores float[steps*nbFeatures]. The SPARSE encoding stores int[steps] with the number of
+ * non zero features of every step followed by that many (int index, float value) pairs per step.
+ *
+ * A step records the index of the action a_t that led to x_tp1. The first step of an episode stores
+ * EPISODE_START instead of an action.
+ *
+ * @author Clement Gehring
+ *
+ */
+public class TrajectoryWriter {
+
+	public static final int MAGIC= 0x43484c54;
+	public static final int VERSION= 1;
+	public static final int DENSE= 0;
+	public static final int SPARSE= 1;
+	public static final int EPISODE_START= -1;
+	public static final int HEADER_SIZE= 6*4;
+	public static final int BLOCK_HEADER_SIZE= 2*4;
+
+	private final FileChannel channel;
+	private final RandomAccessFile file;
+	private final int nbFeatures, nbObservations, blockSteps, encoding;
+
+	/**
+	 * The steps waiting to be written
+	 */
+	private int steps;
+	private final int[] actions;
+	private final float[] observations;
+	private float[] values;
+	private int[] indexes;
+	private final int[] nonZeros;
+	private int nbValues;
+	private boolean started= false;
+
+	/**
+	 * Staging buffer for the blocks
+	 */
+	private ByteBuffer block;
+
+	/**
+	 * Create a new trajectory file, replacing any existing file.
+	 * @param file				The trajectory file
+	 * @param nbFeatures		The dimension of the feature vectors
+	 * @param nbObservations	The number of values recorded per observation (can be 0)
+	 * @param sparse			True to use the SPARSE encoding (best for binary features such as tile coding)
+	 * @param blockSteps		The number of steps per block, this is also the chunk size used by the reader
+	 * @throws IOException
+	 */
+	public TrajectoryWriter(File file, int nbFeatures, int nbObservations, boolean sparse, int blockSteps) throws IOException{
+		this.nbFeatures= nbFeatures;
+		this.nbObservations= nbObservations;
+		this.blockSteps= blockSteps;
+		this.encoding= sparse ? SPARSE : DENSE;
+
+		actions= new int[blockSteps];
+		observations= new float[blockSteps*nbObservations];
+		nonZeros= new int[blockSteps];
+		values= new float[sparse ? blockSteps : blockSteps*nbFeatures];
+		indexes= sparse ? new int[blockSteps] : null;
+
+		this.file= new RandomAccessFile(file, "rw");
+		this.file.setLength(0);
+		channel= this.file.getChannel();
+
+		ByteBuffer header= ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		header.putInt(MAGIC).putInt(VERSION).putInt(encoding).putInt(nbFeatures).putInt(nbObservations).putInt(blockSteps);
+		header.flip();
+		while(header.hasRemaining()){
+			channel.write(header);
+		}
+	}
+
+	/**
+	 * Record the first step of an episode
+	 * @param o_0	The observation (can be null if nbObservations is 0)
+	 * @param x_0	The first feature vector
+	 * @throws IOException
+	 */
+	public void startEpisode(double[] o_0, RealVector x_0) throws IOException{
+		step(EPISODE_START, o_0, x_0);
+	}
+
+	/**
+	 * Record a step
+	 * @param action	The index of the action a_t
+	 * @param o_tp1		The observation (can be null if nbObservations is 0)
+	 * @param x_tp1		The feature vector x_tp1
+	 * @throws IOException
+	 */
+	public void step(int action, double[] o_tp1, RealVector x_tp1) throws IOException{
+		if(!started && action != EPISODE_START){
+			throw new IllegalArgumentException("A trajectory must start with an episode");
+		}
+		double[] d= x_tp1.accessData();
+		if(d.length != nbFeatures){
+			throw new IllegalArgumentException("Wrong number of features");
+		}
+		started= true;
+
+		actions[steps]= action;
+		for(int i=0; i<nbObservations; i++){
+			observations[steps*nbObservations + i]= (float) o_tp1[i];
+		}
+
+		if(encoding == DENSE){
+			for(int i=0; i<nbFeatures; i++){
+				values[steps*nbFeatures + i]= (float) d[i];
+			}
+		}else{
+			int nz=0;
+			for(int i=0; i<nbFeatures; i++){
+				if(d[i] != 0){
+					if(nbValues == values.length){
+						int[] newIndexes= new int[2*values.length];
+						float[] newValues= new float[2*values.length];
+						System.arraycopy(indexes, 0, newIndexes, 0, nbValues);
+						System.arraycopy(values, 0, newValues, 0, nbValues);
+						indexes= newIndexes;
+						values= newValues;
+					}
+					indexes[nbValues]= i;
+					values[nbValues]= (float) d[i];
+					nbValues++;
+					nz++;
+				}
+			}
+			nonZeros[steps]= nz;
+		}
+		steps++;
+
+		if(steps == blockSteps){
+			flush();
+		}
+	}
+
+	/**
+	 * Write all the pending steps in a block
+	 * @throws IOException
+	 */
+	public void flush() throws IOException{
+		if(steps == 0){
+			return;
+		}
+		int size= BLOCK_HEADER_SIZE + 4*steps + 4*steps*nbObservations;
+		if(encoding == DENSE){
+			size += 4*steps*nbFeatures;
+		}else{
+			size += 4*steps + 8*nbValues;
+		}
+
+		if(block == null || block.capacity() < size){
+			block= ByteBuffer.allocateDirect(size).order(ByteOrder.LITTLE_ENDIAN);
+		}
+		block.clear();
+		block.putInt(steps).putInt(size);
+		for(int i=0; i<steps; i++){
+			block.putInt(actions[i]);
+		}
+		for(int i=0; i<steps*nbObservations; i++){
+			block.putFloat(observations[i]);
+		}
+		if(encoding == DENSE){
+			for(int i=0; i<steps*nbFeatures; i++){
+				block.putFloat(values[i]);
+			}
+		}else{
+			for(int i=0; i<steps; i++){
+				block.putInt(nonZeros[i]);
+			}
+			for(int i=0; i<nbValues; i++){
+				block.putInt(indexes[i]).putFloat(values[i]);
+			}
+		}
+		block.flip();
+		while(block.hasRemaining()){
+			channel.write(block);
+		}
+		steps= 0;
+		nbValues= 0;
+	}
+
+	/**
+	 * Write the pending steps and close the file
+	 * @throws IOException
+	 */
+	public void close() throws IOException{
+		flush();
+		channel.close();
+		file.close();
+	}
+}
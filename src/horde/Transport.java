@@ -0,0 +1,54 @@
+package horde;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * How a DistributedHorde talks to its HordeWorkers. Node i is the worker hosting shard i of the demons.
+ *
+ * @author Clement Gehring
+ *
+ */
+public interface Transport {
+
+	/**
+	 * An ordered link between the coordinator and one worker, carrying whole binary messages
+	 */
+	interface Link extends Closeable {
+		/**
+		 * Send a message, from its position to its limit
+		 * @param message	The message
+		 * @throws IOException
+		 */
+		void send(ByteBuffer message) throws IOException;
+
+		/**
+		 * Wait for the next message
+		 * @return	The message, positioned at its start
+		 * @throws IOException
+		 */
+		ByteBuffer receive() throws IOException;
+
+		/**
+		 * @return	The number of bytes sent and received so far, framing included
+		 */
+		long bytes();
+	}
+
+	/**
+	 * Open the link of the coordinator to a worker
+	 * @param node	The index of the worker
+	 * @return	The link
+	 * @throws IOException
+	 */
+	Link connect(int node) throws IOException;
+
+	/**
+	 * Wait for the coordinator to connect to a worker
+	 * @param node	The index of the worker
+	 * @return	The link
+	 * @throws IOException
+	 */
+	Link accept(int node) throws IOException;
+}
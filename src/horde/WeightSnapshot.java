@@ -0,0 +1,90 @@
+package horde;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+
+/**
+ * The weights of all the demons of a CLHorde as they were after a given update, see CLHorde.snapshot.
+ * The rows are indexed by global index, the row of a removed demon is null.
+ *
+ * @author Clement Gehring
+ *
+ */
+public class WeightSnapshot implements Serializable {
+
+	private static final long serialVersionUID = 4418392733861509223L;
+
+	/**
+	 * The number of updates with an x_t done before the snapshot
+	 */
+	public final long step;
+	/**
+	 * The theta weights, the w weights and the traces. The demons learning without w weights have no row in ws.
+	 */
+	public final float[][] thetas, ws, traces;
+
+	WeightSnapshot(long step, float[][] thetas, float[][] ws, float[][] traces){
+		this.step= step;
+		this.thetas= thetas;
+		this.ws= ws;
+		this.traces= traces;
+	}
+
+	/**
+	 * Send the weights of the snapshot back to a CLHorde holding the same demons
+	 * @param horde		The CLHorde
+	 */
+	public void restore(CLHorde horde){
+		horde.importWeights(toDoubles(thetas), toDoubles(ws), toDoubles(traces));
+	}
+
+	private static double[][] toDoubles(float[][] rows){
+		double[][] d= new double[rows.length][];
+		for(int i=0; i<rows.length; i++){
+			if(rows[i] != null){
+				d[i]= new double[rows[i].length];
+				for(int j=0; j<d[i].length; j++){
+					d[i][j]= rows[i][j];
+				}
+			}
+		}
+		return d;
+	}
+
+	/**
+	 * Write the snapshot to a file
+	 * @param file		The file
+	 * @throws IOException
+	 */
+	public void write(File file) throws IOException{
+		ObjectOutputStream oos= new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+		try{
+			oos.writeObject(this);
+		}finally{
+			oos.close();
+		}
+	}
+
+	/**
+	 * Read a snapshot written with write
+	 * @param file		The file
+	 * @return	The snapshot
+	 * @throws IOException
+	 * @throws ClassNotFoundException
+	 */
+	public static WeightSnapshot read(File file) throws IOException, ClassNotFoundException{
+		ObjectInputStream ois= new ObjectInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try{
+			return (WeightSnapshot) ois.readObject();
+		}finally{
+			ois.close();
+		}
+	}
+}
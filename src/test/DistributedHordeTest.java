@@ -0,0 +1,331 @@
+package test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import rlpark.plugin.rltoys.envio.actions.Action;
+import rlpark.plugin.rltoys.envio.policy.Policy;
+import rlpark.plugin.rltoys.horde.functions.GammaFunction;
+import rlpark.plugin.rltoys.horde.functions.OutcomeFunction;
+import rlpark.plugin.rltoys.horde.functions.RewardFunction;
+import rlpark.plugin.rltoys.math.vector.RealVector;
+import rlpark.plugin.rltoys.math.vector.implementations.PVector;
+
+import horde.Algorithm;
+import horde.CLDemon;
+import horde.DistributedHorde;
+import horde.LearningStats;
+import horde.SocketTransport;
+import horde.Transport;
+
+/**
+ * Runs a DistributedHorde against workers on the loopback that decode the messages instead of learning.
+ * The reward of demon g is g, so the workers can tell which demons they were sent, and they answer with the rewards
+ * as predictions, which the coordinator must gather back in global order.
+ */
+public class DistributedHordeTest {
+
+	/**
+	 * The kinds of messages and the flags of the updates, as sent by the coordinator
+	 */
+	static final byte setup= 0, update= 1, shutdown= 2;
+	static final byte resetFlag= 1, rhoFlag= 2, reportFlag= 4;
+
+	int nbDemons= 10;
+	int nbFeatures= 5;
+	int nbNodes= 3;
+	/**
+	 * The demons from this one on learn with TD(lambda), without rho, all on the last node
+	 */
+	int firstTD= 7;
+
+	FakeWorker[] workers;
+	Thread[] threads;
+	DistributedHorde horde;
+
+	static class Reward implements RewardFunction {
+		private static final long serialVersionUID = 1L;
+		final double reward;
+
+		Reward(double reward){
+			this.reward= reward;
+		}
+
+		@Override
+		public double reward() {
+			return reward;
+		}
+	}
+
+	static class Gamma implements GammaFunction {
+		private static final long serialVersionUID = 1L;
+		final double gamma;
+
+		Gamma(double gamma){
+			this.gamma= gamma;
+		}
+
+		@Override
+		public double gamma() {
+			return gamma;
+		}
+	}
+
+	static class NoOutcome implements OutcomeFunction, Serializable {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		public double outcome() {
+			return 0;
+		}
+	}
+
+	static class FixedPolicy implements Policy {
+		private static final long serialVersionUID = 1L;
+		final double pi;
+
+		FixedPolicy(double pi){
+			this.pi= pi;
+		}
+
+		@Override
+		public double pi(RealVector x, Action a) {
+			return pi;
+		}
+
+		@Override
+		public Action decide(RealVector x) {
+			return null;
+		}
+	}
+
+	/**
+	 * A worker recording what it receives, see HordeWorker for the messages
+	 */
+	static class FakeWorker implements Runnable {
+		final Transport transport;
+		final int node;
+		volatile int nbDemons, nbFeatures;
+		volatile byte flags;
+		volatile float[] x_t, x_tp1, rewards, gammas, rhos;
+		volatile Throwable failure;
+
+		FakeWorker(Transport transport, int node){
+			this.transport= transport;
+			this.node= node;
+		}
+
+		@Override
+		public void run() {
+			Transport.Link link= null;
+			try{
+				link= transport.accept(node);
+				while(true){
+					ByteBuffer message= link.receive();
+					byte kind= message.get();
+					if(kind == setup){
+						nbFeatures= message.getInt();
+						message.get();
+						byte[] serialized= new byte[message.remaining()];
+						message.get(serialized);
+						ObjectInputStream ois= new ObjectInputStream(new ByteArrayInputStream(serialized));
+						nbDemons= ((List<?>) ois.readObject()).size();
+						ois.close();
+						ByteBuffer ready= ByteBuffer.allocate(4);
+						ready.putInt(nbDemons).flip();
+						link.send(ready);
+					}else if(kind == update){
+						answer(link, message);
+					}else if(kind == shutdown){
+						break;
+					}else{
+						throw new RuntimeException("unknown message "+ kind);
+					}
+				}
+			}catch(Throwable t){
+				failure= t;
+			}finally{
+				// the coordinator stops waiting for an answer once the link is closed
+				try{
+					if(link != null){
+						link.close();
+					}
+				}catch(IOException e){
+					e.printStackTrace();
+				}
+			}
+		}
+
+		private void answer(Transport.Link link, ByteBuffer message) throws IOException{
+			byte flags= message.get();
+			int features= message.getInt();
+			x_t= (flags & resetFlag) == 0 ? getFloats(message, features) : null;
+			x_tp1= getFloats(message, features);
+			int size= message.getInt();
+			rewards= getFloats(message, size);
+			gammas= getFloats(message, size);
+			rhos= (flags & rhoFlag) != 0 ? getFloats(message, size) : null;
+			if(message.hasRemaining()){
+				throw new RuntimeException("node "+ node+ ": "+ message.remaining()+ " bytes left in the update");
+			}
+			this.flags= flags;
+
+			// one diverged demon on node 1, the statistics of the others are 1, 2 and the index of the node
+			ByteBuffer answer= ByteBuffer.allocate(8 + 3*8 + 4 + 4 + 4*size);
+			answer.putLong(1000);
+			if((flags & reportFlag) != 0){
+				answer.putDouble(1).putDouble(2).putDouble(node);
+				answer.putInt(node == 1 ? 1 : 0);
+				answer.putInt(size);
+				for(float reward: rewards){
+					answer.putFloat(reward);
+				}
+			}
+			answer.flip();
+			link.send(answer);
+		}
+
+		private static float[] getFloats(ByteBuffer buffer, int length){
+			float[] values= new float[length];
+			for(int i=0; i<length; i++){
+				values[i]= buffer.getFloat();
+			}
+			return values;
+		}
+	}
+
+	public void init() throws IOException{
+		// the workers listen on consecutive ports from a free one
+		ServerSocket free= new ServerSocket(0);
+		int basePort= free.getLocalPort();
+		free.close();
+		Transport transport= SocketTransport.loopback(basePort);
+
+		workers= new FakeWorker[nbNodes];
+		threads= new Thread[nbNodes];
+		for(int i=0; i<nbNodes; i++){
+			workers[i]= new FakeWorker(transport, i);
+			threads[i]= new Thread(workers[i], "fake-worker-"+ i);
+			threads[i].setDaemon(true);
+			threads[i].start();
+		}
+
+		List<CLDemon> demons= new ArrayList<CLDemon>();
+		for(int g=0; g<nbDemons; g++){
+			CLDemon demon= new CLDemon(new FixedPolicy(0.5), new FixedPolicy(0.25), new Reward(g), new Gamma(g/100.0), new NoOutcome());
+			if(g >= firstTD){
+				demon.setAlgorithm(Algorithm.TD_LAMBDA);
+			}
+			demons.add(demon);
+		}
+		horde= new DistributedHorde(demons, new ArrayList<RewardFunction>(), new ArrayList<OutcomeFunction>(),
+				new ArrayList<GammaFunction>(), nbFeatures, transport, nbNodes, false);
+	}
+
+	public void checkSetup(){
+		int total= 0;
+		for(int i=0; i<nbNodes; i++){
+			if(workers[i].nbFeatures != nbFeatures){
+				throw new RuntimeException("node "+ i+ " got "+ workers[i].nbFeatures+ " features");
+			}
+			total += workers[i].nbDemons;
+		}
+		if(total != nbDemons || workers[0].nbDemons != 4 || workers[nbNodes-1].nbDemons != 3){
+			throw new RuntimeException("wrong split of the demons");
+		}
+		for(int g=0; g<nbDemons; g++){
+			int node= horde.getNodeIndex(g);
+			if(horde.getLocalIndex(g) >= workers[node].nbDemons){
+				throw new RuntimeException("demon "+ g+ " is past the demons of node "+ node);
+			}
+		}
+		System.out.println("distributed setup OK");
+	}
+
+	public void checkUpdates(){
+		double[] x0= {1, 0, 0.5, 0, 2}, x1= {0, 3, 0, 0.25, 0};
+		horde.update(null, null, null, new PVector(x0));
+		for(FakeWorker worker: workers){
+			if((worker.flags & (resetFlag | reportFlag | rhoFlag)) != resetFlag || worker.x_t != null || worker.rhos != null){
+				throw new RuntimeException("wrong first update on node "+ worker.node);
+			}
+			checkVector(worker.x_tp1, x0, worker.node);
+		}
+		if(horde.predictions() != null){
+			throw new RuntimeException("the first update reported");
+		}
+
+		horde.update(null, new PVector(x0), null, new PVector(x1));
+		for(FakeWorker worker: workers){
+			checkVector(worker.x_t, x0, worker.node);
+			checkVector(worker.x_tp1, x1, worker.node);
+			// only the last node, learning with TD(lambda) only, is not sent any rho
+			boolean rho= worker.node != horde.getNodeIndex(firstTD);
+			if((worker.flags & reportFlag) == 0 || (worker.rhos != null) != rho){
+				throw new RuntimeException("wrong flags on node "+ worker.node+ ": "+ worker.flags);
+			}
+		}
+
+		// every worker got the values of its own demons, at their local index
+		for(int g=0; g<nbDemons; g++){
+			FakeWorker worker= workers[horde.getNodeIndex(g)];
+			int local= horde.getLocalIndex(g);
+			if(worker.rewards[local] != g || worker.gammas[local] != (float) (g/100.0)){
+				throw new RuntimeException("demon "+ g+ " was not scattered to its local index");
+			}
+			if(worker.rhos != null && worker.rhos[local] != (g < firstTD ? 2 : 0)){
+				throw new RuntimeException("wrong rho for demon "+ g);
+			}
+		}
+
+		// the predictions come back in global order
+		float[] predictions= horde.predictions();
+		for(int g=0; g<nbDemons; g++){
+			if(predictions[g] != g){
+				throw new RuntimeException("the prediction of demon "+ g+ " was gathered at the wrong index");
+			}
+		}
+		LearningStats.Summary summary= horde.statsSummary();
+		if(summary.meanSquaredError != 1 || summary.meanAbsoluteError != 2 || summary.maxSurprise != nbNodes-1
+				|| summary.diverged != 1){
+			throw new RuntimeException("wrong summary: "+ summary);
+		}
+		DistributedHorde.Overhead overhead= horde.overhead();
+		if(overhead.steps != 2 || overhead.bytesPerStep <= 0){
+			throw new RuntimeException("wrong overhead: "+ overhead);
+		}
+		System.out.println("distributed updates OK");
+	}
+
+	private void checkVector(float[] received, double[] sent, int node){
+		for(int j=0; j<sent.length; j++){
+			if(received == null || received[j] != (float) sent[j]){
+				throw new RuntimeException("wrong features on node "+ node);
+			}
+		}
+	}
+
+	public void close() throws InterruptedException{
+		horde.shutdown();
+		for(int i=0; i<nbNodes; i++){
+			threads[i].join();
+			if(workers[i].failure != null){
+				throw new RuntimeException("node "+ i+ " failed", workers[i].failure);
+			}
+		}
+	}
+
+	public static void main(String[] args) throws Exception{
+		DistributedHordeTest test= new DistributedHordeTest();
+		test.init();
+		test.checkSetup();
+		test.checkUpdates();
+		test.close();
+	}
+}
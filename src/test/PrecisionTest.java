@@ -0,0 +1,163 @@
+package test;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import rlpark.plugin.rltoys.envio.actions.Action;
+import rlpark.plugin.rltoys.envio.observations.Observation;
+import rlpark.plugin.rltoys.envio.policy.Policy;
+import rlpark.plugin.rltoys.horde.functions.ConstantGamma;
+import rlpark.plugin.rltoys.horde.functions.ConstantOutcomeFunction;
+import rlpark.plugin.rltoys.horde.functions.GammaFunction;
+import rlpark.plugin.rltoys.horde.functions.HordeUpdatable;
+import rlpark.plugin.rltoys.horde.functions.OutcomeFunction;
+import rlpark.plugin.rltoys.horde.functions.RewardFunction;
+import rlpark.plugin.rltoys.math.vector.RealVector;
+import rlpark.plugin.rltoys.math.vector.implementations.PVector;
+
+import horde.CLDemon;
+import horde.CLHorde;
+import horde.Precision;
+
+/**
+ * Checks the 16 bit conversions, then measures the predictions of the compact storage against floats
+ * on the same workload.
+ */
+public class PrecisionTest {
+
+	int nbDemons= 4*128;
+	int nbFeatures= 120;
+	int nbSteps= 2000;
+
+	public class StepReward implements RewardFunction, HordeUpdatable{
+		private static final long serialVersionUID = 4203949381256047016L;
+		double reward;
+
+		@Override
+		public double reward() {
+			return reward;
+		}
+
+		@Override
+		public void update(Observation o_tp1, RealVector x_t, Action a_t, RealVector x_tp1) {
+			// a reward that depends on the features so that the demons learn something
+			reward= x_tp1 == null ? 0 : x_tp1.getEntry(0) - x_tp1.getEntry(1);
+		}
+	}
+
+	public class MyAction implements Action{
+		private static final long serialVersionUID = 1L;
+	}
+
+	public class RandomPolicy implements Policy{
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		public double pi(RealVector s, Action a) {
+			return 0.5;
+		}
+
+		@Override
+		public Action decide(RealVector s) {
+			return null;
+		}
+	}
+
+	public void checkConversions(){
+		// every half that is not a NaN must survive a round trip
+		for(int i=0; i<0x10000; i++){
+			short h= (short) i;
+			float f= Precision.fromHalf(h);
+			if(!Float.isNaN(f) && Precision.toHalf(f) != h){
+				throw new RuntimeException("half round trip failed for "+ Integer.toHexString(i));
+			}
+		}
+		// ties go to even, overflow goes to infinity
+		if(Precision.toHalf(1 + 1/2048f) != Precision.toHalf(1f) || Precision.fromHalf(Precision.toHalf(70000f)) != Float.POSITIVE_INFINITY){
+			throw new RuntimeException("half rounding failed");
+		}
+		if(Precision.fromBfloat16(Precision.toBfloat16(1.00390625f)) != 1f || !Float.isNaN(Precision.fromBfloat16(Precision.toBfloat16(Float.NaN)))){
+			throw new RuntimeException("bfloat16 rounding failed");
+		}
+		Random random= new Random(0);
+		double maxHalf= 0, maxBfloat= 0;
+		for(int i=0; i<100000; i++){
+			float f= (float) random.nextGaussian();
+			if(Math.abs(f) < 1e-3f){
+				// half has no subnormal precision to speak of, weights that small do not matter
+				continue;
+			}
+			maxHalf= Math.max(maxHalf, Math.abs(Precision.fromHalf(Precision.toHalf(f)) - f)/Math.abs(f));
+			maxBfloat= Math.max(maxBfloat, Math.abs(Precision.fromBfloat16(Precision.toBfloat16(f)) - f)/Math.abs(f));
+		}
+		System.out.println("max relative error, fp16: "+ maxHalf+ ", bfloat16: "+ maxBfloat);
+		System.out.println("conversions OK");
+	}
+
+	CLHorde newHorde(StepReward rewardfn, Precision weightPrecision, Precision thetaPrecision){
+		ArrayList<RewardFunction> rfns= new ArrayList<RewardFunction>();
+		ArrayList<GammaFunction> gfns= new ArrayList<GammaFunction>();
+		ArrayList<OutcomeFunction> ofns= new ArrayList<OutcomeFunction>();
+		rfns.add(rewardfn);
+		Policy policy= new RandomPolicy();
+		ArrayList<CLDemon> demons= new ArrayList<CLDemon>(nbDemons);
+		for(int i=0; i<nbDemons; i++){
+			demons.add(new CLDemon(policy, policy, rewardfn, new ConstantGamma(0.5 + 0.4*i/nbDemons), new ConstantOutcomeFunction(0)));
+		}
+		return new CLHorde(demons, rfns, ofns, gfns, nbFeatures, true, weightPrecision, thetaPrecision);
+	}
+
+	/**
+	 * Run the same trajectory through a horde storing floats and a compact one
+	 */
+	public void compare(Precision weightPrecision, Precision thetaPrecision){
+		CLHorde reference, compact;
+		StepReward referenceReward= new StepReward(), compactReward= new StepReward();
+		try{
+			reference= newHorde(referenceReward, Precision.FP32, Precision.FP32);
+			compact= newHorde(compactReward, weightPrecision, thetaPrecision);
+		}catch( RuntimeException r){
+			r.printStackTrace();
+			System.out.println("Ignoring CPU, still running...\n");
+			return;
+		}
+
+		Random random= new Random(1);
+		Action a_t= new MyAction();
+		RealVector x_t= null;
+		double sum= 0, max= 0, scale= 0;
+		for(int i=0; i<nbSteps; i++){
+			PVector x_tp1= new PVector(nbFeatures);
+			for(int j=0; j<10; j++){
+				x_tp1.setEntry(random.nextInt(nbFeatures), 1);
+			}
+			reference.update(null, x_t, a_t, x_tp1);
+			compact.update(null, x_t, a_t, x_tp1);
+			x_t= x_tp1;
+		}
+		float[] p= reference.predictions(x_t);
+		float[] q= compact.predictions(x_t);
+		for(int i=0; i<p.length; i++){
+			double d= Math.abs(p[i] - q[i]);
+			sum += d*d;
+			max= Math.max(max, d);
+			scale += p[i]*p[i];
+		}
+		System.out.println("w and trace "+ weightPrecision+ ", theta "+ thetaPrecision+ ": rms error "+ Math.sqrt(sum/p.length)
+				+ ", max error "+ max+ ", rms prediction "+ Math.sqrt(scale/p.length));
+		reference.shutdown();
+		compact.shutdown();
+	}
+
+	public void run(){
+		checkConversions();
+		compare(Precision.FP16, Precision.FP32);
+		compare(Precision.BFLOAT16, Precision.FP32);
+		compare(Precision.FP16, Precision.FP16);
+		compare(Precision.BFLOAT16, Precision.BFLOAT16);
+	}
+
+	public static void main(String[] args){
+		(new PrecisionTest()).run();
+	}
+}
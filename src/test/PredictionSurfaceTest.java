@@ -0,0 +1,91 @@
+package test;
+
+import horde.PredictionSurface;
+
+/**
+ * One thread publishes versions of the predictions while others read them. Version s holds s in every prediction and
+ * -s in every error, so a reader can tell a version copied while it was rewritten.
+ */
+public class PredictionSurfaceTest {
+
+	int nbDemons= 1000;
+	int nbReaders= 4;
+	int nbVersions= 200000;
+
+	PredictionSurface surface= new PredictionSurface();
+	volatile boolean published;
+
+	class Reader extends Thread {
+		volatile Throwable failure;
+		long reads;
+
+		@Override
+		public void run() {
+			try{
+				float[] predictions= new float[nbDemons], errors= new float[nbDemons];
+				long last= -1;
+				boolean done;
+				do{
+					done= published;
+					long step= surface.read(predictions, errors);
+					if(step < last){
+						throw new RuntimeException("read version "+ step+ " after version "+ last);
+					}
+					last= step;
+					reads++;
+					if(step < 0){
+						continue;
+					}
+					for(int i=0; i<nbDemons; i++){
+						if(predictions[i] != step || errors[i] != -step){
+							throw new RuntimeException("version "+ step+ " mixed with another one at demon "+ i
+									+ ": "+ predictions[i]+ ", "+ errors[i]);
+						}
+					}
+					float[] copy= surface.predictions();
+					if(copy[0] < step || copy[0] != copy[nbDemons-1]){
+						throw new RuntimeException("inconsistent copy after version "+ step);
+					}
+				}while(!done);
+				if(last != nbVersions-1){
+					throw new RuntimeException("the last version read is "+ last);
+				}
+			}catch(Throwable t){
+				failure= t;
+			}
+		}
+	}
+
+	public void run() throws InterruptedException{
+		if(surface.step() != -1 || surface.predictions() != null){
+			throw new RuntimeException("a new surface has a version");
+		}
+		Reader[] readers= new Reader[nbReaders];
+		for(int r=0; r<nbReaders; r++){
+			readers[r]= new Reader();
+			readers[r].start();
+		}
+		float[] predictions= new float[nbDemons], errors= new float[nbDemons];
+		for(int s=0; s<nbVersions; s++){
+			for(int i=0; i<nbDemons; i++){
+				predictions[i]= s;
+				errors[i]= -s;
+			}
+			surface.publish(s, predictions, errors);
+		}
+		published= true;
+		long reads= 0;
+		for(Reader reader: readers){
+			reader.join();
+			if(reader.failure != null){
+				throw new RuntimeException("a reader failed", reader.failure);
+			}
+			reads += reader.reads;
+		}
+		System.out.println(nbVersions+ " versions, "+ reads+ " reads by "+ nbReaders+ " readers, OK");
+	}
+
+	public static void main(String[] args) throws InterruptedException{
+		new PredictionSurfaceTest().run();
+	}
+}
@@ -0,0 +1,119 @@
+package test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Random;
+
+import rlpark.plugin.rltoys.envio.actions.Action;
+import rlpark.plugin.rltoys.horde.functions.ConstantGamma;
+import rlpark.plugin.rltoys.horde.functions.GammaFunction;
+import rlpark.plugin.rltoys.horde.functions.OutcomeFunction;
+import rlpark.plugin.rltoys.horde.functions.RewardFunction;
+import rlpark.plugin.rltoys.math.vector.implementations.PVector;
+
+import horde.Algorithm;
+import horde.CLDemon;
+import horde.CLHorde;
+import horde.TrajectoryReader;
+import horde.TrajectoryWriter;
+
+/**
+ * Replays a trajectory through a CLHorde that does not learn, then queries feature vectors that are not in the
+ * trajectory: the predictions must be the ones of the queried vectors, not the ones of the last replayed step.
+ */
+public class ReplayPredictionTest {
+
+	int nbDemons= 300;
+	int nbFeatures= 40;
+	int nbSteps= 500;
+	Random random= new Random(0);
+
+	CLHorde horde;
+	double[][] thetas;
+
+	static class ZeroReward implements RewardFunction {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		public double reward() {
+			return 0;
+		}
+	}
+
+	static class ZeroOutcome implements OutcomeFunction {
+		@Override
+		public double outcome() {
+			return 0;
+		}
+	}
+
+	public void init(){
+		ArrayList<CLDemon> demons= new ArrayList<CLDemon>();
+		for(int i=0; i<nbDemons; i++){
+			CLDemon demon= new CLDemon(null, null, new ZeroReward(), new ConstantGamma(0.9), new ZeroOutcome());
+			demon.setAlgorithm(Algorithm.TD_LAMBDA);
+			demons.add(demon);
+		}
+		horde= new CLHorde(demons, new ArrayList<RewardFunction>(), new ArrayList<OutcomeFunction>(),
+				new ArrayList<GammaFunction>(), nbFeatures, true);
+		// no learning: the weights stay the imported ones
+		horde.setParam(0, 0, 0.5f);
+		thetas= new double[nbDemons][nbFeatures];
+		for(int i=0; i<nbDemons; i++){
+			for(int j=0; j<nbFeatures; j++){
+				thetas[i][j]= random.nextDouble() - 0.5;
+			}
+		}
+		horde.importWeights(thetas, null, null);
+	}
+
+	public void replay() throws IOException{
+		File file= File.createTempFile("replay", ".bin");
+		file.deleteOnExit();
+		TrajectoryWriter writer= new TrajectoryWriter(file, nbFeatures, 1, false, 128);
+		for(int s=0; s<nbSteps; s++){
+			writer.step(s == 0 ? TrajectoryWriter.EPISODE_START : 0, new double[] {s}, randomVector());
+		}
+		writer.close();
+		TrajectoryReader reader= new TrajectoryReader(file);
+		reader.replay(horde, new Action[1]);
+		reader.close();
+	}
+
+	private PVector randomVector(){
+		double[] v= new double[nbFeatures];
+		for(int k=0; k<3; k++){
+			v[random.nextInt(nbFeatures)]= 1;
+		}
+		return new PVector(v);
+	}
+
+	public void check(){
+		for(int q=0; q<3; q++){
+			PVector v= randomVector();
+			float[] predictions= horde.predictions(v);
+			for(int i=0; i<nbDemons; i++){
+				double expected= 0;
+				for(int j=0; j<nbFeatures; j++){
+					expected += thetas[i][j]*v.getEntry(j);
+				}
+				if(Math.abs(predictions[i] - expected) > 1e-4){
+					throw new RuntimeException("query "+ q+ ": demon "+ i+ " predicts "+ predictions[i]+ " instead of "+ expected);
+				}
+				if(i == nbDemons-1 && Math.abs(horde.predict(i, v) - expected) > 1e-4){
+					throw new RuntimeException("query "+ q+ ": predict does not evaluate the queried vector");
+				}
+			}
+		}
+		System.out.println("predictions after a replay, OK");
+	}
+
+	public static void main(String[] args) throws IOException{
+		ReplayPredictionTest test= new ReplayPredictionTest();
+		test.init();
+		test.replay();
+		test.check();
+		test.horde.shutdown();
+	}
+}
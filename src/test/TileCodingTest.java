@@ -0,0 +1,126 @@
+package test;
+
+import java.util.Arrays;
+
+import horde.TileCoding;
+
+/**
+ * Checks the features counts and the description of the tilings sent to the tileCode kernel.
+ */
+public class TileCodingTest {
+
+	double[] mins= {0, -1};
+	double[] maxs= {1, 1};
+
+	public void checkLayout(){
+		TileCoding coding= new TileCoding(mins, maxs);
+		coding.addFullTilings(4, 3);
+		coding.addIndependentTilings(2, 2);
+		coding.includeBias();
+
+		// 3 tilings of 5x5 tiles, 2 tilings of 3 tiles per input, then the bias
+		if(coding.nbFeatures() != 3*25 + 2*2*3 + 1 || coding.nbTilings() != 3 + 2*2 + 1){
+			throw new RuntimeException("wrong feature count: "+ coding.nbFeatures());
+		}
+		int[] expected= {
+				0, 2, 4, 0, 3, 0,
+				0, 2, 4, 1, 3, 25,
+				0, 2, 4, 2, 3, 50,
+				2, 1, 2, 0, 2, 75,
+				2, 1, 2, 1, 2, 78,
+				3, 1, 2, 0, 2, 81,
+				3, 1, 2, 1, 2, 84,
+				0, 0, 0, 0, 1, 87};
+		if(!Arrays.equals(coding.tilings(), expected)){
+			throw new RuntimeException("wrong tilings: "+ Arrays.toString(coding.tilings()));
+		}
+		if(!Arrays.equals(coding.tilingInputs(), new int[] {0, 1, 0, 1})){
+			throw new RuntimeException("wrong tiling inputs: "+ Arrays.toString(coding.tilingInputs()));
+		}
+		if(coding.tilings().length != coding.nbTilings()*TileCoding.tilingInts){
+			throw new RuntimeException("wrong descriptor size");
+		}
+		System.out.println("tile coding layout OK");
+	}
+
+	public void checkHashing(){
+		TileCoding coding= new TileCoding(mins, maxs);
+		coding.setHashing(1000);
+		coding.addFullTilings(10, 8);
+		coding.includeBias();
+		if(coding.nbFeatures() != 1001 || coding.memorySize() != 1000){
+			throw new RuntimeException("wrong hashed feature count: "+ coding.nbFeatures());
+		}
+		int[] tilings= coding.tilings();
+		for(int t=0; t<8; t++){
+			if(tilings[t*TileCoding.tilingInts + 5] != 0){
+				throw new RuntimeException("a hashed tiling does not start at feature 0");
+			}
+		}
+		// the bias is never hashed, it follows the hashed features
+		if(tilings[8*TileCoding.tilingInts + 1] != 0 || tilings[8*TileCoding.tilingInts + 5] != 1000){
+			throw new RuntimeException("wrong bias with hashing");
+		}
+		System.out.println("tile coding hashing OK");
+	}
+
+	public void checkRules(){
+		TileCoding coding= new TileCoding(mins, maxs);
+		coding.addFullTilings(4, 1);
+		expect(IllegalStateException.class, "hashing after a tiling", new Runnable() {
+			@Override
+			public void run() {
+				TileCoding coding= new TileCoding(mins, maxs);
+				coding.addFullTilings(4, 1);
+				coding.setHashing(100);
+			}
+		});
+		expect(IllegalStateException.class, "tiling after the bias", new Runnable() {
+			@Override
+			public void run() {
+				TileCoding coding= new TileCoding(mins, maxs);
+				coding.includeBias();
+				coding.addFullTilings(4, 1);
+			}
+		});
+		expect(IllegalArgumentException.class, "unknown input", new Runnable() {
+			@Override
+			public void run() {
+				new TileCoding(mins, maxs).addTilings(new int[] {2}, 4, 1);
+			}
+		});
+		expect(IllegalArgumentException.class, "too many tiles without hashing", new Runnable() {
+			@Override
+			public void run() {
+				new TileCoding(mins, maxs).addFullTilings(1 << 16, 2);
+			}
+		});
+
+		// the bias is only added once
+		coding.includeBias();
+		coding.includeBias();
+		if(coding.nbFeatures() != 26){
+			throw new RuntimeException("the bias was added twice");
+		}
+		System.out.println("tile coding rules OK");
+	}
+
+	private void expect(Class<? extends Exception> type, String what, Runnable r){
+		try{
+			r.run();
+		}catch(Exception e){
+			if(type.isInstance(e)){
+				return;
+			}
+			throw new RuntimeException(what+ ": "+ e, e);
+		}
+		throw new RuntimeException(what+ ": no "+ type.getSimpleName());
+	}
+
+	public static void main(String[] args){
+		TileCodingTest test= new TileCodingTest();
+		test.checkLayout();
+		test.checkHashing();
+		test.checkRules();
+	}
+}
@@ -0,0 +1,90 @@
+package test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import rlpark.plugin.rltoys.math.vector.implementations.PVector;
+
+import horde.FeatureView;
+import horde.TrajectoryChunk;
+import horde.TrajectoryObservation;
+import horde.TrajectoryReader;
+import horde.TrajectoryWriter;
+
+public class TrajectoryTest {
+
+	int nbFeatures= 120;
+	int nbObservations= 3;
+	int nbSteps= 2500;
+	int blockSteps= 256;
+	Random random= new Random(0);
+
+	double[][] features;
+	double[][] observations;
+	int[] actions;
+
+	public void init(){
+		features= new double[nbSteps][nbFeatures];
+		observations= new double[nbSteps][nbObservations];
+		actions= new int[nbSteps];
+		for(int i=0; i<nbSteps; i++){
+			features[i][random.nextInt(nbFeatures)]= 1;
+			features[i][random.nextInt(nbFeatures)]= 0.5;
+			for(int j=0; j<nbObservations; j++){
+				observations[i][j]= random.nextDouble();
+			}
+			actions[i]= i%100 == 0 ? TrajectoryWriter.EPISODE_START : random.nextInt(4);
+		}
+	}
+
+	public void check(boolean sparse) throws IOException{
+		File file= File.createTempFile("trajectory", ".bin");
+		file.deleteOnExit();
+
+		TrajectoryWriter writer= new TrajectoryWriter(file, nbFeatures, nbObservations, sparse, blockSteps);
+		for(int i=0; i<nbSteps; i++){
+			writer.step(actions[i], observations[i], new PVector(features[i]));
+		}
+		writer.close();
+
+		TrajectoryReader reader= new TrajectoryReader(file);
+		FeatureView view= new FeatureView(nbFeatures);
+		TrajectoryObservation o= new TrajectoryObservation(nbObservations);
+		TrajectoryChunk chunk;
+		int step= 0;
+		while((chunk= reader.nextChunk()) != null){
+			for(int i=0; i<chunk.steps(); i++){
+				if(chunk.action(i) != actions[step]){
+					throw new RuntimeException("wrong action at step "+ step);
+				}
+				chunk.features(i, view);
+				for(int j=0; j<nbFeatures; j++){
+					if(view.getEntry(j) != (float) features[step][j]){
+						throw new RuntimeException("wrong feature at step "+ step);
+					}
+				}
+				chunk.observation(i, o);
+				if(o.step() != step || o.get(nbObservations-1) != (float) observations[step][nbObservations-1]){
+					throw new RuntimeException("wrong observation at step "+ step);
+				}
+				step++;
+			}
+		}
+		reader.close();
+		if(step != nbSteps){
+			throw new RuntimeException("read "+ step+ " steps instead of "+ nbSteps);
+		}
+		System.out.println((sparse ? "sparse" : "dense")+ " trajectory: "+ file.length()+ " bytes, OK");
+	}
+
+	public void run() throws IOException{
+		init();
+		check(false);
+		check(true);
+	}
+
+	public static void main(String[] args) throws IOException{
+		(new TrajectoryTest()).run();
+	}
+}